@@ -154,4 +154,82 @@ class DatabaseObserverTest {
     assertEquals(1, thread1Count.get())
     assertEquals(1, thread2Count.get())
   }
+
+  @Test
+  fun notifyMessagesChanged_deliversASingleChangeSetPerTransaction() {
+    val changes = mutableListOf<ChangeSet>()
+    observer.registerConversationChangeObserver(1) { changes += it }
+
+    db.beginTransaction()
+
+    observer.notifyMessagesInserted(1, listOf(10L, 11L))
+    observer.notifyMessagesUpdated(1, listOf(11L, 12L))
+    observer.notifyMessagesDeleted(1, listOf(10L, 13L))
+
+    observer.flush()
+    assertTrue(changes.isEmpty())
+
+    db.setTransactionSuccessful()
+    db.endTransaction()
+
+    observer.flush()
+    assertEquals(1, changes.size)
+    assertEquals(setOf(11L), changes[0].inserted)
+    assertEquals(setOf(12L), changes[0].updated)
+    assertEquals(setOf(13L), changes[0].deleted)
+    assertFalse(changes[0].isUnknown)
+  }
+
+  @Test
+  fun notifyMessagesChanged_isUnknownIfMixedWithAPlainNotification() {
+    val changes = mutableListOf<ChangeSet>()
+    val plainCount = AtomicInteger(0)
+    observer.registerConversationChangeObserver(1) { changes += it }
+    observer.registerConversationObserver(1) { plainCount.incrementAndGet() }
+
+    db.beginTransaction()
+
+    observer.notifyMessagesUpdated(1, listOf(10L))
+    observer.notifyConversationListeners(1)
+
+    db.setTransactionSuccessful()
+    db.endTransaction()
+
+    observer.flush()
+    assertEquals(1, changes.size)
+    assertTrue(changes[0].isUnknown)
+    assertEquals(1, plainCount.get())
+  }
+
+  @Test
+  fun notifyMessagesChanged_doesNotCarryChangesOverFromAFailedTransaction() {
+    val changes = mutableListOf<ChangeSet>()
+    observer.registerConversationChangeObserver(1) { changes += it }
+
+    db.beginTransaction()
+    observer.notifyMessagesDeleted(1, listOf(10L))
+    db.endTransaction()
+
+    db.beginTransaction()
+    observer.notifyMessagesUpdated(1, listOf(11L))
+    db.setTransactionSuccessful()
+    db.endTransaction()
+
+    observer.flush()
+    assertEquals(1, changes.size)
+    assertEquals(setOf(11L), changes[0].updated)
+    assertTrue(changes[0].deleted.isEmpty())
+  }
+
+  @Test
+  fun notifyMessagesChanged_runsImmediatelyIfNotInTransaction() {
+    val changes = mutableListOf<ChangeSet>()
+    observer.registerConversationChangeObserver(1) { changes += it }
+
+    observer.notifyMessagesInserted(1, listOf(10L))
+    observer.flush()
+
+    assertEquals(1, changes.size)
+    assertEquals(setOf(10L), changes[0].inserted)
+  }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.signal.core.util.readToList
+import org.signal.core.util.readToSingleInt
+import org.signal.core.util.requireLong
+import org.signal.core.util.select
+import org.thoughtcrime.securesms.mms.IncomingMessage
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.thoughtcrime.securesms.util.FeatureFlags
+import org.thoughtcrime.securesms.util.FeatureFlagsAccessor
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.UUID
+import kotlin.random.Random
+
+/**
+ * Checks [MessagePositionTable] against the plain counting queries it replaces.
+ */
+class MessagePositionTableTest {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipient: Recipient
+  private var threadId: Long = 0
+
+  @Before
+  fun setUp() {
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID())))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+  }
+
+  @After
+  fun tearDown() {
+    FeatureFlagsAccessor.forceValue(FeatureFlags.MESSAGE_POSITION_INDEX, false)
+  }
+
+  @Test
+  fun givenMessagesAcrossManyBuckets_whenICountMessagesReceivedAfter_thenIExpectTheSameCountAsAScan() {
+    val times = insertIncoming(count = 200)
+
+    for (time in times + times.map { it + 1 } + listOf(0L, Long.MAX_VALUE shr 1)) {
+      assertEquals("time: $time", countByScan(time), SignalDatabase.messagePositions.getCountReceivedAfter(threadId, time))
+    }
+  }
+
+  @Test
+  fun givenDeletedMessages_whenICountMessagesReceivedAfter_thenIExpectTheSameCountAsAScan() {
+    val times = insertIncoming(count = 100)
+
+    getMessageIds().filterIndexed { index, _ -> index % 3 == 0 }.forEach { SignalDatabase.messages.deleteMessage(it) }
+
+    for (time in times) {
+      assertEquals("time: $time", countByScan(time), SignalDatabase.messagePositions.getCountReceivedAfter(threadId, time))
+    }
+  }
+
+  @Test
+  fun givenAnEmptyThread_whenIGetAPageAnchor_thenIExpectNull() {
+    assertEquals(null, SignalDatabase.messagePositions.getPageAnchor(threadId, 0))
+  }
+
+  @Test
+  fun givenManyMessages_whenIGetADeepPage_thenIExpectTheSameMessagesAsWithAnOffset() {
+    insertIncoming(count = 560)
+
+    for (offset in listOf(500L, 517L, 550L, 559L, 560L)) {
+      FeatureFlagsAccessor.forceValue(FeatureFlags.MESSAGE_POSITION_INDEX, false)
+      val expected = getPage(offset)
+
+      FeatureFlagsAccessor.forceValue(FeatureFlags.MESSAGE_POSITION_INDEX, true)
+      val actual = getPage(offset)
+
+      assertEquals("offset: $offset", expected, actual)
+    }
+  }
+
+  private fun insertIncoming(count: Int): List<Long> {
+    val random = Random(count)
+    val times: List<Long> = (0 until count)
+      .map { 1_600_000_000_000L + random.nextLong(1L shl 34) }
+      .distinct()
+      .sorted()
+
+    for (time in times) {
+      MmsHelper.insert(
+        IncomingMessage(
+          type = MessageType.NORMAL,
+          from = recipient.id,
+          sentTimeMillis = time,
+          serverTimeMillis = time,
+          receivedTimeMillis = time,
+          body = "body"
+        ),
+        threadId
+      )
+    }
+
+    return times
+  }
+
+  private fun countByScan(time: Long): Int {
+    return SignalDatabase.rawDatabase
+      .select("COUNT(*)")
+      .from(MessageTable.TABLE_NAME)
+      .where("${MessageTable.THREAD_ID} = ? AND ${MessageTable.DATE_RECEIVED} > ?", threadId, time)
+      .run()
+      .readToSingleInt()
+  }
+
+  private fun getMessageIds(): List<Long> {
+    return SignalDatabase.messages.getConversation(threadId).readToList { it.requireLong(MessageTable.ID) }
+  }
+
+  private fun getPage(offset: Long): List<Long> {
+    return SignalDatabase.messages.getConversation(threadId, offset, 20).readToList { it.requireLong(MessageTable.ID) }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.signal.core.util.readToSingleObject
+import org.signal.core.util.requireInt
+import org.signal.core.util.requireLong
+import org.signal.core.util.select
+import org.thoughtcrime.securesms.database.MessageTable.MessageReceipt
+import org.thoughtcrime.securesms.database.MessageTable.ReceiptType
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.UUID
+
+@Suppress("ClassName")
+class MessageTableTest_receipts {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var alice: Recipient
+  private lateinit var bob: Recipient
+
+  @Before
+  fun setUp() {
+    alice = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID())))
+    bob = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID())))
+  }
+
+  @Test
+  fun givenOutgoingMessages_whenIApplyABatchOfDeliveryReceipts_thenIExpectEachMessageToBeDelivered() {
+    val first = MmsHelper.insert(recipient = alice, sentTimeMillis = 1000)
+    val second = MmsHelper.insert(recipient = alice, sentTimeMillis = 2000)
+
+    val result = SignalDatabase.messages.incrementReceiptCounts(
+      listOf(
+        MessageReceipt(1000, alice.id, 5000, ReceiptType.DELIVERY),
+        MessageReceipt(2000, alice.id, 5000, ReceiptType.DELIVERY)
+      )
+    )
+
+    assertEquals(setOf(first, second), result.updates.map { it.messageId.id }.toSet())
+    assertTrue(result.missing.isEmpty())
+    assertEquals(Counts(delivered = 1, read = 0, receiptTimestamp = 5000), getCounts(first))
+    assertEquals(Counts(delivered = 1, read = 0, receiptTimestamp = 5000), getCounts(second))
+  }
+
+  @Test
+  fun givenAnOutgoingMessage_whenIApplyDeliveryAndReadReceiptsInOneBatch_thenIExpectBothCounts() {
+    val messageId = MmsHelper.insert(recipient = alice, sentTimeMillis = 1000)
+
+    SignalDatabase.messages.incrementReceiptCounts(
+      listOf(
+        MessageReceipt(1000, alice.id, 5000, ReceiptType.DELIVERY),
+        MessageReceipt(1000, alice.id, 6000, ReceiptType.READ)
+      )
+    )
+
+    assertEquals(Counts(delivered = 1, read = 1, receiptTimestamp = 6000), getCounts(messageId))
+  }
+
+  @Test
+  fun givenAReceiptFromSomeoneElse_whenIApplyIt_thenIExpectItToBeMissing() {
+    val messageId = MmsHelper.insert(recipient = alice, sentTimeMillis = 1000)
+    val fromBob = MessageReceipt(1000, bob.id, 5000, ReceiptType.DELIVERY)
+
+    val result = SignalDatabase.messages.incrementReceiptCounts(
+      listOf(
+        MessageReceipt(1000, alice.id, 5000, ReceiptType.DELIVERY),
+        fromBob,
+        MessageReceipt(3000, alice.id, 5000, ReceiptType.DELIVERY)
+      )
+    )
+
+    assertEquals(listOf(fromBob, MessageReceipt(3000, alice.id, 5000, ReceiptType.DELIVERY)), result.missing)
+    assertEquals(Counts(delivered = 1, read = 0, receiptTimestamp = 5000), getCounts(messageId))
+  }
+
+  @Test
+  fun givenDuplicateReceipts_whenIApplyThem_thenIExpectTheSameCountsAsApplyingThemOneAtATime() {
+    val messageId = MmsHelper.insert(recipient = alice, sentTimeMillis = 1000)
+
+    SignalDatabase.messages.incrementReceiptCounts(
+      listOf(
+        MessageReceipt(1000, alice.id, 5000, ReceiptType.DELIVERY),
+        MessageReceipt(1000, alice.id, 5000, ReceiptType.DELIVERY)
+      )
+    )
+
+    assertEquals(Counts(delivered = 2, read = 0, receiptTimestamp = 5000), getCounts(messageId))
+  }
+
+  @Test
+  fun givenGroupReceipts_whenIApplyDeliveryAndReadReceipts_thenIExpectTheHighestStatus() {
+    val messageId = MmsHelper.insert(recipient = alice, sentTimeMillis = 1000)
+    SignalDatabase.groupReceipts.insert(listOf(alice.id), messageId, GroupReceiptTable.STATUS_UNDELIVERED, 1000)
+
+    SignalDatabase.messages.incrementReceiptCounts(
+      listOf(
+        MessageReceipt(1000, alice.id, 6000, ReceiptType.READ),
+        MessageReceipt(1000, alice.id, 5000, ReceiptType.DELIVERY)
+      )
+    )
+
+    val info = SignalDatabase.groupReceipts.getGroupReceiptInfo(messageId).single()
+    assertEquals(GroupReceiptTable.STATUS_READ, info.status)
+    assertEquals(6000L, info.timestamp)
+  }
+
+  private fun getCounts(messageId: Long): Counts {
+    return SignalDatabase.rawDatabase
+      .select(MessageTable.DELIVERY_RECEIPT_COUNT, MessageTable.READ_RECEIPT_COUNT, MessageTable.RECEIPT_TIMESTAMP)
+      .from(MessageTable.TABLE_NAME)
+      .where("${MessageTable.ID} = ?", messageId)
+      .run()
+      .readToSingleObject { cursor ->
+        Counts(
+          delivered = cursor.requireInt(MessageTable.DELIVERY_RECEIPT_COUNT),
+          read = cursor.requireInt(MessageTable.READ_RECEIPT_COUNT),
+          receiptTimestamp = cursor.requireLong(MessageTable.RECEIPT_TIMESTAMP)
+        )
+      }!!
+  }
+
+  private data class Counts(
+    val delivered: Int,
+    val read: Int,
+    val receiptTimestamp: Long
+  )
+}
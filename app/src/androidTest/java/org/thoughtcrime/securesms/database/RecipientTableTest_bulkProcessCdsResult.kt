@@ -0,0 +1,244 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.SqlUtil
+import org.signal.core.util.readToList
+import org.signal.core.util.requireLong
+import org.signal.core.util.requireString
+import org.signal.core.util.select
+import org.thoughtcrime.securesms.database.RecipientTable.CdsV2Result
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.util.FeatureFlags
+import org.thoughtcrime.securesms.util.FeatureFlagsAccessor
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import java.util.UUID
+
+/**
+ * Checks that [RecipientTable.bulkProcessCdsResult] leaves the table in exactly the same state as running [RecipientTable.getAndPossiblyMerge]
+ * on each result one at a time.
+ */
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class RecipientTableTest_bulkProcessCdsResult {
+
+  @Before
+  fun setup() {
+    SignalStore.account().setE164(E164_SELF)
+    SignalStore.account().setAci(ACI_SELF)
+    SignalStore.account().setPni(PNI_SELF)
+    FeatureFlagsAccessor.forceValue(FeatureFlags.PHONE_NUMBER_PRIVACY, true)
+  }
+
+  @Test
+  fun everythingAlreadyUpToDate() {
+    assertSameAsPerTuple(
+      given = listOf(
+        Row(E164_A, PNI_A, ACI_A),
+        Row(E164_B, PNI_B, ACI_B)
+      ),
+      results = mapOf(
+        E164_A to CdsV2Result(PNI_A, ACI_A),
+        E164_B to CdsV2Result(PNI_B, ACI_B)
+      )
+    )
+  }
+
+  @Test
+  fun everythingIsNew() {
+    assertSameAsPerTuple(
+      given = emptyList(),
+      results = mapOf(
+        E164_A to CdsV2Result(PNI_A, ACI_A),
+        E164_B to CdsV2Result(PNI_B, null)
+      )
+    )
+  }
+
+  @Test
+  fun fillsInMissingFields() {
+    assertSameAsPerTuple(
+      given = listOf(
+        Row(E164_A, null, null),
+        Row(null, PNI_B, ACI_B)
+      ),
+      results = mapOf(
+        E164_A to CdsV2Result(PNI_A, ACI_A),
+        E164_B to CdsV2Result(PNI_B, ACI_B)
+      )
+    )
+  }
+
+  @Test
+  fun mergesRows() {
+    assertSameAsPerTuple(
+      given = listOf(
+        Row(E164_A, null, null),
+        Row(null, PNI_A, null),
+        Row(null, null, ACI_A)
+      ),
+      results = mapOf(
+        E164_A to CdsV2Result(PNI_A, ACI_A)
+      )
+    )
+  }
+
+  @Test
+  fun changesNumber() {
+    assertSameAsPerTuple(
+      given = listOf(
+        Row(E164_A, PNI_A, ACI_A)
+      ),
+      results = mapOf(
+        E164_B to CdsV2Result(PNI_A, ACI_A)
+      )
+    )
+  }
+
+  @Test
+  fun laterResultsDependOnEarlierWrites() {
+    assertSameAsPerTuple(
+      given = listOf(
+        Row(E164_A, PNI_A, ACI_A),
+        Row(E164_B, PNI_B, null),
+        Row(E164_C, null, ACI_C)
+      ),
+      results = linkedMapOf(
+        E164_A to CdsV2Result(PNI_B, ACI_A),
+        E164_B to CdsV2Result(PNI_A, null),
+        E164_C to CdsV2Result(PNI_C, ACI_B)
+      )
+    )
+  }
+
+  @Test
+  fun numbersAndPnisTradePlaces() {
+    assertSameAsPerTuple(
+      given = listOf(
+        Row(E164_A, PNI_A, ACI_A),
+        Row(E164_B, PNI_B, ACI_B)
+      ),
+      results = linkedMapOf(
+        E164_B to CdsV2Result(PNI_A, ACI_A),
+        E164_A to CdsV2Result(PNI_B, ACI_B)
+      )
+    )
+  }
+
+  private fun assertSameAsPerTuple(given: List<Row>, results: Map<String, CdsV2Result>) {
+    reset(given)
+    val perTupleIds: Set<RecipientId> = results.map { (e164, result) ->
+      SignalDatabase.recipients.getAndPossiblyMerge(aci = result.aci, pni = result.pni, e164 = e164, pniVerified = false, changeSelf = false)
+    }.toSet()
+    val perTupleRows: Set<Row> = getAllRows()
+    val perTupleResults: Set<Row?> = perTupleIds.map { getRow(it) }.toSet()
+
+    reset(given)
+    val bulkIds: Set<RecipientId> = SignalDatabase.recipients.bulkProcessCdsResult(results)
+    val bulkRows: Set<Row> = getAllRows()
+    val bulkResults: Set<Row?> = bulkIds.map { getRow(it) }.toSet()
+
+    assertEquals(perTupleRows, bulkRows)
+    assertEquals(perTupleResults, bulkResults)
+  }
+
+  private fun reset(given: List<Row>) {
+    // Need to delete these first to prevent foreign key crash
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM distribution_list")
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM distribution_list_member")
+
+    SqlUtil.getAllTables(SignalDatabase.rawDatabase)
+      .filterNot { it.contains("sqlite") || it.contains("fts") || it.startsWith("emoji_search_") } // If we delete these we'll corrupt the DB
+      .sorted()
+      .forEach { table ->
+        SignalDatabase.rawDatabase.execSQL("DELETE FROM $table")
+      }
+
+    ApplicationDependencies.getRecipientCache().clear()
+    ApplicationDependencies.getRecipientCache().clearSelf()
+    RecipientId.clearCache()
+
+    for (row in given) {
+      val id: Long = SignalDatabase.rawDatabase.insert(
+        RecipientTable.TABLE_NAME,
+        null,
+        contentValuesOf(
+          RecipientTable.E164 to row.e164,
+          RecipientTable.ACI_COLUMN to row.aci?.toString(),
+          RecipientTable.PNI_COLUMN to row.pni?.toString(),
+          RecipientTable.REGISTERED to RecipientTable.RegisteredState.REGISTERED.id
+        )
+      )
+
+      assertTrue("Failed to insert $row", id > 0)
+    }
+  }
+
+  /**
+   * Row ids differ between runs, so rows are compared by their contents alone.
+   */
+  private fun getAllRows(): Set<Row> {
+    return SignalDatabase.rawDatabase
+      .select(RecipientTable.E164, RecipientTable.PNI_COLUMN, RecipientTable.ACI_COLUMN)
+      .from(RecipientTable.TABLE_NAME)
+      .where("${RecipientTable.E164} NOT NULL OR ${RecipientTable.PNI_COLUMN} NOT NULL OR ${RecipientTable.ACI_COLUMN} NOT NULL")
+      .run()
+      .readToList { cursor ->
+        Row(
+          e164 = cursor.requireString(RecipientTable.E164),
+          pni = PNI.parseOrNull(cursor.requireString(RecipientTable.PNI_COLUMN)),
+          aci = ACI.parseOrNull(cursor.requireString(RecipientTable.ACI_COLUMN))
+        )
+      }
+      .toSet()
+  }
+
+  private fun getRow(id: RecipientId): Row? {
+    return SignalDatabase.rawDatabase
+      .select(RecipientTable.ID, RecipientTable.E164, RecipientTable.PNI_COLUMN, RecipientTable.ACI_COLUMN)
+      .from(RecipientTable.TABLE_NAME)
+      .where("${RecipientTable.ID} = ?", id)
+      .run()
+      .readToList { cursor ->
+        check(cursor.requireLong(RecipientTable.ID) == id.toLong())
+
+        Row(
+          e164 = cursor.requireString(RecipientTable.E164),
+          pni = PNI.parseOrNull(cursor.requireString(RecipientTable.PNI_COLUMN)),
+          aci = ACI.parseOrNull(cursor.requireString(RecipientTable.ACI_COLUMN))
+        )
+      }
+      .firstOrNull()
+  }
+
+  data class Row(
+    val e164: String?,
+    val pni: PNI?,
+    val aci: ACI?
+  )
+
+  companion object {
+    val ACI_A = ACI.from(UUID.fromString("aaaa0000-5a76-47fa-a98a-7e72c948a82e"))
+    val ACI_B = ACI.from(UUID.fromString("bbbb0000-0b60-4a68-9cd9-ed2f8453f9ed"))
+    val ACI_C = ACI.from(UUID.fromString("cccc0000-11d6-4e1c-8a5e-5a1d7b3c2f41"))
+    val ACI_SELF = ACI.from(UUID.fromString("77770000-b477-4f35-a824-d92987a63641"))
+
+    val PNI_A = PNI.from(UUID.fromString("aaaa1111-c960-4f6c-8385-671ad2ffb999"))
+    val PNI_B = PNI.from(UUID.fromString("bbbb1111-cd55-40bf-adda-c35a85375533"))
+    val PNI_C = PNI.from(UUID.fromString("cccc1111-5d0b-4b0e-9a6f-2c4e8d7f1a33"))
+    val PNI_SELF = PNI.from(UUID.fromString("77771111-b014-41fb-bf73-05cb2ec52910"))
+
+    const val E164_A = "+12222222222"
+    const val E164_B = "+13333333333"
+    const val E164_C = "+14444444444"
+    const val E164_SELF = "+10000000000"
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.signal.core.util.readToSingleObject
+import org.signal.core.util.requireBoolean
+import org.signal.core.util.requireInt
+import org.signal.core.util.requireLong
+import org.signal.core.util.requireString
+import org.signal.core.util.select
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord
+import org.thoughtcrime.securesms.database.model.Mention
+import org.thoughtcrime.securesms.mms.IncomingMessage
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.thoughtcrime.securesms.util.FeatureFlags
+import org.thoughtcrime.securesms.util.FeatureFlagsAccessor
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import java.util.UUID
+
+/**
+ * Consistency checks for [ThreadTable.updateForInsertedMessage] and friends: after every incremental change, the thread summary should be
+ * exactly what a full [ThreadTable.update] would have produced.
+ */
+@Suppress("ClassName")
+class ThreadTableTest_incrementalSummary {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipient: Recipient
+  private var threadId: Long = 0
+
+  @Before
+  fun setUp() {
+    FeatureFlagsAccessor.forceValue(FeatureFlags.INCREMENTAL_THREAD_SUMMARIES, true)
+
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID())))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+  }
+
+  @After
+  fun tearDown() {
+    FeatureFlagsAccessor.forceValue(FeatureFlags.INCREMENTAL_THREAD_SUMMARIES, false)
+  }
+
+  @Test
+  fun givenIncomingMessages_whenIInsertThem_thenIExpectTheFullSummary() {
+    insertIncoming(time = 1000)
+    insertIncoming(time = 2000)
+    insertIncoming(time = 3000)
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenAnOlderIncomingMessage_whenIInsertIt_thenIExpectTheSnippetToStayTheSame() {
+    insertIncoming(time = 5000, body = "newer")
+    insertIncoming(time = 1000, body = "older")
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenAnOutgoingMessage_whenIInsertAnIncomingMessage_thenIExpectTheFullSummary() {
+    MmsHelper.insert(recipient = recipient, threadId = threadId, sentTimeMillis = 1000)
+    SignalDatabase.threads.update(threadId, false)
+
+    insertIncoming(time = 2000)
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenAnOutgoingMessage_whenIInsertAnotherOutgoingMessage_thenIExpectTheFullSummary() {
+    MmsHelper.insert(recipient = recipient, threadId = threadId, sentTimeMillis = 1000)
+    SignalDatabase.threads.update(threadId, false)
+
+    val messageId = MmsHelper.insert(recipient = recipient, threadId = threadId, sentTimeMillis = 2000)
+    SignalDatabase.threads.updateForInsertedMessage(threadId, messageId, false)
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenAnIncomingMention_whenIInsertIt_thenIExpectTheFullSummary() {
+    insertIncoming(time = 1000)
+    insertIncoming(time = 2000, mentions = listOf(Mention(Recipient.self().id, 0, 1)))
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenUnreadMessages_whenIMarkSomeRead_thenIExpectTheFullSummary() {
+    insertIncoming(time = 1000)
+    insertIncoming(time = 2000, mentions = listOf(Mention(Recipient.self().id, 0, 1)))
+    insertIncoming(time = 3000, mentions = listOf(Mention(Recipient.self().id, 0, 1)))
+    insertIncoming(time = 4000)
+
+    SignalDatabase.threads.setReadSince(threadId, false, 2000)
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenUnreadMessages_whenIMarkAllRead_thenIExpectTheFullSummary() {
+    insertIncoming(time = 1000)
+    insertIncoming(time = 2000, mentions = listOf(Mention(Recipient.self().id, 0, 1)))
+
+    SignalDatabase.threads.setRead(threadId, false)
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenMessages_whenIDeleteOneThatIsNotTheSnippet_thenIExpectTheFullSummary() {
+    val first = insertIncoming(time = 1000)
+    insertIncoming(time = 2000)
+
+    SignalDatabase.messages.deleteMessage(first)
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenMessages_whenIDeleteTheSnippet_thenIExpectTheFullSummary() {
+    insertIncoming(time = 1000)
+    val last = insertIncoming(time = 2000)
+
+    SignalDatabase.messages.deleteMessage(last)
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  @Test
+  fun givenAnIncomingMessage_whenIReceiveAnEditForIt_thenIExpectTheFullSummary() {
+    insertIncoming(time = 1000)
+    val original = insertIncoming(time = 2000, body = "original")
+
+    val target = SignalDatabase.messages.getMessageRecord(original) as MediaMmsMessageRecord
+    SignalDatabase.messages.insertEditMessageInbox(
+      IncomingMessage(
+        type = MessageType.NORMAL,
+        from = recipient.id,
+        sentTimeMillis = 3000,
+        serverTimeMillis = 3000,
+        receivedTimeMillis = target.dateReceived,
+        body = "edited"
+      ),
+      target
+    )
+
+    assertSummaryMatchesFullUpdate()
+  }
+
+  private fun insertIncoming(time: Long, body: String = "body", mentions: List<Mention> = emptyList()): Long {
+    return MmsHelper.insert(
+      IncomingMessage(
+        type = MessageType.NORMAL,
+        from = recipient.id,
+        sentTimeMillis = time,
+        serverTimeMillis = time,
+        receivedTimeMillis = time,
+        body = body,
+        mentions = mentions
+      ),
+      threadId
+    ).get().messageId
+  }
+
+  private fun assertSummaryMatchesFullUpdate() {
+    val incremental = getSummary()
+
+    SignalDatabase.threads.update(threadId, false)
+    val full = getSummary()
+
+    assertEquals(full, incremental)
+  }
+
+  private fun getSummary(): Summary? {
+    return SignalDatabase.rawDatabase
+      .select()
+      .from(ThreadTable.TABLE_NAME)
+      .where("${ThreadTable.ID} = ?", threadId)
+      .run()
+      .readToSingleObject { cursor ->
+        Summary(
+          snippet = cursor.requireString(ThreadTable.SNIPPET),
+          snippetType = cursor.requireLong(ThreadTable.SNIPPET_TYPE),
+          snippetMessageId = cursor.requireLong(ThreadTable.SNIPPET_MESSAGE_ID),
+          date = cursor.requireLong(ThreadTable.DATE),
+          meaningfulMessages = cursor.requireBoolean(ThreadTable.MEANINGFUL_MESSAGES),
+          unreadCount = cursor.requireInt(ThreadTable.UNREAD_COUNT),
+          unreadMentionCount = cursor.requireInt(ThreadTable.UNREAD_SELF_MENTION_COUNT)
+        )
+      }
+  }
+
+  private data class Summary(
+    val snippet: String?,
+    val snippetType: Long,
+    val snippetMessageId: Long,
+    val date: Long,
+    val meaningfulMessages: Boolean,
+    val unreadCount: Int,
+    val unreadMentionCount: Int
+  )
+}
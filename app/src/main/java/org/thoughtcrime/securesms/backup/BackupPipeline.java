@@ -0,0 +1,446 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves the slow writes of a backup export or import off of the thread that's reading, so the two can overlap.
+ * <p>
+ * The caller {@link #enqueue(WriteTask)}s writes, which are run in order on a single writer thread. When exporting, streams that need
+ * decrypting are handed to {@link #prefetch(StreamOpener)} first, which starts decrypting them on their own thread into a handful of
+ * reusable buffers, so by the time the writer reaches them it mostly just has to encrypt. When importing, {@link #writeBehind(OutputStream)}
+ * lets the caller stream attachment data to a file without waiting for it to be encrypted and written.
+ * <p>
+ * Everything is bounded. Once too many writes are queued, or too many streams are being prefetched, the caller blocks until the writer
+ * catches up. If the writer fails, the failure is rethrown to the caller the next time it calls into the pipeline.
+ */
+final class BackupPipeline implements Closeable {
+
+  private static final long POLL_INTERVAL_MS = 100;
+
+  private static final WriteTask END = () -> {};
+
+  private final Executor                 executor;
+  private final BlockingQueue<WriteTask> pendingWrites;
+  private final Semaphore                streamPermits;
+  private final Set<PrefetchedStream>    openStreams;
+  private final CountDownLatch           writerFinished;
+  private final int                      chunkSize;
+  private final int                      chunksPerStream;
+
+  private volatile Throwable failure;
+  private volatile boolean   closed;
+
+  /**
+   * @param executor             Runs the writer and the prefetchers. Must be able to run {@code maxPrefetchedStreams + 1} tasks at once.
+   * @param maxPendingWrites     How many writes can be queued before {@link #enqueue(WriteTask)} blocks.
+   * @param maxPrefetchedStreams How many streams can be prefetched at once before {@link #prefetch(StreamOpener)} blocks.
+   * @param chunkSize            The size of each buffer a stream is prefetched into.
+   * @param chunksPerStream      How many buffers each stream can fill ahead of the writer.
+   */
+  BackupPipeline(@NonNull Executor executor, int maxPendingWrites, int maxPrefetchedStreams, int chunkSize, int chunksPerStream) {
+    this.executor        = executor;
+    this.pendingWrites   = new LinkedBlockingQueue<>(maxPendingWrites);
+    this.streamPermits   = new Semaphore(maxPrefetchedStreams);
+    this.openStreams     = ConcurrentHashMap.newKeySet();
+    this.writerFinished  = new CountDownLatch(1);
+    this.chunkSize       = chunkSize;
+    this.chunksPerStream = chunksPerStream;
+
+    executor.execute(this::runWriter);
+  }
+
+  /**
+   * Creates a pipeline that only runs writes, and can't {@link #prefetch(StreamOpener)}.
+   */
+  BackupPipeline(@NonNull Executor executor, int maxPendingWrites) {
+    this(executor, maxPendingWrites, 0, 0, 0);
+  }
+
+  /**
+   * Queues a write to be run after every write queued before it. Blocks if the queue is full.
+   */
+  void enqueue(@NonNull WriteTask task) throws IOException {
+    throwIfFailedOrClosed();
+
+    try {
+      while (!pendingWrites.offer(task, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        throwIfFailedOrClosed();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while queueing a backup write");
+    }
+  }
+
+  /**
+   * Starts reading the stream returned by {@code opener} in the background. Blocks if too many streams are already being prefetched.
+   * <p>
+   * The returned stream must be handed to a {@link WriteTask}, which is responsible for closing it. Nothing else will free up room for
+   * more streams.
+   */
+  @NonNull PrefetchedStream prefetch(@NonNull StreamOpener opener) throws IOException {
+    throwIfFailedOrClosed();
+
+    try {
+      while (!streamPermits.tryAcquire(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        throwIfFailedOrClosed();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting to prefetch a backup stream");
+    }
+
+    PrefetchedStream stream = new PrefetchedStream(opener);
+    openStreams.add(stream);
+
+    if (failure != null || closed) {
+      // The writer may have failed after we last checked, and after it closed all of the streams it knew about
+      stream.close();
+      throwIfFailedOrClosed();
+    }
+
+    executor.execute(stream::produce);
+
+    return stream;
+  }
+
+  /**
+   * @return An {@link OutputStream} that queues a copy of everything written to it to be written to {@code destination} on the writer
+   *         thread. Closing it queues closing {@code destination}. Failures writing to {@code destination} are rethrown the next time the
+   *         caller calls into the pipeline, not necessarily from this stream.
+   */
+  @NonNull OutputStream writeBehind(@NonNull OutputStream destination) {
+    return new OutputStream() {
+      private boolean streamClosed;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        if (streamClosed) {
+          throw new IOException("Stream closed");
+        }
+
+        if (length > 0) {
+          byte[] copy = Arrays.copyOfRange(buffer, offset, offset + length);
+          enqueue(() -> destination.write(copy));
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (!streamClosed) {
+          streamClosed = true;
+          enqueue(destination::close);
+        }
+      }
+    };
+  }
+
+  /**
+   * Waits for every queued write to finish. Nothing can be queued afterwards.
+   */
+  void finish() throws IOException {
+    enqueue(END);
+    awaitWriter();
+    throwIfFailedOrClosed();
+    closed = true;
+  }
+
+  /**
+   * Abandons any queued writes and in-flight streams, and waits for the writer to stop. Safe to call after {@link #finish()}.
+   */
+  @Override
+  public void close() throws IOException {
+    if (writerFinished.getCount() > 0) {
+      closed = true;
+      pendingWrites.clear();
+      pendingWrites.offer(END);
+    }
+
+    closeOpenStreams();
+    awaitWriter();
+  }
+
+  private void runWriter() {
+    try {
+      WriteTask task;
+      while ((task = pendingWrites.take()) != END && !closed) {
+        task.write();
+      }
+    } catch (Throwable t) {
+      failure = t;
+      closeOpenStreams();
+    } finally {
+      writerFinished.countDown();
+    }
+  }
+
+  private void awaitWriter() throws IOException {
+    try {
+      writerFinished.await();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for backup writes");
+    }
+  }
+
+  private void closeOpenStreams() {
+    for (PrefetchedStream stream : openStreams) {
+      stream.close();
+    }
+  }
+
+  private void throwIfFailedOrClosed() throws IOException {
+    Throwable error = failure;
+
+    if (error instanceof IOException) {
+      throw (IOException) error;
+    } else if (error != null) {
+      throw new IOException("Backup writer failed", error);
+    } else if (closed) {
+      throw new IOException("Pipeline is closed");
+    }
+  }
+
+  interface WriteTask {
+    void write() throws IOException;
+  }
+
+  interface StreamOpener {
+    @NonNull InputStream open() throws IOException;
+  }
+
+  /**
+   * An {@link InputStream} that is filled on a background thread. Closing it stops the background read and frees up room for another
+   * stream to be prefetched.
+   */
+  final class PrefetchedStream extends InputStream {
+
+    private final StreamOpener          opener;
+    private final BlockingQueue<Chunk>  filled;
+    private final BlockingQueue<byte[]> empty;
+    private final CountDownLatch        opened;
+    private final AtomicBoolean         streamClosed;
+
+    private volatile IOException openFailure;
+
+    private int     allocated;
+    private Chunk   current;
+    private int     position;
+    private boolean ended;
+
+    private PrefetchedStream(@NonNull StreamOpener opener) {
+      this.opener       = opener;
+      this.filled       = new LinkedBlockingQueue<>();
+      this.empty        = new LinkedBlockingQueue<>();
+      this.opened       = new CountDownLatch(1);
+      this.streamClosed = new AtomicBoolean(false);
+    }
+
+    /**
+     * Waits until the underlying stream has been opened, rethrowing any exception that opening it threw.
+     */
+    @NonNull InputStream awaitOpen() throws IOException {
+      try {
+        opened.await();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while opening a backup stream");
+      }
+
+      IOException error = openFailure;
+      if (error != null) {
+        close();
+        throw error;
+      }
+
+      return this;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureChunk()) {
+        return -1;
+      }
+
+      return current.buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      if (!ensureChunk()) {
+        return -1;
+      }
+
+      int read = Math.min(length, current.length - position);
+      System.arraycopy(current.buffer, position, buffer, offset, read);
+      position += read;
+
+      return read;
+    }
+
+    @Override
+    public void close() {
+      if (streamClosed.compareAndSet(false, true)) {
+        openStreams.remove(this);
+        streamPermits.release();
+      }
+    }
+
+    /**
+     * @return False if the stream has ended, otherwise true with at least one unread byte in {@link #current}.
+     */
+    private boolean ensureChunk() throws IOException {
+      if (current != null && position < current.length) {
+        return true;
+      }
+
+      if (ended) {
+        return false;
+      }
+
+      if (current != null) {
+        empty.offer(current.buffer);
+        current = null;
+      }
+
+      Chunk next = takeChunk();
+
+      if (next.error != null) {
+        throw next.error;
+      } else if (next.buffer == null) {
+        ended = true;
+        return false;
+      }
+
+      current  = next;
+      position = 0;
+
+      return true;
+    }
+
+    private @NonNull Chunk takeChunk() throws IOException {
+      try {
+        Chunk chunk;
+        while ((chunk = filled.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) == null) {
+          if (streamClosed.get()) {
+            throw new IOException("Stream closed");
+          }
+        }
+        return chunk;
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while reading a backup stream");
+      }
+    }
+
+    private void produce() {
+      InputStream source;
+
+      try {
+        source = opener.open();
+      } catch (IOException e) {
+        openFailure = e;
+        return;
+      } catch (RuntimeException e) {
+        openFailure = new IOException(e);
+        return;
+      } finally {
+        opened.countDown();
+      }
+
+      try (InputStream in = source) {
+        boolean eof = false;
+
+        while (!eof) {
+          byte[] buffer = obtainBuffer();
+          if (buffer == null) {
+            return;
+          }
+
+          int length = 0;
+          int read;
+
+          while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+          }
+
+          eof = length < buffer.length;
+
+          if (length > 0) {
+            filled.add(new Chunk(buffer, length, null));
+          }
+        }
+
+        filled.add(new Chunk(null, 0, null));
+      } catch (IOException e) {
+        filled.add(new Chunk(null, 0, e));
+      } catch (RuntimeException e) {
+        filled.add(new Chunk(null, 0, new IOException(e)));
+      }
+    }
+
+    /**
+     * @return A buffer to read into, waiting for the writer to hand one back if we're already at the limit, or null if the stream was
+     *         closed in the meantime.
+     */
+    private @Nullable byte[] obtainBuffer() {
+      byte[] buffer = empty.poll();
+
+      if (buffer == null && allocated < chunksPerStream) {
+        allocated++;
+        return new byte[chunkSize];
+      }
+
+      try {
+        while (buffer == null && !streamClosed.get()) {
+          buffer = empty.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        return null;
+      }
+
+      return streamClosed.get() ? null : buffer;
+    }
+  }
+
+  /**
+   * Either some data, the end of the stream (no buffer), or a failure.
+   */
+  private static final class Chunk {
+    private final byte[]      buffer;
+    private final int         length;
+    private final IOException error;
+
+    private Chunk(@Nullable byte[] buffer, int length, @Nullable IOException error) {
+      this.buffer = buffer;
+      this.length = length;
+      this.error  = error;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.backup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.signal.core.util.Conversions;
 import org.signal.core.util.StreamUtil;
@@ -10,6 +11,8 @@ import org.signal.libsignal.protocol.util.ByteUtil;
 import org.thoughtcrime.securesms.backup.proto.BackupFrame;
 import org.thoughtcrime.securesms.backup.proto.Header;
 
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,26 +34,35 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
   private final String TAG             = Log.tag(BackupRecordInputStream.class);
   private final int    MAX_BUFFER_SIZE = 8192;
 
-  private final int         version;
-  private final InputStream in;
-  private final Cipher      cipher;
-  private final Mac         mac;
+  private final int                 version;
+  private final CountingInputStream in;
+  private final Cipher              cipher;
+  private final Mac                 mac;
 
   private final byte[] cipherKey;
 
+  private final byte[] headerIv;
   private final byte[] iv;
   private       int    counter;
 
   BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
+    this(in, passphrase, null);
+  }
+
+  /**
+   * @param resumeFrom If set, skips ahead to a {@link Checkpoint} taken from an earlier stream over the same backup, so the next frame read
+   *                   is the one that followed it.
+   */
+  BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase, @Nullable Checkpoint resumeFrom) throws IOException {
     try {
-      this.in = in;
+      this.in = new CountingInputStream(in);
 
       byte[] headerLengthBytes = new byte[4];
-      StreamUtil.readFully(in, headerLengthBytes);
+      StreamUtil.readFully(this.in, headerLengthBytes);
 
       int    headerLength = Conversions.byteArrayToInt(headerLengthBytes);
       byte[] headerFrame  = new byte[headerLength];
-      StreamUtil.readFully(in, headerFrame);
+      StreamUtil.readFully(this.in, headerFrame);
 
       BackupFrame frame = BackupFrame.ADAPTER.decode(headerFrame);
 
@@ -64,7 +76,8 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
         throw new IOException("Missing IV!");
       }
 
-      this.iv = header.iv.toByteArray();
+      this.headerIv = header.iv.toByteArray();
+      this.iv       = headerIv.clone();
 
       if (iv.length != 16) {
         throw new IOException("Invalid IV length!");
@@ -87,6 +100,10 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
       this.mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
 
       this.counter = Conversions.byteArrayToInt(iv);
+
+      if (resumeFrom != null) {
+        resume(resumeFrom);
+      }
     } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
       throw new AssertionError(e);
     }
@@ -96,6 +113,33 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
     return readFrame(in);
   }
 
+  /**
+   * @return A checkpoint that can be used to pick up reading from the current position in a new stream. Only meaningful between frames.
+   */
+  @NonNull Checkpoint getCheckpoint() {
+    return new Checkpoint(headerIv, in.position, counter);
+  }
+
+  private void resume(@NonNull Checkpoint checkpoint) throws IOException {
+    if (!MessageDigest.isEqual(headerIv, checkpoint.headerIv)) {
+      throw new IOException("Checkpoint is from a different backup!");
+    }
+
+    if (checkpoint.position < in.position) {
+      throw new IOException("Checkpoint is before the end of the header!");
+    }
+
+    while (in.position < checkpoint.position) {
+      long skipped = in.skip(checkpoint.position - in.position);
+
+      if (skipped <= 0 && in.read() == -1) {
+        throw new EOFException("Stream ended before the checkpoint!");
+      }
+    }
+
+    counter = checkpoint.counter;
+  }
+
   boolean validateFrame() throws InvalidAlgorithmParameterException, IOException, InvalidKeyException {
     int frameLength = decryptFrameLength(in);
     if (frameLength <= 0) {
@@ -221,4 +265,63 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
   }
 
   static class BadMacException extends IOException {}
+
+  /**
+   * Where a stream was, and what state it was in, between two frames.
+   */
+  static final class Checkpoint {
+    private final byte[] headerIv;
+    private final long   position;
+    private final int    counter;
+
+    private Checkpoint(@NonNull byte[] headerIv, long position, int counter) {
+      this.headerIv = headerIv;
+      this.position = position;
+      this.counter  = counter;
+    }
+
+    long getPosition() {
+      return position;
+    }
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+    private long position;
+
+    private CountingInputStream(@NonNull InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int value = super.read();
+      if (value != -1) {
+        position++;
+      }
+      return value;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        position += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      if (skipped > 0) {
+        position += skipped;
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Executes the statements of a backup, combining consecutive single-row inserts into the same table into multi-row inserts.
+ * <p>
+ * Backups contain one {@code INSERT INTO table VALUES (?,?,...)} per row, and rows for the same table are written back-to-back. Rather than
+ * compiling and running each one on its own, rows are buffered until the table changes or the batch is full, then inserted with a single
+ * statement. Compiled statements are reused for as long as we're inserting into the same table.
+ * <p>
+ * Anything that isn't a plain row insert is run as-is, after flushing any pending rows so that statements still run in order. Callers must
+ * {@link #flush()} before doing anything else to the database that might depend on pending rows.
+ */
+final class BulkInsertWriter implements Closeable {
+
+  private static final Pattern SINGLE_ROW_INSERT = Pattern.compile("^INSERT INTO (\\S+) VALUES \\((\\?(?:,\\?)*)\\)$");
+
+  private static final int MAX_ARGS           = 999;
+  private static final int MAX_ROWS_PER_BATCH = 100;
+
+  private final SQLiteDatabase                db;
+  private final Map<Integer, SQLiteStatement> compiled;
+  private final List<Object>                  pendingArgs;
+
+  private String pendingInsert;
+  private int    pendingColumns;
+  private int    pendingRows;
+  private int    batchSize;
+
+  BulkInsertWriter(@NonNull SQLiteDatabase db) {
+    this.db          = db;
+    this.compiled    = new HashMap<>();
+    this.pendingArgs = new ArrayList<>();
+  }
+
+  void execute(@NonNull String statement, @NonNull List<Object> args) {
+    int columns = getSingleRowInsertColumnCount(statement);
+
+    if (columns <= 0 || columns != args.size() || columns > MAX_ARGS) {
+      flush();
+
+      if (args.size() > 0) db.execSQL(statement, args.toArray());
+      else                 db.execSQL(statement);
+
+      return;
+    }
+
+    if (!statement.equals(pendingInsert)) {
+      flush();
+      closeCompiled();
+
+      pendingInsert  = statement;
+      pendingColumns = columns;
+      batchSize      = Math.min(MAX_ROWS_PER_BATCH, MAX_ARGS / columns);
+    }
+
+    pendingArgs.addAll(args);
+    pendingRows++;
+
+    if (pendingRows >= batchSize) {
+      flush();
+    }
+  }
+
+  /**
+   * Inserts any rows that have been buffered.
+   */
+  void flush() {
+    if (pendingRows == 0) {
+      return;
+    }
+
+    SQLiteStatement statement = compiled.get(pendingRows);
+    if (statement == null) {
+      statement = db.compileStatement(buildMultiRowInsert(pendingInsert, pendingColumns, pendingRows));
+      compiled.put(pendingRows, statement);
+    }
+
+    statement.clearBindings();
+    for (int i = 0; i < pendingArgs.size(); i++) {
+      bind(statement, i + 1, pendingArgs.get(i));
+    }
+    statement.executeInsert();
+
+    pendingArgs.clear();
+    pendingRows = 0;
+  }
+
+  @Override
+  public void close() {
+    flush();
+    closeCompiled();
+  }
+
+  private void closeCompiled() {
+    for (SQLiteStatement statement : compiled.values()) {
+      statement.close();
+    }
+    compiled.clear();
+  }
+
+  private static void bind(@NonNull SQLiteStatement statement, int index, Object value) {
+    if      (value == null)           statement.bindNull(index);
+    else if (value instanceof String) statement.bindString(index, (String) value);
+    else if (value instanceof Long)   statement.bindLong(index, (Long) value);
+    else if (value instanceof Double) statement.bindDouble(index, (Double) value);
+    else if (value instanceof byte[]) statement.bindBlob(index, (byte[]) value);
+    else                              throw new IllegalArgumentException("Unsupported parameter type: " + value.getClass());
+  }
+
+  /**
+   * @return The number of values in a statement of the form {@code INSERT INTO table VALUES (?,?,...)}, or -1 if it isn't one.
+   */
+  @VisibleForTesting
+  static int getSingleRowInsertColumnCount(@NonNull String statement) {
+    Matcher matcher = SINGLE_ROW_INSERT.matcher(statement);
+
+    if (!matcher.matches()) {
+      return -1;
+    }
+
+    return (matcher.group(2).length() + 1) / 2;
+  }
+
+  /**
+   * Turns {@code INSERT INTO table VALUES (?,?)} into {@code INSERT INTO table VALUES (?,?),(?,?),...} with {@code rows} sets of values.
+   */
+  @VisibleForTesting
+  static @NonNull String buildMultiRowInsert(@NonNull String singleRowInsert, int columns, int rows) {
+    String        values  = singleRowInsert.substring(singleRowInsert.length() - (columns * 2 + 1));
+    StringBuilder builder = new StringBuilder(singleRowInsert.length() + (rows - 1) * (values.length() + 1));
+
+    builder.append(singleRowInsert);
+
+    for (int i = 1; i < rows; i++) {
+      builder.append(',').append(values);
+    }
+
+    return builder.toString();
+  }
+}
@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.backup;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
@@ -20,6 +21,7 @@ import org.signal.core.util.CursorUtil;
 import org.signal.core.util.SetUtil;
 import org.signal.core.util.SqlUtil;
 import org.signal.core.util.Stopwatch;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.proto.KeyValue;
@@ -33,6 +35,7 @@ import org.thoughtcrime.securesms.database.EmojiSearchTable;
 import org.thoughtcrime.securesms.database.GroupReceiptTable;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
 import org.thoughtcrime.securesms.database.MentionTable;
+import org.thoughtcrime.securesms.database.MessagePositionTable;
 import org.thoughtcrime.securesms.database.MessageTable;
 import org.thoughtcrime.securesms.database.OneTimePreKeyTable;
 import org.thoughtcrime.securesms.database.PendingRetryReceiptTable;
@@ -78,6 +81,11 @@ public class FullBackupExporter extends FullBackupBase {
   private static final long IDENTITY_KEY_BACKUP_RECORD_COUNT = 2L;
   private static final long FINAL_MESSAGE_COUNT              = 1L;
 
+  private static final int MAX_PENDING_WRITES         = 256;
+  private static final int MAX_PREFETCHED_STREAMS     = 3;
+  private static final int PREFETCH_CHUNK_SIZE        = 64 * 1024;
+  private static final int PREFETCH_CHUNKS_PER_STREAM = 4;
+
   /**
    * Tables in list will still have their *schema* exported (so the tables will be created),
    * but we will not export the actual contents.
@@ -88,6 +96,7 @@ public class FullBackupExporter extends FullBackupBase {
       SessionTable.TABLE_NAME,
       SearchTable.FTS_TABLE_NAME,
       EmojiSearchTable.TABLE_NAME,
+      MessagePositionTable.TABLE_NAME,
       SenderKeyTable.TABLE_NAME,
       SenderKeySharedTable.TABLE_NAME,
       PendingRetryReceiptTable.TABLE_NAME,
@@ -151,57 +160,71 @@ public class FullBackupExporter extends FullBackupBase {
       List<String> tables = exportSchema(input, outputStream);
       count += tables.size() * TABLE_RECORD_COUNT_MULTIPLIER;
 
-      final long estimatedCount = calculateCount(context, input, tables);
-      estimatedCountOutside = estimatedCount;
+      Map<String, Long>      tableEstimates = new HashMap<>();
+      final ProgressEstimate estimate       = new ProgressEstimate(calculateCount(context, input, tables, tableEstimates));
 
       Stopwatch stopwatch = new Stopwatch("Backup");
 
-      for (String table : tables) {
-        throwIfCanceled(cancellationSignal);
-        if (table.equals(MessageTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringMmsMessage, null, count, estimatedCount, cancellationSignal);
-        } else if (table.equals(ReactionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, new MessageId(CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID))), null, count, estimatedCount, cancellationSignal);
-        } else if (table.equals(MentionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
-        } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, estimatedCount, cancellationSignal);
-        } else if (table.equals(AttachmentTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
-        } else if (table.equals(StickerTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
-        } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
-          count = exportTable(table, input, outputStream, null, null, count, estimatedCount, cancellationSignal);
+      try (BackupPipeline pipeline = new BackupPipeline(SignalExecutors.UNBOUNDED, MAX_PENDING_WRITES, MAX_PREFETCHED_STREAMS, PREFETCH_CHUNK_SIZE, PREFETCH_CHUNKS_PER_STREAM)) {
+        for (String table : tables) {
+          throwIfCanceled(cancellationSignal);
+          int countBeforeTable = count;
+          if (table.equals(MessageTable.TABLE_NAME)) {
+            count = exportTable(table, input, outputStream, pipeline, FullBackupExporter::isNonExpiringMmsMessage, null, count, estimate, cancellationSignal);
+          } else if (table.equals(ReactionTable.TABLE_NAME)) {
+            count = exportTable(table, input, outputStream, pipeline, cursor -> isForNonExpiringMessage(input, new MessageId(CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID))), null, count, estimate, cancellationSignal);
+          } else if (table.equals(MentionTable.TABLE_NAME)) {
+            count = exportTable(table, input, outputStream, pipeline, cursor -> isForNonExpiringMmsMessage(input, CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, estimate, cancellationSignal);
+          } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
+            count = exportTable(table, input, outputStream, pipeline, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, estimate, cancellationSignal);
+          } else if (table.equals(AttachmentTable.TABLE_NAME)) {
+            count = exportTable(table, input, outputStream, pipeline, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, pipeline, innerCount, estimate), count, estimate, cancellationSignal);
+          } else if (table.equals(StickerTable.TABLE_NAME)) {
+            count = exportTable(table, input, outputStream, pipeline, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, pipeline, innerCount, estimate), count, estimate, cancellationSignal);
+          } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
+            count = exportTable(table, input, outputStream, pipeline, null, null, count, estimate, cancellationSignal);
+          }
+          Long tableEstimate = tableEstimates.get(table);
+          estimate.refine(tableEstimate != null ? tableEstimate : 0, count - countBeforeTable);
+          stopwatch.split("table::" + table);
         }
-        stopwatch.split("table::" + table);
-      }
 
-      for (SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
-        throwIfCanceled(cancellationSignal);
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-        outputStream.write(preference);
-      }
+        for (SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
+          throwIfCanceled(cancellationSignal);
+          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimate.getTotal(count)));
+          pipeline.enqueue(() -> outputStream.write(preference));
+        }
 
-      stopwatch.split("prefs");
+        stopwatch.split("prefs");
 
-      count = exportKeyValues(outputStream, SignalStore.getKeysToIncludeInBackup(), count, estimatedCount, cancellationSignal);
+        count = exportKeyValues(outputStream, pipeline, SignalStore.getKeysToIncludeInBackup(), count, estimate, cancellationSignal);
 
-      stopwatch.split("key_values");
+        stopwatch.split("key_values");
 
-      for (AvatarHelper.Avatar avatar : AvatarHelper.getAvatars(context)) {
-        throwIfCanceled(cancellationSignal);
-        if (avatar != null) {
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-          try (InputStream inputStream = avatar.getInputStream()) {
-            outputStream.write(avatar.getFilename(), inputStream, avatar.getLength());
+        for (AvatarHelper.Avatar avatar : AvatarHelper.getAvatars(context)) {
+          throwIfCanceled(cancellationSignal);
+          if (avatar != null) {
+            EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimate.getTotal(count)));
+
+            BackupPipeline.PrefetchedStream stream = pipeline.prefetch(avatar::getInputStream);
+            pipeline.enqueue(() -> {
+              try (InputStream inputStream = stream.awaitOpen()) {
+                outputStream.write(avatar.getFilename(), inputStream, avatar.getLength());
+              }
+            });
           }
         }
+
+        stopwatch.split("avatars");
+
+        pipeline.finish();
       }
 
-      stopwatch.split("avatars");
+      stopwatch.split("flush");
       stopwatch.stop(TAG);
 
       outputStream.writeEnd();
+      estimatedCountOutside = estimate.getTotal(count);
     } finally {
       if (closeOutputStream) {
         outputStream.close();
@@ -210,20 +233,18 @@ public class FullBackupExporter extends FullBackupBase {
     return new BackupEvent(BackupEvent.Type.FINISHED, outputStream.getFrames(), estimatedCountOutside);
   }
 
-  private static long calculateCount(@NonNull Context context, @NonNull SQLiteDatabase input, List<String> tables) {
+  /**
+   * Estimates the number of frames the backup will contain, recording the estimate used for each table in {@code tableEstimates} so that
+   * it can be corrected once the table has actually been exported, see {@link ProgressEstimate}.
+   */
+  private static long calculateCount(@NonNull Context context, @NonNull SQLiteDatabase input, List<String> tables, @NonNull Map<String, Long> tableEstimates) {
     long count = DATABASE_VERSION_RECORD_COUNT + TABLE_RECORD_COUNT_MULTIPLIER * tables.size();
 
     for (String table : tables) {
-      if (table.equals(MessageTable.TABLE_NAME)) {
-        count += getCount(input, BackupCountQueries.mmsCount);
-      } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
-        count += getCount(input, BackupCountQueries.getGroupReceiptCount());
-      } else if (table.equals(AttachmentTable.TABLE_NAME)) {
-        count += getCount(input, BackupCountQueries.getAttachmentCount());
-      } else if (table.equals(StickerTable.TABLE_NAME)) {
-        count += getCount(input, "SELECT COUNT(*) FROM " + table);
-      } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
-        count += getCount(input, "SELECT COUNT(*) FROM " + table);
+      if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
+        long tableEstimate = getEstimatedRowCount(input, table);
+        tableEstimates.put(table, tableEstimate);
+        count += tableEstimate;
       }
     }
 
@@ -244,12 +265,48 @@ public class FullBackupExporter extends FullBackupBase {
     return count + FINAL_MESSAGE_COUNT;
   }
 
+  /**
+   * Estimates the number of rows in a table from the range of its rowids, which only requires looking at either end of the table's b-tree
+   * rather than scanning the whole thing like a COUNT would. Rows that have been deleted are still counted, so this overestimates tables
+   * with a lot of churn, and ignores the rows the export filters out. {@link ProgressEstimate} corrects for both as the export runs.
+   */
+  private static long getEstimatedRowCount(@NonNull SQLiteDatabase input, @NonNull String table) {
+    String query = "SELECT (SELECT MAX(_rowid_) FROM " + table + ") - (SELECT MIN(_rowid_) FROM " + table + ") + 1";
+
+    try (Cursor cursor = input.rawQuery(query)) {
+      return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Unable to estimate the row count of " + table + ", falling back to a full count.", e);
+      return getCount(input, "SELECT COUNT(*) FROM " + table);
+    }
+  }
+
   private static long getCount(@NonNull SQLiteDatabase input, @NonNull String query) {
     try (Cursor cursor = input.rawQuery(query)) {
       return cursor.moveToFirst() ? cursor.getLong(0) : 0;
     }
   }
 
+  /**
+   * The running estimate of how many frames the backup will contain. It starts out from the cheap per-table estimates, swaps each one for
+   * the number of frames the table actually produced once it has been exported, and never reports less than what has already been written.
+   */
+  private static final class ProgressEstimate {
+    private long total;
+
+    ProgressEstimate(long total) {
+      this.total = total;
+    }
+
+    void refine(long estimatedFrames, long actualFrames) {
+      total += actualFrames - estimatedFrames;
+    }
+
+    long getTotal(long count) {
+      return Math.max(total, count);
+    }
+  }
+
   private static void throwIfCanceled(@NonNull BackupCancellationSignal cancellationSignal) throws BackupCanceledException {
     if (cancellationSignal.isCanceled()) {
       throw new BackupCanceledException();
@@ -377,10 +434,11 @@ public class FullBackupExporter extends FullBackupBase {
   private static int exportTable(@NonNull String table,
                                  @NonNull SQLiteDatabase input,
                                  @NonNull BackupFrameOutputStream outputStream,
+                                 @NonNull BackupPipeline pipeline,
                                  @Nullable Predicate<Cursor> predicate,
                                  @Nullable PostProcessor postProcess,
                                  int count,
-                                 long estimatedCount,
+                                 @NonNull ProgressEstimate estimate,
                                  @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
@@ -424,8 +482,10 @@ public class FullBackupExporter extends FullBackupBase {
 
           statement.append(')');
 
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-          outputStream.write(statementBuilder.statement(statement.toString()).build());
+          SqlStatement sqlStatement = statementBuilder.statement(statement.toString()).build();
+
+          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimate.getTotal(count)));
+          pipeline.enqueue(() -> outputStream.write(sqlStatement));
 
           if (postProcess != null) {
             count = postProcess.postProcess(cursor, count);
@@ -440,8 +500,9 @@ public class FullBackupExporter extends FullBackupBase {
   private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret,
                                       @NonNull Cursor cursor,
                                       @NonNull BackupFrameOutputStream outputStream,
+                                      @NonNull BackupPipeline pipeline,
                                       int count,
-                                      long estimatedCount)
+                                      @NonNull ProgressEstimate estimate)
       throws IOException
   {
     long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.ROW_ID));
@@ -461,13 +522,19 @@ public class FullBackupExporter extends FullBackupBase {
       }
     }
 
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimate.getTotal(count)));
     if (!TextUtils.isEmpty(data) && size > 0) {
-      try (InputStream inputStream = openAttachmentStream(attachmentSecret, random, data)) {
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
-      } catch (FileNotFoundException e) {
-        Log.w(TAG, "Missing attachment", e);
-      }
+      AttachmentId                          attachmentId = new AttachmentId(rowId, uniqueId);
+      long                                  length       = size;
+      BackupPipeline.PrefetchedStream stream       = pipeline.prefetch(() -> openAttachmentStream(attachmentSecret, random, data));
+
+      pipeline.enqueue(() -> {
+        try (InputStream inputStream = stream.awaitOpen()) {
+          outputStream.write(attachmentId, inputStream, length);
+        } catch (FileNotFoundException e) {
+          Log.w(TAG, "Missing attachment", e);
+        }
+      });
     }
 
     return count;
@@ -476,8 +543,9 @@ public class FullBackupExporter extends FullBackupBase {
   private static int exportSticker(@NonNull AttachmentSecret attachmentSecret,
                                    @NonNull Cursor cursor,
                                    @NonNull BackupFrameOutputStream outputStream,
+                                   @NonNull BackupPipeline pipeline,
                                    int count,
-                                   long estimatedCount)
+                                   @NonNull ProgressEstimate estimate)
       throws IOException
   {
     long rowId = cursor.getLong(cursor.getColumnIndexOrThrow(StickerTable._ID));
@@ -487,12 +555,17 @@ public class FullBackupExporter extends FullBackupBase {
     byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(StickerTable.FILE_RANDOM));
 
     if (!TextUtils.isEmpty(data) && size > 0) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-      try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0)) {
-        outputStream.writeSticker(rowId, inputStream, size);
-      } catch (FileNotFoundException e) {
-        Log.w(TAG, "Missing sticker", e);
-      }
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimate.getTotal(count)));
+
+      BackupPipeline.PrefetchedStream stream = pipeline.prefetch(() -> ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0));
+
+      pipeline.enqueue(() -> {
+        try (InputStream inputStream = stream.awaitOpen()) {
+          outputStream.writeSticker(rowId, inputStream, size);
+        } catch (FileNotFoundException e) {
+          Log.w(TAG, "Missing sticker", e);
+        }
+      });
     }
 
     return count;
@@ -528,9 +601,10 @@ public class FullBackupExporter extends FullBackupBase {
   }
 
   private static int exportKeyValues(@NonNull BackupFrameOutputStream outputStream,
+                                     @NonNull BackupPipeline pipeline,
                                      @NonNull List<String> keysToIncludeInBackup,
                                      int count,
-                                     long estimatedCount,
+                                     @NonNull ProgressEstimate estimate,
                                      BackupCancellationSignal cancellationSignal) throws IOException
   {
     KeyValueDataSet dataSet = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication())
@@ -572,8 +646,10 @@ public class FullBackupExporter extends FullBackupBase {
         throw new AssertionError("Unknown type: " + type);
       }
 
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-      outputStream.write(builder.build());
+      KeyValue keyValue = builder.build();
+
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimate.getTotal(count)));
+      pipeline.enqueue(() -> outputStream.write(keyValue));
     }
 
     return count;
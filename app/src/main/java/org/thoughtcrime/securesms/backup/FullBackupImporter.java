@@ -9,12 +9,15 @@ import android.net.Uri;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
 import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.SqlUtil;
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.backup.proto.Attachment;
 import org.thoughtcrime.securesms.backup.proto.Avatar;
@@ -42,6 +45,7 @@ import org.thoughtcrime.securesms.util.Util;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -54,6 +58,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
@@ -65,6 +70,9 @@ public class FullBackupImporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = Log.tag(FullBackupImporter.class);
 
+  private static final int MAX_RESUME_ATTEMPTS = 3;
+  private static final int MAX_PENDING_WRITES  = 256;
+
   public static boolean validatePassphrase(@NonNull Context context,
                                            @NonNull Uri uri,
                                            @NonNull String passphrase)
@@ -87,16 +95,24 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull Uri uri, @NonNull String passphrase)
       throws IOException
   {
-    try (InputStream is = getInputStream(context, uri)) {
-      importFile(context, attachmentSecret, db, is, passphrase);
-    }
+    importFile(context, attachmentSecret, db, () -> getInputStream(context, uri), MAX_RESUME_ATTEMPTS, passphrase);
   }
 
+  /**
+   * Imports from a stream that can't be reopened, so the import can't be resumed if reading from it fails.
+   */
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
   {
-    int count = 0;
+    importFile(context, attachmentSecret, db, () -> new NonClosingInputStream(is), 0, passphrase);
+  }
+
+  private static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                 @NonNull SQLiteDatabase db, @NonNull SourceOpener sourceOpener, int maxResumeAttempts, @NonNull String passphrase)
+      throws IOException
+  {
+    int count;
 
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
 
@@ -104,25 +120,7 @@ public class FullBackupImporter extends FullBackupBase {
     db.beginTransaction();
     keyValueDatabase.beginTransaction();
     try {
-      BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
-
-      dropAllTables(db);
-
-      BackupFrame frame;
-
-      while ((frame = inputStream.readFrame()).end != Boolean.TRUE) {
-        if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count, 0));
-        count++;
-
-        if      (frame.version != null)    processVersion(db, frame.version);
-        else if (frame.statement != null)  processStatement(db, frame.statement);
-        else if (frame.preference != null) processPreference(context, frame.preference);
-        else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream);
-        else if (frame.sticker != null)    processSticker(context, attachmentSecret, db, frame.sticker, inputStream);
-        else if (frame.avatar != null)     processAvatar(context, db, frame.avatar, inputStream);
-        else if (frame.keyValue != null)   processKeyValue(frame.keyValue);
-        else                            count--;
-      }
+      count = importFrames(context, attachmentSecret, db, sourceOpener, maxResumeAttempts, passphrase);
 
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
@@ -146,6 +144,99 @@ public class FullBackupImporter extends FullBackupBase {
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count, 0));
   }
 
+  /**
+   * Reads and applies every frame in the backup, and waits for all of the resulting files to be written.
+   * <p>
+   * After each frame we remember where in the backup we are. If reading from the backup fails, rather than starting over, we reopen it and
+   * carry on from the frame after the last one we finished. Everything happens in the caller's transaction, so this only helps within a
+   * single import attempt, but that is also what keeps a failed import from leaving a half-restored database behind.
+   *
+   * @return The number of frames imported.
+   */
+  private static int importFrames(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                  @NonNull SQLiteDatabase db, @NonNull SourceOpener sourceOpener, int maxResumeAttempts, @NonNull String passphrase)
+      throws IOException
+  {
+    int  count          = 0;
+    int  resumeAttempts = 0;
+    long startTime      = System.currentTimeMillis();
+
+    InputStream source = sourceOpener.open();
+
+    try (BackupPipeline pipeline = new BackupPipeline(SignalExecutors.UNBOUNDED, MAX_PENDING_WRITES);
+         BulkInsertWriter statements = new BulkInsertWriter(db))
+    {
+      BackupRecordInputStream            inputStream       = new BackupRecordInputStream(new SourceInputStream(source), passphrase);
+      BackupRecordInputStream.Checkpoint checkpoint        = inputStream.getCheckpoint();
+      int                                countAtCheckpoint = 0;
+
+      dropAllTables(db);
+
+      while (true) {
+        try {
+          BackupFrame frame = inputStream.readFrame();
+
+          if (frame.end == Boolean.TRUE) {
+            break;
+          }
+
+          if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count, 0));
+          count++;
+
+          if (frame.statement != null) {
+            processStatement(statements, frame.statement);
+          } else {
+            statements.flush();
+
+            if      (frame.version != null)    processVersion(db, frame.version);
+            else if (frame.preference != null) processPreference(context, frame.preference);
+            else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, pipeline, frame.attachment, inputStream);
+            else if (frame.sticker != null)    processSticker(context, attachmentSecret, db, pipeline, frame.sticker, inputStream);
+            else if (frame.avatar != null)     processAvatar(context, db, pipeline, frame.avatar, inputStream);
+            else if (frame.keyValue != null)   processKeyValue(frame.keyValue);
+            else                               count--;
+          }
+
+          checkpoint        = inputStream.getCheckpoint();
+          countAtCheckpoint = count;
+        } catch (SourceReadException e) {
+          SourceReadException failure = e;
+
+          inputStream = null;
+          count       = countAtCheckpoint;
+
+          while (inputStream == null) {
+            if (resumeAttempts >= maxResumeAttempts) {
+              throw failure;
+            }
+
+            resumeAttempts++;
+            Log.w(TAG, "Failed to read from the backup after " + count + " frames. Resuming from " + checkpoint.getPosition() + " (attempt " + resumeAttempts + ")", failure);
+
+            StreamUtil.close(source);
+            source = sourceOpener.open();
+
+            try {
+              inputStream = new BackupRecordInputStream(new SourceInputStream(source), passphrase, checkpoint);
+            } catch (SourceReadException resumeFailure) {
+              failure = resumeFailure;
+            }
+          }
+        }
+      }
+
+      statements.flush();
+      pipeline.finish();
+    } finally {
+      StreamUtil.close(source);
+    }
+
+    long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+    Log.i(TAG, String.format(Locale.US, "Imported %d frames in %d ms (%.1f frames/sec, %d resumes)", count, elapsed, count * 1000f / elapsed, resumeAttempts));
+
+    return count;
+  }
+
   private static @NonNull InputStream getInputStream(@NonNull Context context, @NonNull Uri uri) throws IOException{
     if (BackupUtil.isUserSelectionRequired(context) || uri.getScheme().equals("content")) {
       return Objects.requireNonNull(context.getContentResolver().openInputStream(uri));
@@ -162,7 +253,7 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.version);
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
+  private static void processStatement(@NonNull BulkInsertWriter statements, SqlStatement statement) {
     if (statement.statement == null) {
       Log.w(TAG, "Null statement!");
       return;
@@ -177,7 +268,7 @@ public class FullBackupImporter extends FullBackupBase {
       return;
     }
 
-    List<Object> parameters = new LinkedList<>();
+    List<Object> parameters = new ArrayList<>(statement.parameters.size());
 
     for (SqlStatement.SqlParameter parameter : statement.parameters) {
       if      (parameter.stringParamter != null)   parameters.add(parameter.stringParamter);
@@ -187,11 +278,10 @@ public class FullBackupImporter extends FullBackupBase {
       else if (parameter.nullparameter != null)    parameters.add(null);
     }
 
-    if (parameters.size() > 0) db.execSQL(statement.statement, parameters.toArray());
-    else                       db.execSQL(statement.statement);
+    statements.execute(statement.statement, parameters);
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull BackupPipeline pipeline, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
       throws IOException
   {
     File                       dataFile = AttachmentTable.newFile(context);
@@ -200,13 +290,13 @@ public class FullBackupImporter extends FullBackupBase {
     ContentValues contentValues = new ContentValues();
 
     try {
-      inputStream.readAttachmentTo(output.second, attachment.length);
+      readAttachmentTo(inputStream, pipeline, output.second, dataFile, attachment.length);
 
       contentValues.put(AttachmentTable.DATA, dataFile.getAbsolutePath());
       contentValues.put(AttachmentTable.DATA_RANDOM, output.first);
     } catch (BackupRecordInputStream.BadMacException e) {
       Log.w(TAG, "Bad MAC for attachment " + attachment.attachmentId + "! Can't restore it.", e);
-      dataFile.delete();
+      pipeline.enqueue(dataFile::delete);
       contentValues.put(AttachmentTable.DATA, (String) null);
       contentValues.put(AttachmentTable.DATA_RANDOM, (String) null);
     }
@@ -216,7 +306,7 @@ public class FullBackupImporter extends FullBackupBase {
               new String[] {String.valueOf(attachment.rowId), String.valueOf(attachment.attachmentId)});
   }
 
-  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
+  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull BackupPipeline pipeline, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
       throws IOException
   {
     File stickerDirectory = context.getDir(StickerTable.DIRECTORY, Context.MODE_PRIVATE);
@@ -224,7 +314,7 @@ public class FullBackupImporter extends FullBackupBase {
 
     Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
-    inputStream.readAttachmentTo(output.second, sticker.length);
+    readAttachmentTo(inputStream, pipeline, output.second, dataFile, sticker.length);
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(StickerTable.FILE_PATH, dataFile.getAbsolutePath());
@@ -236,10 +326,10 @@ public class FullBackupImporter extends FullBackupBase {
               new String[] {String.valueOf(sticker.rowId)});
   }
 
-  private static void processAvatar(@NonNull Context context, @NonNull SQLiteDatabase db, @NonNull Avatar avatar, @NonNull BackupRecordInputStream inputStream) throws IOException {
+  private static void processAvatar(@NonNull Context context, @NonNull SQLiteDatabase db, @NonNull BackupPipeline pipeline, @NonNull Avatar avatar, @NonNull BackupRecordInputStream inputStream) throws IOException {
     if (avatar.recipientId != null) {
       RecipientId recipientId = RecipientId.from(avatar.recipientId);
-      inputStream.readAttachmentTo(AvatarHelper.getOutputStream(context, recipientId, false), avatar.length);
+      readAttachmentTo(inputStream, pipeline, AvatarHelper.getOutputStream(context, recipientId, false), null, avatar.length);
     } else {
       if (avatar.name != null && SqlUtil.tableExists(db, "recipient_preferences")) {
         Log.w(TAG, "Avatar is missing a recipientId. Clearing signal_profile_avatar (legacy) so it can be fetched later.");
@@ -255,6 +345,30 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * Decrypts the next attachment in the backup and hands it off to the pipeline to be written to {@code output}. If reading from the backup
+   * fails part way through, the partially written {@code file} is deleted so that the attachment can be read again once we've resumed.
+   */
+  private static void readAttachmentTo(@NonNull BackupRecordInputStream inputStream,
+                                       @NonNull BackupPipeline pipeline,
+                                       @NonNull OutputStream output,
+                                       @Nullable File file,
+                                       int length)
+      throws IOException
+  {
+    OutputStream writeBehind = pipeline.writeBehind(output);
+
+    try {
+      inputStream.readAttachmentTo(writeBehind, length);
+    } catch (SourceReadException e) {
+      writeBehind.close();
+      if (file != null) {
+        pipeline.enqueue(file::delete);
+      }
+      throw e;
+    }
+  }
+
   private static void processKeyValue(KeyValue keyValue) {
     KeyValueDataSet dataSet = new KeyValueDataSet();
 
@@ -376,6 +490,62 @@ public class FullBackupImporter extends FullBackupBase {
     return new ArrayList<>(dropOrder);
   }
 
+  private interface SourceOpener {
+    @NonNull InputStream open() throws IOException;
+  }
+
+  /**
+   * Marks failures that came from reading the backup itself, as opposed to failures processing what we read, since only the former are
+   * worth resuming from.
+   */
+  private static final class SourceReadException extends IOException {
+    SourceReadException(@NonNull IOException cause) {
+      super(cause);
+    }
+  }
+
+  private static final class SourceInputStream extends FilterInputStream {
+    SourceInputStream(@NonNull InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return super.read();
+      } catch (IOException e) {
+        throw new SourceReadException(e);
+      }
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      try {
+        return super.read(buffer, offset, length);
+      } catch (IOException e) {
+        throw new SourceReadException(e);
+      }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      try {
+        return super.skip(n);
+      } catch (IOException e) {
+        throw new SourceReadException(e);
+      }
+    }
+  }
+
+  private static final class NonClosingInputStream extends FilterInputStream {
+    NonClosingInputStream(@NonNull InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public void close() {}
+  }
+
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
@@ -47,9 +47,8 @@ final class Base83 {
 
   static int decode(String value, int fromInclusive, int toExclusive) {
     int result = 0;
-    char[] chars = value.toCharArray();
     for (int i = fromInclusive; i < toExclusive; i++) {
-      result = result * 83 + indexOf(ALPHABET, chars[i]);
+      result = result * 83 + indexOf(ALPHABET, value.charAt(i));
     }
     return result;
   }
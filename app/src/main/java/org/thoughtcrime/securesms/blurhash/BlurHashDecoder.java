@@ -21,9 +21,12 @@
 package org.thoughtcrime.securesms.blurhash;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.thoughtcrime.securesms.util.LRUCache;
 
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
@@ -31,83 +34,171 @@ import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
 
 class BlurHashDecoder {
 
+  /** Only small decodes, like the placeholders we show for thumbnails, are worth keeping around. */
+  private static final int MAX_CACHED_PIXELS = 32 * 32;
+
+  private static final LRUCache<String, int[]> PIXEL_CACHE = new LRUCache<>(100);
+
+  private static final ThreadLocal<int[]> PIXEL_BUFFER = new ThreadLocal<>();
+
   static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height) {
     return decode(blurHash, width, height, 1f);
   }
 
   static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height, double punch) {
+    if (blurHash == null || width <= 0 || height <= 0) {
+      return null;
+    }
 
-    if (blurHash == null || blurHash.length() < 6) {
+    int[] pixels;
+
+    if (width * height <= MAX_CACHED_PIXELS) {
+      pixels = getCachedPixels(blurHash, width, height, punch);
+    } else {
+      pixels = PIXEL_BUFFER.get();
+      if (pixels == null || pixels.length < width * height) {
+        pixels = new int[width * height];
+        PIXEL_BUFFER.set(pixels);
+      }
+
+      if (!decodeInto(blurHash, width, height, punch, pixels)) {
+        pixels = null;
+      }
+    }
+
+    if (pixels == null) {
+      return null;
+    }
+
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+
+    return bitmap;
+  }
+
+  /**
+   * @return The decoded pixels, shared with every other caller asking for the same hash at the same size. Must not be modified.
+   */
+  private static @Nullable int[] getCachedPixels(@NonNull String blurHash, int width, int height, double punch) {
+    String key = blurHash + ':' + width + ':' + height + ':' + punch;
+
+    synchronized (PIXEL_CACHE) {
+      int[] pixels = PIXEL_CACHE.get(key);
+      if (pixels != null) {
+        return pixels;
+      }
+    }
+
+    int[] pixels = new int[width * height];
+    if (!decodeInto(blurHash, width, height, punch, pixels)) {
       return null;
     }
 
+    synchronized (PIXEL_CACHE) {
+      PIXEL_CACHE.put(key, pixels);
+    }
+
+    return pixels;
+  }
+
+  /**
+   * Decodes the hash into {@code pixels} as ARGB, one row after another.
+   *
+   * @return False if the hash was invalid, in which case the contents of {@code pixels} are undefined.
+   */
+  @VisibleForTesting
+  static boolean decodeInto(@Nullable String blurHash, int width, int height, double punch, @NonNull int[] pixels) {
+    if (blurHash == null || blurHash.length() < 6) {
+      return false;
+    }
+
     int numCompEnc = Base83.decode(blurHash, 0, 1);
     int numCompX   = (numCompEnc % 9) + 1;
     int numCompY   = (numCompEnc / 9) + 1;
 
     if (blurHash.length() != 4 + 2 * numCompX * numCompY) {
-      return null;
+      return false;
     }
 
-    int        maxAcEnc = Base83.decode(blurHash, 1, 2);
-    double     maxAc    = (maxAcEnc + 1) / 166f;
-    double[][] colors   = new double[numCompX * numCompY][];
-    for (int i = 0; i < colors.length; i++) {
+    int      maxAcEnc = Base83.decode(blurHash, 1, 2);
+    double   maxAc    = (maxAcEnc + 1) / 166f;
+    double[] colors   = new double[numCompX * numCompY * 3];
+    for (int i = 0; i < numCompX * numCompY; i++) {
       if (i == 0) {
         int colorEnc = Base83.decode(blurHash, 2, 6);
-        colors[i] = decodeDc(colorEnc);
+        decodeDc(colorEnc, colors, 0);
       } else {
         int from = 4 + i * 2;
         int colorEnc = Base83.decode(blurHash, from, from + 2);
-        colors[i] = decodeAc(colorEnc, maxAc * punch);
+        decodeAc(colorEnc, maxAc * punch, colors, i * 3);
       }
     }
 
-    return composeBitmap(width, height, numCompX, numCompY, colors);
+    composePixels(width, height, numCompX, numCompY, colors, pixels);
+
+    return true;
   }
 
-  private static double[] decodeDc(int colorEnc) {
+  private static void decodeDc(int colorEnc, double[] colors, int offset) {
     int r = colorEnc >> 16;
     int g = (colorEnc >> 8) & 255;
     int b = colorEnc & 255;
-    return new double[] {sRGBToLinear(r),
-                         sRGBToLinear(g),
-                         sRGBToLinear(b)};
+    colors[offset]     = sRGBToLinear(r);
+    colors[offset + 1] = sRGBToLinear(g);
+    colors[offset + 2] = sRGBToLinear(b);
   }
 
-  private static double[] decodeAc(int value, double maxAc) {
+  private static void decodeAc(int value, double maxAc, double[] colors, int offset) {
     int r = value / (19 * 19);
     int g = (value / 19) % 19;
     int b = value % 19;
-    return new double[]{
-        signPow((r - 9) / 9.0f, 2f) * maxAc,
-        signPow((g - 9) / 9.0f, 2f) * maxAc,
-        signPow((b - 9) / 9.0f, 2f) * maxAc
-    };
+    colors[offset]     = signPow((r - 9) / 9.0f, 2f) * maxAc;
+    colors[offset + 1] = signPow((g - 9) / 9.0f, 2f) * maxAc;
+    colors[offset + 2] = signPow((b - 9) / 9.0f, 2f) * maxAc;
   }
 
-  private static Bitmap composeBitmap(int width, int height, int numCompX, int numCompY, double[][] colors) {
-    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-    for (int y = 0; y < height; y++) {
-      for (int x = 0; x < width; x++) {
+  /**
+   * The basis functions are separable, so for each row we first collapse the vertical components into one color per horizontal component,
+   * and then only have to sum over the horizontal components for each pixel in that row.
+   */
+  private static void composePixels(int width, int height, int numCompX, int numCompY, double[] colors, int[] pixels) {
+    double[] basisX   = BlurHashUtil.getBasis(width, numCompX);
+    double[] basisY   = BlurHashUtil.getBasis(height, numCompY);
+    double[] rowColor = new double[numCompX * 3];
 
-        double r = 0f;
-        double g = 0f;
-        double b = 0f;
+    for (int y = 0; y < height; y++) {
+      for (int i = 0; i < numCompX; i++) {
+        double r = 0;
+        double g = 0;
+        double b = 0;
 
         for (int j = 0; j < numCompY; j++) {
-          for (int i = 0; i < numCompX; i++) {
-            double basis = (Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height));
-            double[] color = colors[j * numCompX + i];
-            r += color[0] * basis;
-            g += color[1] * basis;
-            b += color[2] * basis;
-          }
+          double basis = basisY[y * numCompY + j];
+          int    color = (j * numCompX + i) * 3;
+          r += colors[color]     * basis;
+          g += colors[color + 1] * basis;
+          b += colors[color + 2] * basis;
         }
-        bitmap.setPixel(x, y, Color.rgb((int) linearTosRGB(r), (int) linearTosRGB(g), (int) linearTosRGB(b)));
+
+        rowColor[i * 3]     = r;
+        rowColor[i * 3 + 1] = g;
+        rowColor[i * 3 + 2] = b;
       }
-    }
 
-    return bitmap;
+      for (int x = 0; x < width; x++) {
+        double r = 0;
+        double g = 0;
+        double b = 0;
+
+        for (int i = 0; i < numCompX; i++) {
+          double basis = basisX[x * numCompX + i];
+          r += rowColor[i * 3]     * basis;
+          g += rowColor[i * 3 + 1] * basis;
+          b += rowColor[i * 3 + 2] * basis;
+        }
+
+        pixels[y * width + x] = 0xff000000 | ((int) linearTosRGB(r) << 16) | ((int) linearTosRGB(g) << 8) | (int) linearTosRGB(b);
+      }
+    }
   }
 }
@@ -26,12 +26,13 @@ import android.graphics.BitmapFactory;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import java.io.InputStream;
 
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.max;
-import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBByteToLinear;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
 
 public final class BlurHashEncoder {
@@ -65,7 +66,8 @@ public final class BlurHashEncoder {
     return encode(pixels, width, height, componentX, componentY);
   }
 
-  private static String encode(int[] pixels, int width, int height, int componentX, int componentY) {
+  @VisibleForTesting
+  static String encode(int[] pixels, int width, int height, int componentX, int componentY) {
 
     if (componentX < 1 || componentX > 9 || componentY < 1 || componentY > 9) {
       throw new IllegalArgumentException("Blur hash must have between 1 and 9 components");
@@ -75,14 +77,7 @@ public final class BlurHashEncoder {
     }
 
     double[][] factors = new double[componentX * componentY][3];
-    for (int j = 0; j < componentY; j++) {
-      for (int i = 0; i < componentX; i++) {
-        double normalisation = i == 0 && j == 0 ? 1 : 2;
-        applyBasisFunction(pixels, width, height,
-            normalisation, i, j,
-            factors, j * componentX + i);
-      }
-    }
+    applyBasisFunctions(pixels, width, height, componentX, componentY, factors);
 
     char[] hash = new char[1 + 1 + 4 + 2 * (factors.length - 1)]; // size flag + max AC + DC + 2 * AC components
 
@@ -109,26 +104,61 @@ public final class BlurHashEncoder {
     return new String(hash);
   }
 
-  private static void applyBasisFunction(int[] pixels, int width, int height,
-                                         double normalisation, int i, int j,
-                                         double[][] factors, int index)
+  /**
+   * Computes every factor in a single pass over the image. The basis functions are separable, so each row is first reduced to one sum per
+   * horizontal component, which is then weighted by each vertical component. That also means every pixel only has to be converted to
+   * linear color once, rather than once per component.
+   */
+  private static void applyBasisFunctions(int[] pixels, int width, int height,
+                                          int componentX, int componentY,
+                                          double[][] factors)
   {
-    double r = 0, g = 0, b = 0;
-    for (int x = 0; x < width; x++) {
-      for (int y = 0; y < height; y++) {
-        double basis = normalisation
-                     * Math.cos((Math.PI * i * x) / width)
-                     * Math.cos((Math.PI * j * y) / height);
-        int pixel = pixels[y * width + x];
-        r += basis * sRGBToLinear((pixel >> 16) & 0xff);
-        g += basis * sRGBToLinear((pixel >> 8)  & 0xff);
-        b += basis * sRGBToLinear( pixel        & 0xff);
+    double[] basisX = BlurHashUtil.getBasis(width, componentX);
+    double[] basisY = BlurHashUtil.getBasis(height, componentY);
+
+    double[] rowR = new double[width];
+    double[] rowG = new double[width];
+    double[] rowB = new double[width];
+
+    for (int y = 0; y < height; y++) {
+      int rowStart = y * width;
+
+      for (int x = 0; x < width; x++) {
+        int pixel = pixels[rowStart + x];
+        rowR[x] = sRGBByteToLinear(pixel >> 16);
+        rowG[x] = sRGBByteToLinear(pixel >> 8);
+        rowB[x] = sRGBByteToLinear(pixel);
+      }
+
+      for (int i = 0; i < componentX; i++) {
+        double r = 0, g = 0, b = 0;
+        for (int x = 0; x < width; x++) {
+          double basis = basisX[x * componentX + i];
+          r += basis * rowR[x];
+          g += basis * rowG[x];
+          b += basis * rowB[x];
+        }
+
+        for (int j = 0; j < componentY; j++) {
+          double   basis  = basisY[y * componentY + j];
+          double[] factor = factors[j * componentX + i];
+          factor[0] += basis * r;
+          factor[1] += basis * g;
+          factor[2] += basis * b;
+        }
       }
     }
+
     double scale = 1.0 / (width * height);
-    factors[index][0] = r * scale;
-    factors[index][1] = g * scale;
-    factors[index][2] = b * scale;
+    for (int j = 0; j < componentY; j++) {
+      for (int i = 0; i < componentX; i++) {
+        double   normalisation = i == 0 && j == 0 ? 1 : 2;
+        double[] factor        = factors[j * componentX + i];
+        factor[0] *= normalisation * scale;
+        factor[1] *= normalisation * scale;
+        factor[2] *= normalisation * scale;
+      }
+    }
   }
 
   private static long encodeDC(double[] value) {
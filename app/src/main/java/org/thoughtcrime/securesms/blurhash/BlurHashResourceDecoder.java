@@ -28,12 +28,14 @@ public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap
 
     if (width > height) {
       finalWidth  = Math.min(width, MAX_DIMEN);
-      finalHeight = (int) (finalWidth * height / (float) width);
+      finalHeight = Math.max(1, (int) (finalWidth * height / (float) width));
     } else {
       finalHeight = Math.min(height, MAX_DIMEN);
-      finalWidth  = (int) (finalHeight * width / (float) height);
+      finalWidth  = Math.max(1, (int) (finalHeight * width / (float) height));
     }
 
-    return new SimpleResource<>(BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight));
+    Bitmap bitmap = BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight);
+
+    return bitmap != null ? new SimpleResource<>(bitmap) : null;
   }
 }
\ No newline at end of file
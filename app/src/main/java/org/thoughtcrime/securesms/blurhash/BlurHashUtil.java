@@ -20,8 +20,57 @@
  */
 package org.thoughtcrime.securesms.blurhash;
 
+import org.thoughtcrime.securesms.util.LRUCache;
+
 final class BlurHashUtil {
 
+  private static final double[] SRGB_TO_LINEAR = new double[256];
+
+  static {
+    for (int i = 0; i < SRGB_TO_LINEAR.length; i++) {
+      SRGB_TO_LINEAR[i] = sRGBToLinear(i);
+    }
+  }
+
+  private static final LRUCache<Long, double[]> BASIS_CACHE = new LRUCache<>(16);
+
+  /**
+   * Same as {@link #sRGBToLinear(long)}, but looked up rather than calculated, for a single 8-bit color channel.
+   */
+  static double sRGBByteToLinear(int value) {
+    return SRGB_TO_LINEAR[value & 0xff];
+  }
+
+  /**
+   * The cosines that make up the blur hash basis functions along one dimension, laid out so that the value for a given position and
+   * component is at {@code [position * components + component]}.
+   * <p>
+   * These only depend on the size and number of components, so they're shared between calls. The returned array must not be modified.
+   */
+  static double[] getBasis(int size, int components) {
+    Long key = ((long) size << 4) | components;
+
+    synchronized (BASIS_CACHE) {
+      double[] basis = BASIS_CACHE.get(key);
+      if (basis != null) {
+        return basis;
+      }
+    }
+
+    double[] basis = new double[size * components];
+    for (int position = 0; position < size; position++) {
+      for (int component = 0; component < components; component++) {
+        basis[position * components + component] = Math.cos(Math.PI * position * component / size);
+      }
+    }
+
+    synchronized (BASIS_CACHE) {
+      BASIS_CACHE.put(key, basis);
+    }
+
+    return basis;
+  }
+
   static double sRGBToLinear(long value) {
     double v = value / 255.0;
     if (v <= 0.04045) {
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.contacts.paged
 
 import android.database.Cursor
+import org.signal.core.util.logging.Log
 import org.signal.core.util.requireLong
 import org.signal.paging.PagedDataSource
 import org.thoughtcrime.securesms.contacts.ContactRepository
@@ -9,6 +10,7 @@ import org.thoughtcrime.securesms.contacts.paged.collections.ContactSearchIterat
 import org.thoughtcrime.securesms.contacts.paged.collections.CursorSearchIterator
 import org.thoughtcrime.securesms.contacts.paged.collections.StoriesSearchCollection
 import org.thoughtcrime.securesms.database.GroupTable
+import org.thoughtcrime.securesms.database.SearchTable
 import org.thoughtcrime.securesms.database.model.DistributionListPrivacyMode
 import org.thoughtcrime.securesms.database.model.GroupRecord
 import org.thoughtcrime.securesms.database.model.ThreadRecord
@@ -17,6 +19,7 @@ import org.thoughtcrime.securesms.phonenumbers.NumberUtil
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.search.MessageResult
+import org.thoughtcrime.securesms.search.MessageSearchPagedDataSource
 import org.thoughtcrime.securesms.search.MessageSearchResult
 import org.thoughtcrime.securesms.search.SearchRepository
 import org.thoughtcrime.securesms.search.ThreadSearchResult
@@ -35,7 +38,11 @@ class ContactSearchPagedDataSource(
 ) : PagedDataSource<ContactSearchKey, ContactSearchData> {
 
   companion object {
+    private val TAG = Log.tag(ContactSearchPagedDataSource::class.java)
+
     private val ACTIVE_STORY_CUTOFF_DURATION = TimeUnit.DAYS.toMillis(1)
+
+    private const val MESSAGE_PAGE_SIZE = 20
   }
 
   private val latestStorySends: List<StorySend> = contactSearchPagedDataSourceRepository.getLatestStorySends(ACTIVE_STORY_CUTOFF_DURATION)
@@ -438,32 +445,60 @@ class ContactSearchPagedDataSource(
     }
   }
 
+  /**
+   * Aborts any message search still running for this query. Should be called once this data source is replaced by one for a newer query.
+   */
+  fun cancel() {
+    searchCache.messageSearchPages?.dataSource?.cancel()
+  }
+
+  /**
+   * Messages are searched a page at a time, unless there are messages that mention someone matching the query. Those can't be paged
+   * together with the full text matches, so all results are loaded at once, as before.
+   */
   private fun getMessageData(query: String?): ContactSearchIterator<MessageResult> {
     check(searchRepository != null)
 
-    if (searchCache.messageSearchResult == null && query != null) {
-      searchCache = searchCache.copy(messageSearchResult = searchRepository.queryMessagesSync(query))
+    if (query == null) {
+      return ListSearchIterator(emptyList())
     }
 
-    return if (query != null) {
-      ListSearchIterator(searchCache.messageSearchResult!!.results)
+    if (searchCache.messageSearchResult == null && searchCache.messageSearchPages == null) {
+      val mentionMessages = searchRepository.queryMentionMessagesSync(query)
+
+      searchCache = if (mentionMessages.isEmpty()) {
+        searchCache.copy(messageSearchPages = MessageSearchPages(MessageSearchPagedDataSource(query, SearchTable.MessageSearchOrder.RECENCY, searchRepository)))
+      } else {
+        searchCache.copy(messageSearchResult = searchRepository.queryMessagesSync(query, mentionMessages))
+      }
+    }
+
+    val messageSearchPages = searchCache.messageSearchPages
+
+    return if (messageSearchPages != null) {
+      PagedMessageSearchIterator(messageSearchPages)
     } else {
-      ListSearchIterator(emptyList())
+      ListSearchIterator(searchCache.messageSearchResult!!.results)
     }
   }
 
   private fun getMessageContactData(section: ContactSearchConfiguration.Section.Messages, query: String?, startIndex: Int, endIndex: Int): List<ContactSearchData> {
-    return getMessageData(query).use { records ->
-      readContactData(
-        records = records,
-        recordsPredicate = null,
-        section = section,
-        startIndex = startIndex,
-        endIndex = endIndex,
-        recordMapper = {
-          ContactSearchData.Message(query ?: "", it)
-        }
-      )
+    return try {
+      getMessageData(query).use { records ->
+        readContactData(
+          records = records,
+          recordsPredicate = null,
+          section = section,
+          startIndex = startIndex,
+          endIndex = endIndex,
+          recordMapper = {
+            ContactSearchData.Message(query ?: "", it)
+          }
+        )
+      }
+    } catch (e: NoSuchElementException) {
+      Log.w(TAG, "Message search page came back short, the search was likely canceled.")
+      emptyList()
     }
   }
 
@@ -513,9 +548,49 @@ class ContactSearchPagedDataSource(
    */
   private data class SearchCache(
     val messageSearchResult: MessageSearchResult? = null,
+    val messageSearchPages: MessageSearchPages? = null,
     val threadSearchResult: ThreadSearchResult? = null
   )
 
+  /**
+   * Keeps the pages of a [MessageSearchPagedDataSource] that have already been loaded, so that the section can be read repeatedly
+   * without hitting the database again.
+   */
+  private class MessageSearchPages(val dataSource: MessageSearchPagedDataSource) {
+
+    val size: Int by lazy { dataSource.size() }
+
+    private val pages: MutableMap<Int, List<MessageResult>> = mutableMapOf()
+
+    fun get(position: Int): MessageResult {
+      val page = position / MESSAGE_PAGE_SIZE
+      val results = synchronized(pages) {
+        pages.getOrPut(page) {
+          dataSource.load(page * MESSAGE_PAGE_SIZE, MESSAGE_PAGE_SIZE, size) { false }
+        }
+      }
+
+      return results.getOrNull(position % MESSAGE_PAGE_SIZE) ?: throw NoSuchElementException()
+    }
+  }
+
+  private class PagedMessageSearchIterator(private val pages: MessageSearchPages) : ContactSearchIterator<MessageResult> {
+
+    private var position = -1
+
+    override fun moveToPosition(n: Int) {
+      position = n
+    }
+
+    override fun getCount(): Int = pages.size
+
+    override fun hasNext(): Boolean = position < pages.size - 1
+
+    override fun next(): MessageResult = pages.get(++position)
+
+    override fun close() = Unit
+  }
+
   /**
    * StoryComparator
    */
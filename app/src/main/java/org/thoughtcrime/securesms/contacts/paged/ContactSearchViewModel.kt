@@ -56,20 +56,26 @@ class ContactSearchViewModel(
   val errorEventsStream: Observable<ContactSearchError> = errorEvents
 
   private var selectionSize = 0
+  private var pagedDataSource: ContactSearchPagedDataSource? = null
+
   override fun onCleared() {
     disposables.clear()
+    pagedDataSource?.cancel()
   }
 
   fun getSelectedMembersSize(): Int {
     return selectionSize
   }
   fun setConfiguration(contactSearchConfiguration: ContactSearchConfiguration) {
+    pagedDataSource?.cancel()
+
     val pagedDataSource = ContactSearchPagedDataSource(
       contactSearchConfiguration,
       arbitraryRepository = arbitraryRepository,
       searchRepository = searchRepository,
       contactSearchPagedDataSourceRepository = contactSearchPagedDataSourceRepository
     )
+    this.pagedDataSource = pagedDataSource
     pagedData.value = PagedData.createForLiveData(pagedDataSource, pagingConfig)
   }
 
@@ -90,6 +90,7 @@ import org.thoughtcrime.securesms.sms.MessageSender
 import org.thoughtcrime.securesms.sms.MessageSender.PreUploadResult
 import org.thoughtcrime.securesms.util.BitmapUtil
 import org.thoughtcrime.securesms.util.DrawableUtil
+import org.thoughtcrime.securesms.util.FeatureFlags
 import org.thoughtcrime.securesms.util.MediaUtil
 import org.thoughtcrime.securesms.util.MessageUtil
 import org.thoughtcrime.securesms.util.SignalLocalMetrics
@@ -148,6 +149,7 @@ class ConversationRepository(
       val config = PagingConfig.Builder().setPageSize(25)
         .setBufferPages(2)
         .setStartIndex(max(metadata.getStartPosition(), 0))
+        .setAdaptivePrefetch(FeatureFlags.adaptiveConversationPaging())
         .build()
 
       ConversationThreadState(
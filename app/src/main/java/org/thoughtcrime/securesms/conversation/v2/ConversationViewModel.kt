@@ -168,13 +168,19 @@ class ConversationViewModel(
         val messageInsertObserver = DatabaseObserver.MessageObserver {
           controller.onDataItemInserted(ConversationElementKey.forMessage(it.id), 0)
         }
-        val conversationObserver = DatabaseObserver.Observer {
-          controller.onDataInvalidated()
+        val conversationObserver = DatabaseObserver.ChangeSetObserver { changes ->
+          if (changes.isUnknown) {
+            controller.onDataInvalidated()
+          } else {
+            changes.deleted.forEach { controller.onDataItemRemoved(ConversationElementKey.forMessage(it)) }
+            changes.updated.forEach { controller.onDataItemChanged(ConversationElementKey.forMessage(it)) }
+            changes.inserted.sorted().forEach { controller.onDataItemInserted(ConversationElementKey.forMessage(it), 0) }
+          }
         }
 
         ApplicationDependencies.getDatabaseObserver().registerMessageUpdateObserver(messageUpdateObserver)
         ApplicationDependencies.getDatabaseObserver().registerMessageInsertObserver(threadId, messageInsertObserver)
-        ApplicationDependencies.getDatabaseObserver().registerConversationObserver(threadId, conversationObserver)
+        ApplicationDependencies.getDatabaseObserver().registerConversationChangeObserver(threadId, conversationObserver)
 
         emitter.setCancellable {
           ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageUpdateObserver)
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+/**
+ * Describes which rows changed over the course of a transaction, so that observers can update just those rows rather than reloading
+ * everything.
+ *
+ * If [isUnknown] is true, something changed that couldn't be described row-by-row, and observers should treat everything as changed. The
+ * row-level sets may still be populated in that case, but they are not the full story.
+ */
+class ChangeSet private constructor(
+  val inserted: Set<Long>,
+  val updated: Set<Long>,
+  val deleted: Set<Long>,
+  val isUnknown: Boolean
+) {
+
+  override fun toString(): String {
+    return "ChangeSet(inserted=$inserted, updated=$updated, deleted=$deleted, isUnknown=$isUnknown)"
+  }
+
+  /**
+   * Collapses a sequence of changes into the net effect on each row. For instance, a row that's inserted and then updated is just
+   * inserted, and a row that's inserted and then deleted was never there as far as an observer is concerned.
+   */
+  class Builder {
+    private val inserted: MutableSet<Long> = LinkedHashSet()
+    private val updated: MutableSet<Long> = LinkedHashSet()
+    private val deleted: MutableSet<Long> = LinkedHashSet()
+    private var unknown = false
+
+    fun markInserted(ids: Collection<Long>): Builder {
+      for (id in ids) {
+        if (deleted.remove(id)) {
+          updated += id
+        } else {
+          inserted += id
+        }
+      }
+      return this
+    }
+
+    fun markUpdated(ids: Collection<Long>): Builder {
+      for (id in ids) {
+        if (id !in inserted && id !in deleted) {
+          updated += id
+        }
+      }
+      return this
+    }
+
+    fun markDeleted(ids: Collection<Long>): Builder {
+      for (id in ids) {
+        if (!inserted.remove(id)) {
+          updated -= id
+          deleted += id
+        }
+      }
+      return this
+    }
+
+    fun markUnknown(): Builder {
+      unknown = true
+      return this
+    }
+
+    fun build(): ChangeSet {
+      return ChangeSet(
+        inserted = LinkedHashSet(inserted),
+        updated = LinkedHashSet(updated),
+        deleted = LinkedHashSet(deleted),
+        isUnknown = unknown
+      )
+    }
+  }
+}
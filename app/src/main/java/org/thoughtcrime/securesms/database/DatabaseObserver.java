@@ -21,6 +21,7 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /**
  * Allows listening to database changes to varying degrees of specificity.
@@ -54,6 +55,7 @@ public class DatabaseObserver {
 
   private final Set<Observer>                      conversationListObservers;
   private final Map<Long, Set<Observer>>           conversationObservers;
+  private final Map<Long, Set<ChangeSetObserver>>  conversationChangeObservers;
   private final Map<Long, Set<Observer>>           verboseConversationObservers;
   private final Map<Long, Set<Observer>>           conversationDeleteObservers;
   private final Map<UUID, Set<Observer>>           paymentObservers;
@@ -75,6 +77,7 @@ public class DatabaseObserver {
     this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
     this.conversationListObservers    = new HashSet<>();
     this.conversationObservers        = new HashMap<>();
+    this.conversationChangeObservers  = new HashMap<>();
     this.verboseConversationObservers = new HashMap<>();
     this.conversationDeleteObservers  = new HashMap<>();
     this.paymentObservers             = new HashMap<>();
@@ -104,6 +107,15 @@ public class DatabaseObserver {
     });
   }
 
+  /**
+   * Like {@link #registerConversationObserver(long, Observer)}, except that the observer is told which messages changed, where we know.
+   */
+  public void registerConversationChangeObserver(long threadId, @NonNull ChangeSetObserver listener) {
+    executor.execute(() -> {
+      registerMapped(conversationChangeObservers, threadId, listener);
+    });
+  }
+
   public void registerVerboseConversationObserver(long threadId, @NonNull Observer listener) {
     executor.execute(() -> {
       registerMapped(verboseConversationObservers, threadId, listener);
@@ -221,6 +233,12 @@ public class DatabaseObserver {
     });
   }
 
+  public void unregisterObserver(@NonNull ChangeSetObserver listener) {
+    executor.execute(() -> {
+      unregisterMapped(conversationChangeObservers, listener);
+    });
+  }
+
   public void notifyConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
       notifyConversationListeners(threadId);
@@ -228,10 +246,28 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationListeners(long threadId) {
-    runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, () -> {
-      notifyMapped(conversationObservers, threadId);
-      notifyMapped(verboseConversationObservers, threadId);
-    });
+    notifyConversationChanged(threadId, ChangeSet.Builder::markUnknown);
+  }
+
+  /**
+   * Notifies conversation observers that the given messages were added to the conversation. They must be the newest messages in it.
+   */
+  public void notifyMessagesInserted(long threadId, @NonNull Collection<Long> messageIds) {
+    notifyConversationChanged(threadId, changes -> changes.markInserted(messageIds));
+  }
+
+  /**
+   * Notifies conversation observers that the given messages changed, but didn't move within the conversation.
+   */
+  public void notifyMessagesUpdated(long threadId, @NonNull Collection<Long> messageIds) {
+    notifyConversationChanged(threadId, changes -> changes.markUpdated(messageIds));
+  }
+
+  /**
+   * Notifies conversation observers that the given messages were removed from the conversation.
+   */
+  public void notifyMessagesDeleted(long threadId, @NonNull Collection<Long> messageIds) {
+    notifyConversationChanged(threadId, changes -> changes.markDeleted(messageIds));
   }
 
   public void notifyVerboseConversationListeners(Set<Long> threadIds) {
@@ -356,6 +392,36 @@ public class DatabaseObserver {
     runPostSuccessfulTransaction(KEY_CALL_LINK_UPDATES, () -> notifyMapped(callLinkObservers, callLinkRoomId));
   }
 
+  /**
+   * Changes made within a transaction are accumulated into a single {@link ChangeSet}, which is delivered once the transaction succeeds.
+   */
+  private void notifyConversationChanged(long threadId, @NonNull Consumer<ChangeSet.Builder> change) {
+    String            key     = KEY_CONVERSATION + threadId;
+    ChangeSet.Builder pending = SignalDatabase.getTransactionState(key, ChangeSet.Builder::new);
+
+    if (pending != null) {
+      change.accept(pending);
+      runPostSuccessfulTransaction(key, () -> notifyConversationObservers(threadId, pending.build()));
+    } else {
+      ChangeSet.Builder changes = new ChangeSet.Builder();
+      change.accept(changes);
+      executor.execute(() -> notifyConversationObservers(threadId, changes.build()));
+    }
+  }
+
+  private void notifyConversationObservers(long threadId, @NonNull ChangeSet changes) {
+    notifyMapped(conversationObservers, threadId);
+    notifyMapped(verboseConversationObservers, threadId);
+
+    Set<ChangeSetObserver> listeners = conversationChangeObservers.get(threadId);
+
+    if (listeners != null) {
+      for (ChangeSetObserver listener : listeners) {
+        listener.onChanged(changes);
+      }
+    }
+  }
+
   private void runPostSuccessfulTransaction(@NonNull String dedupeKey, @NonNull Runnable runnable) {
     SignalDatabase.runPostSuccessfulTransaction(dedupeKey, () -> {
       executor.execute(runnable);
@@ -421,4 +487,11 @@ public class DatabaseObserver {
   public interface MessageObserver {
     void onMessageChanged(@NonNull MessageId messageId);
   }
+
+  public interface ChangeSetObserver {
+    /**
+     * Called with everything that changed in a single transaction. Executed on a serial executor, so don't do any long-running tasks!
+     */
+    void onChanged(@NonNull ChangeSet changes);
+  }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import java.util.Locale
+
+/**
+ * An in-memory copy of [EmojiSearchTable] that can answer queries without touching the database.
+ *
+ * Entries are kept in the same order as the table's covering index (rank, then label, then emoji), and every bigram and trigram of every
+ * label maps to the (ascending) list of entries that contain it. A query walks the shortest of those lists in rank order, so it can stop as
+ * soon as it has found enough matches, exactly like the `LIKE` query it replaces.
+ *
+ * Instances are immutable, so they can be shared between threads.
+ */
+class EmojiSearchIndex private constructor(
+  private val labels: Array<String>,
+  private val emojis: Array<String>,
+  private val scaledRanks: FloatArray,
+  private val postings: Map<Long, IntArray>
+) {
+
+  companion object {
+    /** Past this many labels we'd rather go to the database than hold everything in memory. */
+    const val MAX_ENTRIES = 100_000
+
+    /** How many of the best-ranked matches are considered when scoring a query. */
+    const val CANDIDATE_LIMIT = 200
+
+    private const val MAX_GRAM_LENGTH = 3
+
+    /**
+     * @return An index of the provided entries, or null if there are none or too many of them.
+     */
+    fun build(entries: List<Entry>): EmojiSearchIndex? {
+      if (entries.isEmpty() || entries.size > MAX_ENTRIES) {
+        return null
+      }
+
+      val sorted: List<Entry> = entries.sortedWith(compareBy<Entry>({ it.rank }, { it.label }, { it.emoji }))
+      val maxRank: Int = sorted.filter { it.rank != Int.MAX_VALUE }.maxOfOrNull { it.rank } ?: 0
+
+      val emojiPool: MutableMap<String, String> = HashMap()
+      val labels: Array<String> = Array(sorted.size) { sorted[it].label }
+      val emojis: Array<String> = Array(sorted.size) { emojiPool.getOrPut(sorted[it].emoji) { sorted[it].emoji } }
+      val scaledRanks = FloatArray(sorted.size) { sorted[it].scaledRank(maxRank) }
+
+      val builders: MutableMap<Long, IntListBuilder> = HashMap()
+      for (i in sorted.indices) {
+        val label = labels[i].lowercase(Locale.ROOT)
+
+        for (length in 2..MAX_GRAM_LENGTH) {
+          for (start in 0..label.length - length) {
+            builders.getOrPut(gramKey(label, start, length)) { IntListBuilder() }.addIfLast(i)
+          }
+        }
+      }
+
+      return EmojiSearchIndex(
+        labels = labels,
+        emojis = emojis,
+        scaledRanks = scaledRanks,
+        postings = builders.mapValues { it.value.toIntArray() }
+      )
+    }
+
+    /**
+     * Ranks how "similar" a match is to the original search term.
+     * A lower score means more similar, with 0 being a perfect match.
+     *
+     * We know that the `searchTerm` must be a substring of the `match`.
+     * We determine similarity by how many letters appear before or after the `searchTerm` in the `match`.
+     * We give letters that come before the term a bigger weight than those that come after as a way to prefer matches that are prefixed by the `searchTerm`.
+     */
+    fun similarityScore(searchTerm: String, match: String, scaledRank: Float): Float {
+      if (searchTerm == match) {
+        return scaledRank
+      }
+
+      val startIndex = match.indexOf(searchTerm)
+
+      val prefixCount = startIndex
+      val suffixCount = match.length - (startIndex + searchTerm.length)
+
+      val prefixRankWeight = 1.75f
+      val suffixRankWeight = 0.75f
+      val notExactMatchPenalty = 2f
+
+      return notExactMatchPenalty +
+        (prefixCount * prefixRankWeight) +
+        (suffixCount * suffixRankWeight) +
+        scaledRank
+    }
+
+    /**
+     * Packs up to [MAX_GRAM_LENGTH] chars into a single key. The length is included so that grams of different lengths never collide.
+     */
+    private fun gramKey(text: String, start: Int, length: Int): Long {
+      var key: Long = length.toLong()
+      for (i in start until start + length) {
+        key = (key shl 16) or text[i].code.toLong()
+      }
+      return key
+    }
+  }
+
+  /**
+   * @return Up to [limit] emoji whose labels contain [query], ordered by relevance.
+   */
+  fun query(query: String, limit: Int): List<String> {
+    val term: String = query.lowercase(Locale.ROOT)
+    val candidateLimit: Int = maxOf(limit, CANDIDATE_LIMIT)
+    val matches: MutableList<Int> = ArrayList()
+
+    val candidates: IntArray? = if (term.length >= 2) {
+      findShortestPostingList(term) ?: return emptyList()
+    } else {
+      null
+    }
+
+    val candidateCount: Int = candidates?.size ?: labels.size
+    var i = 0
+    while (i < candidateCount && matches.size < candidateLimit) {
+      val entry: Int = candidates?.get(i) ?: i
+      if (labels[entry].contains(term, ignoreCase = true)) {
+        matches += entry
+      }
+      i++
+    }
+
+    return matches
+      .sortedBy { similarityScore(query, labels[it], scaledRanks[it]) }
+      .map { emojis[it] }
+      .distinct()
+      .take(limit)
+  }
+
+  private fun findShortestPostingList(term: String): IntArray? {
+    val length: Int = minOf(term.length, MAX_GRAM_LENGTH)
+    var shortest: IntArray? = null
+
+    for (start in 0..term.length - length) {
+      val posting: IntArray = postings[gramKey(term, start, length)] ?: return null
+      if (shortest == null || posting.size < shortest.size) {
+        shortest = posting
+      }
+    }
+
+    return shortest
+  }
+
+  data class Entry(val label: String, val emoji: String, val rank: Int) {
+    fun scaledRank(maxRank: Int): Float {
+      val unranked = 2f
+      val scaleFactor: Float = unranked / maxRank
+      return if (rank == Int.MAX_VALUE) {
+        unranked
+      } else {
+        rank * scaleFactor
+      }
+    }
+  }
+
+  /**
+   * A growable int list that skips consecutive duplicates, which happen whenever a label contains the same gram more than once.
+   */
+  private class IntListBuilder {
+    private var values = IntArray(4)
+    private var size = 0
+
+    fun addIfLast(value: Int) {
+      if (size > 0 && values[size - 1] == value) {
+        return
+      }
+
+      if (size == values.size) {
+        values = values.copyOf(size * 2)
+      }
+
+      values[size++] = value
+    }
+
+    fun toIntArray(): IntArray = values.copyOf(size)
+  }
+}
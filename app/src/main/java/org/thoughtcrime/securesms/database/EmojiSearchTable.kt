@@ -3,11 +3,13 @@ package org.thoughtcrime.securesms.database
 import android.content.Context
 import android.text.TextUtils
 import androidx.core.content.contentValuesOf
+import org.signal.core.util.readToList
 import org.signal.core.util.readToSingleInt
 import org.signal.core.util.requireInt
 import org.signal.core.util.requireNonNullString
 import org.signal.core.util.select
 import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.database.EmojiSearchIndex.Entry
 import org.thoughtcrime.securesms.database.model.EmojiSearchData
 import kotlin.math.max
 
@@ -36,8 +38,14 @@ class EmojiSearchTable(context: Context, databaseHelper: SignalDatabase) : Datab
     val CREATE_INDEXES = arrayOf(
       "CREATE INDEX emoji_search_rank_covering ON $TABLE_NAME ($RANK, $LABEL, $EMOJI)"
     )
+
+    private val NOT_LOADED = Any()
   }
 
+  /** Lazily loaded copy of the table. Replaced with [NOT_LOADED] whenever the table changes. */
+  @Volatile
+  private var cachedIndex: Any? = NOT_LOADED
+
   /**
    * @param query A search query. Doesn't need any special formatted -- it'll be sanitized.
    * @return A list of emoji that are related to the search term, ordered by relevance.
@@ -49,7 +57,12 @@ class EmojiSearchTable(context: Context, databaseHelper: SignalDatabase) : Datab
       return emptyList()
     }
 
-    val limit: Int = max(originalLimit, 200)
+    val index: EmojiSearchIndex? = getIndex()
+    if (index != null) {
+      return index.query(query, originalLimit)
+    }
+
+    val limit: Int = max(originalLimit, EmojiSearchIndex.CANDIDATE_LIMIT)
     val entries = mutableListOf<Entry>()
 
     val maxRank = readableDatabase
@@ -77,14 +90,7 @@ class EmojiSearchTable(context: Context, databaseHelper: SignalDatabase) : Datab
       }
 
     return entries
-      .sortedWith { lhs, rhs ->
-        val result = similarityScore(query, lhs, maxRank) - similarityScore(query, rhs, maxRank)
-        when {
-          result < 0 -> -1
-          result > 0 -> 1
-          else -> 0
-        }
-      }
+      .sortedBy { EmojiSearchIndex.similarityScore(query, it.label, it.scaledRank(maxRank)) }
       .distinctBy { it.emoji }
       .take(originalLimit)
       .map { it.emoji }
@@ -110,47 +116,57 @@ class EmojiSearchTable(context: Context, databaseHelper: SignalDatabase) : Datab
         }
       }
     }
+
+    synchronized(this) {
+      cachedIndex = NOT_LOADED
+    }
   }
 
   /**
-   * Ranks how "similar" a match is to the original search term.
-   * A lower score means more similar, with 0 being a perfect match.
-   *
-   * We know that the `searchTerm` must be a substring of the `match`.
-   * We determine similarity by how many letters appear before or after the `searchTerm` in the `match`.
-   * We give letters that come before the term a bigger weight than those that come after as a way to prefer matches that are prefixed by the `searchTerm`.
+   * @return The in-memory index, loading it if necessary, or null if the table is empty or too big to hold in memory (in which case we
+   *         just query the database).
    */
-  private fun similarityScore(searchTerm: String, entry: Entry, maxRank: Int): Float {
-    val match: String = entry.label
-
-    if (searchTerm == match) {
-      return entry.scaledRank(maxRank)
+  private fun getIndex(): EmojiSearchIndex? {
+    val current = cachedIndex
+    if (current !== NOT_LOADED) {
+      return current as EmojiSearchIndex?
     }
 
-    val startIndex = match.indexOf(searchTerm)
-
-    val prefixCount = startIndex
-    val suffixCount = match.length - (startIndex + searchTerm.length)
-
-    val prefixRankWeight = 1.75f
-    val suffixRankWeight = 0.75f
-    val notExactMatchPenalty = 2f
-
-    return notExactMatchPenalty +
-      (prefixCount * prefixRankWeight) +
-      (suffixCount * suffixRankWeight) +
-      entry.scaledRank(maxRank)
-  }
+    synchronized(this) {
+      if (cachedIndex !== NOT_LOADED) {
+        return cachedIndex as EmojiSearchIndex?
+      }
 
-  private data class Entry(val label: String, val emoji: String, val rank: Int) {
-    fun scaledRank(maxRank: Int): Float {
-      val unranked = 2f
-      val scaleFactor: Float = unranked / maxRank
-      return if (rank == Int.MAX_VALUE) {
-        unranked
+      val count = readableDatabase
+        .select("COUNT(*)")
+        .from(TABLE_NAME)
+        .run()
+        .readToSingleInt()
+
+      val loaded: EmojiSearchIndex? = if (count in 1..EmojiSearchIndex.MAX_ENTRIES) {
+        EmojiSearchIndex.build(
+          readableDatabase
+            .select(LABEL, EMOJI, RANK)
+            .from(TABLE_NAME)
+            .run()
+            .readToList { cursor ->
+              Entry(
+                label = cursor.requireNonNullString(LABEL),
+                emoji = cursor.requireNonNullString(EMOJI),
+                rank = cursor.requireInt(RANK)
+              )
+            }
+        )
       } else {
-        rank * scaleFactor
+        null
+      }
+
+      // An empty table most likely means the search data hasn't been downloaded yet, so don't hold on to that.
+      if (count > 0) {
+        cachedIndex = loaded
       }
+
+      return loaded
     }
   }
 }
@@ -75,6 +75,39 @@ class GroupReceiptTable(context: Context?, databaseHelper: SignalDatabase?) : Da
       .run()
   }
 
+  /**
+   * Applies many status updates with one statement per status (and per 500 updates). Statuses are applied in ascending order, so the
+   * end result is the same as applying each update individually with [update]. If there are multiple updates for the same message,
+   * recipient and status, only the first is applied.
+   */
+  fun update(updates: Collection<ReceiptUpdate>) {
+    val byStatus: Map<Int, List<ReceiptUpdate>> = updates
+      .distinctBy { Triple(it.mmsId, it.recipientId, it.status) }
+      .groupBy { it.status }
+      .toSortedMap()
+
+    for ((status, statusUpdates) in byStatus) {
+      for (batch in statusUpdates.chunked(500)) {
+        val values: String = batch.joinToString(", ") { "(${it.mmsId}, ${it.recipientId.toLong()}, ${it.timestamp})" }
+        val matchesUpdate = "receipt_batch.mms_id = $TABLE_NAME.$MMS_ID AND receipt_batch.recipient_id = $TABLE_NAME.$RECIPIENT_ID"
+
+        writableDatabase.execSQL(
+          """
+            WITH receipt_batch(mms_id, recipient_id, timestamp) AS (VALUES $values)
+            UPDATE $TABLE_NAME
+            SET
+              $STATUS = $status,
+              $TIMESTAMP = (SELECT receipt_batch.timestamp FROM receipt_batch WHERE $matchesUpdate)
+            WHERE
+              $MMS_ID IN (SELECT receipt_batch.mms_id FROM receipt_batch) AND
+              $STATUS < $status AND
+              EXISTS (SELECT 1 FROM receipt_batch WHERE $matchesUpdate)
+          """
+        )
+      }
+    }
+  }
+
   fun setUnidentified(results: Collection<Pair<RecipientId, Boolean>>, mmsId: Long) {
     writableDatabase.withinTransaction { db ->
       for (result in results) {
@@ -139,6 +172,13 @@ class GroupReceiptTable(context: Context?, databaseHelper: SignalDatabase?) : Da
       .run()
   }
 
+  data class ReceiptUpdate(
+    val recipientId: RecipientId,
+    val mmsId: Long,
+    val status: Int,
+    val timestamp: Long
+  )
+
   data class GroupReceiptInfo(
     val recipientId: RecipientId,
     val status: Int,
@@ -0,0 +1,177 @@
+package org.thoughtcrime.securesms.database
+
+import org.thoughtcrime.securesms.database.model.LogEntry
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/**
+ * Serializes batches of [LogEntry]s into the compact binary blobs stored in [LogDatabase.LogTable], and turns them back into text.
+ *
+ * The format is:
+ * - A format version byte
+ * - The number of entries
+ * - For each entry: timestamp, level, tag, thread, message, and an optional stack trace
+ *
+ * Tags and thread strings repeat constantly, so each batch has its own string table: the first time a string shows up it is written
+ * out in full, and every time after that only its index is written.
+ */
+object LogBatchCodec {
+
+  private const val FORMAT_VERSION = 1
+
+  /** Marks an interned string that is being written for the first time. */
+  private const val NEW_STRING = 0
+
+  @JvmStatic
+  fun encode(entries: List<LogEntry>): ByteArray {
+    val bytes = ByteArrayOutputStream(entries.size * 96)
+    val out = DataOutputStream(bytes)
+    val strings: MutableMap<String, Int> = HashMap()
+
+    out.writeByte(FORMAT_VERSION)
+    out.writeVarInt(entries.size)
+
+    for (entry in entries) {
+      out.writeLong(entry.createdAt)
+      out.writeByte(entry.level.code)
+      out.writeInternedString(entry.tag, strings)
+      out.writeInternedString(entry.threadString, strings)
+      out.writeString(entry.message)
+
+      if (entry.stackTrace != null) {
+        out.writeBoolean(true)
+        out.writeString(entry.stackTrace)
+      } else {
+        out.writeBoolean(false)
+      }
+    }
+
+    out.flush()
+    return bytes.toByteArray()
+  }
+
+  @JvmStatic
+  @Throws(IOException::class)
+  fun decode(blob: ByteArray, keepLonger: Boolean): List<LogEntry> {
+    val input = DataInputStream(ByteArrayInputStream(blob))
+    val strings: MutableList<String> = ArrayList()
+
+    val version = input.readUnsignedByte()
+    if (version != FORMAT_VERSION) {
+      throw IOException("Unknown log batch format version: $version")
+    }
+
+    val count = input.readVarInt()
+    val entries: MutableList<LogEntry> = ArrayList(count)
+
+    for (i in 0 until count) {
+      entries += LogEntry(
+        createdAt = input.readLong(),
+        keepLonger = keepLonger,
+        level = input.readUnsignedByte().toChar(),
+        tag = input.readInternedString(strings),
+        threadString = input.readInternedString(strings),
+        message = input.readString(),
+        stackTrace = if (input.readBoolean()) input.readString() else null
+      )
+    }
+
+    return entries
+  }
+
+  /**
+   * Formats the entry into the lines that get shown and uploaded in debug logs, appending them to [out].
+   */
+  @JvmStatic
+  fun formatLines(entry: LogEntry, appVersion: String, formatter: Formatter, out: MutableList<String>) {
+    val prefix = "[$appVersion] [${entry.threadString}] ${formatter.formatDate(entry.createdAt)} ${entry.level} ${entry.tag}: "
+
+    out += prefix + entry.message
+
+    if (entry.stackTrace != null) {
+      for (line in entry.stackTrace.split("\n")) {
+        out += prefix + line
+      }
+    }
+  }
+
+  /**
+   * Holds on to the (expensive to create, not thread-safe) date format used when formatting lines. Create one per reader.
+   */
+  class Formatter {
+    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
+    private val date = Date()
+
+    fun formatDate(time: Long): String {
+      date.time = time
+      return dateFormat.format(date)
+    }
+  }
+
+  private fun DataOutputStream.writeInternedString(value: String, strings: MutableMap<String, Int>) {
+    val index = strings[value]
+
+    if (index != null) {
+      writeVarInt(index + 1)
+    } else {
+      strings[value] = strings.size
+      writeVarInt(NEW_STRING)
+      writeString(value)
+    }
+  }
+
+  private fun DataInputStream.readInternedString(strings: MutableList<String>): String {
+    val index = readVarInt()
+
+    return if (index == NEW_STRING) {
+      readString().also { strings += it }
+    } else {
+      strings.getOrNull(index - 1) ?: throw IOException("Invalid string index: $index")
+    }
+  }
+
+  private fun DataOutputStream.writeString(value: String) {
+    val bytes = value.toByteArray(Charsets.UTF_8)
+    writeVarInt(bytes.size)
+    write(bytes)
+  }
+
+  private fun DataInputStream.readString(): String {
+    val bytes = ByteArray(readVarInt())
+    readFully(bytes)
+    return String(bytes, Charsets.UTF_8)
+  }
+
+  private fun DataOutputStream.writeVarInt(value: Int) {
+    var remaining = value
+    while (remaining and 0x7F.inv() != 0) {
+      writeByte((remaining and 0x7F) or 0x80)
+      remaining = remaining ushr 7
+    }
+    writeByte(remaining)
+  }
+
+  private fun DataInputStream.readVarInt(): Int {
+    var result = 0
+    var shift = 0
+
+    while (shift < 32) {
+      val b = readUnsignedByte()
+      result = result or ((b and 0x7F) shl shift)
+
+      if (b and 0x80 == 0) {
+        return result
+      }
+
+      shift += 7
+    }
+
+    throw IOException("Malformed varint")
+  }
+}
@@ -5,7 +5,6 @@ import android.app.Application
 import android.database.Cursor
 import net.zetetic.database.sqlcipher.SQLiteDatabase
 import net.zetetic.database.sqlcipher.SQLiteOpenHelper
-import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
 import org.signal.core.util.Stopwatch
 import org.signal.core.util.delete
@@ -16,16 +15,22 @@ import org.signal.core.util.logging.Log
 import org.signal.core.util.mebiBytes
 import org.signal.core.util.readToList
 import org.signal.core.util.readToSingleInt
+import org.signal.core.util.requireBoolean
+import org.signal.core.util.requireInt
 import org.signal.core.util.requireLong
+import org.signal.core.util.requireNonNullBlob
 import org.signal.core.util.requireNonNullString
+import org.signal.core.util.requireString
 import org.signal.core.util.select
 import org.signal.core.util.update
 import org.signal.core.util.withinTransaction
+import org.thoughtcrime.securesms.BuildConfig
 import org.thoughtcrime.securesms.crash.CrashConfig
 import org.thoughtcrime.securesms.crypto.DatabaseSecret
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider
 import org.thoughtcrime.securesms.database.model.LogEntry
 import java.io.Closeable
+import java.io.IOException
 import kotlin.math.abs
 import kotlin.time.Duration.Companion.days
 
@@ -57,7 +62,7 @@ class LogDatabase private constructor(
   companion object {
     private val TAG = Log.tag(LogDatabase::class.java)
 
-    private const val DATABASE_VERSION = 4
+    private const val DATABASE_VERSION = 5
     private const val DATABASE_NAME = "signal-logs.db"
 
     @SuppressLint("StaticFieldLeak") // We hold an Application context, not a view context
@@ -117,6 +122,13 @@ class LogDatabase private constructor(
     if (oldVersion < 4) {
       db.execSQL("CREATE TABLE anr (_id INTEGER PRIMARY KEY, created_at INTEGER NOT NULL, thread_dump TEXT NOT NULL)")
     }
+
+    if (oldVersion < 5) {
+      db.execSQL("DROP TABLE log")
+      db.execSQL("CREATE TABLE log (_id INTEGER PRIMARY KEY, created_at INTEGER, keep_longer INTEGER DEFAULT 0, app_version TEXT, line_count INTEGER, body BLOB, size INTEGER)")
+      db.execSQL("CREATE INDEX keep_longer_index ON log (keep_longer)")
+      db.execSQL("CREATE INDEX log_created_at_keep_longer_index ON log (created_at, keep_longer)")
+    }
   }
 
   override fun onOpen(db: SQLiteDatabase) {
@@ -127,21 +139,30 @@ class LogDatabase private constructor(
     return writableDatabase
   }
 
+  /**
+   * Logs are stored in batches: every time the logger flushes, all of the entries it has buffered are encoded into a single binary blob
+   * with [LogBatchCodec]. Nothing is formatted into text until the logs are actually read, and trimming drops whole batches at a time.
+   */
   class LogTable(private val openHelper: LogDatabase) {
     companion object {
       const val TABLE_NAME = "log"
       const val ID = "_id"
       const val CREATED_AT = "created_at"
       const val KEEP_LONGER = "keep_longer"
+      const val APP_VERSION = "app_version"
+      const val LINE_COUNT = "line_count"
       const val BODY = "body"
       const val SIZE = "size"
 
+      /** [CREATED_AT] is the time of the newest entry in the batch. */
       const val CREATE_TABLE = """
         CREATE TABLE $TABLE_NAME (
           $ID INTEGER PRIMARY KEY,
           $CREATED_AT INTEGER, 
           $KEEP_LONGER INTEGER DEFAULT 0,
-          $BODY TEXT,
+          $APP_VERSION TEXT,
+          $LINE_COUNT INTEGER,
+          $BODY BLOB,
           $SIZE INTEGER
         )
       """
@@ -154,23 +175,20 @@ class LogDatabase private constructor(
       val MAX_FILE_SIZE = 20L.mebiBytes.inWholeBytes
       val DEFAULT_LIFESPAN = 3.days.inWholeMilliseconds
       val LONGER_LIFESPAN = 21.days.inWholeMilliseconds
+
+      /** Keeps any single row comfortably inside of a cursor window. */
+      private const val MAX_ENTRIES_PER_BATCH = 1000
     }
 
     private val readableDatabase: SQLiteDatabase get() = openHelper.readableDatabase
     private val writableDatabase: SQLiteDatabase get() = openHelper.writableDatabase
 
     fun insert(logs: List<LogEntry>, currentTime: Long) {
+      val (keepers, regular) = logs.partition { it.keepLonger }
+
       writableDatabase.withinTransaction { db ->
-        logs.forEach { log ->
-          db.insertInto(TABLE_NAME)
-            .values(
-              CREATED_AT to log.createdAt,
-              KEEP_LONGER to if (log.keepLonger) 1 else 0,
-              BODY to log.body,
-              SIZE to log.body.length
-            )
-            .run()
-        }
+        insertBatches(db, keepers, keepLonger = true)
+        insertBatches(db, regular, keepLonger = false)
 
         db.delete(TABLE_NAME)
           .where("($CREATED_AT < ? AND $KEEP_LONGER = 0) OR ($CREATED_AT < ? AND $KEEP_LONGER = 1)", currentTime - DEFAULT_LIFESPAN, currentTime - LONGER_LIFESPAN)
@@ -178,27 +196,90 @@ class LogDatabase private constructor(
       }
     }
 
+    private fun insertBatches(db: SQLiteDatabase, entries: List<LogEntry>, keepLonger: Boolean) {
+      entries.chunked(MAX_ENTRIES_PER_BATCH).forEach { batch ->
+        val body: ByteArray = LogBatchCodec.encode(batch)
+
+        db.insertInto(TABLE_NAME)
+          .values(
+            CREATED_AT to batch.maxOf { it.createdAt },
+            KEEP_LONGER to if (keepLonger) 1 else 0,
+            APP_VERSION to BuildConfig.VERSION_NAME,
+            LINE_COUNT to batch.sumOf { it.lineCount },
+            BODY to body,
+            SIZE to body.size
+          )
+          .run()
+      }
+    }
+
     fun getAllBeforeTime(time: Long): Reader {
       return readableDatabase
-        .select(BODY)
+        .select(KEEP_LONGER, APP_VERSION, BODY)
         .from(TABLE_NAME)
         .where("$CREATED_AT < $time")
+        .orderBy("$ID ASC")
         .run()
         .toReader()
     }
 
+    /**
+     * Only the small per-batch line counts are used to find the batches covering the range, so only those batches ever get decoded.
+     */
     fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
-      return readableDatabase
-        .select(BODY)
+      val batchLineCounts: List<Pair<Long, Int>> = readableDatabase
+        .select(ID, LINE_COUNT)
         .from(TABLE_NAME)
         .where("$CREATED_AT < $time")
-        .limit(limit = length, offset = start)
+        .orderBy("$ID ASC")
+        .run()
+        .readToList { it.requireLong(ID) to it.requireInt(LINE_COUNT) }
+
+      var firstBatchId = -1L
+      var lastBatchId = -1L
+      var skip = 0
+      var position = 0
+
+      for ((id, lineCount) in batchLineCounts) {
+        if (firstBatchId == -1L && position + lineCount > start) {
+          firstBatchId = id
+          skip = start - position
+        }
+
+        position += lineCount
+
+        if (firstBatchId != -1L) {
+          lastBatchId = id
+
+          if (position >= start + length) {
+            break
+          }
+        }
+      }
+
+      if (firstBatchId == -1L) {
+        return emptyList()
+      }
+
+      val lines: MutableList<String> = ArrayList(skip + length)
+
+      readableDatabase
+        .select(KEEP_LONGER, APP_VERSION, BODY)
+        .from(TABLE_NAME)
+        .where("$ID >= $firstBatchId AND $ID <= $lastBatchId AND $CREATED_AT < $time")
+        .orderBy("$ID ASC")
         .run()
-        .readToList { it.requireNonNullString(BODY) }
+        .toReader()
+        .use { reader ->
+          while (reader.hasNext() && lines.size < skip + length) {
+            lines += reader.next()
+          }
+        }
+
+      return lines.drop(skip)
     }
 
     fun trimToSize() {
-      val currentTime = System.currentTimeMillis()
       val stopwatch = Stopwatch("trim")
 
       val sizeOfSpecialLogs: Long = getSize("$KEEP_LONGER = ?", arrayOf("1"))
@@ -209,43 +290,43 @@ class LogDatabase private constructor(
       if (remainingSize <= 0) {
         if (abs(remainingSize) > MAX_FILE_SIZE / 2) {
           // Not only are KEEP_LONGER logs putting us over the storage limit, it's doing it by a lot! Delete half.
-          val logCount = readableDatabase.getTableRowCount(TABLE_NAME)
-          writableDatabase.execSQL("DELETE FROM $TABLE_NAME WHERE $ID < (SELECT MAX($ID) FROM (SELECT $ID FROM $TABLE_NAME LIMIT ${logCount / 2}))")
+          val batchCount = readableDatabase.getTableRowCount(TABLE_NAME)
+          writableDatabase.execSQL("DELETE FROM $TABLE_NAME WHERE $ID < (SELECT MAX($ID) FROM (SELECT $ID FROM $TABLE_NAME LIMIT ${batchCount / 2}))")
         } else {
           writableDatabase
             .delete(TABLE_NAME)
             .where("$KEEP_LONGER = 0")
+            .run()
         }
         return
       }
 
-      val sizeDiffThreshold = MAX_FILE_SIZE * 0.01
-
-      var lhs: Long = currentTime - DEFAULT_LIFESPAN
-      var rhs: Long = currentTime
-      var mid: Long = 0
-      var sizeOfChunk: Long
+      // Walk the batches from newest to oldest until we run out of room, then drop everything older than that
+      var sizeOfNewerBatches = 0L
+      var oldestBatchToDelete = -1L
 
-      while (lhs < rhs - 2) {
-        mid = (lhs + rhs) / 2
-        sizeOfChunk = getSize("$CREATED_AT > ? AND $CREATED_AT < ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(mid, currentTime, 0))
-
-        if (sizeOfChunk > remainingSize) {
-          lhs = mid
-        } else if (sizeOfChunk < remainingSize) {
-          if (remainingSize - sizeOfChunk < sizeDiffThreshold) {
-            break
-          } else {
-            rhs = mid
+      readableDatabase
+        .select(ID, SIZE)
+        .from(TABLE_NAME)
+        .where("$KEEP_LONGER = 0")
+        .orderBy("$ID DESC")
+        .run()
+        .use { cursor ->
+          while (cursor.moveToNext()) {
+            sizeOfNewerBatches += cursor.requireLong(SIZE)
+
+            if (sizeOfNewerBatches > remainingSize) {
+              oldestBatchToDelete = cursor.requireLong(ID)
+              break
+            }
           }
-        } else {
-          break
         }
-      }
 
-      stopwatch.split("binary-search")
+      stopwatch.split("find-cutoff")
 
-      writableDatabase.delete(TABLE_NAME, "$CREATED_AT < ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(mid, 0))
+      if (oldestBatchToDelete != -1L) {
+        writableDatabase.delete(TABLE_NAME, "$ID <= ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(oldestBatchToDelete, 0))
+      }
 
       stopwatch.split("delete")
       stopwatch.stop(TAG)
@@ -253,7 +334,7 @@ class LogDatabase private constructor(
 
     fun getLogCountBeforeTime(time: Long): Int {
       return readableDatabase
-        .select("COUNT(*)")
+        .select("SUM($LINE_COUNT)")
         .from(TABLE_NAME)
         .where("$CREATED_AT < $time")
         .run()
@@ -289,14 +370,43 @@ class LogDatabase private constructor(
 
     interface Reader : Iterator<String>, Closeable
 
+    /**
+     * Decodes one batch at a time, and only formats the lines of a batch once the reader gets to it.
+     */
     class CursorReader(private val cursor: Cursor) : Reader {
+      private val formatter = LogBatchCodec.Formatter()
+      private val lines: MutableList<String> = ArrayList()
+      private var lineIndex = 0
+
       override fun hasNext(): Boolean {
-        return !cursor.isLast && cursor.count > 0
+        while (lineIndex >= lines.size) {
+          if (!cursor.moveToNext()) {
+            return false
+          }
+
+          lines.clear()
+          lineIndex = 0
+
+          val appVersion: String = cursor.requireString(APP_VERSION) ?: ""
+          val entries: List<LogEntry> = try {
+            LogBatchCodec.decode(cursor.requireNonNullBlob(BODY), cursor.requireBoolean(KEEP_LONGER))
+          } catch (e: IOException) {
+            Log.w(TAG, "Failed to decode a log batch! Skipping.", e)
+            emptyList()
+          }
+
+          entries.forEach { LogBatchCodec.formatLines(it, appVersion, formatter, lines) }
+        }
+
+        return true
       }
 
       override fun next(): String {
-        cursor.moveToNext()
-        return CursorUtil.requireString(cursor, LogTable.BODY)
+        if (!hasNext()) {
+          throw NoSuchElementException()
+        }
+
+        return lines[lineIndex++]
       }
 
       override fun close() {
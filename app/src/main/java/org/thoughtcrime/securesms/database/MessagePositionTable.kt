@@ -0,0 +1,211 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import android.annotation.SuppressLint
+import android.content.Context
+import org.intellij.lang.annotations.Language
+import org.signal.core.util.SqlUtil
+import org.signal.core.util.readToList
+import org.signal.core.util.readToSingleInt
+import org.signal.core.util.requireLong
+import org.signal.core.util.select
+
+/**
+ * Keeps per-thread message counts for ranges of [MessageTable.DATE_RECEIVED], so that we can find the position of a message in a
+ * conversation (or the message at a given position) without counting every message in between.
+ *
+ * Counts are kept at a few levels of granularity. At each level, a message falls into the bucket `date_received >> shift`, and every bucket
+ * is split into [FANOUT] buckets at the next level down. Answering a position query therefore only ever touches the buckets that share a
+ * parent with the target at each level, plus the messages in a single bucket at the finest level.
+ *
+ * Only messages that show up in the conversation (see [MessageTable.getConversation]) are counted. Everything is maintained by triggers.
+ */
+@SuppressLint("RecipientIdDatabaseReferenceUsage", "ThreadIdDatabaseReferenceUsage") // Handles updates via triggers
+class MessagePositionTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable(context, databaseHelper) {
+
+  companion object {
+    const val TABLE_NAME = "message_position"
+    private const val THREAD_ID = "thread_id"
+    private const val LEVEL = "level"
+    private const val BUCKET = "bucket"
+    private const val MESSAGE_COUNT = "message_count"
+
+    /** Bits of [MessageTable.DATE_RECEIVED] dropped at each level, from coarsest (~2 years) to finest (~4.5 hours). */
+    private val LEVEL_SHIFTS = intArrayOf(36, 30, 24)
+
+    /** How many buckets each bucket is split into at the next level. */
+    private const val FANOUT_BITS = 6
+    private const val FANOUT = 1 shl FANOUT_BITS
+
+    private const val VISIBLE_NEW = "new.${MessageTable.STORY_TYPE} = 0 AND new.${MessageTable.PARENT_STORY_ID} <= 0 AND new.${MessageTable.SCHEDULED_DATE} = -1 AND new.${MessageTable.LATEST_REVISION_ID} IS NULL"
+    private const val VISIBLE_OLD = "old.${MessageTable.STORY_TYPE} = 0 AND old.${MessageTable.PARENT_STORY_ID} <= 0 AND old.${MessageTable.SCHEDULED_DATE} = -1 AND old.${MessageTable.LATEST_REVISION_ID} IS NULL"
+
+    @Language("sql")
+    const val CREATE_TABLE = """
+      CREATE TABLE $TABLE_NAME (
+        $THREAD_ID INTEGER NOT NULL,
+        $LEVEL INTEGER NOT NULL,
+        $BUCKET INTEGER NOT NULL,
+        $MESSAGE_COUNT INTEGER NOT NULL,
+        PRIMARY KEY ($THREAD_ID, $LEVEL, $BUCKET)
+      ) WITHOUT ROWID
+    """
+
+    private const val TRIGGER_AFTER_INSERT = "message_position_ai"
+    private const val TRIGGER_AFTER_DELETE = "message_position_ad"
+    private const val TRIGGER_AFTER_UPDATE_OLD = "message_position_au_old"
+    private const val TRIGGER_AFTER_UPDATE_NEW = "message_position_au_new"
+
+    private const val UPDATED_COLUMNS = "${MessageTable.THREAD_ID}, ${MessageTable.DATE_RECEIVED}, ${MessageTable.STORY_TYPE}, ${MessageTable.PARENT_STORY_ID}, ${MessageTable.SCHEDULED_DATE}, ${MessageTable.LATEST_REVISION_ID}"
+
+    @JvmField
+    val CREATE_TRIGGERS = arrayOf(
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_INSERT AFTER INSERT ON ${MessageTable.TABLE_NAME} WHEN $VISIBLE_NEW BEGIN
+          ${increment("new")}
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_DELETE AFTER DELETE ON ${MessageTable.TABLE_NAME} WHEN $VISIBLE_OLD BEGIN
+          ${decrement("old")}
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_UPDATE_OLD AFTER UPDATE OF $UPDATED_COLUMNS ON ${MessageTable.TABLE_NAME} WHEN $VISIBLE_OLD BEGIN
+          ${decrement("old")}
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_UPDATE_NEW AFTER UPDATE OF $UPDATED_COLUMNS ON ${MessageTable.TABLE_NAME} WHEN $VISIBLE_NEW BEGIN
+          ${increment("new")}
+        END;
+      """
+    )
+
+    /**
+     * Fills the table from scratch. Only meant to be run against an empty table, right after the triggers are created.
+     */
+    @JvmField
+    val POPULATE = LEVEL_SHIFTS.indices.map { level ->
+      """
+        INSERT INTO $TABLE_NAME ($THREAD_ID, $LEVEL, $BUCKET, $MESSAGE_COUNT)
+        SELECT ${MessageTable.THREAD_ID}, $level, ${MessageTable.DATE_RECEIVED} >> ${LEVEL_SHIFTS[level]}, COUNT(*)
+        FROM ${MessageTable.TABLE_NAME}
+        WHERE ${MessageTable.STORY_TYPE} = 0 AND ${MessageTable.PARENT_STORY_ID} <= 0 AND ${MessageTable.SCHEDULED_DATE} = -1 AND ${MessageTable.LATEST_REVISION_ID} IS NULL
+        GROUP BY ${MessageTable.THREAD_ID}, ${MessageTable.DATE_RECEIVED} >> ${LEVEL_SHIFTS[level]}
+      """
+    }.toTypedArray()
+
+    private fun increment(row: String): String {
+      val values = LEVEL_SHIFTS.indices.joinToString(", ") { level -> "($row.${MessageTable.THREAD_ID}, $level, $row.${MessageTable.DATE_RECEIVED} >> ${LEVEL_SHIFTS[level]}, 1)" }
+
+      return """
+        INSERT INTO $TABLE_NAME ($THREAD_ID, $LEVEL, $BUCKET, $MESSAGE_COUNT) VALUES $values
+        ON CONFLICT ($THREAD_ID, $LEVEL, $BUCKET) DO UPDATE SET $MESSAGE_COUNT = $MESSAGE_COUNT + 1;
+      """
+    }
+
+    private fun decrement(row: String): String {
+      val buckets = LEVEL_SHIFTS.indices.joinToString(" OR ") { level -> "($LEVEL = $level AND $BUCKET = $row.${MessageTable.DATE_RECEIVED} >> ${LEVEL_SHIFTS[level]})" }
+
+      return """
+        UPDATE $TABLE_NAME SET $MESSAGE_COUNT = $MESSAGE_COUNT - 1 WHERE $THREAD_ID = $row.${MessageTable.THREAD_ID} AND ($buckets);
+        DELETE FROM $TABLE_NAME WHERE $THREAD_ID = $row.${MessageTable.THREAD_ID} AND $MESSAGE_COUNT <= 0 AND ($buckets);
+      """
+    }
+  }
+
+  /**
+   * @return The number of messages in the conversation that were received after [dateReceived], which is the position (in the order
+   *         returned by [MessageTable.getConversation]) of the newest message received at [dateReceived].
+   */
+  fun getCountReceivedAfter(threadId: Long, dateReceived: Long): Int {
+    val bucketSums = LEVEL_SHIFTS.indices.joinToString(" + ") { level ->
+      val bucket = dateReceived shr LEVEL_SHIFTS[level]
+      val siblingRange = if (level == 0) {
+        ""
+      } else {
+        val firstSibling = (dateReceived shr LEVEL_SHIFTS[level - 1]) shl FANOUT_BITS
+        "AND $BUCKET <= ${firstSibling + FANOUT - 1}"
+      }
+
+      "(SELECT IFNULL(SUM($MESSAGE_COUNT), 0) FROM $TABLE_NAME WHERE $THREAD_ID = $threadId AND $LEVEL = $level AND $BUCKET > $bucket $siblingRange)"
+    }
+
+    val finestShift = LEVEL_SHIFTS.last()
+    val finestBucketEnd = ((dateReceived shr finestShift) + 1) shl finestShift
+    val remainder = """
+      (
+        SELECT COUNT(*)
+        FROM ${MessageTable.TABLE_NAME}
+        WHERE
+          ${MessageTable.THREAD_ID} = $threadId AND
+          ${MessageTable.DATE_RECEIVED} > $dateReceived AND
+          ${MessageTable.DATE_RECEIVED} < $finestBucketEnd AND
+          ${MessageTable.STORY_TYPE} = 0 AND
+          ${MessageTable.PARENT_STORY_ID} <= 0 AND
+          ${MessageTable.SCHEDULED_DATE} = -1 AND
+          ${MessageTable.LATEST_REVISION_ID} IS NULL
+      )
+    """
+
+    return readableDatabase
+      .rawQuery("SELECT $bucketSums + $remainder", null)
+      .readToSingleInt()
+  }
+
+  /**
+   * Finds a cheap way to skip to the message at [offset] in the conversation.
+   *
+   * @return An anchor such that the message at [offset] is the [PageAnchor.skip]th newest message received before
+   *         [PageAnchor.receivedBefore], or null if there is no message at [offset].
+   */
+  fun getPageAnchor(threadId: Long, offset: Int): PageAnchor? {
+    var remaining: Long = offset.toLong()
+    var bucket: Long = -1
+
+    for (level in LEVEL_SHIFTS.indices) {
+      val where = if (level == 0) {
+        SqlUtil.buildQuery("$THREAD_ID = ? AND $LEVEL = ?", threadId, level)
+      } else {
+        val firstChild = bucket shl FANOUT_BITS
+        SqlUtil.buildQuery("$THREAD_ID = ? AND $LEVEL = ? AND $BUCKET BETWEEN ? AND ?", threadId, level, firstChild, firstChild + FANOUT - 1)
+      }
+
+      val buckets: List<BucketCount> = readableDatabase
+        .select(BUCKET, MESSAGE_COUNT)
+        .from(TABLE_NAME)
+        .where(where.where, where.whereArgs)
+        .orderBy("$BUCKET DESC")
+        .run()
+        .readToList { BucketCount(it.requireLong(BUCKET), it.requireLong(MESSAGE_COUNT)) }
+
+      var match: BucketCount? = null
+      for (candidate in buckets) {
+        if (remaining < candidate.count) {
+          match = candidate
+          break
+        }
+        remaining -= candidate.count
+      }
+
+      bucket = match?.bucket ?: return null
+    }
+
+    return PageAnchor(
+      receivedBefore = (bucket + 1) shl LEVEL_SHIFTS.last(),
+      skip = remaining.toInt()
+    )
+  }
+
+  private data class BucketCount(val bucket: Long, val count: Long)
+
+  data class PageAnchor(
+    val receivedBefore: Long,
+    val skip: Int
+  )
+}
@@ -79,6 +79,7 @@ import org.thoughtcrime.securesms.database.SignalDatabase.Companion.groupReceipt
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.groups
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.mentions
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.messageLog
+import org.thoughtcrime.securesms.database.SignalDatabase.Companion.messagePositions
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.messages
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.reactions
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.recipients
@@ -269,6 +270,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     private const val INDEX_THREAD_STORY_SCHEDULED_DATE_LATEST_REVISION_ID = "message_thread_story_parent_story_scheduled_date_latest_revision_id_index"
     private const val INDEX_DATE_SENT_FROM_TO_THREAD = "message_date_sent_from_to_thread_index"
     private const val INDEX_THREAD_COUNT = "message_thread_count_index"
+    const val INDEX_DATE_RECEIVED = "message_date_received_index"
 
     @JvmField
     val CREATE_INDEXS = arrayOf(
@@ -289,7 +291,9 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       "CREATE INDEX IF NOT EXISTS message_to_recipient_id_index ON $TABLE_NAME ($TO_RECIPIENT_ID)",
       "CREATE UNIQUE INDEX IF NOT EXISTS message_unique_sent_from_thread ON $TABLE_NAME ($DATE_SENT, $FROM_RECIPIENT_ID, $THREAD_ID)",
       // This index is created specifically for getting the number of messages in a thread and therefore needs to be kept in sync with that query
-      "CREATE INDEX IF NOT EXISTS $INDEX_THREAD_COUNT ON $TABLE_NAME ($THREAD_ID) WHERE $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL"
+      "CREATE INDEX IF NOT EXISTS $INDEX_THREAD_COUNT ON $TABLE_NAME ($THREAD_ID) WHERE $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL",
+      // Rows in this index are ordered by (date_received, _id), which is what search pages through when sorting by recency
+      "CREATE INDEX IF NOT EXISTS $INDEX_DATE_RECEIVED ON $TABLE_NAME ($DATE_RECEIVED)"
     )
 
     private val MMS_PROJECTION_BASE = arrayOf(
@@ -385,6 +389,12 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     private const val IS_STORY_CLAUSE = "$STORY_TYPE > 0 AND $REMOTE_DELETED = 0"
     private const val RAW_ID_WHERE = "$TABLE_NAME.$ID = ?"
 
+    /** Below this offset, skipping rows in [getConversation] is cheaper than looking up a page anchor. */
+    private const val PAGE_ANCHOR_MIN_OFFSET = 500
+
+    /** The most receipts that will be folded into a single statement by [applyReceiptBatch]. */
+    private const val RECEIPT_BATCH_SIZE = 500
+
     private val SNIPPET_QUERY =
       """
         SELECT 
@@ -410,6 +420,29 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
          ORDER BY $DATE_RECEIVED DESC LIMIT 1
        """
 
+    /** The types that [SNIPPET_QUERY] will never pick, kept in sync with it for [ThreadSummaryInfo]. */
+    private val SNIPPET_EXCLUDED_TYPES: Set<Long> = setOf(
+      MessageTypes.PROFILE_CHANGE_TYPE,
+      MessageTypes.GV1_MIGRATION_TYPE,
+      MessageTypes.CHANGE_NUMBER_TYPE,
+      MessageTypes.BOOST_REQUEST_TYPE,
+      MessageTypes.SMS_EXPORT_TYPE
+    )
+
+    /**
+     * The type portion of [buildMeaningfulMessagesQuery], for a message that is already known to be a regular (non-story, latest revision)
+     * message.
+     */
+    @JvmStatic
+    fun isMeaningfulType(type: Long): Boolean {
+      return type and MessageTypes.IGNORABLE_TYPESMASK_WHEN_COUNTING == 0L &&
+        type != MessageTypes.PROFILE_CHANGE_TYPE &&
+        type != MessageTypes.CHANGE_NUMBER_TYPE &&
+        type != MessageTypes.SMS_EXPORT_TYPE &&
+        type != MessageTypes.BOOST_REQUEST_TYPE &&
+        type and MessageTypes.GROUP_V2_LEAVE_BITS != MessageTypes.GROUP_V2_LEAVE_BITS
+    }
+
     private val IS_CALL_TYPE_CLAUSE = """(
       ($TYPE = ${MessageTypes.INCOMING_AUDIO_CALL_TYPE})
       OR
@@ -618,7 +651,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
 
     val threadId = getThreadIdForMessage(id)
     threads.update(threadId, false)
-    notifyConversationListeners(threadId)
+    ApplicationDependencies.getDatabaseObserver().notifyMessagesUpdated(threadId, listOf(id))
   }
 
   private fun updateTypeBitmask(id: Long, maskOff: Long, maskOn: Long) {
@@ -654,7 +687,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
 
     val threadId = getThreadIdForMessage(messageId)
     threads.update(threadId, true)
-    notifyConversationListeners(threadId)
+    ApplicationDependencies.getDatabaseObserver().notifyMessagesUpdated(threadId, listOf(messageId))
 
     return InsertResult(messageId, threadId)
   }
@@ -717,16 +750,12 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
           .run()
       }
 
-    val threadsUpdated: Set<Long> = results
-      .map { it.threadId }
-      .toSet()
-
     val storyRecipientsUpdated: Set<RecipientId> = results
       .filter { it.storyType.isStory }
       .mapNotNull { threads.getRecipientIdForThreadId(it.threadId) }
       .toSet()
 
-    notifyConversationListeners(threadsUpdated)
+    notifyMessagesUpdated(results)
     notifyConversationListListeners()
     ApplicationDependencies.getDatabaseObserver().notifyStoryObservers(storyRecipientsUpdated)
 
@@ -755,14 +784,16 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
           .run()
       }
 
-    val threadsUpdated = results
-      .map { it.threadId }
-      .toSet()
-
-    notifyConversationListeners(threadsUpdated)
+    notifyMessagesUpdated(results)
     return results
   }
 
+  private fun notifyMessagesUpdated(messages: List<MarkedMessageInfo>) {
+    messages
+      .groupBy({ it.threadId }, { it.messageId.id })
+      .forEach { (threadId, messageIds) -> ApplicationDependencies.getDatabaseObserver().notifyMessagesUpdated(threadId, messageIds) }
+  }
+
   fun insertCallLog(recipientId: RecipientId, type: Long, timestamp: Long, outgoing: Boolean): InsertResult {
     val unread = MessageTypes.isMissedAudioCall(type) || MessageTypes.isMissedVideoCall(type)
     val recipient = Recipient.resolved(recipientId)
@@ -813,7 +844,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
 
     threads.update(threadId, true)
 
-    notifyConversationListeners(threadId)
+    ApplicationDependencies.getDatabaseObserver().notifyMessagesUpdated(threadId, listOf(messageId))
     ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(MessageId(messageId))
   }
 
@@ -983,6 +1014,11 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
 
       reactions.moveReactionsToNewMessage(newMessageId = messageId, previousId = targetMessage.id)
 
+      if (FeatureFlags.incrementalThreadSummaries()) {
+        // The thread was summarized before the original was marked as revised, which left the original counted alongside its revision
+        threads.update(targetMessage.threadId, false)
+      }
+
       notifyConversationListeners(targetMessage.threadId)
     }
 
@@ -1710,6 +1746,32 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     return SqlUtil.buildQuery(query, threadId)
   }
 
+  /**
+   * Reads just the columns that determine how a message contributes to its thread's summary, or null if the message doesn't exist.
+   */
+  fun getThreadSummaryInfo(messageId: Long): ThreadSummaryInfo? {
+    return readableDatabase
+      .select(ID, THREAD_ID, TYPE, DATE_RECEIVED, READ, MENTIONS_SELF, STORY_TYPE, PARENT_STORY_ID, SCHEDULED_DATE, LATEST_REVISION_ID, ORIGINAL_MESSAGE_ID)
+      .from(TABLE_NAME)
+      .where("$ID = ?", messageId)
+      .run()
+      .readToSingleObject { cursor ->
+        ThreadSummaryInfo(
+          id = cursor.requireLong(ID),
+          threadId = cursor.requireLong(THREAD_ID),
+          type = cursor.requireLong(TYPE),
+          dateReceived = cursor.requireLong(DATE_RECEIVED),
+          read = cursor.requireBoolean(READ),
+          mentionsSelf = cursor.requireBoolean(MENTIONS_SELF),
+          storyType = cursor.requireInt(STORY_TYPE),
+          parentStoryId = cursor.requireLong(PARENT_STORY_ID),
+          scheduledDate = cursor.requireLong(SCHEDULED_DATE),
+          latestRevisionId = cursor.requireLongOrNull(LATEST_REVISION_ID),
+          originalMessageId = cursor.requireLongOrNull(ORIGINAL_MESSAGE_ID)
+        )
+      }
+  }
+
   fun setNetworkFailures(messageId: Long, failures: Set<NetworkFailure?>?) {
     try {
       setDocument(databaseHelper.signalWritableDatabase, messageId, NETWORK_FAILURES, NetworkFailureSet(failures))
@@ -2210,6 +2272,19 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       }
   }
 
+  /**
+   * The results of [getUnreadCount] and [getUnreadMentionCount] right after everything received up to and including [dateReceived] has been
+   * marked read, but only having to look at the messages received after it.
+   */
+  fun getUnreadCountsAfter(threadId: Long, dateReceived: Long): UnreadCounts {
+    return readableDatabase
+      .select("COUNT(*)", "SUM($MENTIONS_SELF)")
+      .from("$TABLE_NAME INDEXED BY $INDEX_THREAD_STORY_SCHEDULED_DATE_LATEST_REVISION_ID")
+      .where("$THREAD_ID = ? AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $LATEST_REVISION_ID IS NULL AND $READ = 0 AND $DATE_RECEIVED > ?", threadId, dateReceived)
+      .run()
+      .readToSingleObject { cursor -> UnreadCounts(cursor.getInt(0), cursor.getInt(1)) } ?: UnreadCounts(0, 0)
+  }
+
   fun getUnreadMentionCount(threadId: Long): Int {
     return readableDatabase
       .count()
@@ -2538,13 +2613,22 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     val isNotStoryGroupReply = retrieved.parentStoryId == null || !retrieved.parentStoryId.isGroupReply()
 
     if (!MessageTypes.isPaymentsActivated(type) && !MessageTypes.isPaymentsRequestToActivate(type) && !MessageTypes.isExpirationTimerUpdate(type) && !retrieved.storyType.isStory && isNotStoryGroupReply && !silent) {
-      val incrementUnreadMentions = retrieved.mentions.isNotEmpty() && retrieved.mentions.any { it.recipientId == Recipient.self().id }
-      threads.incrementUnread(threadId, 1, if (incrementUnreadMentions) 1 else 0)
-      ThreadUpdateJob.enqueue(threadId)
+      if (FeatureFlags.incrementalThreadSummaries()) {
+        // The counts were already brought up to date along with the rest of the thread, so this only marks the thread as unread
+        threads.incrementUnread(threadId, 0, 0)
+      } else {
+        val incrementUnreadMentions = retrieved.mentions.isNotEmpty() && retrieved.mentions.any { it.recipientId == Recipient.self().id }
+        threads.incrementUnread(threadId, 1, if (incrementUnreadMentions) 1 else 0)
+        ThreadUpdateJob.enqueue(threadId)
+      }
     }
 
     if (notifyObservers) {
-      notifyConversationListeners(threadId)
+      if (!retrieved.storyType.isStory && retrieved.parentStoryId == null && editedMessage == null) {
+        ApplicationDependencies.getDatabaseObserver().notifyMessagesInserted(threadId, listOf(messageId))
+      } else {
+        notifyConversationListeners(threadId)
+      }
     }
 
     if (retrieved.storyType.isStory) {
@@ -2657,7 +2741,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
 
     if (updated) {
       ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(MessageId(messageId))
-      notifyConversationListeners(threadId)
+      ApplicationDependencies.getDatabaseObserver().notifyMessagesUpdated(threadId, listOf(messageId))
     }
   }
 
@@ -3022,7 +3106,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
 
     if (updateThread) {
       threads.setLastScrolled(contentValuesThreadId, 0)
-      threads.update(threadId, unarchive)
+      threads.updateForInsertedMessage(threadId, messageId, unarchive)
     }
 
     return kotlin.Pair(messageId, insertedAttachments)
@@ -3099,6 +3183,8 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   private fun deleteMessage(messageId: Long, threadId: Long, notify: Boolean): Boolean {
     Log.d(TAG, "deleteMessage($messageId)")
 
+    val summaryInfo: ThreadSummaryInfo? = if (FeatureFlags.incrementalThreadSummaries()) getThreadSummaryInfo(messageId) else null
+
     attachments.deleteAttachmentsForMessage(messageId)
     groupReceipts.deleteRowsForMessage(messageId)
     mentions.deleteMentionsForMessage(messageId)
@@ -3110,10 +3196,10 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
 
     calls.updateCallEventDeletionTimestamps()
     threads.setLastScrolled(threadId, 0)
-    val threadDeleted = threads.update(threadId, false)
+    val threadDeleted = threads.updateForDeletedMessage(threadId, summaryInfo)
 
     if (notify) {
-      notifyConversationListeners(threadId)
+      ApplicationDependencies.getDatabaseObserver().notifyMessagesDeleted(threadId, listOf(messageId))
       notifyStickerListeners()
       notifyStickerPackListeners()
       OptimizeMessageSearchIndexJob.enqueue()
@@ -3850,12 +3936,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       return -1
     }
 
-    return readableDatabase
-      .select("COUNT(*)")
-      .from(TABLE_NAME)
-      .where("$THREAD_ID = $threadId AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL AND $DATE_RECEIVED > $targetMessageDateReceived")
-      .run()
-      .readToSingleInt()
+    return getConversationCountReceivedAfter(threadId, targetMessageDateReceived)
   }
 
   fun getMessagePositionInConversation(threadId: Long, receivedTimestamp: Long, authorId: RecipientId): Int {
@@ -3868,12 +3949,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       return -1
     }
 
-    return readableDatabase
-      .select("COUNT(*)")
-      .from(TABLE_NAME)
-      .where("$THREAD_ID = $threadId AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL AND $DATE_RECEIVED > $receivedTimestamp")
-      .run()
-      .readToSingleInt(-1)
+    return getConversationCountReceivedAfter(threadId, receivedTimestamp)
   }
 
   fun getMessagePositionInConversation(threadId: Long, receivedTimestamp: Long): Int {
@@ -3891,6 +3967,10 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
    * @param groupStoryId Ignored if passed value is <= 0
    */
   fun getMessagePositionInConversation(threadId: Long, groupStoryId: Long, receivedTimestamp: Long): Int {
+    if (groupStoryId <= 0) {
+      return getConversationCountReceivedAfter(threadId, receivedTimestamp)
+    }
+
     val order: String
     val selection: String
 
@@ -3941,10 +4021,21 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
   }
 
   fun getMessagePositionOnOrAfterTimestamp(threadId: Long, timestamp: Long): Int {
+    return getConversationCountReceivedAfter(threadId, timestamp - 1)
+  }
+
+  /**
+   * @return The number of messages in the conversation (as returned by [getConversation]) that were received after [dateReceived].
+   */
+  private fun getConversationCountReceivedAfter(threadId: Long, dateReceived: Long): Int {
+    if (FeatureFlags.messagePositionIndex()) {
+      return messagePositions.getCountReceivedAfter(threadId, dateReceived)
+    }
+
     return readableDatabase
       .select("COUNT(*)")
       .from(TABLE_NAME)
-      .where("$THREAD_ID = $threadId AND $DATE_RECEIVED >= $timestamp AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL")
+      .where("$THREAD_ID = $threadId AND $STORY_TYPE = 0 AND $PARENT_STORY_ID <= 0 AND $SCHEDULED_DATE = -1 AND $LATEST_REVISION_ID IS NULL AND $DATE_RECEIVED > $dateReceived")
       .run()
       .readToSingleInt()
   }
@@ -4070,10 +4161,6 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     return incrementReceiptCounts(targetTimestamps, receiptAuthor, receiptSentTimestamp, ReceiptType.READ)
   }
 
-  fun incrementReadReceiptCount(targetTimestamps: Long, receiptAuthor: RecipientId, receiptSentTimestamp: Long): Boolean {
-    return incrementReceiptCount(targetTimestamps, receiptAuthor, receiptSentTimestamp, ReceiptType.READ)
-  }
-
   /**
    * @return A list of ID's that were not updated.
    */
@@ -4085,36 +4172,75 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     return incrementReceiptCounts(targetTimestamps, receiptAuthor, receiptSentTimestamp, ReceiptType.VIEWED, MessageQualifier.NORMAL)
   }
 
-  fun incrementViewedReceiptCount(targetTimestamp: Long, receiptAuthor: RecipientId, receiptSentTimestamp: Long): Boolean {
-    return incrementReceiptCount(targetTimestamp, receiptAuthor, receiptSentTimestamp, ReceiptType.VIEWED)
+  fun incrementViewedStoryReceiptCounts(targetTimestamps: List<Long>, receiptAuthor: RecipientId, receiptSentTimestamp: Long): Set<Long> {
+    val receipts: List<MessageReceipt> = targetTimestamps.map { MessageReceipt(it, receiptAuthor, receiptSentTimestamp, ReceiptType.VIEWED, MessageQualifier.STORY) }
+    val result: ReceiptBatchResult = writableDatabase.withinTransaction { applyReceiptBatch(receipts) }
+
+    for (update in result.updates) {
+      ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(update.messageId)
+      ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(setOf(update.threadId))
+    }
+
+    if (result.updates.isNotEmpty()) {
+      notifyConversationListListeners()
+    }
+
+    return result.missingTargetTimestamps()
   }
 
-  fun incrementViewedStoryReceiptCounts(targetTimestamps: List<Long>, receiptAuthor: RecipientId, receiptSentTimestamp: Long): Set<Long> {
-    val messageUpdates: MutableSet<MessageReceiptUpdate> = HashSet()
-    val unhandled: MutableSet<Long> = HashSet()
+  /**
+   * Marks a message we sent to ourselves as delivered and read (and optionally viewed) in a single batch.
+   *
+   * @return Whether or not some thread was updated.
+   */
+  @JvmOverloads
+  fun incrementDeliveryAndReadReceiptCount(targetTimestamp: Long, receiptAuthor: RecipientId, receiptSentTimestamp: Long, includeViewed: Boolean = false): Boolean {
+    val types: List<ReceiptType> = if (includeViewed) {
+      listOf(ReceiptType.DELIVERY, ReceiptType.READ, ReceiptType.VIEWED)
+    } else {
+      listOf(ReceiptType.DELIVERY, ReceiptType.READ)
+    }
 
-    writableDatabase.withinTransaction {
-      for (targetTimestamp in targetTimestamps) {
-        val updates = incrementReceiptCountInternal(targetTimestamp, receiptAuthor, receiptSentTimestamp, ReceiptType.VIEWED, MessageQualifier.STORY)
+    return incrementReceiptCount(types.map { MessageReceipt(targetTimestamp, receiptAuthor, receiptSentTimestamp, it) })
+  }
 
-        if (updates.isNotEmpty()) {
-          messageUpdates += updates
-        } else {
-          unhandled += targetTimestamp
-        }
+  /**
+   * Applies a batch of receipts, which may span any number of target messages, authors and receipt types, in a single transaction and
+   * triggers the proper updates.
+   *
+   * @return The consolidated set of updated messages, along with the receipts that couldn't be matched to any message.
+   */
+  fun incrementReceiptCounts(receipts: List<MessageReceipt>): ReceiptBatchResult {
+    if (receipts.isEmpty()) {
+      return ReceiptBatchResult(emptySet(), emptyList())
+    }
+
+    val result: ReceiptBatchResult = writableDatabase.withinTransaction {
+      val batchResult = applyReceiptBatch(receipts)
+
+      for (threadId in batchResult.updates.filter { it.shouldUpdateSnippet }.map { it.threadId }.toSet()) {
+        threads.updateSilently(threadId, false)
       }
+
+      batchResult
     }
 
-    for (update in messageUpdates) {
+    val hasStoryReceipts = receipts.any { it.qualifier == MessageQualifier.STORY }
+
+    for (update in result.updates) {
       ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(update.messageId)
       ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(setOf(update.threadId))
+
+      if (hasStoryReceipts && update.threadId > 0) {
+        ApplicationDependencies.getDatabaseObserver().notifyStoryObservers(threads.getRecipientIdForThreadId(update.threadId)!!)
+      }
     }
 
-    if (messageUpdates.isNotEmpty()) {
+    if (result.updates.isNotEmpty()) {
       notifyConversationListListeners()
     }
 
-    return unhandled
+    return result
   }
 
   /**
@@ -4123,14 +4249,23 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
    * @return Whether or not some thread was updated.
    */
   private fun incrementReceiptCount(targetTimestamp: Long, receiptAuthor: RecipientId, receiptSentTimestamp: Long, receiptType: ReceiptType, messageQualifier: MessageQualifier = MessageQualifier.ALL): Boolean {
-    var messageUpdates: Set<MessageReceiptUpdate> = HashSet()
+    return incrementReceiptCount(listOf(MessageReceipt(targetTimestamp, receiptAuthor, receiptSentTimestamp, receiptType, messageQualifier)))
+  }
 
-    writableDatabase.withinTransaction {
-      messageUpdates = incrementReceiptCountInternal(targetTimestamp, receiptAuthor, receiptSentTimestamp, receiptType, messageQualifier)
+  /**
+   * Wraps the receipts for a single message in a transaction and triggers the proper updates.
+   *
+   * @return Whether or not some thread was updated.
+   */
+  private fun incrementReceiptCount(receipts: List<MessageReceipt>): Boolean {
+    val messageUpdates: Set<MessageReceiptUpdate> = writableDatabase.withinTransaction {
+      val updates = applyReceiptBatch(receipts).updates
 
-      for (messageUpdate in messageUpdates) {
-        threads.update(messageUpdate.threadId, false)
+      for (threadId in updates.map { it.threadId }.toSet()) {
+        threads.update(threadId, false)
       }
+
+      updates
     }
 
     for (threadUpdate in messageUpdates) {
@@ -4146,104 +4281,112 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
    * @return All of the target timestamps that couldn't be found in the table.
    */
   private fun incrementReceiptCounts(targetTimestamps: List<Long>, receiptAuthor: RecipientId, receiptSentTimestamp: Long, receiptType: ReceiptType, messageQualifier: MessageQualifier = MessageQualifier.ALL): Set<Long> {
-    val messageUpdates: MutableSet<MessageReceiptUpdate> = HashSet()
-    val missingTargetTimestamps: MutableSet<Long> = HashSet()
+    val receipts: List<MessageReceipt> = targetTimestamps.map { MessageReceipt(it, receiptAuthor, receiptSentTimestamp, receiptType, messageQualifier) }
+    return incrementReceiptCounts(receipts).missingTargetTimestamps()
+  }
 
-    writableDatabase.withinTransaction {
-      for (targetTimestamp in targetTimestamps) {
-        val updates: Set<MessageReceiptUpdate> = incrementReceiptCountInternal(targetTimestamp, receiptAuthor, receiptSentTimestamp, receiptType, messageQualifier)
-        if (updates.isNotEmpty()) {
-          messageUpdates += updates
-        } else {
-          missingTargetTimestamps += targetTimestamp
-        }
-      }
+  /**
+   * Applies a batch of receipts with one set-based UPDATE per receipt type (and per [RECEIPT_BATCH_SIZE] receipts), followed by a single
+   * bulk update of the group receipts. Must be called within a transaction.
+   *
+   * The receipts are joined against the message table through a VALUES table, and each matched message has its count bumped by the
+   * number of receipts that matched it, exactly as if they had been applied one at a time.
+   */
+  private fun applyReceiptBatch(receipts: List<MessageReceipt>): ReceiptBatchResult {
+    val messageUpdates: MutableSet<MessageReceiptUpdate> = HashSet()
+    val groupReceiptUpdates: LinkedHashMap<GroupReceiptKey, GroupReceiptTable.ReceiptUpdate> = LinkedHashMap()
+    val matched: MutableSet<MessageReceipt> = HashSet()
 
-      for (update in messageUpdates) {
-        if (update.shouldUpdateSnippet) {
-          threads.updateSilently(update.threadId, false)
-        }
-      }
+    fun addGroupReceiptUpdate(receipt: MessageReceipt, messageId: Long) {
+      groupReceiptUpdates.putIfAbsent(
+        GroupReceiptKey(messageId, receipt.author, receipt.type),
+        GroupReceiptTable.ReceiptUpdate(receipt.author, messageId, receipt.type.groupStatus, receipt.receiptSentTimestamp)
+      )
     }
 
-    for (update in messageUpdates) {
-      ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(update.messageId)
-      ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(setOf(update.threadId))
+    val isGroupClause = """
+      EXISTS (
+        SELECT 1 
+        FROM ${RecipientTable.TABLE_NAME} 
+        WHERE 
+          ${RecipientTable.TABLE_NAME}.${RecipientTable.ID} = $TABLE_NAME.$TO_RECIPIENT_ID AND 
+          ${RecipientTable.TABLE_NAME}.${RecipientTable.TYPE} != ${RecipientTable.RecipientType.INDIVIDUAL.id}
+      )
+    """
 
-      if (messageQualifier == MessageQualifier.STORY) {
-        ApplicationDependencies.getDatabaseObserver().notifyStoryObservers(threads.getRecipientIdForThreadId(update.threadId)!!)
-      }
-    }
+    val matchesReceipt = "receipt_batch.target_timestamp = $TABLE_NAME.$DATE_SENT AND (receipt_batch.author = $TABLE_NAME.$TO_RECIPIENT_ID OR $isGroupClause)"
 
-    if (messageUpdates.isNotEmpty()) {
-      notifyConversationListListeners()
-    }
+    for ((key, typeReceipts) in receipts.groupBy { it.type to it.qualifier }) {
+      val (receiptType, messageQualifier) = key
 
-    return missingTargetTimestamps
-  }
+      val qualifierWhere: String = when (messageQualifier) {
+        MessageQualifier.NORMAL -> " AND NOT ($IS_STORY_CLAUSE)"
+        MessageQualifier.STORY -> " AND $IS_STORY_CLAUSE"
+        MessageQualifier.ALL -> ""
+      }
 
-  private fun incrementReceiptCountInternal(targetTimestamp: Long, receiptAuthor: RecipientId, receiptSentTimestamp: Long, receiptType: ReceiptType, messageQualifier: MessageQualifier): Set<MessageReceiptUpdate> {
-    val messageUpdates: MutableSet<MessageReceiptUpdate> = HashSet()
+      for (batch in typeReceipts.chunked(RECEIPT_BATCH_SIZE)) {
+        val receiptsByTimestamp: Map<Long, List<MessageReceipt>> = batch.groupBy { it.targetTimestamp }
+        val values: String = batch.joinToString(", ") { "(${it.targetTimestamp}, ${it.author.toLong()}, ${it.receiptSentTimestamp})" }
 
-    val qualifierWhere: String = when (messageQualifier) {
-      MessageQualifier.NORMAL -> " AND NOT ($IS_STORY_CLAUSE)"
-      MessageQualifier.STORY -> " AND $IS_STORY_CLAUSE"
-      MessageQualifier.ALL -> ""
+        writableDatabase.rawQuery(
+          """
+            WITH receipt_batch(target_timestamp, author, sent_timestamp) AS (VALUES $values)
+            UPDATE $TABLE_NAME
+            SET
+              ${receiptType.columnName} = ${receiptType.columnName} + (SELECT COUNT(*) FROM receipt_batch WHERE $matchesReceipt),
+              $RECEIPT_TIMESTAMP = CASE 
+                WHEN ${receiptType.columnName} = 0 THEN MAX($RECEIPT_TIMESTAMP, (SELECT MIN(receipt_batch.sent_timestamp) FROM receipt_batch WHERE $matchesReceipt)) 
+                ELSE $RECEIPT_TIMESTAMP 
+              END 
+            WHERE
+              $DATE_SENT IN (SELECT target_timestamp FROM receipt_batch) AND
+              $FROM_RECIPIENT_ID = ? AND
+              EXISTS (SELECT 1 FROM receipt_batch WHERE $matchesReceipt)
+              $qualifierWhere
+            RETURNING $ID, $THREAD_ID, $STORY_TYPE, $DATE_SENT, $TO_RECIPIENT_ID, ${receiptType.columnName}
+          """,
+          buildArgs(Recipient.self().id)
+        ).forEach { cursor ->
+          val messageId = cursor.requireLong(ID)
+          val threadId = cursor.requireLong(THREAD_ID)
+          val storyType = StoryType.fromCode(cursor.requireInt(STORY_TYPE))
+          val toRecipientId = cursor.requireLong(TO_RECIPIENT_ID)
+          val receiptCount = cursor.requireInt(receiptType.columnName)
+
+          // Authors are always individuals, so if one of them is the recipient, this is a 1:1 message and only that author matched.
+          // Otherwise the message must have been sent to a group, in which case every author with this timestamp matched.
+          val candidates: List<MessageReceipt> = receiptsByTimestamp[cursor.requireLong(DATE_SENT)] ?: emptyList()
+          val direct: List<MessageReceipt> = candidates.filter { it.author.toLong() == toRecipientId }
+          val messageReceipts: List<MessageReceipt> = direct.ifEmpty { candidates }
+
+          matched += messageReceipts
+          messageReceipts.forEach { addGroupReceiptUpdate(it, messageId) }
+          messageUpdates += MessageReceiptUpdate(threadId, MessageId(messageId), receiptType != ReceiptType.VIEWED && receiptCount - messageReceipts.size == 0)
+
+          if (storyType != StoryType.NONE) {
+            for (receipt in messageReceipts) {
+              for (storyMessageId in storySends.getStoryMessagesFor(receipt.author, receipt.targetTimestamp)) {
+                addGroupReceiptUpdate(receipt, storyMessageId.id)
+                messageUpdates += MessageReceiptUpdate(-1, storyMessageId, false)
+              }
+            }
+          }
+        }
+      }
     }
 
-    var found = false
-    var hasStory = false
-    writableDatabase.rawQuery(
-      """
-        UPDATE $TABLE_NAME
-        SET
-          ${receiptType.columnName} = ${receiptType.columnName} + 1,
-          $RECEIPT_TIMESTAMP = CASE 
-            WHEN ${receiptType.columnName} = 0 THEN MAX($RECEIPT_TIMESTAMP, $receiptSentTimestamp) 
-            ELSE $RECEIPT_TIMESTAMP 
-          END 
-        WHERE
-          $DATE_SENT = $targetTimestamp AND
-          $FROM_RECIPIENT_ID = ? AND
-          (
-            $TO_RECIPIENT_ID = ? OR 
-            EXISTS (
-              SELECT 1 
-              FROM ${RecipientTable.TABLE_NAME} 
-              WHERE 
-                ${RecipientTable.TABLE_NAME}.${RecipientTable.ID} = $TO_RECIPIENT_ID AND 
-                ${RecipientTable.TABLE_NAME}.${RecipientTable.TYPE} != ${RecipientTable.RecipientType.INDIVIDUAL.id}
-            )
-          )
-          $qualifierWhere
-        RETURNING $ID, $THREAD_ID, $STORY_TYPE, ${receiptType.columnName}
-      """,
-      buildArgs(Recipient.self().id, receiptAuthor)
-    ).forEach { cursor ->
-      val messageId = cursor.requireLong(ID)
-      val threadId = cursor.requireLong(THREAD_ID)
-      val storyType = StoryType.fromCode(cursor.requireInt(STORY_TYPE))
-      val receiptCount = cursor.requireInt(receiptType.columnName)
-
-      groupReceipts.update(receiptAuthor, messageId, receiptType.groupStatus, receiptSentTimestamp)
-      messageUpdates += MessageReceiptUpdate(threadId, MessageId(messageId), receiptType != ReceiptType.VIEWED && receiptCount == 1)
+    groupReceipts.update(groupReceiptUpdates.values)
 
-      found = true
-      hasStory = storyType != StoryType.NONE
-    }
+    val missing: List<MessageReceipt> = receipts.filterNot { it in matched }
 
-    if (!found && receiptType == ReceiptType.DELIVERY) {
-      earlyDeliveryReceiptCache.increment(targetTimestamp, receiptAuthor, receiptSentTimestamp)
-    }
-
-    if (hasStory) {
-      for (messageId in storySends.getStoryMessagesFor(receiptAuthor, targetTimestamp)) {
-        groupReceipts.update(receiptAuthor, messageId.id, receiptType.groupStatus, receiptSentTimestamp)
-        messageUpdates += MessageReceiptUpdate(-1, messageId, false)
+    for (receipt in missing) {
+      if (receipt.type == ReceiptType.DELIVERY) {
+        earlyDeliveryReceiptCache.increment(receipt.targetTimestamp, receipt.author, receipt.receiptSentTimestamp)
       }
     }
 
-    return messageUpdates
+    return ReceiptBatchResult(messageUpdates, missing)
   }
 
   /**
@@ -4382,6 +4525,20 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
    * This does *not* have attachments in it.
    */
   fun getConversation(threadId: Long, offset: Long, limit: Long): Cursor {
+    if (limit > 0 && offset >= PAGE_ANCHOR_MIN_OFFSET && FeatureFlags.messagePositionIndex()) {
+      val anchor: MessagePositionTable.PageAnchor? = messagePositions.getPageAnchor(threadId, offset.toInt())
+
+      if (anchor != null) {
+        return readableDatabase
+          .select(*MMS_PROJECTION)
+          .from("$TABLE_NAME INDEXED BY $INDEX_THREAD_STORY_SCHEDULED_DATE_LATEST_REVISION_ID")
+          .where("$THREAD_ID = ? AND $DATE_RECEIVED < ? AND $STORY_TYPE = ? AND $PARENT_STORY_ID <= ? AND $SCHEDULED_DATE = ? AND $LATEST_REVISION_ID IS NULL", threadId, anchor.receivedBefore, 0, 0, -1)
+          .orderBy("$DATE_RECEIVED DESC")
+          .limit("${anchor.skip}, $limit")
+          .run()
+      }
+    }
+
     val limitStr: String = if (limit > 0 || offset > 0) "$offset, $limit" else ""
 
     return readableDatabase
@@ -4716,7 +4873,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     return type
   }
 
-  protected enum class ReceiptType(val columnName: String, val groupStatus: Int) {
+  enum class ReceiptType(val columnName: String, val groupStatus: Int) {
     READ(READ_RECEIPT_COUNT, GroupReceiptTable.STATUS_READ),
     DELIVERY(DELIVERY_RECEIPT_COUNT, GroupReceiptTable.STATUS_DELIVERED),
     VIEWED(VIEWED_RECEIPT_COUNT, GroupReceiptTable.STATUS_VIEWED)
@@ -4742,6 +4899,50 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     val storyType: StoryType
   )
 
+  /**
+   * See [getThreadSummaryInfo]. Each property mirrors the query that [ThreadTable.update] uses for the corresponding part of the summary.
+   */
+  data class ThreadSummaryInfo(
+    val id: Long,
+    val threadId: Long,
+    val type: Long,
+    val dateReceived: Long,
+    val read: Boolean,
+    val mentionsSelf: Boolean,
+    val storyType: Int,
+    val parentStoryId: Long,
+    val scheduledDate: Long,
+    val latestRevisionId: Long?,
+    val originalMessageId: Long?
+  ) {
+    private val isConversationMessage: Boolean
+      get() = storyType == 0 && parentStoryId <= 0 && latestRevisionId == null
+
+    /** Whether [SNIPPET_QUERY] could pick this message. */
+    val isSnippetCandidate: Boolean
+      get() = isConversationMessage &&
+        scheduledDate == -1L &&
+        type and MessageTypes.GROUP_V2_LEAVE_BITS != MessageTypes.GROUP_V2_LEAVE_BITS &&
+        type !in SNIPPET_EXCLUDED_TYPES
+
+    /** Whether [hasMeaningfulMessage] would count this message. */
+    val isMeaningful: Boolean
+      get() = isConversationMessage && isMeaningfulType(type)
+
+    /** Whether [getUnreadCount] would count this message. */
+    val isUnread: Boolean
+      get() = isConversationMessage && !read
+
+    /** Whether [getUnreadMentionCount] would count this message. */
+    val isUnreadMention: Boolean
+      get() = isUnread && mentionsSelf
+  }
+
+  data class UnreadCounts(
+    val unread: Int,
+    val unreadSelfMentions: Int
+  )
+
   data class InsertResult(
     val messageId: Long,
     val threadId: Long,
@@ -4761,6 +4962,32 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
     val shouldUpdateSnippet: Boolean
   )
 
+  /**
+   * A single receipt from [author] for the message we sent at [targetTimestamp].
+   */
+  data class MessageReceipt(
+    val targetTimestamp: Long,
+    val author: RecipientId,
+    val receiptSentTimestamp: Long,
+    val type: ReceiptType,
+    val qualifier: MessageQualifier = MessageQualifier.ALL
+  )
+
+  data class ReceiptBatchResult(
+    val updates: Set<MessageReceiptUpdate>,
+    val missing: List<MessageReceipt>
+  ) {
+    fun missingTargetTimestamps(): Set<Long> {
+      return missing.map { it.targetTimestamp }.toSet()
+    }
+  }
+
+  private data class GroupReceiptKey(
+    val messageId: Long,
+    val author: RecipientId,
+    val type: ReceiptType
+  )
+
   data class ReportSpamData(
     val recipientId: RecipientId,
     val serverGuid: String,
@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.database
+
+import org.thoughtcrime.securesms.database.model.RecipientRecord
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+
+/**
+ * The reads that [RecipientTable.processPnpTupleToChangeSet] needs in order to decide what to do with a tuple.
+ */
+interface PnpLookup {
+  fun getByE164(e164: String): RecipientId?
+  fun getByPni(pni: PNI): RecipientId?
+  fun getByAci(aci: ACI): RecipientId?
+  fun getRecord(id: RecipientId): RecipientRecord
+}
+
+/**
+ * An in-memory copy of every recipient that a batch of (e164, pni, aci) tuples could match, loaded with a handful of bulk queries so that
+ * change sets for the whole batch can be computed without going back to the database for each tuple.
+ *
+ * Identifiers that were loaded but didn't match anything are remembered as misses. Anything that was never loaded, or has since been
+ * forgotten, falls through to the database.
+ *
+ * Applying a change set can move identifiers between rows, merge rows away, or insert new ones, so after writing one the caller must
+ * [forget] the tuple and the rows it touched. From then on, lookups for them go to the database again and see the write.
+ */
+class PnpSnapshot private constructor(private val recipients: RecipientTable) : PnpLookup {
+
+  private val byE164: MutableMap<String, RecipientId?> = HashMap()
+  private val byPni: MutableMap<PNI, RecipientId?> = HashMap()
+  private val byAci: MutableMap<ACI, RecipientId?> = HashMap()
+  private val records: MutableMap<RecipientId, RecipientRecord> = HashMap()
+
+  companion object {
+    /**
+     * Loads every recipient that matches any of the provided identifiers.
+     */
+    fun load(recipients: RecipientTable, e164s: Collection<String>, pnis: Collection<PNI>, acis: Collection<ACI>): PnpSnapshot {
+      return PnpSnapshot(recipients).apply {
+        val foundE164s = recipients.getByE164s(e164s)
+        val foundPnis = recipients.getByPnis(pnis)
+        val foundAcis = recipients.getByAcis(acis)
+
+        e164s.forEach { byE164[it] = foundE164s[it] }
+        pnis.forEach { byPni[it] = foundPnis[it] }
+        acis.forEach { byAci[it] = foundAcis[it] }
+
+        records += recipients.getRecords(foundE164s.values + foundPnis.values + foundAcis.values)
+      }
+    }
+  }
+
+  override fun getByE164(e164: String): RecipientId? {
+    return if (byE164.containsKey(e164)) byE164[e164] else recipients.getByE164(e164).orElse(null)
+  }
+
+  override fun getByPni(pni: PNI): RecipientId? {
+    return if (byPni.containsKey(pni)) byPni[pni] else recipients.getByPni(pni).orElse(null)
+  }
+
+  override fun getByAci(aci: ACI): RecipientId? {
+    return if (byAci.containsKey(aci)) byAci[aci] else recipients.getByAci(aci).orElse(null)
+  }
+
+  override fun getRecord(id: RecipientId): RecipientRecord {
+    return records[id] ?: recipients.getRecord(id)
+  }
+
+  /**
+   * Forgets the identifiers of a tuple, along with everything we know about the provided rows, including which identifiers point to them.
+   */
+  fun forget(e164: String?, pni: PNI?, aci: ACI?, ids: Collection<RecipientId>) {
+    e164?.let { byE164.remove(it) }
+    pni?.let { byPni.remove(it) }
+    aci?.let { byAci.remove(it) }
+
+    for (id in ids) {
+      val record: RecipientRecord? = records.remove(id)
+      record?.e164?.let { byE164.remove(it) }
+      record?.pni?.let { byPni.remove(it) }
+      record?.aci?.let { byAci.remove(it) }
+    }
+  }
+}
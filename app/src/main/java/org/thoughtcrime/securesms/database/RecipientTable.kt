@@ -14,6 +14,7 @@ import org.signal.core.util.Base64
 import org.signal.core.util.Bitmask
 import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
+import org.signal.core.util.Stopwatch
 import org.signal.core.util.delete
 import org.signal.core.util.exists
 import org.signal.core.util.logging.Log
@@ -412,6 +413,37 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     return getByColumn(PNI_COLUMN, pni.toString())
   }
 
+  /**
+   * Bulk version of [getByAci]. ACIs that don't belong to any recipient are left out of the result.
+   */
+  fun getByAcis(acis: Collection<ACI>): Map<ACI, RecipientId> {
+    val acisByString: Map<String, ACI> = acis.associateBy { it.toString() }
+    return getByColumnValues(ACI_COLUMN, acisByString.keys).mapKeys { acisByString.getValue(it.key) }
+  }
+
+  /**
+   * Bulk version of [getByPni]. PNIs that don't belong to any recipient are left out of the result.
+   */
+  fun getByPnis(pnis: Collection<PNI>): Map<PNI, RecipientId> {
+    val pnisByString: Map<String, PNI> = pnis.associateBy { it.toString() }
+    return getByColumnValues(PNI_COLUMN, pnisByString.keys).mapKeys { pnisByString.getValue(it.key) }
+  }
+
+  /**
+   * Bulk version of [getByE164]. Numbers that don't belong to any recipient are left out of the result.
+   */
+  fun getByE164s(e164s: Collection<String>): Map<String, RecipientId> {
+    return getByColumnValues(E164, e164s)
+  }
+
+  /**
+   * Bulk version of [getByGroupId]. Groups that don't have a recipient are left out of the result.
+   */
+  fun getByGroupIds(groupIds: Collection<GroupId>): Map<GroupId, RecipientId> {
+    val groupIdsByString: Map<String, GroupId> = groupIds.associateBy { it.toString() }
+    return getByColumnValues(GROUP_ID, groupIdsByString.keys).mapKeys { groupIdsByString.getValue(it.key) }
+  }
+
   fun getByUsername(username: String): Optional<RecipientId> {
     return getByColumn(USERNAME, username)
   }
@@ -701,6 +733,25 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     }
   }
 
+  /**
+   * Bulk version of [getRecord]. Ids that can't be found, including ones that have been remapped, are left out of the result rather than
+   * throwing, so callers should fall back to [getRecord] for those.
+   */
+  fun getRecords(ids: Collection<RecipientId>): Map<RecipientId, RecipientRecord> {
+    val records: MutableMap<RecipientId, RecipientRecord> = HashMap(ids.size)
+
+    for (query in SqlUtil.buildCollectionQuery(ID, ids.map { it.serialize() })) {
+      readableDatabase.query(TABLE_NAME, RECIPIENT_PROJECTION, query.where, query.whereArgs, null, null, null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val record = getRecord(context, cursor)
+          records[record.id] = record
+        }
+      }
+    }
+
+    return records
+  }
+
   fun getRecordForSync(id: RecipientId): RecipientRecord? {
     val query = "$TABLE_NAME.$ID = ?"
     val args = arrayOf(id.serialize())
@@ -717,6 +768,23 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     return recordForSync[0]
   }
 
+  /**
+   * Bulk version of [getRecordForSync]. Ids that don't exist are left out of the result.
+   */
+  fun getRecordsForSync(ids: Collection<RecipientId>): Map<RecipientId, RecipientRecord> {
+    return SqlUtil.buildCollectionQuery("$TABLE_NAME.$ID", ids.map { it.serialize() })
+      .flatMap { getRecordForSync(it.where, it.whereArgs) }
+      .associateBy { it.id }
+  }
+
+  /**
+   * Bulk version of [getByStorageId]. Storage ids that don't belong to any recipient are left out of the result.
+   */
+  fun getByStorageIds(storageIds: Collection<ByteArray>): List<RecipientRecord> {
+    return SqlUtil.buildCollectionQuery("$TABLE_NAME.$STORAGE_SERVICE_ID", storageIds.map { Base64.encodeWithPadding(it) })
+      .flatMap { getRecordForSync(it.where, it.whereArgs) }
+  }
+
   fun getByStorageId(storageId: ByteArray): RecipientRecord? {
     val result = getRecordForSync("$TABLE_NAME.$STORAGE_SERVICE_ID = ?", arrayOf(Base64.encodeWithPadding(storageId)))
 
@@ -2230,26 +2298,106 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
    * Processes CDSv2 results, merging recipients as necessary. Does not mark users as
    * registered.
    *
+   * This is a bulk version of running [getAndPossiblyMerge] on each CDS result, with the same outcome.
+   * Every recipient the batch could match is loaded up front into a [PnpSnapshot], so the change set for each tuple can be computed in
+   * memory. Most tuples in a CDS refresh are already up to date, and those don't touch the database at all. The rest are written one change
+   * set at a time, in order, so that each one sees the writes before it. Observers, profile fetches and storage sync are then kicked off once
+   * for the whole batch after it commits, rather than once per tuple.
+   *
    * @return A set of [RecipientId]s that were updated/inserted.
    */
   fun bulkProcessCdsResult(mapping: Map<String, CdsV2Result>): Set<RecipientId> {
+    val stopwatch = Stopwatch("bulk-cds")
     val ids: MutableSet<RecipientId> = mutableSetOf()
+    val affectedIds: MutableSet<RecipientId> = mutableSetOf()
+    val remaps: MutableList<Pair<RecipientId, RecipientId>> = mutableListOf()
+    var writes = 0
+
     val db = writableDatabase
+    var transactionSuccessful = false
 
     db.beginTransaction()
     try {
+      val snapshot = PnpSnapshot.load(
+        recipients = this,
+        e164s = mapping.keys,
+        pnis = mapping.values.map { it.pni }.toSet(),
+        acis = mapping.values.mapNotNull { it.aci }.toSet()
+      )
+      stopwatch.split("preload")
+
       for ((e164, result) in mapping) {
-        ids += getAndPossiblyMerge(aci = result.aci, pni = result.pni, e164 = e164, pniVerified = false, changeSelf = false)
+        val changeSet: PnpChangeSet = processPnpTupleToChangeSet(e164 = e164, pni = result.pni, aci = result.aci, pniVerified = false, changeSelf = false, lookup = snapshot)
+
+        if (changeSet.id is PnpIdResolver.PnpNoopId && changeSet.operations.isEmpty()) {
+          ids += changeSet.id.recipientId
+          continue
+        }
+
+        val tupleResult: ProcessPnpTupleResult = applyPnpChangeSet(changeSet, result.pni)
+        writes++
+
+        Log.i(TAG, "[bulkProcessCdsResult] (${result.aci}, <pni>, <e164>) BreadCrumbs: ${tupleResult.breadCrumbs}, Operations: ${tupleResult.operations}, RequiredInsert: ${tupleResult.requiredInsert}, FinalId: ${tupleResult.finalId}")
+
+        snapshot.forget(e164 = e164, pni = result.pni, aci = result.aci, ids = changeSet.involvedIds())
+
+        ids += tupleResult.finalId
+        affectedIds += tupleResult.affectedIds
+        tupleResult.oldIds.forEach { remaps += it to tupleResult.finalId }
       }
+      stopwatch.split("process")
 
       db.setTransactionSuccessful()
+      transactionSuccessful = true
     } finally {
       db.endTransaction()
+
+      if (transactionSuccessful) {
+        if (affectedIds.isNotEmpty()) {
+          affectedIds.forEach { ApplicationDependencies.getDatabaseObserver().notifyRecipientChanged(it) }
+          RetrieveProfileJob.enqueue(affectedIds)
+        }
+
+        for ((oldId, finalId) in remaps) {
+          Recipient.live(oldId).refresh(finalId)
+          ApplicationDependencies.getRecipientCache().remap(oldId, finalId)
+        }
+
+        if (affectedIds.isNotEmpty() || remaps.isNotEmpty()) {
+          StorageSyncHelper.scheduleSyncForDataChange()
+          RecipientId.clearCache()
+        }
+      }
     }
 
+    Log.i(TAG, "[bulkProcessCdsResult] Processed ${mapping.size} result(s), $writes of which needed changes.")
+    stopwatch.stop(TAG)
+
     return ids
   }
 
+  /**
+   * Every row that applying this change set may have written to.
+   */
+  private fun PnpChangeSet.involvedIds(): Set<RecipientId> {
+    val involved: MutableSet<RecipientId> = mutableSetOf()
+
+    if (id is PnpIdResolver.PnpNoopId) {
+      involved += id.recipientId
+    }
+
+    for (operation in operations) {
+      if (operation is PnpOperation.Merge) {
+        involved += operation.primaryId
+        involved += operation.secondaryId
+      } else {
+        involved += operation.recipientId
+      }
+    }
+
+    return involved
+  }
+
   fun bulkUpdatedRegisteredStatus(registered: Set<RecipientId>, unregistered: Collection<RecipientId>) {
     writableDatabase.withinTransaction {
       val existingRegistered: Set<RecipientId> = getRegistered()
@@ -2303,7 +2451,14 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
   @VisibleForTesting
   fun processPnpTuple(e164: String?, pni: PNI?, aci: ACI?, pniVerified: Boolean, changeSelf: Boolean = false): ProcessPnpTupleResult {
     val changeSet: PnpChangeSet = processPnpTupleToChangeSet(e164, pni, aci, pniVerified, changeSelf)
+    return applyPnpChangeSet(changeSet, pni)
+  }
 
+  /**
+   * Writes a change set produced by [processPnpTupleToChangeSet] to disk, and describes what changed.
+   * It is assumed that we are in a transaction.
+   */
+  private fun applyPnpChangeSet(changeSet: PnpChangeSet, pni: PNI?): ProcessPnpTupleResult {
     val affectedIds: MutableSet<RecipientId> = mutableSetOf()
     val oldIds: MutableSet<RecipientId> = mutableSetOf()
     var changedNumberId: RecipientId? = null
@@ -2482,15 +2637,22 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     }
   }
 
+  private val databasePnpLookup: PnpLookup = object : PnpLookup {
+    override fun getByE164(e164: String): RecipientId? = this@RecipientTable.getByE164(e164).orElse(null)
+    override fun getByPni(pni: PNI): RecipientId? = this@RecipientTable.getByPni(pni).orElse(null)
+    override fun getByAci(aci: ACI): RecipientId? = this@RecipientTable.getByAci(aci).orElse(null)
+    override fun getRecord(id: RecipientId): RecipientRecord = this@RecipientTable.getRecord(id)
+  }
+
   /**
    * Takes a tuple of (e164, pni, aci) and converts that into a list of changes that would need to be made to
    * merge that data into our database.
    *
-   * The database will be read, but not written to, during this function.
+   * The database (or [lookup], if provided) will be read, but not written to, during this function.
    * It is assumed that we are in a transaction.
    */
   @VisibleForTesting
-  fun processPnpTupleToChangeSet(e164: String?, pni: PNI?, aci: ACI?, pniVerified: Boolean, changeSelf: Boolean = false): PnpChangeSet {
+  fun processPnpTupleToChangeSet(e164: String?, pni: PNI?, aci: ACI?, pniVerified: Boolean, changeSelf: Boolean = false, lookup: PnpLookup = databasePnpLookup): PnpChangeSet {
     check(e164 != null || pni != null || aci != null) { "Must provide at least one field!" }
 
     val breadCrumbs: MutableList<String> = mutableListOf()
@@ -2499,9 +2661,9 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
       e164 = e164,
       pni = pni,
       aci = aci,
-      byE164 = e164?.let { getByE164(it).orElse(null) },
-      byPni = pni?.let { getByPni(it).orElse(null) },
-      byAci = aci?.let { getByAci(it).orElse(null) }
+      byE164 = e164?.let { lookup.getByE164(it) },
+      byPni = pni?.let { lookup.getByPni(it) },
+      byAci = aci?.let { lookup.getByAci(it) }
     )
 
     val allRequiredDbFields: MutableList<RecipientId?> = mutableListOf()
@@ -2526,7 +2688,7 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     // All ID's agree, but we need to update the database
     if (partialData.commonId != null && !allRequiredDbFieldPopulated) {
       breadCrumbs.add("CommonIdButNeedsUpdate")
-      return processNonMergePnpUpdate(e164, pni, aci, commonId = partialData.commonId, pniVerified = pniVerified, changeSelf = changeSelf, breadCrumbs = breadCrumbs)
+      return processNonMergePnpUpdate(e164, pni, aci, commonId = partialData.commonId, pniVerified = pniVerified, changeSelf = changeSelf, breadCrumbs = breadCrumbs, lookup = lookup)
     }
 
     // Nothing matches
@@ -2552,9 +2714,9 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     breadCrumbs += "NeedsMerge"
 
     val preMergeData = partialData.copy(
-      e164Record = partialData.byE164?.let { getRecord(it) },
-      pniRecord = partialData.byPni?.let { getRecord(it) },
-      aciRecord = partialData.byAci?.let { getRecord(it) }
+      e164Record = partialData.byE164?.let { lookup.getRecord(it) },
+      pniRecord = partialData.byPni?.let { lookup.getRecord(it) },
+      aciRecord = partialData.byAci?.let { lookup.getRecord(it) }
     )
 
     check(preMergeData.commonId == null)
@@ -2667,8 +2829,8 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
       (aci != null && aci == SignalStore.account().aci)
   }
 
-  private fun processNonMergePnpUpdate(e164: String?, pni: PNI?, aci: ACI?, pniVerified: Boolean, changeSelf: Boolean, commonId: RecipientId, breadCrumbs: MutableList<String>): PnpChangeSet {
-    val record: RecipientRecord = getRecord(commonId)
+  private fun processNonMergePnpUpdate(e164: String?, pni: PNI?, aci: ACI?, pniVerified: Boolean, changeSelf: Boolean, commonId: RecipientId, breadCrumbs: MutableList<String>, lookup: PnpLookup): PnpChangeSet {
+    val record: RecipientRecord = lookup.getRecord(commonId)
 
     val operations: LinkedHashSet<PnpOperation> = linkedSetOf()
 
@@ -3721,6 +3883,20 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     }
   }
 
+  private fun getByColumnValues(column: String, values: Collection<String>): Map<String, RecipientId> {
+    val out: MutableMap<String, RecipientId> = HashMap(values.size)
+
+    for (query in SqlUtil.buildCollectionQuery(column, values)) {
+      readableDatabase.query(TABLE_NAME, arrayOf(ID, column), query.where, query.whereArgs, null, null, null).use { cursor ->
+        while (cursor.moveToNext()) {
+          out[cursor.requireNonNullString(column)] = RecipientId.from(cursor.requireLong(ID))
+        }
+      }
+    }
+
+    return out
+  }
+
   private fun getOrInsertByColumn(column: String, value: String, contentValues: ContentValues = contentValuesOf(column to value)): GetOrInsertResult {
     if (TextUtils.isEmpty(value)) {
       throw AssertionError("$column cannot be empty.")
@@ -8,6 +8,7 @@ import android.os.CancellationSignal;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteQuery;
 
@@ -25,6 +26,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Supplier;
 
 /**
  * This is a wrapper around {@link net.zetetic.database.sqlcipher.SQLiteDatabase}. There's difficulties
@@ -48,12 +50,14 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
   private final net.zetetic.database.sqlcipher.SQLiteDatabase wrapped;
   private final Tracer                                        tracer;
 
-  private static final ThreadLocal<Set<Runnable>> PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS;
-  private static final ThreadLocal<Set<Runnable>> POST_SUCCESSFUL_TRANSACTION_TASKS;
+  private static final ThreadLocal<Set<Runnable>>        PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS;
+  private static final ThreadLocal<Set<Runnable>>        POST_SUCCESSFUL_TRANSACTION_TASKS;
+  private static final ThreadLocal<Map<String, Object>> TRANSACTION_STATE;
 
   static {
     PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS = new ThreadLocal<>();
     POST_SUCCESSFUL_TRANSACTION_TASKS         = new ThreadLocal<>();
+    TRANSACTION_STATE                         = new ThreadLocal<>();
 
     PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS.set(new LinkedHashSet<>());
   }
@@ -148,6 +152,32 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
     }
   }
 
+  /**
+   * Returns an object that lives until the active transaction ends, creating it with the provided factory the first time it's requested for
+   * a given key. This lets you accumulate state over the course of a transaction for a task enqueued with
+   * {@link #runPostSuccessfulTransaction(String, Runnable)} to consume.
+   * If there is no current transaction open, returns null.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> @Nullable T getTransactionState(@NonNull String key, @NonNull Supplier<T> factory) {
+    if (!wrapped.inTransaction()) {
+      return null;
+    }
+
+    return (T) getTransactionState().computeIfAbsent(key, k -> factory.get());
+  }
+
+  private @NonNull Map<String, Object> getTransactionState() {
+    Map<String, Object> state = TRANSACTION_STATE.get();
+
+    if (state == null) {
+      state = new HashMap<>();
+      TRANSACTION_STATE.set(state);
+    }
+
+    return state;
+  }
+
   private @NonNull Set<Runnable> getPendingPostSuccessfulTransactionTasks() {
     Set<Runnable> tasks = PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS.get();
 
@@ -299,11 +329,13 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
             tasks.clear();
             tasks.addAll(pendingTasks);
             pendingTasks.clear();
+            getTransactionState().clear();
           }
 
           @Override
           public void onRollback() {
             getPendingPostSuccessfulTransactionTasks().clear();
+            getTransactionState().clear();
           }
         });
       });
@@ -3,12 +3,19 @@ package org.thoughtcrime.securesms.database
 import android.annotation.SuppressLint
 import android.content.Context
 import android.database.Cursor
+import android.os.CancellationSignal
 import android.text.TextUtils
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteDatabase
 import net.zetetic.database.sqlcipher.SQLiteDatabase
 import org.intellij.lang.annotations.Language
 import org.signal.core.util.SqlUtil
 import org.signal.core.util.ThreadUtil
 import org.signal.core.util.logging.Log
+import org.signal.core.util.readToList
+import org.signal.core.util.readToSingleInt
+import org.signal.core.util.readToSingleLong
+import org.signal.core.util.requireLong
 import org.signal.core.util.withinTransaction
 import org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob
 
@@ -31,9 +38,31 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     const val MESSAGE_ID = "message_id"
     const val SNIPPET_WRAP = "..."
 
+    /**
+     * When deferred indexing is enabled, this holds the ids of messages whose index entries are out of date. If the message was already in
+     * the index at the time of its first change, we also keep the values it was indexed with, since an external content FTS table can only
+     * remove an entry if it's given exactly what was inserted.
+     */
+    const val PENDING_TABLE_NAME = "message_fts_pending"
+    private const val PENDING_MESSAGE_ID = "message_id"
+    private const val PENDING_WAS_INDEXED = "was_indexed"
+    private const val PENDING_INDEXED_BODY = "indexed_body"
+    private const val PENDING_INDEXED_THREAD_ID = "indexed_thread_id"
+
+    @Language("sql")
+    private const val CREATE_PENDING_TABLE = """
+      CREATE TABLE $PENDING_TABLE_NAME (
+        $PENDING_MESSAGE_ID INTEGER PRIMARY KEY,
+        $PENDING_WAS_INDEXED INTEGER NOT NULL,
+        $PENDING_INDEXED_BODY TEXT DEFAULT NULL,
+        $PENDING_INDEXED_THREAD_ID INTEGER DEFAULT NULL
+      )
+    """
+
     @Language("sql")
     val CREATE_TABLE = arrayOf(
-      "CREATE VIRTUAL TABLE $FTS_TABLE_NAME USING fts5($BODY, $THREAD_ID UNINDEXED, content=${MessageTable.TABLE_NAME}, content_rowid=${MessageTable.ID})"
+      "CREATE VIRTUAL TABLE $FTS_TABLE_NAME USING fts5($BODY, $THREAD_ID UNINDEXED, content=${MessageTable.TABLE_NAME}, content_rowid=${MessageTable.ID})",
+      CREATE_PENDING_TABLE
     )
 
     private const val TRIGGER_AFTER_INSERT = "message_ai"
@@ -60,6 +89,33 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       """
     )
 
+    private const val TRIGGER_DEFERRED_AFTER_INSERT = "message_ai_deferred"
+    private const val TRIGGER_DEFERRED_AFTER_DELETE = "message_ad_deferred"
+    private const val TRIGGER_DEFERRED_AFTER_UPDATE = "message_au_deferred"
+
+    /**
+     * Used in place of [CREATE_TRIGGERS] when deferred indexing is enabled. `INSERT OR IGNORE` keeps the first entry for a message, which is
+     * the one that reflects what is actually in the index. Only updates that touch indexed columns are recorded.
+     */
+    @Language("sql")
+    private val CREATE_DEFERRED_TRIGGERS = arrayOf(
+      """
+        CREATE TRIGGER $TRIGGER_DEFERRED_AFTER_INSERT AFTER INSERT ON ${MessageTable.TABLE_NAME} BEGIN
+          INSERT OR IGNORE INTO $PENDING_TABLE_NAME ($PENDING_MESSAGE_ID, $PENDING_WAS_INDEXED) VALUES (new.${MessageTable.ID}, 0);
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_DEFERRED_AFTER_DELETE AFTER DELETE ON ${MessageTable.TABLE_NAME} BEGIN
+          INSERT OR IGNORE INTO $PENDING_TABLE_NAME ($PENDING_MESSAGE_ID, $PENDING_WAS_INDEXED, $PENDING_INDEXED_BODY, $PENDING_INDEXED_THREAD_ID) VALUES (old.${MessageTable.ID}, 1, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID});
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_DEFERRED_AFTER_UPDATE AFTER UPDATE OF ${MessageTable.BODY}, ${MessageTable.THREAD_ID} ON ${MessageTable.TABLE_NAME} BEGIN
+          INSERT OR IGNORE INTO $PENDING_TABLE_NAME ($PENDING_MESSAGE_ID, $PENDING_WAS_INDEXED, $PENDING_INDEXED_BODY, $PENDING_INDEXED_THREAD_ID) VALUES (old.${MessageTable.ID}, 1, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID});
+        END;
+      """
+    )
+
     @Language("sql")
     private const val MESSAGES_QUERY = """
       SELECT 
@@ -110,8 +166,111 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       ORDER BY ${MessageTable.DATE_RECEIVED} DESC 
       LIMIT 500
     """
+
+    /**
+     * Same filtering as [MESSAGES_QUERY], for use by the paged queries below.
+     */
+    @Language("sql")
+    private const val SEARCHABLE_MESSAGE_FILTER = """
+      ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.GROUP_V2_BIT} = 0 AND 
+      ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 AND
+      ${MessageTable.TABLE_NAME}.${MessageTable.SCHEDULED_DATE} < 0 AND
+      ${MessageTable.TABLE_NAME}.${MessageTable.LATEST_REVISION_ID} IS NULL
+    """
+
+    private const val RANK = "rank_value"
+
+    /**
+     * Fetches only the ids and rank of matching messages, best match first, with no snippet and no joins beyond what filtering needs.
+     * `%s` is replaced with the keyset condition.
+     */
+    @Language("sql")
+    private const val MESSAGE_HITS_BY_RANK_QUERY = """
+      SELECT 
+        $FTS_TABLE_NAME.$ID AS $MESSAGE_ID, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED}, 
+        $FTS_TABLE_NAME.rank AS $RANK 
+      FROM 
+        $FTS_TABLE_NAME 
+          INNER JOIN ${MessageTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.ID} = $FTS_TABLE_NAME.$ID 
+      WHERE 
+        $FTS_TABLE_NAME MATCH ? AND 
+        $SEARCHABLE_MESSAGE_FILTER
+        %s
+      ORDER BY $FTS_TABLE_NAME.rank ASC, $FTS_TABLE_NAME.$ID DESC 
+      LIMIT ? OFFSET ?
+    """
+
+    /**
+     * Fetches only the ids of matching messages, newest first. This walks the message table's date received index from the keyset
+     * position, and only uses the full text index to check membership, so a page never has to sort every match. `%s` is replaced with
+     * the keyset condition.
+     */
+    @Language("sql")
+    private const val MESSAGE_HITS_BY_RECENCY_QUERY = """
+      SELECT 
+        ${MessageTable.TABLE_NAME}.${MessageTable.ID} AS $MESSAGE_ID, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED}, 
+        0 AS $RANK 
+      FROM 
+        ${MessageTable.TABLE_NAME} INDEXED BY ${MessageTable.INDEX_DATE_RECEIVED} 
+      WHERE 
+        ${MessageTable.TABLE_NAME}.${MessageTable.ID} IN (SELECT $ID FROM $FTS_TABLE_NAME WHERE $FTS_TABLE_NAME MATCH ?) AND 
+        $SEARCHABLE_MESSAGE_FILTER
+        %s
+      ORDER BY ${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED} DESC, ${MessageTable.TABLE_NAME}.${MessageTable.ID} DESC 
+      LIMIT ? OFFSET ?
+    """
+
+    /**
+     * Fetches the full result rows, including snippets, for a specific set of message ids. Snippets are only ever computed for the rows
+     * that are about to be displayed.
+     */
+    @Language("sql")
+    private const val MESSAGES_BY_ID_QUERY = """
+      SELECT 
+        ${ThreadTable.TABLE_NAME}.${ThreadTable.RECIPIENT_ID} AS $CONVERSATION_RECIPIENT, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.FROM_RECIPIENT_ID} AS $MESSAGE_RECIPIENT, 
+        snippet($FTS_TABLE_NAME, -1, '', '', '$SNIPPET_WRAP', 7) AS $SNIPPET, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED}, 
+        $FTS_TABLE_NAME.$THREAD_ID, 
+        $FTS_TABLE_NAME.$BODY, 
+        $FTS_TABLE_NAME.$ID AS $MESSAGE_ID, 
+        1 AS $IS_MMS 
+      FROM 
+        ${MessageTable.TABLE_NAME} 
+          INNER JOIN $FTS_TABLE_NAME ON $FTS_TABLE_NAME.$ID = ${MessageTable.TABLE_NAME}.${MessageTable.ID} 
+          INNER JOIN ${ThreadTable.TABLE_NAME} ON $FTS_TABLE_NAME.$THREAD_ID = ${ThreadTable.TABLE_NAME}.${ThreadTable.ID} 
+      WHERE 
+        $FTS_TABLE_NAME MATCH ? AND 
+        %s
+    """
   }
 
+  /**
+   * The order of results in a paged message search.
+   */
+  enum class MessageSearchOrder {
+    /**
+     * Newest first, by date received, the same as the unpaged search. Message ids break ties. Ids alone can't be used, since they don't
+     * follow date order for restored backups or messages that were delivered late.
+     */
+    RECENCY,
+
+    /**
+     * Best match first, as scored by bm25. Every match has to be scored, but nothing else is computed for rows outside of the page. Message
+     * ids break ties, so that matches with the same score still page in a stable order.
+     */
+    RANK
+  }
+
+  /**
+   * A single match in a paged message search. The last hit of a page is used as the keyset cursor for the next one.
+   *
+   * @param rank The bm25 score for [MessageSearchOrder.RANK] (lower is better), otherwise 0.
+   */
+  data class MessageSearchHit(val messageId: Long, val dateReceived: Long, val rank: Double)
+
   fun queryMessages(query: String): Cursor? {
     val fullTextSearchQuery = createFullTextSearchQuery(query)
     return if (fullTextSearchQuery.isEmpty()) {
@@ -130,6 +289,111 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     }
   }
 
+  /**
+   * Counts matching messages, stopping once [limit] is reached so that short prefix queries don't have to visit every match.
+   */
+  fun countMessages(query: String, limit: Int, cancellationSignal: CancellationSignal? = null): Int {
+    val fullTextSearchQuery = createFullTextSearchQuery(query)
+    if (fullTextSearchQuery.isEmpty()) {
+      return 0
+    }
+
+    val sql = """
+      SELECT COUNT(*) FROM (
+        SELECT 1 
+        FROM 
+          $FTS_TABLE_NAME 
+            INNER JOIN ${MessageTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.ID} = $FTS_TABLE_NAME.$ID 
+        WHERE 
+          $FTS_TABLE_NAME MATCH ? AND 
+          $SEARCHABLE_MESSAGE_FILTER
+        LIMIT ?
+      )
+    """
+
+    return readableDatabase.query(SimpleSQLiteQuery(sql, arrayOf(fullTextSearchQuery, limit)), cancellationSignal).readToSingleInt()
+  }
+
+  /**
+   * Returns up to [limit] matching messages in the requested [order], starting after [after] if provided. Passing the last hit of the
+   * previous page as [after] (keyset pagination) means each page costs the same regardless of how deep into the results it is. [offset]
+   * is only needed when jumping to a position for which no cursor is known.
+   *
+   * @throws android.os.OperationCanceledException If [cancellationSignal] is canceled while the query is running.
+   */
+  fun queryMessageHits(
+    query: String,
+    order: MessageSearchOrder,
+    after: MessageSearchHit?,
+    offset: Int,
+    limit: Int,
+    cancellationSignal: CancellationSignal? = null
+  ): List<MessageSearchHit> {
+    val fullTextSearchQuery = createFullTextSearchQuery(query)
+    if (fullTextSearchQuery.isEmpty()) {
+      return emptyList()
+    }
+
+    val sql: String
+    val args: MutableList<Any> = mutableListOf(fullTextSearchQuery)
+
+    when (order) {
+      MessageSearchOrder.RECENCY -> {
+        val keysetClause = if (after != null) {
+          args += after.dateReceived
+          args += after.messageId
+          "AND (${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED}, ${MessageTable.TABLE_NAME}.${MessageTable.ID}) < (?, ?)"
+        } else {
+          ""
+        }
+
+        sql = MESSAGE_HITS_BY_RECENCY_QUERY.format(keysetClause)
+      }
+
+      MessageSearchOrder.RANK -> {
+        // Never compare scores for equality: everything scored at least as high as the cursor, and past it either by score or by id
+        val keysetClause = if (after != null) {
+          args += after.rank
+          args += after.rank
+          args += after.messageId
+          "AND $FTS_TABLE_NAME.rank >= ? AND ($FTS_TABLE_NAME.rank > ? OR $FTS_TABLE_NAME.$ID < ?)"
+        } else {
+          ""
+        }
+
+        sql = MESSAGE_HITS_BY_RANK_QUERY.format(keysetClause)
+      }
+    }
+
+    args += limit
+    args += offset
+
+    return readableDatabase.query(SimpleSQLiteQuery(sql, args.toTypedArray()), cancellationSignal).readToList { cursor ->
+      MessageSearchHit(
+        messageId = cursor.requireLong(MESSAGE_ID),
+        dateReceived = cursor.requireLong(MessageTable.DATE_RECEIVED),
+        rank = cursor.getDouble(cursor.getColumnIndexOrThrow(RANK))
+      )
+    }
+  }
+
+  /**
+   * Returns full result rows for the given message ids, in the same format as [queryMessages], but in no particular order. [query] is
+   * needed to compute the snippets.
+   */
+  fun queryMessagesById(query: String, messageIds: Collection<Long>, cancellationSignal: CancellationSignal? = null): Cursor? {
+    val fullTextSearchQuery = createFullTextSearchQuery(query)
+    if (fullTextSearchQuery.isEmpty() || messageIds.isEmpty()) {
+      return null
+    }
+
+    val idQuery = SqlUtil.buildSingleCollectionQuery("${MessageTable.TABLE_NAME}.${MessageTable.ID}", messageIds)
+    val sql = MESSAGES_BY_ID_QUERY.format(idQuery.where)
+    val args: Array<Any> = arrayOf(fullTextSearchQuery, *idQuery.whereArgs)
+
+    return readableDatabase.query(SimpleSQLiteQuery(sql, args), cancellationSignal)
+  }
+
   /**
    * Re-adds every message to the index. It's fine to insert the same message twice; the table will naturally de-dupe.
    *
@@ -162,6 +426,95 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     }
   }
 
+  /**
+   * Whether message writes currently only record pending index updates, rather than updating the index directly.
+   */
+  fun isDeferredIndexingEnabled(): Boolean {
+    return SqlUtil.getAllTriggers(readableDatabase).contains(TRIGGER_DEFERRED_AFTER_INSERT)
+  }
+
+  /**
+   * Swaps the message triggers between immediate and deferred indexing. When leaving deferred mode, all pending updates are applied first,
+   * in the same transaction as the swap, so that no change is lost. Does nothing if already in the requested mode.
+   */
+  fun setDeferredIndexingEnabled(enabled: Boolean) {
+    writableDatabase.withinTransaction { db ->
+      val deferred = SqlUtil.getAllTriggers(db).contains(TRIGGER_DEFERRED_AFTER_INSERT)
+
+      if (enabled && !deferred) {
+        Log.i(TAG, "Switching to deferred indexing.")
+        db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_INSERT")
+        db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_DELETE")
+        db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_UPDATE")
+        CREATE_DEFERRED_TRIGGERS.forEach { db.execSQL(it) }
+      } else if (!enabled && deferred) {
+        val applied = applyPendingUpdates(db, Long.MAX_VALUE)
+        Log.i(TAG, "Switching to immediate indexing. Applied $applied pending updates first.")
+        db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_DEFERRED_AFTER_INSERT")
+        db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_DEFERRED_AFTER_DELETE")
+        db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_DEFERRED_AFTER_UPDATE")
+        CREATE_TRIGGERS.forEach { db.execSQL(it) }
+      }
+    }
+  }
+
+  /**
+   * True if every message write has been applied to the index. Always true when deferred indexing is disabled.
+   */
+  fun isIndexCaughtUp(): Boolean {
+    return SqlUtil.isEmpty(readableDatabase, PENDING_TABLE_NAME)
+  }
+
+  fun getPendingIndexCount(): Long {
+    return readableDatabase.rawQuery("SELECT COUNT(*) FROM $PENDING_TABLE_NAME", null).readToSingleLong()
+  }
+
+  /**
+   * Applies the oldest [batchSize] pending updates to the index in a single transaction. Batches are contiguous ranges of message ids, so
+   * each one only touches a narrow slice of the index.
+   *
+   * @return The number of pending updates that were applied. Zero means the index is caught up.
+   */
+  fun indexPendingMessages(batchSize: Int): Int {
+    return writableDatabase.withinTransaction { db ->
+      val upperBound: Long = db.rawQuery("SELECT $PENDING_MESSAGE_ID FROM $PENDING_TABLE_NAME ORDER BY $PENDING_MESSAGE_ID LIMIT 1 OFFSET ${batchSize - 1}", null)
+        .readToSingleLong(Long.MAX_VALUE)
+
+      applyPendingUpdates(db, upperBound)
+    }
+  }
+
+  /**
+   * Removes the stale index entries and inserts the current ones for every pending message with an id <= [upperBound]. Must be called
+   * within a transaction.
+   */
+  private fun applyPendingUpdates(db: SupportSQLiteDatabase, upperBound: Long): Int {
+    val args = SqlUtil.buildArgs(upperBound)
+
+    db.execSQL(
+      """
+      INSERT INTO $FTS_TABLE_NAME ($FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID)
+        SELECT 'delete', $PENDING_MESSAGE_ID, $PENDING_INDEXED_BODY, $PENDING_INDEXED_THREAD_ID
+        FROM $PENDING_TABLE_NAME
+        WHERE $PENDING_WAS_INDEXED = 1 AND $PENDING_MESSAGE_ID <= ?
+      """,
+      args
+    )
+
+    db.execSQL(
+      """
+      INSERT INTO $FTS_TABLE_NAME ($ID, $BODY, $THREAD_ID)
+        SELECT ${MessageTable.TABLE_NAME}.${MessageTable.ID}, ${MessageTable.TABLE_NAME}.${MessageTable.BODY}, ${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID}
+        FROM $PENDING_TABLE_NAME
+          INNER JOIN ${MessageTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.ID} = $PENDING_TABLE_NAME.$PENDING_MESSAGE_ID
+        WHERE $PENDING_TABLE_NAME.$PENDING_MESSAGE_ID <= ?
+      """,
+      args
+    )
+
+    return db.delete(PENDING_TABLE_NAME, "$PENDING_MESSAGE_ID <= ?", args)
+  }
+
   /**
    * This performs the same thing as the `optimize` command in SQLite, but broken into iterative stages to avoid locking up the database for too long.
    * If what's going on in this method seems weird, that's because it is, but please read the sqlite docs -- we're following their algorithm:
@@ -243,6 +596,10 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_INSERT")
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_DELETE")
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_UPDATE")
+    db.execSQL("DROP TABLE IF EXISTS $PENDING_TABLE_NAME")
+    db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_DEFERRED_AFTER_INSERT")
+    db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_DEFERRED_AFTER_DELETE")
+    db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_DEFERRED_AFTER_UPDATE")
 
     Log.w(TAG, "[fullyResetTables] Recreating table...")
     CREATE_TABLE.forEach { db.execSQL(it) }
@@ -24,6 +24,7 @@ import org.thoughtcrime.securesms.migrations.LegacyMigrationJob.DatabaseUpgradeL
 import org.thoughtcrime.securesms.service.KeyCachingService
 import org.thoughtcrime.securesms.util.TextSecurePreferences
 import java.io.File
+import java.util.function.Supplier
 
 open class SignalDatabase(private val context: Application, databaseSecret: DatabaseSecret, attachmentSecret: AttachmentSecret) :
   SQLiteOpenHelper(
@@ -75,6 +76,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
   val callTable: CallTable = CallTable(context, this)
   val kyberPreKeyTable: KyberPreKeyTable = KyberPreKeyTable(context, this)
   val callLinkTable: CallLinkTable = CallLinkTable(context, this)
+  val messagePositionTable: MessagePositionTable = MessagePositionTable(context, this)
 
   override fun onOpen(db: net.zetetic.database.sqlcipher.SQLiteDatabase) {
     db.setForeignKeyConstraintsEnabled(true)
@@ -111,6 +113,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     db.execSQL(CallLinkTable.CREATE_TABLE)
     db.execSQL(CallTable.CREATE_TABLE)
     db.execSQL(KyberPreKeyTable.CREATE_TABLE)
+    db.execSQL(MessagePositionTable.CREATE_TABLE)
     executeStatements(db, SearchTable.CREATE_TABLE)
     executeStatements(db, RemappedRecordTables.CREATE_TABLE)
     executeStatements(db, MessageSendLogTables.CREATE_TABLE)
@@ -140,6 +143,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
 
     executeStatements(db, SearchTable.CREATE_TRIGGERS)
     executeStatements(db, MessageSendLogTables.CREATE_TRIGGERS)
+    executeStatements(db, MessagePositionTable.CREATE_TRIGGERS)
 
     DistributionListTables.insertInitialDistributionListAtCreationTime(db)
 
@@ -263,6 +267,11 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
       instance!!.signalWritableDatabase.runPostSuccessfulTransaction(task)
     }
 
+    @JvmStatic
+    fun <T> getTransactionState(key: String, factory: Supplier<T>): T? {
+      return instance!!.signalWritableDatabase.getTransactionState(key, factory)
+    }
+
     @JvmStatic
     fun databaseFileExists(context: Context): Boolean {
       return context.getDatabasePath(DATABASE_NAME).exists()
@@ -432,6 +441,11 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     val messageLog: MessageSendLogTables
       get() = instance!!.messageSendLogTables
 
+    @get:JvmStatic
+    @get:JvmName("messagePositions")
+    val messagePositions: MessagePositionTable
+      get() = instance!!.messagePositionTable
+
     @get:JvmStatic
     @get:JvmName("messageSearch")
     val messageSearch: SearchTable
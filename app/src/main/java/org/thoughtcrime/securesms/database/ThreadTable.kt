@@ -18,6 +18,7 @@ import org.signal.core.util.exists
 import org.signal.core.util.logging.Log
 import org.signal.core.util.or
 import org.signal.core.util.readToList
+import org.signal.core.util.readToSingleObject
 import org.signal.core.util.requireBoolean
 import org.signal.core.util.requireInt
 import org.signal.core.util.requireLong
@@ -58,6 +59,7 @@ import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.recipients.RecipientUtil
 import org.thoughtcrime.securesms.storage.StorageSyncHelper
 import org.thoughtcrime.securesms.util.ConversationUtil
+import org.thoughtcrime.securesms.util.FeatureFlags
 import org.thoughtcrime.securesms.util.JsonUtils
 import org.thoughtcrime.securesms.util.JsonUtils.SaneJSONObject
 import org.thoughtcrime.securesms.util.LRUCache
@@ -107,6 +109,7 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     const val PINNED = "pinned"
     const val UNREAD_SELF_MENTION_COUNT = "unread_self_mention_count"
     const val ACTIVE = "active"
+    const val SNIPPET_MESSAGE_ID = "snippet_message_id"
 
     const val MAX_CACHE_SIZE = 1000
 
@@ -136,7 +139,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         $LAST_SCROLLED INTEGER DEFAULT 0, 
         $PINNED INTEGER DEFAULT 0, 
         $UNREAD_SELF_MENTION_COUNT INTEGER DEFAULT 0,
-        $ACTIVE INTEGER DEFAULT 0
+        $ACTIVE INTEGER DEFAULT 0,
+        $SNIPPET_MESSAGE_ID INTEGER DEFAULT 0
       )
     """
 
@@ -222,7 +226,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     expiresIn: Long,
     readReceiptCount: Int,
     unreadCount: Int,
-    unreadMentionCount: Int
+    unreadMentionCount: Int,
+    snippetMessageId: Long
   ) {
     var extraSerialized: String? = null
 
@@ -248,7 +253,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       EXPIRES_IN to expiresIn,
       ACTIVE to 1,
       UNREAD_COUNT to unreadCount,
-      UNREAD_SELF_MENTION_COUNT to unreadMentionCount
+      UNREAD_SELF_MENTION_COUNT to unreadMentionCount,
+      SNIPPET_MESSAGE_ID to snippetMessageId
     )
 
     writableDatabase
@@ -257,7 +263,13 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       .where("$ID = ?", threadId)
       .run()
 
-    if (unarchive && allowedToUnarchive(threadId)) {
+    if (unarchive) {
+      unarchiveIfAllowed(threadId)
+    }
+  }
+
+  private fun unarchiveIfAllowed(threadId: Long) {
+    if (allowedToUnarchive(threadId)) {
       val archiveValues = contentValuesOf(ARCHIVED to 0)
       val query = SqlUtil.buildTrueUpdateQuery(ID_WHERE, SqlUtil.buildArgs(threadId), archiveValues)
       if (writableDatabase.update(TABLE_NAME, archiveValues, query.where, query.whereArgs) > 0) {
@@ -295,7 +307,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       SNIPPET_URI to attachment?.toString(),
       SNIPPET_TYPE to type,
       SNIPPET_CONTENT_TYPE to null,
-      SNIPPET_EXTRAS to null
+      SNIPPET_EXTRAS to null,
+      SNIPPET_MESSAGE_ID to 0
     )
 
     if (unarchive && allowedToUnarchive(threadId)) {
@@ -475,8 +488,21 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
         messages.setReactionsSeen(threadId, sinceTimestamp)
 
-        val unreadCount = messages.getUnreadCount(threadId)
-        val unreadMentionsCount = messages.getUnreadMentionCount(threadId)
+        val unreadCount: Int
+        val unreadMentionsCount: Int
+
+        if (!FeatureFlags.incrementalThreadSummaries()) {
+          unreadCount = messages.getUnreadCount(threadId)
+          unreadMentionsCount = messages.getUnreadMentionCount(threadId)
+        } else if (sinceTimestamp == -1L) {
+          // Everything that counts towards the unread counts was just marked read
+          unreadCount = 0
+          unreadMentionsCount = 0
+        } else {
+          val remaining = messages.getUnreadCountsAfter(threadId, sinceTimestamp)
+          unreadCount = remaining.unread
+          unreadMentionsCount = remaining.unreadSelfMentions
+        }
 
         val contentValues = contentValuesOf(
           READ to ReadStatus.READ.serialize(),
@@ -1424,6 +1450,7 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         }
       }
 
+      var isScheduledSnippet = false
       val record: MessageRecord? = try {
         messages.getConversationSnippet(threadId)
       } catch (e: NoSuchMessageException) {
@@ -1431,6 +1458,7 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
         if (scheduledMessage != null) {
           Log.i(TAG, "Using scheduled message for conversation snippet")
+          isScheduledSnippet = true
         }
         scheduledMessage
       }
@@ -1455,7 +1483,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
             expiresIn = 0,
             readReceiptCount = 0,
             unreadCount = 0,
-            unreadMentionCount = 0
+            unreadMentionCount = 0,
+            snippetMessageId = 0
           )
         }
         return@withinTransaction true
@@ -1484,7 +1513,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         expiresIn = record.expiresIn,
         readReceiptCount = record.readReceiptCount,
         unreadCount = unreadCount,
-        unreadMentionCount = unreadMentionCount
+        unreadMentionCount = unreadMentionCount,
+        snippetMessageId = if (isScheduledSnippet) 0 else record.id
       )
 
       if (notifyListeners) {
@@ -1494,6 +1524,171 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     }
   }
 
+  /**
+   * Equivalent to [update], but only looks at the message that was just inserted rather than recomputing the summary from the entire
+   * thread. Falls back to [update] whenever the change can't be applied on its own.
+   *
+   * @return True if the thread was deleted, same as [update].
+   */
+  fun updateForInsertedMessage(threadId: Long, messageId: Long, unarchive: Boolean): Boolean {
+    if (threadId == -1L || !FeatureFlags.incrementalThreadSummaries()) {
+      return update(threadId, unarchive)
+    }
+
+    return writableDatabase.withinTransaction {
+      if (applyInsertedMessage(threadId, messageId, unarchive)) {
+        notifyConversationListListeners()
+        false
+      } else {
+        update(threadId, unarchive)
+      }
+    }
+  }
+
+  /**
+   * Equivalent to [update], but only looks at the message that was just deleted rather than recomputing the summary from the entire thread.
+   * Falls back to [update] whenever the change can't be applied on its own, such as when the deleted message was the snippet.
+   *
+   * @param deleted The summary info of the message, read before it was deleted. If null, the thread is always fully updated.
+   * @return True if the thread was deleted, same as [update].
+   */
+  fun updateForDeletedMessage(threadId: Long, deleted: MessageTable.ThreadSummaryInfo?): Boolean {
+    if (threadId == -1L || deleted == null || !FeatureFlags.incrementalThreadSummaries()) {
+      return update(threadId, false)
+    }
+
+    return writableDatabase.withinTransaction {
+      if (applyDeletedMessage(threadId, deleted)) {
+        notifyConversationListListeners()
+        false
+      } else {
+        update(threadId, false)
+      }
+    }
+  }
+
+  /**
+   * @return False if the summary couldn't be updated from the message alone, in which case nothing was written.
+   */
+  private fun applyInsertedMessage(threadId: Long, messageId: Long, unarchive: Boolean): Boolean {
+    val summary: SummaryState = getSummaryState(threadId) ?: return false
+    val message: MessageTable.ThreadSummaryInfo = messages.getThreadSummaryInfo(messageId) ?: return false
+
+    if (summary.snippetMessageId <= 0 || message.threadId != threadId || message.originalMessageId != null) {
+      return false
+    }
+
+    val meaningfulMessages = summary.meaningfulMessages || message.isMeaningful
+    if (!meaningfulMessages) {
+      return false
+    }
+
+    val unreadCount = summary.unreadCount + if (message.isUnread) 1 else 0
+    val unreadMentionCount = summary.unreadMentionCount + if (message.isUnreadMention) 1 else 0
+
+    if (message.isSnippetCandidate) {
+      val snippet: MessageTable.ThreadSummaryInfo = messages.getThreadSummaryInfo(summary.snippetMessageId) ?: return false
+
+      if (!snippet.isSnippetCandidate || message.dateReceived == snippet.dateReceived) {
+        return false
+      }
+
+      if (message.dateReceived > snippet.dateReceived) {
+        val record: MessageRecord = try {
+          messages.getMessageRecord(messageId)
+        } catch (e: NoSuchMessageException) {
+          return false
+        }
+
+        val threadBody: ThreadBody = ThreadBodyUtil.getFormattedBodyFor(context, record)
+
+        updateThread(
+          threadId = threadId,
+          meaningfulMessages = true,
+          body = threadBody.body.toString(),
+          attachment = getAttachmentUriFor(record),
+          contentType = getContentTypeFor(record),
+          extra = getExtrasFor(record, threadBody),
+          date = record.timestamp,
+          status = record.deliveryStatus,
+          deliveryReceiptCount = record.deliveryReceiptCount,
+          type = record.type,
+          unarchive = unarchive,
+          expiresIn = record.expiresIn,
+          readReceiptCount = record.readReceiptCount,
+          unreadCount = unreadCount,
+          unreadMentionCount = unreadMentionCount,
+          snippetMessageId = record.id
+        )
+
+        return true
+      }
+    }
+
+    updateSummaryCounts(threadId, meaningfulMessages, unreadCount, unreadMentionCount)
+
+    if (unarchive) {
+      unarchiveIfAllowed(threadId)
+    }
+
+    return true
+  }
+
+  /**
+   * @return False if the summary couldn't be updated from the message alone, in which case nothing was written.
+   */
+  private fun applyDeletedMessage(threadId: Long, deleted: MessageTable.ThreadSummaryInfo): Boolean {
+    val summary: SummaryState = getSummaryState(threadId) ?: return false
+
+    if (summary.snippetMessageId <= 0 || summary.snippetMessageId == deleted.id || !summary.meaningfulMessages) {
+      return false
+    }
+
+    // The snippet is still around, so as long as it's meaningful on its own, the thread still has a meaningful message
+    if (deleted.isMeaningful && !MessageTable.isMeaningfulType(summary.snippetType)) {
+      return false
+    }
+
+    updateSummaryCounts(
+      threadId = threadId,
+      meaningfulMessages = true,
+      unreadCount = (summary.unreadCount - if (deleted.isUnread) 1 else 0).coerceAtLeast(0),
+      unreadMentionCount = (summary.unreadMentionCount - if (deleted.isUnreadMention) 1 else 0).coerceAtLeast(0)
+    )
+
+    return true
+  }
+
+  private fun updateSummaryCounts(threadId: Long, meaningfulMessages: Boolean, unreadCount: Int, unreadMentionCount: Int) {
+    writableDatabase
+      .update(TABLE_NAME)
+      .values(
+        MEANINGFUL_MESSAGES to if (meaningfulMessages) 1 else 0,
+        UNREAD_COUNT to unreadCount,
+        UNREAD_SELF_MENTION_COUNT to unreadMentionCount,
+        ACTIVE to 1
+      )
+      .where("$ID = ?", threadId)
+      .run()
+  }
+
+  private fun getSummaryState(threadId: Long): SummaryState? {
+    return readableDatabase
+      .select(SNIPPET_MESSAGE_ID, SNIPPET_TYPE, MEANINGFUL_MESSAGES, UNREAD_COUNT, UNREAD_SELF_MENTION_COUNT)
+      .from(TABLE_NAME)
+      .where("$ID = ?", threadId)
+      .run()
+      .readToSingleObject { cursor ->
+        SummaryState(
+          snippetMessageId = cursor.requireLong(SNIPPET_MESSAGE_ID),
+          snippetType = cursor.requireLong(SNIPPET_TYPE),
+          meaningfulMessages = cursor.requireBoolean(MEANINGFUL_MESSAGES),
+          unreadCount = cursor.requireInt(UNREAD_COUNT),
+          unreadMentionCount = cursor.requireInt(UNREAD_SELF_MENTION_COUNT)
+        )
+      }
+  }
+
   private fun hasMoreRecentDraft(threadId: Long, timestamp: Long): Boolean {
     val drafts: DraftTable.Drafts = SignalDatabase.drafts.getDrafts(threadId)
     if (drafts.isNotEmpty()) {
@@ -1655,7 +1850,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         LAST_SCROLLED to 0,
         PINNED to 0,
         UNREAD_SELF_MENTION_COUNT to 0,
-        ACTIVE to 0
+        ACTIVE to 0,
+        SNIPPET_MESSAGE_ID to 0
       )
 
     if (query != null) {
@@ -2043,4 +2239,15 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
   )
 
   data class MergeResult(val threadId: Long, val previousThreadId: Long, val neededMerge: Boolean)
+
+  /**
+   * The parts of a thread's summary that can be updated incrementally. See [updateForInsertedMessage].
+   */
+  private data class SummaryState(
+    val snippetMessageId: Long,
+    val snippetType: Long,
+    val meaningfulMessages: Boolean,
+    val unreadCount: Int,
+    val unreadMentionCount: Int
+  )
 }
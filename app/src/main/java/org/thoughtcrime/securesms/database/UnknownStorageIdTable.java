@@ -96,6 +96,34 @@ public class UnknownStorageIdTable extends DatabaseTable {
     }
   }
 
+  /**
+   * Bulk version of {@link #getById(byte[])}. Ids that aren't in the table are left out of the result.
+   */
+  public @NonNull List<SignalStorageRecord> getByIds(@NonNull Collection<byte[]> rawIds) {
+    List<SignalStorageRecord> records = new ArrayList<>(rawIds.size());
+    List<String>              encoded = new ArrayList<>(rawIds.size());
+
+    for (byte[] rawId : rawIds) {
+      encoded.add(Base64.encodeWithPadding(rawId));
+    }
+
+    for (SqlUtil.Query query : SqlUtil.buildCollectionQuery(STORAGE_ID, encoded)) {
+      try (Cursor cursor = databaseHelper.getSignalReadableDatabase().query(TABLE_NAME, null, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          String keyEncoded = CursorUtil.requireString(cursor, STORAGE_ID);
+          int    type       = CursorUtil.requireInt(cursor, TYPE);
+          try {
+            records.add(SignalStorageRecord.forUnknown(StorageId.forType(Base64.decode(keyEncoded), type)));
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+        }
+      }
+    }
+
+    return records;
+  }
+
   public void insert(@NonNull Collection<SignalStorageRecord> inserts) {
     SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
 
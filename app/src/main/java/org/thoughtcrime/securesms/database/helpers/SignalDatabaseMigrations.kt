@@ -65,6 +65,10 @@ import org.thoughtcrime.securesms.database.helpers.migration.V206_AddConversatio
 import org.thoughtcrime.securesms.database.helpers.migration.V207_AddChunkSizeColumn
 import org.thoughtcrime.securesms.database.helpers.migration.V209_ClearRecipientPniFromAciColumn
 import org.thoughtcrime.securesms.database.helpers.migration.V210_FixPniPossibleColumns
+import org.thoughtcrime.securesms.database.helpers.migration.V211_AddMessageFtsPendingTable
+import org.thoughtcrime.securesms.database.helpers.migration.V212_AddThreadSnippetMessageId
+import org.thoughtcrime.securesms.database.helpers.migration.V213_AddMessagePositionTable
+import org.thoughtcrime.securesms.database.helpers.migration.V214_AddMessageDateReceivedIndex
 
 /**
  * Contains all of the database migrations for [SignalDatabase]. Broken into a separate file for cleanliness.
@@ -73,7 +77,7 @@ object SignalDatabaseMigrations {
 
   val TAG: String = Log.tag(SignalDatabaseMigrations.javaClass)
 
-  const val DATABASE_VERSION = 210
+  const val DATABASE_VERSION = 214
 
   @JvmStatic
   fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -324,6 +328,22 @@ object SignalDatabaseMigrations {
     if (oldVersion < 210) {
       V210_FixPniPossibleColumns.migrate(context, db, oldVersion, newVersion)
     }
+
+    if (oldVersion < 211) {
+      V211_AddMessageFtsPendingTable.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 212) {
+      V212_AddThreadSnippetMessageId.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 213) {
+      V213_AddMessagePositionTable.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 214) {
+      V214_AddMessageDateReceivedIndex.migrate(context, db, oldVersion, newVersion)
+    }
   }
 
   @JvmStatic
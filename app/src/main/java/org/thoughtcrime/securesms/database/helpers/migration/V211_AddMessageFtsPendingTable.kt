@@ -0,0 +1,28 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a table to track messages whose search index entries still need to be updated, for use with deferred search indexing.
+ */
+@Suppress("ClassName")
+object V211_AddMessageFtsPendingTable : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL(
+      """
+      CREATE TABLE IF NOT EXISTS message_fts_pending (
+        message_id INTEGER PRIMARY KEY,
+        was_indexed INTEGER NOT NULL,
+        indexed_body TEXT DEFAULT NULL,
+        indexed_thread_id INTEGER DEFAULT NULL
+      )
+      """
+    )
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.signal.core.util.Stopwatch
+import org.signal.core.util.logging.Log
+
+/**
+ * Adds a table of per-thread message counts bucketed by date received, which lets us find message positions without counting every
+ * message in between. The table is kept up to date by triggers, and is filled in here for existing messages.
+ */
+@Suppress("ClassName")
+object V213_AddMessagePositionTable : SignalDatabaseMigration {
+
+  private val TAG = Log.tag(V213_AddMessagePositionTable::class.java)
+
+  private val LEVEL_SHIFTS = intArrayOf(36, 30, 24)
+
+  private const val VISIBLE = "story_type = 0 AND parent_story_id <= 0 AND scheduled_date = -1 AND latest_revision_id IS NULL"
+  private const val UPDATED_COLUMNS = "thread_id, date_received, story_type, parent_story_id, scheduled_date, latest_revision_id"
+
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    val stopwatch = Stopwatch("migration")
+
+    db.execSQL(
+      """
+        CREATE TABLE message_position (
+          thread_id INTEGER NOT NULL,
+          level INTEGER NOT NULL,
+          bucket INTEGER NOT NULL,
+          message_count INTEGER NOT NULL,
+          PRIMARY KEY (thread_id, level, bucket)
+        ) WITHOUT ROWID
+      """
+    )
+    stopwatch.split("table")
+
+    for (level in LEVEL_SHIFTS.indices) {
+      db.execSQL(
+        """
+          INSERT INTO message_position (thread_id, level, bucket, message_count)
+          SELECT thread_id, $level, date_received >> ${LEVEL_SHIFTS[level]}, COUNT(*)
+          FROM message
+          WHERE $VISIBLE
+          GROUP BY thread_id, date_received >> ${LEVEL_SHIFTS[level]}
+        """
+      )
+    }
+    stopwatch.split("populate")
+
+    db.execSQL(
+      """
+        CREATE TRIGGER message_position_ai AFTER INSERT ON message WHEN ${visible("new")} BEGIN
+          ${increment("new")}
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER message_position_ad AFTER DELETE ON message WHEN ${visible("old")} BEGIN
+          ${decrement("old")}
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER message_position_au_old AFTER UPDATE OF $UPDATED_COLUMNS ON message WHEN ${visible("old")} BEGIN
+          ${decrement("old")}
+        END
+      """
+    )
+
+    db.execSQL(
+      """
+        CREATE TRIGGER message_position_au_new AFTER UPDATE OF $UPDATED_COLUMNS ON message WHEN ${visible("new")} BEGIN
+          ${increment("new")}
+        END
+      """
+    )
+    stopwatch.split("triggers")
+
+    stopwatch.stop(TAG)
+  }
+
+  private fun visible(row: String): String {
+    return "$row.story_type = 0 AND $row.parent_story_id <= 0 AND $row.scheduled_date = -1 AND $row.latest_revision_id IS NULL"
+  }
+
+  private fun increment(row: String): String {
+    val values = LEVEL_SHIFTS.indices.joinToString(", ") { level -> "($row.thread_id, $level, $row.date_received >> ${LEVEL_SHIFTS[level]}, 1)" }
+
+    return """
+      INSERT INTO message_position (thread_id, level, bucket, message_count) VALUES $values
+      ON CONFLICT (thread_id, level, bucket) DO UPDATE SET message_count = message_count + 1;
+    """
+  }
+
+  private fun decrement(row: String): String {
+    val buckets = LEVEL_SHIFTS.indices.joinToString(" OR ") { level -> "(level = $level AND bucket = $row.date_received >> ${LEVEL_SHIFTS[level]})" }
+
+    return """
+      UPDATE message_position SET message_count = message_count - 1 WHERE thread_id = $row.thread_id AND ($buckets);
+      DELETE FROM message_position WHERE thread_id = $row.thread_id AND message_count <= 0 AND ($buckets);
+    """
+  }
+}
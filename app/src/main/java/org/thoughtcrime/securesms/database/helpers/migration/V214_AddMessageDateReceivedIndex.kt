@@ -0,0 +1,19 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Add an index on date received, so that message search can page through results by recency without sorting every match.
+ */
+@Suppress("ClassName")
+object V214_AddMessageDateReceivedIndex : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("CREATE INDEX IF NOT EXISTS message_date_received_index ON message (date_received)")
+  }
+}
@@ -1,7 +1,21 @@
 package org.thoughtcrime.securesms.database.model
 
+/**
+ * A single log call, exactly as it was made. Formatting into text only happens when the logs are read back out.
+ *
+ * @param message The already-scrubbed message.
+ * @param stackTrace The printed stack trace of the throwable that was logged, if any.
+ */
 data class LogEntry(
   val createdAt: Long,
   val keepLonger: Boolean,
-  val body: String
-)
+  val level: Char,
+  val tag: String,
+  val threadString: String,
+  val message: String,
+  val stackTrace: String?
+) {
+  /** How many lines of text this entry will turn into when formatted. Every line of the stack trace is a line of its own. */
+  val lineCount: Int
+    get() = 1 + (stackTrace?.let { trace -> trace.count { it == '\n' } + 1 } ?: 0)
+}
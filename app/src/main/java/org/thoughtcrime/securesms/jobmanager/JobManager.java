@@ -54,6 +54,8 @@ public class JobManager implements ConstraintObserver.Notifier {
   @GuardedBy("emptyQueueListeners")
   private final Set<EmptyQueueListener> emptyQueueListeners = new CopyOnWriteArraySet<>();
 
+  private final ThreadLocal<List<Runnable>> heldEnqueues = new ThreadLocal<>();
+
   private volatile boolean initialized = false;
 
   public JobManager(@NonNull Application application, @NonNull Configuration configuration) {
@@ -162,11 +164,13 @@ public class JobManager implements ConstraintObserver.Notifier {
    * Enqueues a single job that depends on a collection of job ID's.
    */
   public void add(@NonNull Job job, @NonNull Collection<String> dependsOn) {
-    jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    enqueueOrHold(() -> {
+      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
 
-    runOnExecutor(() -> {
-      jobController.submitJobWithExistingDependencies(job, dependsOn, null);
-      jobController.wakeUp();
+      runOnExecutor(() -> {
+        jobController.submitJobWithExistingDependencies(job, dependsOn, null);
+        jobController.wakeUp();
+      });
     });
   }
 
@@ -175,10 +179,12 @@ public class JobManager implements ConstraintObserver.Notifier {
    * items in the specified queue.
    */
   public void add(@NonNull Job job, @Nullable String dependsOnQueue) {
-    jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    enqueueOrHold(() -> {
+      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
 
-    runOnExecutor(() -> {
-      jobController.submitJobWithExistingDependencies(job, Collections.emptyList(), dependsOnQueue);
+      runOnExecutor(() -> {
+        jobController.submitJobWithExistingDependencies(job, Collections.emptyList(), dependsOnQueue);
+      });
     });
   }
 
@@ -187,10 +193,12 @@ public class JobManager implements ConstraintObserver.Notifier {
    * items in the specified queue.
    */
   public void add(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
-    jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    enqueueOrHold(() -> {
+      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
 
-    runOnExecutor(() -> {
-      jobController.submitJobWithExistingDependencies(job, dependsOn, dependsOnQueue);
+      runOnExecutor(() -> {
+        jobController.submitJobWithExistingDependencies(job, dependsOn, dependsOnQueue);
+      });
     });
   }
 
@@ -199,15 +207,51 @@ public class JobManager implements ConstraintObserver.Notifier {
       return;
     }
 
-    for (Job job : jobs) {
-      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
-    }
+    enqueueOrHold(() -> {
+      for (Job job : jobs) {
+        jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+      }
 
-    runOnExecutor(() -> {
-      jobController.submitJobs(jobs);
+      runOnExecutor(() -> {
+        jobController.submitJobs(jobs);
+      });
     });
   }
 
+  /**
+   * Holds every job enqueued on the calling thread until {@link #releaseHeldEnqueues(boolean)} is
+   * called. Use this around work that may be rolled back, so that jobs it enqueued along the way
+   * are only submitted once the work has actually been committed.
+   */
+  public void holdEnqueues() {
+    if (heldEnqueues.get() != null) {
+      throw new IllegalStateException("Already holding enqueues on this thread!");
+    }
+
+    heldEnqueues.set(new ArrayList<>());
+  }
+
+  /**
+   * Stops holding enqueues on the calling thread. If {@code submit} is true, the held jobs are
+   * enqueued in the order they were added. Otherwise they are dropped.
+   */
+  public void releaseHeldEnqueues(boolean submit) {
+    List<Runnable> held = heldEnqueues.get();
+    heldEnqueues.remove();
+
+    if (held == null) {
+      return;
+    }
+
+    if (submit) {
+      for (Runnable enqueue : held) {
+        enqueue.run();
+      }
+    } else if (!held.isEmpty()) {
+      Log.i(TAG, "Dropping " + held.size() + " held enqueue(s).");
+    }
+  }
+
   /**
    * Begins the creation of a job chain with a single job.
    * @see Chain
@@ -407,18 +451,30 @@ public class JobManager implements ConstraintObserver.Notifier {
   }
 
   private void enqueueChain(@NonNull Chain chain) {
-    for (List<Job> jobList : chain.getJobListChain()) {
-      for (Job job : jobList) {
-        jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    enqueueOrHold(() -> {
+      for (List<Job> jobList : chain.getJobListChain()) {
+        for (Job job : jobList) {
+          jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+        }
       }
-    }
 
-    runOnExecutor(() -> {
-      jobController.submitNewJobChain(chain.getJobListChain());
-      jobController.wakeUp();
+      runOnExecutor(() -> {
+        jobController.submitNewJobChain(chain.getJobListChain());
+        jobController.wakeUp();
+      });
     });
   }
 
+  private void enqueueOrHold(@NonNull Runnable enqueue) {
+    List<Runnable> held = heldEnqueues.get();
+
+    if (held != null) {
+      held.add(enqueue);
+    } else {
+      enqueue.run();
+    }
+  }
+
   private void onEmptyQueue() {
     runOnExecutor(() -> {
       synchronized (emptyQueueListeners) {
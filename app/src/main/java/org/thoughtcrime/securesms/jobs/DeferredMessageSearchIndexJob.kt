@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.jobs
+
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.transport.RetryLaterException
+import org.thoughtcrime.securesms.util.FeatureFlags
+import java.lang.Exception
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Applies pending message search index updates in large batches, merging index segments in between so that queries stay fast while we
+ * catch up. Also keeps the search triggers in sync with [FeatureFlags.deferredMessageSearchIndexing].
+ */
+class DeferredMessageSearchIndexJob private constructor(parameters: Parameters) : BaseJob(parameters) {
+
+  companion object {
+    const val KEY = "DeferredMessageSearchIndexJob"
+
+    private val TAG = Log.tag(DeferredMessageSearchIndexJob::class.java)
+
+    private const val BATCH_SIZE = 5_000
+    private val MAX_RUN_TIME = 20.seconds.inWholeMilliseconds
+    private val OPTIMIZE_TIMEOUT = 1.seconds.inWholeMilliseconds
+
+    @JvmStatic
+    fun enqueue() {
+      ApplicationDependencies.getJobManager().add(DeferredMessageSearchIndexJob())
+    }
+
+    /**
+     * Enqueues the job if there are pending updates, or if the index mode doesn't match the current flag value.
+     */
+    @JvmStatic
+    fun enqueueIfNecessary() {
+      val searchTable = SignalDatabase.messageSearch
+
+      if (searchTable.isDeferredIndexingEnabled() != FeatureFlags.deferredMessageSearchIndexing() || !searchTable.isIndexCaughtUp()) {
+        enqueue()
+      }
+    }
+  }
+
+  constructor() : this(
+    Parameters.Builder()
+      .setQueue("DeferredMessageSearchIndexJob")
+      .setMaxAttempts(5)
+      .setMaxInstancesForQueue(2)
+      .build()
+  )
+
+  override fun serialize(): ByteArray? = null
+  override fun getFactoryKey() = KEY
+  override fun onFailure() = Unit
+  override fun onShouldRetry(e: Exception) = e is RetryLaterException
+  override fun getNextRunAttemptBackoff(pastAttemptCount: Int, exception: Exception): Long = 30.seconds.inWholeMilliseconds
+
+  override fun onRun() {
+    if (!SignalStore.registrationValues().isRegistrationComplete || SignalStore.account().aci == null) {
+      Log.w(TAG, "Registration not finished yet! Skipping.")
+      return
+    }
+
+    val searchTable = SignalDatabase.messageSearch
+    val startTime = System.currentTimeMillis()
+    var totalApplied = 0
+    var batches = 0
+
+    while (true) {
+      val applied = searchTable.indexPendingMessages(BATCH_SIZE)
+      totalApplied += applied
+
+      if (applied < BATCH_SIZE) {
+        break
+      }
+
+      batches++
+      searchTable.optimizeIndex(OPTIMIZE_TIMEOUT)
+
+      if (System.currentTimeMillis() - startTime >= MAX_RUN_TIME) {
+        Log.w(TAG, "Applied $totalApplied updates across $batches batches, but ran out of time. ${searchTable.getPendingIndexCount()} remaining.")
+        throw RetryLaterException()
+      }
+    }
+
+    searchTable.setDeferredIndexingEnabled(FeatureFlags.deferredMessageSearchIndexing())
+
+    if (totalApplied > 0) {
+      Log.d(TAG, "Applied $totalApplied updates in ${System.currentTimeMillis() - startTime} ms.")
+      OptimizeMessageSearchIndexJob.enqueue()
+    }
+  }
+
+  class Factory : Job.Factory<DeferredMessageSearchIndexJob> {
+    override fun create(parameters: Parameters, serializedData: ByteArray?) = DeferredMessageSearchIndexJob(parameters)
+  }
+}
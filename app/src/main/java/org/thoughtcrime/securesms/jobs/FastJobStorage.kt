@@ -7,16 +7,52 @@ import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage
-
+import java.util.TreeSet
+
+/**
+ * A [JobStorage] that keeps every job in memory, along with a set of indexes that are kept up to date so that scheduling decisions don't
+ * require scanning every job.
+ *
+ * - Jobs are indexed by id, and each queue keeps its jobs ordered by creation time, so the head of any queue is available in O(log n).
+ * - Queue heads that have no unmet dependencies and aren't running are kept in a "ready set" ordered by the time they become eligible to run.
+ * - Job counts are tracked per factory and per factory+queue.
+ *
+ * With a few thousand queued jobs this keeps [getPendingJobsWithNoDependenciesInCreatedOrder] proportional to the number of
+ * runnable jobs rather than the total number of jobs.
+ */
 class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
 
-  private val jobs: MutableList<JobSpec> = mutableListOf()
+  /** All jobs, in insertion order. */
+  private val jobsById: LinkedHashMap<String, IndexedJob> = LinkedHashMap()
+
+  /** Jobs that belong to a queue, grouped by queue and ordered by creation time. */
+  private val jobsByQueue: MutableMap<String, TreeSet<IndexedJob>> = mutableMapOf()
+
+  /** The runnable head (if any) for each group, where a group is either a queue or a single job without a queue. */
+  private val readyHeadsByGroup: MutableMap<String, IndexedJob> = mutableMapOf()
+
+  /** Runnable heads ordered by the time at which their backoff expires. */
+  private val readyByEligibleTime: TreeSet<IndexedJob> = TreeSet(ELIGIBLE_TIME_COMPARATOR)
+
+  /** Runnable heads ordered by their last run attempt time, so that jobs with attempts "in the future" (i.e. clock changes) can be found. */
+  private val readyByLastRunAttemptTime: TreeSet<IndexedJob> = TreeSet(LAST_RUN_ATTEMPT_COMPARATOR)
+
+  private val countsByFactory: MutableMap<String, Int> = mutableMapOf()
+  private val countsByFactoryAndQueue: MutableMap<FactoryAndQueue, Int> = mutableMapOf()
+
   private val constraintsByJobId: MutableMap<String, MutableList<ConstraintSpec>> = mutableMapOf()
   private val dependenciesByJobId: MutableMap<String, MutableList<DependencySpec>> = mutableMapOf()
 
+  /** Reverse dependency index: dependsOnJobId -> ids of the jobs that depend on it. */
+  private val dependentsByJobId: MutableMap<String, MutableSet<String>> = mutableMapOf()
+
+  private var nextSequence: Long = 0
+
   @Synchronized
   override fun init() {
-    jobs += jobDatabase.getAllJobSpecs()
+    for (jobSpec in jobDatabase.getAllJobSpecs()) {
+      addJob(jobSpec)
+    }
 
     for (constraintSpec in jobDatabase.getAllConstraintSpecs()) {
       val jobConstraints: MutableList<ConstraintSpec> = constraintsByJobId.getOrPut(constraintSpec.jobSpecId) { mutableListOf() }
@@ -24,9 +60,10 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     }
 
     for (dependencySpec in jobDatabase.getAllDependencySpecs().filterNot { it.hasCircularDependency() }) {
-      val jobDependencies: MutableList<DependencySpec> = dependenciesByJobId.getOrPut(dependencySpec.jobId) { mutableListOf() }
-      jobDependencies += dependencySpec
+      addDependency(dependencySpec)
     }
+
+    rebuildReadySet()
   }
 
   @Synchronized
@@ -38,20 +75,27 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     }
 
     for (fullSpec in fullSpecs) {
-      jobs += fullSpec.jobSpec
+      addJob(fullSpec.jobSpec)
       constraintsByJobId[fullSpec.jobSpec.id] = fullSpec.constraintSpecs.toMutableList()
-      dependenciesByJobId[fullSpec.jobSpec.id] = fullSpec.dependencySpecs.toMutableList()
+
+      removeDependenciesOf(fullSpec.jobSpec.id)
+      dependenciesByJobId[fullSpec.jobSpec.id] = mutableListOf()
+      fullSpec.dependencySpecs.forEach { addDependency(it) }
+    }
+
+    for (fullSpec in fullSpecs) {
+      refreshGroup(fullSpec.jobSpec.groupKey)
     }
   }
 
   @Synchronized
   override fun getJobSpec(id: String): JobSpec? {
-    return jobs.firstOrNull { it.id == id }
+    return jobsById[id]?.spec
   }
 
   @Synchronized
   override fun getAllJobSpecs(): List<JobSpec> {
-    return ArrayList(jobs)
+    return jobsById.values.map { it.spec }
   }
 
   @Synchronized
@@ -63,113 +107,88 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     } else if (migrationJob != null) {
       emptyList()
     } else {
-      jobs
-        .groupBy {
-          // Group together by queue. If it doesn't have a queue, we just use the ID, since it's unique and will give us all of the jobs without queues.
-          it.queueKey ?: it.id
-        }
-        .map { byQueueKey: Map.Entry<String, List<JobSpec>> ->
-          // Find the oldest job in each queue
-          byQueueKey.value.minByOrNull { it.createTime }
+      val eligible: MutableSet<IndexedJob> = LinkedHashSet()
+
+      for (job in readyByEligibleTime) {
+        if (job.spec.eligibleTime < currentTime) {
+          eligible += job
+        } else {
+          break
         }
-        .filterNotNull()
-        .filter { job ->
-          // Filter out all jobs with unmet dependencies
-          dependenciesByJobId[job.id].isNullOrEmpty()
+      }
+
+      for (job in readyByLastRunAttemptTime.descendingSet()) {
+        if (job.spec.lastRunAttemptTime > currentTime) {
+          eligible += job
+        } else {
+          break
         }
-        .filterNot { it.isRunning }
-        .filter { job -> job.hasEligibleRunTime(currentTime) }
-        .sortedBy { it.createTime }
+      }
+
+      eligible
+        .sortedWith(CREATE_TIME_COMPARATOR)
+        .map { it.spec }
     }
   }
 
   @Synchronized
   override fun getJobsInQueue(queue: String): List<JobSpec> {
-    return jobs
-      .filter { it.queueKey == queue }
-      .sortedBy { it.createTime }
+    return jobsByQueue[queue]?.map { it.spec } ?: emptyList()
   }
 
   private fun getMigrationJob(): JobSpec? {
-    return jobs
-      .filter { it.queueKey == Job.Parameters.MIGRATION_QUEUE_KEY }
-      .firstOrNull { firstInQueue(it) }
-  }
-
-  private fun firstInQueue(job: JobSpec): Boolean {
-    return if (job.queueKey == null) {
-      true
-    } else {
-      val firstInQueue: JobSpec? = jobs
-        .filter { it.queueKey == job.queueKey }
-        .minByOrNull { it.createTime }
-
-      job == firstInQueue
-    }
+    return jobsByQueue[Job.Parameters.MIGRATION_QUEUE_KEY]?.firstOrNull()?.spec
   }
 
   @Synchronized
   override fun getJobCountForFactory(factoryKey: String): Int {
-    return jobs
-      .filter { it.factoryKey == factoryKey }
-      .size
+    return countsByFactory[factoryKey] ?: 0
   }
 
   @Synchronized
   override fun getJobCountForFactoryAndQueue(factoryKey: String, queueKey: String): Int {
-    return jobs
-      .filter { it.factoryKey == factoryKey && it.queueKey == queueKey }
-      .size
+    return countsByFactoryAndQueue[FactoryAndQueue(factoryKey, queueKey)] ?: 0
   }
 
   @Synchronized
   override fun areQueuesEmpty(queueKeys: Set<String>): Boolean {
-    return jobs.none { it.queueKey != null && queueKeys.contains(it.queueKey) }
+    return queueKeys.none { jobsByQueue[it]?.isNotEmpty() == true }
   }
 
   @Synchronized
   override fun markJobAsRunning(id: String, currentTime: Long) {
-    val job: JobSpec? = getJobById(id)
+    val job: JobSpec? = getJobSpec(id)
     if (job == null || !job.isMemoryOnly) {
       jobDatabase.markJobAsRunning(id, currentTime)
     }
 
-    val iter = jobs.listIterator()
-
-    while (iter.hasNext()) {
-      val current: JobSpec = iter.next()
-      if (current.id == id) {
-        iter.set(
-          current.copy(
-            isRunning = true,
-            lastRunAttemptTime = currentTime
-          )
+    if (job != null) {
+      replaceJob(
+        job.copy(
+          isRunning = true,
+          lastRunAttemptTime = currentTime
         )
-      }
+      )
     }
   }
 
   @Synchronized
   override fun updateJobAfterRetry(id: String, currentTime: Long, runAttempt: Int, nextBackoffInterval: Long, serializedData: ByteArray?) {
-    val job = getJobById(id)
+    val job: JobSpec? = getJobSpec(id)
     if (job == null || !job.isMemoryOnly) {
       jobDatabase.updateJobAfterRetry(id, currentTime, runAttempt, nextBackoffInterval, serializedData)
     }
 
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      if (current.id == id) {
-        iter.set(
-          current.copy(
-            isRunning = false,
-            runAttempt = runAttempt,
-            lastRunAttemptTime = currentTime,
-            nextBackoffInterval = nextBackoffInterval,
-            serializedData = serializedData
-          )
+    if (job != null) {
+      replaceJob(
+        job.copy(
+          isRunning = false,
+          runAttempt = runAttempt,
+          lastRunAttemptTime = currentTime,
+          nextBackoffInterval = nextBackoffInterval,
+          serializedData = serializedData
         )
-      }
+      )
     }
   }
 
@@ -177,18 +196,24 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   override fun updateAllJobsToBePending() {
     jobDatabase.updateAllJobsToBePending()
 
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      iter.set(current.copy(isRunning = false))
+    for (entry in jobsById.entries) {
+      entry.setValue(IndexedJob(entry.value.spec.copy(isRunning = false), entry.value.sequence))
     }
+
+    for (queue in jobsByQueue.values) {
+      val updated: List<IndexedJob> = queue.map { jobsById[it.spec.id]!! }
+      queue.clear()
+      queue.addAll(updated)
+    }
+
+    rebuildReadySet()
   }
 
   @Synchronized
   override fun updateJobs(jobSpecs: List<JobSpec>) {
     val durable: List<JobSpec> = jobSpecs
       .filter { updatedJob ->
-        val found = getJobById(updatedJob.id)
+        val found = getJobSpec(updatedJob.id)
         found != null && !found.isMemoryOnly
       }
 
@@ -196,16 +221,8 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
       jobDatabase.updateJobs(durable)
     }
 
-    val updatesById: Map<String, JobSpec> = jobSpecs.associateBy { it.id }
-
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      val update = updatesById[current.id]
-
-      if (update != null) {
-        iter.set(update)
-      }
+    for (jobSpec in jobSpecs) {
+      replaceJob(jobSpec)
     }
   }
 
@@ -217,7 +234,7 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   @Synchronized
   override fun deleteJobs(jobIds: List<String>) {
     val durableIds: List<String> = jobIds
-      .mapNotNull { getJobById(it) }
+      .mapNotNull { getJobSpec(it) }
       .filterNot { it.isMemoryOnly }
       .map { it.id }
 
@@ -225,23 +242,28 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
       jobDatabase.deleteJobs(durableIds)
     }
 
-    val deleteIds: Set<String> = jobIds.toSet()
-    jobs.removeIf { deleteIds.contains(it.id) }
+    val affectedGroups: MutableSet<String> = mutableSetOf()
 
     for (jobId in jobIds) {
+      val removed: IndexedJob? = removeJob(jobId)
+      if (removed != null) {
+        affectedGroups += removed.spec.groupKey
+      }
+
       constraintsByJobId.remove(jobId)
+      removeDependenciesOf(jobId)
       dependenciesByJobId.remove(jobId)
 
-      for (dependencyList in dependenciesByJobId.values) {
-        val iter = dependencyList.iterator()
-
-        while (iter.hasNext()) {
-          if (iter.next().dependsOnJobId == jobId) {
-            iter.remove()
-          }
-        }
+      val dependents: Set<String> = dependentsByJobId.remove(jobId) ?: emptySet()
+      for (dependentId in dependents) {
+        dependenciesByJobId[dependentId]?.removeIf { it.dependsOnJobId == jobId }
+        jobsById[dependentId]?.let { affectedGroups += it.spec.groupKey }
       }
     }
+
+    for (group in affectedGroups) {
+      refreshGroup(group)
+    }
   }
 
   @Synchronized
@@ -272,18 +294,148 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   }
 
   private fun getSingleLayerOfDependencySpecsThatDependOnJob(jobSpecId: String): List<DependencySpec> {
-    return dependenciesByJobId
-      .values
+    val dependents: Set<String> = dependentsByJobId[jobSpecId] ?: return emptyList()
+
+    return dependents
+      .mapNotNull { dependenciesByJobId[it] }
       .flatten()
       .filter { it.dependsOnJobId == jobSpecId }
   }
 
+  @Synchronized
   override fun getAllDependencySpecs(): List<DependencySpec> {
     return dependenciesByJobId.values.flatten()
   }
 
-  private fun getJobById(id: String): JobSpec? {
-    return jobs.firstOrNull { it.id == id }
+  /**
+   * Adds a job to every index except the ready set. If a job with the same id already exists, it is replaced.
+   */
+  private fun addJob(jobSpec: JobSpec) {
+    if (jobsById.containsKey(jobSpec.id)) {
+      replaceJob(jobSpec)
+      return
+    }
+
+    val job = IndexedJob(jobSpec, nextSequence++)
+    jobsById[jobSpec.id] = job
+    indexJob(job)
+  }
+
+  /**
+   * Swaps out the stored version of a job, keeping its position in insertion order. Does nothing if the job isn't present.
+   */
+  private fun replaceJob(jobSpec: JobSpec) {
+    val existing: IndexedJob = jobsById[jobSpec.id] ?: return
+    val updated = IndexedJob(jobSpec, existing.sequence)
+
+    unindexJob(existing)
+    jobsById[jobSpec.id] = updated
+    indexJob(updated)
+
+    refreshGroup(existing.spec.groupKey)
+    if (existing.spec.groupKey != jobSpec.groupKey) {
+      refreshGroup(jobSpec.groupKey)
+    }
+  }
+
+  private fun removeJob(jobId: String): IndexedJob? {
+    val existing: IndexedJob = jobsById.remove(jobId) ?: return null
+    unindexJob(existing)
+    return existing
+  }
+
+  private fun indexJob(job: IndexedJob) {
+    val queueKey: String? = job.spec.queueKey
+    if (queueKey != null) {
+      jobsByQueue.getOrPut(queueKey) { TreeSet(CREATE_TIME_COMPARATOR) } += job
+      countsByFactoryAndQueue.increment(FactoryAndQueue(job.spec.factoryKey, queueKey), 1)
+    }
+    countsByFactory.increment(job.spec.factoryKey, 1)
+  }
+
+  private fun unindexJob(job: IndexedJob) {
+    removeFromReadySet(job.spec.groupKey)
+
+    val queueKey: String? = job.spec.queueKey
+    if (queueKey != null) {
+      val queue: TreeSet<IndexedJob>? = jobsByQueue[queueKey]
+      if (queue != null) {
+        queue -= job
+        if (queue.isEmpty()) {
+          jobsByQueue.remove(queueKey)
+        }
+      }
+      countsByFactoryAndQueue.increment(FactoryAndQueue(job.spec.factoryKey, queueKey), -1)
+    }
+    countsByFactory.increment(job.spec.factoryKey, -1)
+  }
+
+  private fun addDependency(dependencySpec: DependencySpec) {
+    dependenciesByJobId.getOrPut(dependencySpec.jobId) { mutableListOf() } += dependencySpec
+    dependentsByJobId.getOrPut(dependencySpec.dependsOnJobId) { mutableSetOf() } += dependencySpec.jobId
+  }
+
+  /**
+   * Removes the reverse-index entries for everything the specified job depends on.
+   */
+  private fun removeDependenciesOf(jobId: String) {
+    val dependencies: List<DependencySpec> = dependenciesByJobId[jobId] ?: return
+
+    for (dependency in dependencies) {
+      val dependents: MutableSet<String>? = dependentsByJobId[dependency.dependsOnJobId]
+      if (dependents != null) {
+        dependents -= jobId
+        if (dependents.isEmpty()) {
+          dependentsByJobId.remove(dependency.dependsOnJobId)
+        }
+      }
+    }
+  }
+
+  private fun rebuildReadySet() {
+    readyHeadsByGroup.clear()
+    readyByEligibleTime.clear()
+    readyByLastRunAttemptTime.clear()
+
+    for (queueKey in jobsByQueue.keys) {
+      refreshGroup(queueKey)
+    }
+
+    for (job in jobsById.values) {
+      if (job.spec.queueKey == null) {
+        refreshGroup(job.spec.groupKey)
+      }
+    }
+  }
+
+  /**
+   * Recalculates whether or not the head of the provided group belongs in the ready set.
+   */
+  private fun refreshGroup(groupKey: String) {
+    removeFromReadySet(groupKey)
+
+    val head: IndexedJob = jobsByQueue[groupKey]?.firstOrNull() ?: jobsById[groupKey]?.takeIf { it.spec.queueKey == null } ?: return
+
+    if (!head.spec.isRunning && dependenciesByJobId[head.spec.id].isNullOrEmpty()) {
+      readyHeadsByGroup[groupKey] = head
+      readyByEligibleTime += head
+      readyByLastRunAttemptTime += head
+    }
+  }
+
+  private fun removeFromReadySet(groupKey: String) {
+    val previous: IndexedJob = readyHeadsByGroup.remove(groupKey) ?: return
+    readyByEligibleTime -= previous
+    readyByLastRunAttemptTime -= previous
+  }
+
+  private fun <K> MutableMap<K, Int>.increment(key: K, delta: Int) {
+    val updated = (this[key] ?: 0) + delta
+    if (updated > 0) {
+      this[key] = updated
+    } else {
+      this.remove(key)
+    }
   }
 
   /**
@@ -298,8 +450,8 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
    * serves the same effect and doesn't require new write methods. This should also be very rare.
    */
   private fun DependencySpec.hasCircularDependency(): Boolean {
-    val job = getJobById(this.jobId)
-    val dependsOnJob = getJobById(this.dependsOnJobId)
+    val job = getJobSpec(this.jobId)
+    val dependsOnJob = getJobSpec(this.dependsOnJobId)
 
     if (job == null || dependsOnJob == null) {
       return false
@@ -320,6 +472,27 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
    * Whether or not the job's eligible to be run based off of it's [Job.nextBackoffInterval] and other properties.
    */
   private fun JobSpec.hasEligibleRunTime(currentTime: Long): Boolean {
-    return this.lastRunAttemptTime > currentTime || (this.lastRunAttemptTime + this.nextBackoffInterval) < currentTime
+    return this.lastRunAttemptTime > currentTime || this.eligibleTime < currentTime
+  }
+
+  /** Jobs with the same queue are grouped together. Jobs without a queue are in a group of their own. */
+  private val JobSpec.groupKey: String
+    get() = this.queueKey ?: this.id
+
+  /**
+   * A [JobSpec] paired with the order in which it was first inserted, which is used to break ties in the sorted indexes.
+   */
+  private class IndexedJob(val spec: JobSpec, val sequence: Long)
+
+  private data class FactoryAndQueue(val factoryKey: String, val queueKey: String)
+
+  companion object {
+    private val CREATE_TIME_COMPARATOR: Comparator<IndexedJob> = compareBy<IndexedJob> { it.spec.createTime }.thenBy { it.sequence }
+    private val ELIGIBLE_TIME_COMPARATOR: Comparator<IndexedJob> = compareBy<IndexedJob> { it.spec.eligibleTime }.thenBy { it.sequence }
+    private val LAST_RUN_ATTEMPT_COMPARATOR: Comparator<IndexedJob> = compareBy<IndexedJob> { it.spec.lastRunAttemptTime }.thenBy { it.sequence }
+
+    /** The time after which a job's backoff has expired. */
+    private val JobSpec.eligibleTime: Long
+      get() = this.lastRunAttemptTime + this.nextBackoffInterval
   }
 }
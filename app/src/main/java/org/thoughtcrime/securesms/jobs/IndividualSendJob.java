@@ -167,9 +167,7 @@ public class IndividualSendJob extends PushSendJob {
       database.markUnidentified(messageId, unidentified);
 
       if (recipient.isSelf()) {
-        SignalDatabase.messages().incrementDeliveryReceiptCount(message.getSentTimeMillis(), recipient.getId(), System.currentTimeMillis());
-        SignalDatabase.messages().incrementReadReceiptCount(message.getSentTimeMillis(), recipient.getId(), System.currentTimeMillis());
-        SignalDatabase.messages().incrementViewedReceiptCount(message.getSentTimeMillis(), recipient.getId(), System.currentTimeMillis());
+        SignalDatabase.messages().incrementDeliveryAndReadReceiptCount(message.getSentTimeMillis(), recipient.getId(), System.currentTimeMillis(), true);
       }
 
       if (unidentified && accessMode == UnidentifiedAccessMode.UNKNOWN && profileKey == null) {
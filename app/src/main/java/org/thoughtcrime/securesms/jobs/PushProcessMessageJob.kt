@@ -113,7 +113,19 @@ class PushProcessMessageJob private constructor(
       return QUEUE_PREFIX + recipientId.toQueueKey()
     }
 
-    fun processOrDefer(messageProcessor: MessageContentProcessor, result: MessageDecryptor.Result.Success, localReceiveMetric: SignalLocalMetrics.MessageReceive): PushProcessMessageJob? {
+    /**
+     * Processes the message inline if nothing is waiting ahead of it in its queue, otherwise returns a job to process it later.
+     *
+     * Callers that only enqueue the returned jobs once a whole batch of envelopes has been handled should pass the same
+     * [deferredQueues] for the entire batch. Any queue that had a job deferred earlier in the batch still looks empty to the
+     * [org.thoughtcrime.securesms.jobmanager.JobManager] at that point, so later messages for it are deferred too, to keep them in order.
+     */
+    fun processOrDefer(
+      messageProcessor: MessageContentProcessor,
+      result: MessageDecryptor.Result.Success,
+      localReceiveMetric: SignalLocalMetrics.MessageReceive,
+      deferredQueues: MutableSet<String>? = null
+    ): PushProcessMessageJob? {
       val groupContext = GroupUtil.getGroupContextIfPresent(result.content)
       val groupId = groupContext?.groupId
       var requireNetwork = false
@@ -134,7 +146,11 @@ class PushProcessMessageJob private constructor(
         getQueueName(RecipientId.from(result.metadata.sourceServiceId))
       }
 
-      return if (requireNetwork || !isQueueEmpty(queueName = queueName, isGroup = groupId != null)) {
+      val deferredEarlierInBatch = deferredQueues != null && deferredQueues.contains(queueName)
+
+      return if (requireNetwork || deferredEarlierInBatch || !isQueueEmpty(queueName = queueName, isGroup = groupId != null)) {
+        deferredQueues?.add(queueName)
+
         val builder = Parameters.Builder()
           .setMaxAttempts(Parameters.UNLIMITED)
           .addConstraint(ChangeNumberConstraint.KEY)
@@ -27,28 +27,39 @@ import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
 import org.whispersystems.signalservice.api.push.exceptions.ServerRejectedException;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Sends a single delivery receipt covering one or more messages from the same sender.
+ * <p>
+ * Receipts for incoming messages are collected by {@link org.thoughtcrime.securesms.messages.DeliveryReceiptBatcher} so that a burst of
+ * messages from one sender results in one job and one envelope, rather than one of each per message.
+ */
 public class SendDeliveryReceiptJob extends BaseJob {
 
   public static final String KEY = "SendDeliveryReceiptJob";
 
-  private static final String KEY_RECIPIENT              = "recipient";
-  private static final String KEY_MESSAGE_SENT_TIMESTAMP = "message_id";
-  private static final String KEY_TIMESTAMP              = "timestamp";
-  private static final String KEY_MESSAGE_ID             = "message_db_id";
+  public static final int MAX_TIMESTAMPS = 500;
 
-  private static final String TAG = Log.tag(SendReadReceiptJob.class);
+  private static final String KEY_RECIPIENT               = "recipient";
+  private static final String KEY_MESSAGE_SENT_TIMESTAMPS = "message_sent_timestamps";
+  private static final String KEY_MESSAGE_IDS             = "message_db_ids";
+  private static final String KEY_TIMESTAMP               = "timestamp";
 
-  private final RecipientId recipientId;
-  private final long        messageSentTimestamp;
-  private final long        timestamp;
+  /** Used by jobs that were persisted before receipts were batched, each of which covers a single message. */
+  private static final String KEY_LEGACY_MESSAGE_SENT_TIMESTAMP = "message_id";
+  private static final String KEY_LEGACY_MESSAGE_ID             = "message_db_id";
 
-  @Nullable
-  private final MessageId messageId;
+  private static final String TAG = Log.tag(SendDeliveryReceiptJob.class);
 
-  public SendDeliveryReceiptJob(@NonNull RecipientId recipientId, long messageSentTimestamp, @NonNull MessageId messageId) {
+  private final RecipientId     recipientId;
+  private final List<Long>      messageSentTimestamps;
+  private final List<MessageId> messageIds;
+  private final long            timestamp;
+
+  public SendDeliveryReceiptJob(@NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
     this(new Job.Parameters.Builder()
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
@@ -56,36 +67,42 @@ public class SendDeliveryReceiptJob extends BaseJob {
                            .setQueue(recipientId.toQueueKey())
                            .build(),
          recipientId,
-         messageSentTimestamp,
-         messageId,
+         SendReadReceiptJob.ensureSize(messageSentTimestamps, MAX_TIMESTAMPS),
+         SendReadReceiptJob.ensureSize(messageIds, MAX_TIMESTAMPS),
          System.currentTimeMillis());
   }
 
   private SendDeliveryReceiptJob(@NonNull Job.Parameters parameters,
                                  @NonNull RecipientId recipientId,
-                                 long messageSentTimestamp,
-                                 @Nullable MessageId messageId,
+                                 @NonNull List<Long> messageSentTimestamps,
+                                 @NonNull List<MessageId> messageIds,
                                  long timestamp)
   {
     super(parameters);
 
-    this.recipientId          = recipientId;
-    this.messageSentTimestamp = messageSentTimestamp;
-    this.messageId            = messageId;
-    this.timestamp            = timestamp;
+    this.recipientId           = recipientId;
+    this.messageSentTimestamps = messageSentTimestamps;
+    this.messageIds            = messageIds;
+    this.timestamp             = timestamp;
   }
 
   @Override
   public @Nullable byte[] serialize() {
-    JsonJobData.Builder builder = new JsonJobData.Builder().putString(KEY_RECIPIENT, recipientId.serialize())
-                                                           .putLong(KEY_MESSAGE_SENT_TIMESTAMP, messageSentTimestamp)
-                                                           .putLong(KEY_TIMESTAMP, timestamp);
+    long[] sentTimestamps = new long[messageSentTimestamps.size()];
+    for (int i = 0; i < sentTimestamps.length; i++) {
+      sentTimestamps[i] = messageSentTimestamps.get(i);
+    }
 
-    if (messageId != null) {
-      builder.putString(KEY_MESSAGE_ID, messageId.serialize());
+    long[] ids = new long[messageIds.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = messageIds.get(i).getId();
     }
 
-    return builder.serialize();
+    return new JsonJobData.Builder().putString(KEY_RECIPIENT, recipientId.serialize())
+                                    .putLongArray(KEY_MESSAGE_SENT_TIMESTAMPS, sentTimestamps)
+                                    .putLongArray(KEY_MESSAGE_IDS, ids)
+                                    .putLong(KEY_TIMESTAMP, timestamp)
+                                    .serialize();
   }
 
   @Override
@@ -99,6 +116,10 @@ public class SendDeliveryReceiptJob extends BaseJob {
       throw new NotPushRegisteredException();
     }
 
+    if (messageSentTimestamps.isEmpty()) {
+      return;
+    }
+
     SignalServiceMessageSender  messageSender  = ApplicationDependencies.getSignalServiceMessageSender();
     Recipient                   recipient      = Recipient.resolved(recipientId);
 
@@ -119,7 +140,7 @@ public class SendDeliveryReceiptJob extends BaseJob {
 
     SignalServiceAddress        remoteAddress  = RecipientUtil.toSignalServiceAddress(context, recipient);
     SignalServiceReceiptMessage receiptMessage = new SignalServiceReceiptMessage(SignalServiceReceiptMessage.Type.DELIVERY,
-                                                                                 Collections.singletonList(messageSentTimestamp),
+                                                                                 messageSentTimestamps,
                                                                                  timestamp);
 
     SendMessageResult result = messageSender.sendReceipt(remoteAddress,
@@ -127,8 +148,8 @@ public class SendDeliveryReceiptJob extends BaseJob {
                                                          receiptMessage,
                                                          recipient.needsPniSignature());
 
-    if (messageId != null) {
-      SignalDatabase.messageLog().insertIfPossible(recipientId, timestamp, result, ContentHint.IMPLICIT, messageId, false);
+    if (!messageIds.isEmpty()) {
+      SignalDatabase.messageLog().insertIfPossible(recipientId, timestamp, result, ContentHint.IMPLICIT, messageIds, false);
     }
   }
 
@@ -141,24 +162,34 @@ public class SendDeliveryReceiptJob extends BaseJob {
 
   @Override
   public void onFailure() {
-    Log.w(TAG, "Failed to send delivery receipt to: " + recipientId);
+    Log.w(TAG, "Failed to send delivery receipt for " + messageSentTimestamps.size() + " message(s) to: " + recipientId);
   }
 
   public static final class Factory implements Job.Factory<SendDeliveryReceiptJob> {
     @Override
     public @NonNull SendDeliveryReceiptJob create(@NonNull Parameters parameters, @Nullable byte[] serializedData) {
-      JsonJobData data = JsonJobData.deserialize(serializedData);
-
-      MessageId messageId = null;
-
-      if (data.hasString(KEY_MESSAGE_ID)) {
-        messageId = MessageId.deserialize(data.getString(KEY_MESSAGE_ID));
+      JsonJobData     data           = JsonJobData.deserialize(serializedData);
+      List<Long>      sentTimestamps = new ArrayList<>();
+      List<MessageId> messageIds     = new ArrayList<>();
+
+      if (data.hasLongArray(KEY_MESSAGE_SENT_TIMESTAMPS)) {
+        sentTimestamps.addAll(data.getLongArrayAsList(KEY_MESSAGE_SENT_TIMESTAMPS));
+
+        for (long id : data.getLongArray(KEY_MESSAGE_IDS)) {
+          messageIds.add(new MessageId(id));
+        }
+      } else {
+        sentTimestamps.add(data.getLong(KEY_LEGACY_MESSAGE_SENT_TIMESTAMP));
+
+        if (data.hasString(KEY_LEGACY_MESSAGE_ID)) {
+          messageIds.add(MessageId.deserialize(data.getString(KEY_LEGACY_MESSAGE_ID)));
+        }
       }
 
       return new SendDeliveryReceiptJob(parameters,
                                         RecipientId.from(data.getString(KEY_RECIPIENT)),
-                                        data.getLong(KEY_MESSAGE_SENT_TIMESTAMP),
-                                        messageId,
+                                        sentTimestamps,
+                                        messageIds,
                                         data.getLong(KEY_TIMESTAMP));
     }
   }
@@ -9,6 +9,7 @@ import com.annimon.stream.Stream;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
+import org.signal.core.util.Base64;
 import org.signal.core.util.Stopwatch;
 import org.signal.core.util.logging.Log;
 import org.signal.libsignal.protocol.InvalidKeyException;
@@ -60,8 +61,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -333,7 +337,9 @@ public class StorageSyncJob extends BaseJob {
 
       List<StorageId>           localStorageIds = getAllLocalStorageIds(self).stream().filter(it -> !it.isUnknown()).collect(Collectors.toList());
       IdDifferenceResult        idDifference    = StorageSyncHelper.findIdDifference(remoteManifest.getStorageIds(), localStorageIds);
-      List<SignalStorageRecord> remoteInserts   = buildLocalStorageRecords(context, self, idDifference.getLocalOnlyIds());
+      stopwatch.split("local-id-diff");
+
+      List<SignalStorageRecord> remoteInserts   = buildLocalStorageRecords(context, self, idDifference.getLocalOnlyIds(), stopwatch);
       List<byte[]>              remoteDeletes   = Stream.of(idDifference.getRemoteOnlyIds()).map(StorageId::getRaw).toList();
 
       Log.i(TAG, "ID Difference :: " + idDifference);
@@ -423,27 +429,56 @@ public class StorageSyncJob extends BaseJob {
                                  SignalDatabase.unknownStorageIds().getAllUnknownIds());
   }
 
-  private static @NonNull List<SignalStorageRecord> buildLocalStorageRecords(@NonNull Context context, @NonNull Recipient self, @NonNull Collection<StorageId> ids) {
+  /**
+   * Builds the records for everything we have locally that isn't on the storage service yet. All of the local data is loaded up front with a
+   * few bulk queries, rather than a query per record.
+   */
+  private static @NonNull List<SignalStorageRecord> buildLocalStorageRecords(@NonNull Context context, @NonNull Recipient self, @NonNull Collection<StorageId> ids, @NonNull Stopwatch stopwatch) {
     if (ids.isEmpty()) {
       return Collections.emptyList();
     }
 
-    RecipientTable        recipientTable    = SignalDatabase.recipients();
-    UnknownStorageIdTable storageIdDatabase = SignalDatabase.unknownStorageIds();
+    List<byte[]> recipientStorageIds = new ArrayList<>(ids.size());
+    List<byte[]> unknownStorageIds   = new ArrayList<>();
+
+    for (StorageId id : ids) {
+      switch (getType(id)) {
+        case CONTACT:
+        case GROUPV1:
+        case GROUPV2:
+        case STORY_DISTRIBUTION_LIST:
+          recipientStorageIds.add(id.getRaw());
+          break;
+        case ACCOUNT:
+          break;
+        default:
+          unknownStorageIds.add(id.getRaw());
+          break;
+      }
+    }
+
+    Map<String, RecipientRecord> recipientsByStorageId = new HashMap<>(recipientStorageIds.size());
+    for (RecipientRecord record : SignalDatabase.recipients().getByStorageIds(recipientStorageIds)) {
+      recipientsByStorageId.putIfAbsent(Base64.encodeWithPadding(Objects.requireNonNull(record.getStorageId())), record);
+    }
+
+    Map<String, SignalStorageRecord> unknownsByStorageId = new HashMap<>(unknownStorageIds.size());
+    for (SignalStorageRecord record : SignalDatabase.unknownStorageIds().getByIds(unknownStorageIds)) {
+      unknownsByStorageId.put(Base64.encodeWithPadding(record.getId().getRaw()), record);
+    }
+
+    stopwatch.split("local-records-query");
 
     List<SignalStorageRecord> records = new ArrayList<>(ids.size());
 
     for (StorageId id : ids) {
-      ManifestRecord.Identifier.Type type = ManifestRecord.Identifier.Type.fromValue(id.getType());
-      if (type == null) {
-        type = ManifestRecord.Identifier.Type.UNKNOWN;
-      }
+      String encodedId = Base64.encodeWithPadding(id.getRaw());
 
-      switch (type) {
+      switch (getType(id)) {
         case CONTACT:
         case GROUPV1:
         case GROUPV2:
-          RecipientRecord settings = recipientTable.getByStorageId(id.getRaw());
+          RecipientRecord settings = recipientsByStorageId.get(encodedId);
           if (settings != null) {
             if (settings.getRecipientType() == RecipientTable.RecipientType.GV2 && settings.getSyncExtras().getGroupMasterKey() == null) {
               throw new MissingGv2MasterKeyError();
@@ -461,7 +496,7 @@ public class StorageSyncJob extends BaseJob {
           records.add(StorageSyncHelper.buildAccountRecord(context, self));
           break;
         case STORY_DISTRIBUTION_LIST:
-          RecipientRecord record = recipientTable.getByStorageId(id.getRaw());
+          RecipientRecord record = recipientsByStorageId.get(encodedId);
           if (record != null) {
             if (record.getDistributionListId() != null) {
               records.add(StorageSyncModels.localToRemoteRecord(record));
@@ -473,7 +508,7 @@ public class StorageSyncJob extends BaseJob {
           }
           break;
         default:
-          SignalStorageRecord unknown = storageIdDatabase.getById(id.getRaw());
+          SignalStorageRecord unknown = unknownsByStorageId.get(encodedId);
           if (unknown != null) {
             records.add(unknown);
           } else {
@@ -483,9 +518,16 @@ public class StorageSyncJob extends BaseJob {
       }
     }
 
+    stopwatch.split("local-records-build");
+
     return records;
   }
 
+  private static @NonNull ManifestRecord.Identifier.Type getType(@NonNull StorageId id) {
+    ManifestRecord.Identifier.Type type = ManifestRecord.Identifier.Type.fromValue(id.getType());
+    return type != null ? type : ManifestRecord.Identifier.Type.UNKNOWN;
+  }
+
   private static @NonNull Recipient freshSelf() {
     Recipient.self().live().refresh();
     return Recipient.self();
@@ -7,13 +7,11 @@ import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
-import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.util.SignalUncaughtExceptionHandler;
 
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -22,18 +20,30 @@ import java.util.concurrent.ExecutorService;
  *
  * Implemented as a write-through cache that is safe to read and write to on the main thread.
  *
- * Writes are enqueued on a separate executor, but writes are finished up in
+ * Reads are served from an immutable snapshot of the data that is swapped out on every write, so
+ * they never take a lock.
+ *
+ * Writes are enqueued on a separate executor. Writes that pile up while the executor is busy are
+ * merged and written in a single transaction. Pending writes are flushed in
  * {@link SignalUncaughtExceptionHandler}, meaning all write should finish barring a native crash
  * or the system killing us unexpectedly (i.e. a force-stop).
  */
 public final class KeyValueStore implements KeyValueReader {
 
-  private static final String TAG = Log.tag(KeyValueStore.class);
-
   private final ExecutorService           executor;
   private final KeyValuePersistentStorage storage;
 
-  private KeyValueDataSet dataSet;
+  /** Guards {@link #pendingDataSet}, {@link #pendingRemoves} and the swapping of {@link #dataSet}. */
+  private final Object writeLock = new Object();
+
+  /** Held while writing to {@link #storage}, so that batches are always persisted in order. */
+  private final Object flushLock = new Object();
+
+  private volatile KeyValueDataSet dataSet;
+
+  private KeyValueDataSet pendingDataSet = new KeyValueDataSet();
+  private Set<String>     pendingRemoves = new HashSet<>();
+  private boolean         flushScheduled = false;
 
   public KeyValueStore(@NonNull KeyValuePersistentStorage storage) {
     this.executor = SignalExecutors.newCachedSingleThreadExecutor("signal-KeyValueStore", ThreadUtil.PRIORITY_BACKGROUND_THREAD);
@@ -42,51 +52,44 @@ public final class KeyValueStore implements KeyValueReader {
 
   @AnyThread
   @Override
-  public synchronized byte[] getBlob(@NonNull String key, byte[] defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBlob(key, defaultValue);
+  public byte[] getBlob(@NonNull String key, byte[] defaultValue) {
+    return getSnapshot().getBlob(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean getBoolean(@NonNull String key, boolean defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBoolean(key, defaultValue);
+  public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+    return getSnapshot().getBoolean(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized float getFloat(@NonNull String key, float defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getFloat(key, defaultValue);
+  public float getFloat(@NonNull String key, float defaultValue) {
+    return getSnapshot().getFloat(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized int getInteger(@NonNull String key, int defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getInteger(key, defaultValue);
+  public int getInteger(@NonNull String key, int defaultValue) {
+    return getSnapshot().getInteger(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized long getLong(@NonNull String key, long defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getLong(key, defaultValue);
+  public long getLong(@NonNull String key, long defaultValue) {
+    return getSnapshot().getLong(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized String getString(@NonNull String key, String defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getString(key, defaultValue);
+  public String getString(@NonNull String key, String defaultValue) {
+    return getSnapshot().getString(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean containsKey(@NonNull String key) {
-    initializeIfNecessary();
-    return dataSet.containsKey(key);
+  public boolean containsKey(@NonNull String key) {
+    return getSnapshot().containsKey(key);
   }
 
   /**
@@ -104,51 +107,94 @@ public final class KeyValueStore implements KeyValueReader {
    *         efficient to use the various get* methods instead.
    */
   @AnyThread
-  synchronized @NonNull KeyValueReader beginRead() {
-    initializeIfNecessary();
-
-    KeyValueDataSet copy = new KeyValueDataSet();
-    copy.putAll(dataSet);
-
-    return copy;
+  @NonNull KeyValueReader beginRead() {
+    return getSnapshot();
   }
 
   /**
    * Ensures that any pending writes (such as those made via {@link Writer#apply()}) are finished.
+   * Pending writes are written on the calling thread, so this doesn't depend on the executor being
+   * responsive, which makes it safe to use while shutting down.
    */
   @AnyThread
-  synchronized void blockUntilAllWritesFinished() {
-    CountDownLatch latch = new CountDownLatch(1);
+  void blockUntilAllWritesFinished() {
+    flush();
+  }
+
+  /**
+   * Forces the store to re-fetch all of it's data from the database.
+   */
+  void resetCache() {
+    flush();
+
+    synchronized (writeLock) {
+      dataSet = copyOf(storage.getDataSet());
+    }
+  }
+
+  private void write(@NonNull KeyValueDataSet newDataSet, @NonNull Collection<String> removes) {
+    getSnapshot();
+
+    synchronized (writeLock) {
+      KeyValueDataSet updated = copyOf(dataSet);
+      updated.putAll(newDataSet);
+      updated.removeAll(removes);
+      dataSet = updated;
 
-    executor.execute(latch::countDown);
+      pendingDataSet.removeAll(removes);
+      pendingDataSet.putAll(newDataSet);
+      pendingRemoves.removeAll(newDataSet.getValues().keySet());
+      pendingRemoves.addAll(removes);
 
-    try {
-      latch.await();
-    } catch (InterruptedException e) {
-      Log.w(TAG, "Failed to wait for all writes.");
+      if (!flushScheduled) {
+        flushScheduled = true;
+        executor.execute(this::flush);
+      }
     }
   }
 
   /**
-   * Forces the store to re-fetch all of it's data from the database.
+   * Writes everything that is pending in a single transaction.
    */
-  synchronized void resetCache() {
-    dataSet = null;
-    initializeIfNecessary();
+  private void flush() {
+    synchronized (flushLock) {
+      KeyValueDataSet toWrite;
+      Set<String>     toRemove;
+
+      synchronized (writeLock) {
+        toWrite  = pendingDataSet;
+        toRemove = pendingRemoves;
+
+        pendingDataSet = new KeyValueDataSet();
+        pendingRemoves = new HashSet<>();
+        flushScheduled = false;
+      }
+
+      if (!toWrite.getValues().isEmpty() || !toRemove.isEmpty()) {
+        storage.writeDataSet(toWrite, toRemove);
+      }
+    }
   }
 
-  private synchronized void write(@NonNull KeyValueDataSet newDataSet, @NonNull Collection<String> removes) {
-    initializeIfNecessary();
+  private @NonNull KeyValueDataSet getSnapshot() {
+    KeyValueDataSet snapshot = dataSet;
 
-    dataSet.putAll(newDataSet);
-    dataSet.removeAll(removes);
+    if (snapshot == null) {
+      synchronized (writeLock) {
+        if (dataSet == null) {
+          dataSet = copyOf(storage.getDataSet());
+        }
+        snapshot = dataSet;
+      }
+    }
 
-    executor.execute(() -> storage.writeDataSet(newDataSet, removes));
+    return snapshot;
   }
 
-  private void initializeIfNecessary() {
-    if (dataSet != null) return;
-    this.dataSet = storage.getDataSet();
+  private static @NonNull KeyValueDataSet copyOf(@NonNull KeyValueDataSet source) {
+    KeyValueDataSet copy = new KeyValueDataSet();
+    copy.putAll(source);
+    return copy;
   }
 
   class Writer {
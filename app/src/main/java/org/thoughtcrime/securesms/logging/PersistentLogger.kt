@@ -2,18 +2,15 @@ package org.thoughtcrime.securesms.logging
 
 import android.app.Application
 import android.os.Looper
+import androidx.annotation.VisibleForTesting
 import org.signal.core.util.logging.Log
 import org.signal.core.util.logging.Scrubber
-import org.thoughtcrime.securesms.BuildConfig
 import org.thoughtcrime.securesms.database.LogDatabase
 import org.thoughtcrime.securesms.database.model.LogEntry
 import org.thoughtcrime.securesms.logging.PersistentLogger.LogRequest
 import org.thoughtcrime.securesms.logging.PersistentLogger.WriteThread
 import java.io.ByteArrayOutputStream
 import java.io.PrintStream
-import java.text.SimpleDateFormat
-import java.util.Date
-import java.util.Locale
 
 /**
  * A logger that will persist log entries in [LogDatabase].
@@ -23,18 +20,42 @@ import java.util.Locale
  *
  * The process looks something like:
  * - Main thread creates a [LogRequest] object and puts it in a queue
- * - The [WriteThread] constantly pulls from that queue, formats the logs, and writes them to the database.
+ * - The [WriteThread] constantly pulls from that queue and writes everything it pulled to the database as a single binary batch.
+ * - Logs are only formatted into text when they're read back out, e.g. when submitting a debug log.
  */
 class PersistentLogger(
   application: Application
 ) : Log.Logger() {
 
   companion object {
-    private const val LOG_V = "V"
-    private const val LOG_D = "D"
-    private const val LOG_I = "I"
-    private const val LOG_W = "W"
-    private const val LOG_E = "E"
+    private const val LOG_V = 'V'
+    private const val LOG_D = 'D'
+    private const val LOG_I = 'I'
+    private const val LOG_W = 'W'
+    private const val LOG_E = 'E'
+
+    /**
+     * Everything that ends up in the database has to be scrubbed, including the stack trace, since exception messages can contain
+     * phone numbers, UUIDs, group ids and the like.
+     */
+    @VisibleForTesting
+    internal fun requestToEntry(request: LogRequest, traceBuffer: ByteArrayOutputStream = ByteArrayOutputStream()): LogEntry {
+      return LogEntry(
+        createdAt = request.createTime,
+        keepLonger = request.keepLonger,
+        level = request.level,
+        tag = request.tag,
+        threadString = request.threadString,
+        message = Scrubber.scrub(request.message ?: "").toString(),
+        stackTrace = request.throwable?.let { Scrubber.scrub(printStackTrace(it, traceBuffer)).toString() }
+      )
+    }
+
+    private fun printStackTrace(throwable: Throwable, traceBuffer: ByteArrayOutputStream): String {
+      traceBuffer.reset()
+      PrintStream(traceBuffer).use { throwable.printStackTrace(it) }
+      return String(traceBuffer.toByteArray())
+    }
   }
 
   private val logEntries = LogRequests()
@@ -71,7 +92,7 @@ class PersistentLogger(
     logEntries.blockForFlushed()
   }
 
-  private fun write(level: String, tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
+  private fun write(level: Char, tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
     logEntries.add(LogRequest(level, tag ?: "null", message, System.currentTimeMillis(), getThreadString(), t, keepLonger))
   }
 
@@ -91,8 +112,9 @@ class PersistentLogger(
     return threadString!!
   }
 
-  private data class LogRequest(
-    val level: String,
+  @VisibleForTesting
+  internal data class LogRequest(
+    val level: Char,
     val tag: String,
     val message: String?,
     val createTime: Long,
@@ -101,60 +123,29 @@ class PersistentLogger(
     val keepLonger: Boolean
   )
 
+  /**
+   * Writes requests to the database exactly as they were made. All of the text formatting (dates, prefixes, splitting stack traces into
+   * lines) is deferred until the logs are read back out, which is rare compared to how often they're written.
+   */
   private class WriteThread(
     private val requests: LogRequests,
     private val db: LogDatabase
   ) : Thread("signal-logger") {
 
-    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
     private val buffer = mutableListOf<LogRequest>()
+    private val entries = mutableListOf<LogEntry>()
+    private val traceBuffer = ByteArrayOutputStream()
 
     override fun run() {
       while (true) {
         requests.blockForRequests(buffer)
-        db.logs.insert(buffer.flatMap { requestToEntries(it) }, System.currentTimeMillis())
+        buffer.mapTo(entries) { requestToEntry(it, traceBuffer) }
+        db.logs.insert(entries, System.currentTimeMillis())
         buffer.clear()
+        entries.clear()
         requests.notifyFlushed()
       }
     }
-
-    fun requestToEntries(request: LogRequest): List<LogEntry> {
-      val out = mutableListOf<LogEntry>()
-
-      val createDate = Date(request.createTime)
-
-      out.add(
-        LogEntry(
-          createdAt = request.createTime,
-          keepLonger = request.keepLonger,
-          body = formatBody(request.threadString, createDate, request.level, request.tag, request.message)
-        )
-      )
-
-      if (request.throwable != null) {
-        val outputStream = ByteArrayOutputStream()
-        request.throwable.printStackTrace(PrintStream(outputStream))
-
-        val trace = String(outputStream.toByteArray())
-        val lines = trace.split("\\n".toRegex()).toTypedArray()
-
-        val entries = lines.map { line ->
-          LogEntry(
-            createdAt = request.createTime,
-            keepLonger = request.keepLonger,
-            body = formatBody(request.threadString, createDate, request.level, request.tag, line)
-          )
-        }
-
-        out.addAll(entries)
-      }
-
-      return out
-    }
-
-    fun formatBody(threadString: String, date: Date, level: String, tag: String, message: String?): String {
-      return "[${BuildConfig.VERSION_NAME}] [$threadString] ${dateFormat.format(date)} $level $tag: ${Scrubber.scrub(message ?: "")}"
-    }
   }
 
   private class LogRequests {
@@ -0,0 +1,113 @@
+package org.thoughtcrime.securesms.messages
+
+import android.os.Handler
+import androidx.annotation.VisibleForTesting
+import org.signal.core.util.ThreadUtil
+import org.signal.core.util.concurrent.SignalExecutors
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobs.SendDeliveryReceiptJob
+import org.thoughtcrime.securesms.recipients.RecipientId
+
+/**
+ * Collects the delivery receipts we owe for incoming messages so that we can send one receipt per sender covering many messages, rather
+ * than one job and one envelope per message.
+ *
+ * Receipts are only collected once the transaction that inserted the message has committed, so a batch that gets rolled back and
+ * reprocessed doesn't produce receipts twice. They're turned into [SendDeliveryReceiptJob]s, at most [SendDeliveryReceiptJob.MAX_TIMESTAMPS]
+ * messages per job, whenever [flushPending] is called or [windowMs] after the first pending receipt, whichever comes first. [IncomingMessageObserver]
+ * flushes at the end of each batch, before acking it, so receipts for a batch are handed to the job manager just as promptly as they were
+ * when each message enqueued its own job. From there they're persisted and retried like any other job.
+ */
+class DeliveryReceiptBatcher @VisibleForTesting constructor(
+  private val windowMs: Long,
+  private val scheduler: (Runnable, Long) -> Unit,
+  private val sink: (List<Batch>) -> Unit
+) {
+
+  companion object {
+    private val TAG = Log.tag(DeliveryReceiptBatcher::class.java)
+
+    private const val WINDOW_MS = 500L
+
+    private val INSTANCE: DeliveryReceiptBatcher by lazy {
+      val handler = Handler(SignalExecutors.getAndStartHandlerThread("delivery-receipts", ThreadUtil.PRIORITY_BACKGROUND_THREAD).looper)
+
+      DeliveryReceiptBatcher(
+        windowMs = WINDOW_MS,
+        scheduler = { runnable, delay -> handler.postDelayed(runnable, delay) },
+        sink = { batches ->
+          Log.d(TAG, "Enqueuing ${batches.size} delivery receipt job(s) for ${batches.sumOf { it.sentTimestamps.size }} message(s).")
+          ApplicationDependencies.getJobManager().addAll(batches.map { SendDeliveryReceiptJob(it.recipientId, it.sentTimestamps, it.messageIds) })
+        }
+      )
+    }
+
+    /**
+     * Queues up a delivery receipt for a message from [recipientId]. If called from within a transaction, the receipt is only queued once
+     * that transaction commits successfully.
+     */
+    fun enqueue(recipientId: RecipientId, sentTimestamp: Long, messageId: MessageId) {
+      SignalDatabase.runPostSuccessfulTransaction {
+        INSTANCE.add(recipientId, sentTimestamp, messageId)
+      }
+    }
+
+    /**
+     * Immediately enqueues jobs for any receipts that are waiting on the window to expire.
+     */
+    fun flushPending() {
+      INSTANCE.flush()
+    }
+  }
+
+  private val pending: MutableMap<RecipientId, MutableMap<Long, MessageId>> = LinkedHashMap()
+  private var flushScheduled = false
+
+  @VisibleForTesting
+  fun add(recipientId: RecipientId, sentTimestamp: Long, messageId: MessageId) {
+    val shouldSchedule = synchronized(pending) {
+      pending.getOrPut(recipientId) { LinkedHashMap() }[sentTimestamp] = messageId
+
+      if (flushScheduled) {
+        false
+      } else {
+        flushScheduled = true
+        true
+      }
+    }
+
+    if (shouldSchedule) {
+      scheduler(Runnable { flush() }, windowMs)
+    }
+  }
+
+  @VisibleForTesting
+  fun flush() {
+    val receipts: Map<RecipientId, Map<Long, MessageId>> = synchronized(pending) {
+      flushScheduled = false
+
+      if (pending.isEmpty()) {
+        return
+      }
+
+      LinkedHashMap(pending).also { pending.clear() }
+    }
+
+    val batches: List<Batch> = receipts.flatMap { (recipientId, messages) ->
+      messages.entries
+        .chunked(SendDeliveryReceiptJob.MAX_TIMESTAMPS)
+        .map { chunk -> Batch(recipientId, chunk.map { it.key }, chunk.map { it.value }) }
+    }
+
+    sink(batches)
+  }
+
+  data class Batch(
+    val recipientId: RecipientId,
+    val sentTimestamps: List<Long>,
+    val messageIds: List<MessageId>
+  )
+}
@@ -18,6 +18,7 @@ import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.groups.GroupsV2ProcessingLock
 import org.thoughtcrime.securesms.jobmanager.impl.BackoffUtil
 import org.thoughtcrime.securesms.jobmanager.impl.NetworkConstraint
+import org.thoughtcrime.securesms.jobs.DeferredMessageSearchIndexJob
 import org.thoughtcrime.securesms.jobs.ForegroundServiceUtil
 import org.thoughtcrime.securesms.jobs.ForegroundServiceUtil.startWhenCapable
 import org.thoughtcrime.securesms.jobs.PushProcessMessageErrorJob
@@ -29,7 +30,10 @@ import org.thoughtcrime.securesms.messages.protocol.BufferedProtocolStore
 import org.thoughtcrime.securesms.notifications.NotificationChannels
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.util.AppForegroundObserver
+import org.thoughtcrime.securesms.util.FeatureFlags
 import org.thoughtcrime.securesms.util.SignalLocalMetrics
+import org.whispersystems.signalservice.api.SignalWebSocket
+import org.whispersystems.signalservice.api.messages.EnvelopeResponse
 import org.whispersystems.signalservice.api.push.ServiceId
 import org.whispersystems.signalservice.api.util.UuidUtil
 import org.whispersystems.signalservice.api.websocket.WebSocketConnectionState
@@ -95,6 +99,7 @@ class IncomingMessageObserver(private val context: Application) {
   }
 
   private val messageContentProcessor = MessageContentProcessor(context)
+  private val decryptionPipeline = MessageDecryptionPipeline(context)
 
   private var appVisible = false
   private var lastInteractionTime: Long = System.currentTimeMillis()
@@ -264,7 +269,7 @@ class IncomingMessageObserver(private val context: Application) {
   }
 
   @VisibleForTesting
-  fun processEnvelope(bufferedProtocolStore: BufferedProtocolStore, envelope: Envelope, serverDeliveredTimestamp: Long): List<FollowUpOperation>? {
+  fun processEnvelope(bufferedProtocolStore: BufferedProtocolStore, envelope: Envelope, serverDeliveredTimestamp: Long, deferredQueues: MutableSet<String>? = null): List<FollowUpOperation>? {
     return when (envelope.type) {
       Envelope.Type.RECEIPT -> {
         processReceipt(envelope)
@@ -275,7 +280,7 @@ class IncomingMessageObserver(private val context: Application) {
       Envelope.Type.CIPHERTEXT,
       Envelope.Type.UNIDENTIFIED_SENDER,
       Envelope.Type.PLAINTEXT_CONTENT -> {
-        processMessage(bufferedProtocolStore, envelope, serverDeliveredTimestamp)
+        processMessage(bufferedProtocolStore, envelope, serverDeliveredTimestamp, deferredQueues)
       }
 
       else -> {
@@ -285,15 +290,46 @@ class IncomingMessageObserver(private val context: Application) {
     }
   }
 
-  private fun processMessage(bufferedProtocolStore: BufferedProtocolStore, envelope: Envelope, serverDeliveredTimestamp: Long): List<FollowUpOperation> {
+  private fun processMessage(bufferedProtocolStore: BufferedProtocolStore, envelope: Envelope, serverDeliveredTimestamp: Long, deferredQueues: MutableSet<String>?): List<FollowUpOperation> {
     val localReceiveMetric = SignalLocalMetrics.MessageReceive.start()
     val result = MessageDecryptor.decrypt(context, bufferedProtocolStore, envelope, serverDeliveredTimestamp)
     localReceiveMetric.onEnvelopeDecrypted()
 
+    return processDecryptionResult(envelope, serverDeliveredTimestamp, result, localReceiveMetric, deferredQueues)
+  }
+
+  /**
+   * Applies an envelope that was already decrypted by a [MessageDecryptionPipeline]. Envelopes that didn't need decryption are
+   * processed as usual.
+   */
+  private fun processDecryptedEnvelope(decrypted: MessageDecryptionPipeline.DecryptedEnvelope, deferredQueues: MutableSet<String>): List<FollowUpOperation>? {
+    val envelope = decrypted.response.envelope
+    val result = decrypted.result
+
+    decrypted.applyDeferredWrites()
+
+    return if (result != null && decrypted.localReceiveMetric != null) {
+      processDecryptionResult(envelope, decrypted.response.serverDeliveredTimestamp, result, decrypted.localReceiveMetric, deferredQueues)
+    } else if (envelope.type == Envelope.Type.RECEIPT) {
+      processReceipt(envelope)
+      null
+    } else {
+      Log.w(TAG, "Received envelope of unknown type: " + envelope.type)
+      null
+    }
+  }
+
+  private fun processDecryptionResult(
+    envelope: Envelope,
+    serverDeliveredTimestamp: Long,
+    result: MessageDecryptor.Result,
+    localReceiveMetric: SignalLocalMetrics.MessageReceive,
+    deferredQueues: MutableSet<String>?
+  ): List<FollowUpOperation> {
     SignalLocalMetrics.MessageLatency.onMessageReceived(envelope.serverTimestamp!!, serverDeliveredTimestamp, envelope.urgent!!)
     when (result) {
       is MessageDecryptor.Result.Success -> {
-        val job = PushProcessMessageJob.processOrDefer(messageContentProcessor, result, localReceiveMetric)
+        val job = PushProcessMessageJob.processOrDefer(messageContentProcessor, result, localReceiveMetric, deferredQueues)
         if (job != null) {
           return result.followUpOperations + FollowUpOperation { job }
         }
@@ -359,6 +395,7 @@ class IncomingMessageObserver(private val context: Application) {
 
     override fun run() {
       var attempts = 0
+      var searchIndexPending = false
 
       while (!terminated) {
         Log.i(TAG, "Waiting for websocket state change....")
@@ -387,37 +424,34 @@ class IncomingMessageObserver(private val context: Application) {
 
               val hasMore = signalWebSocket.readMessageBatch(websocketReadTimeout, 30) { batch ->
                 Log.i(TAG, "Retrieved ${batch.size} envelopes!")
-                val bufferedStore = BufferedProtocolStore.create()
 
                 val startTime = System.currentTimeMillis()
                 GroupsV2ProcessingLock.acquireGroupProcessingLock().use {
                   ReentrantSessionLock.INSTANCE.acquire().use {
-                    batch.forEach { response ->
-                      Log.d(TAG, "Beginning database transaction...")
-                      val followUpOperations = SignalDatabase.runInTransaction { db ->
-                        val followUps: List<FollowUpOperation>? = processEnvelope(bufferedStore, response.envelope, response.serverDeliveredTimestamp)
-                        bufferedStore.flushToDisk()
-                        followUps
-                      }
-                      Log.d(TAG, "Ended database transaction.")
-
-                      if (followUpOperations != null) {
-                        Log.d(TAG, "Running ${followUpOperations.size} follow-up operations...")
-                        val jobs = followUpOperations.mapNotNull { it.run() }
-                        ApplicationDependencies.getJobManager().addAll(jobs)
-                      }
-
-                      signalWebSocket.sendAck(response)
+                    if (batch.size > 1 && FeatureFlags.parallelMessageDecryption()) {
+                      processBatchWithDecryptionPipeline(signalWebSocket, batch)
+                    } else if (batch.size > 1 && FeatureFlags.messageBatchCommit()) {
+                      processBatchInSingleTransaction(signalWebSocket, batch)
+                    } else {
+                      processBatchPerEnvelope(signalWebSocket, batch, BufferedProtocolStore.create())
                     }
                   }
                 }
                 val duration = System.currentTimeMillis() - startTime
                 val timePerMessage: Float = duration / batch.size.toFloat()
                 Log.d(TAG, "Decrypted ${batch.size} envelopes in $duration ms (~${round(timePerMessage * 100) / 100} ms per message)")
+
+                searchIndexPending = searchIndexPending || FeatureFlags.deferredMessageSearchIndexing()
               }
               attempts = 0
               SignalLocalMetrics.PushWebsocketFetch.onProcessedBatch()
 
+              // While draining, the index is only caught up once at the end rather than after every batch
+              if (searchIndexPending && (!hasMore || decryptionDrained)) {
+                DeferredMessageSearchIndexJob.enqueue()
+                searchIndexPending = false
+              }
+
               if (!hasMore && !decryptionDrained) {
                 Log.i(TAG, "Decryptions newly-drained.")
                 decryptionDrained = true
@@ -447,13 +481,139 @@ class IncomingMessageObserver(private val context: Application) {
           Log.w(TAG, "Shutting down pipe...")
           disconnect()
           webSocketDisposable.dispose()
+
+          if (searchIndexPending) {
+            DeferredMessageSearchIndexJob.enqueue()
+            searchIndexPending = false
+          }
         }
         Log.i(TAG, "Looping...")
       }
       Log.w(TAG, "Terminated! (${this.hashCode()})")
     }
 
-    override fun uncaughtException(t: Thread, e: Throwable) {
+    /**
+     * Processes each envelope in its own transaction, flushing the protocol store and queueing the ack as soon as that
+     * envelope has been committed. Queued acks are flushed together at the end of the batch, along with any delivery receipts
+     * the batch produced.
+     */
+    private fun processBatchPerEnvelope(signalWebSocket: SignalWebSocket, batch: List<EnvelopeResponse>, bufferedStore: BufferedProtocolStore) {
+      val deferredQueues: MutableSet<String> = HashSet()
+
+      batch.forEach { response ->
+        Log.d(TAG, "Beginning database transaction...")
+        val followUpOperations = SignalDatabase.runInTransaction { db ->
+          val followUps: List<FollowUpOperation>? = processEnvelope(bufferedStore, response.envelope, response.serverDeliveredTimestamp, deferredQueues)
+          bufferedStore.flushToDisk()
+          followUps
+        }
+        Log.d(TAG, "Ended database transaction.")
+
+        if (followUpOperations != null) {
+          Log.d(TAG, "Running ${followUpOperations.size} follow-up operations...")
+          val jobs = followUpOperations.mapNotNull { it.run() }
+          ApplicationDependencies.getJobManager().addAll(jobs)
+        }
+
+        signalWebSocket.enqueueAck(response)
+      }
+
+      DeliveryReceiptBatcher.flushPending()
+      signalWebSocket.flushAcks()
+    }
+
+    /**
+     * Processes the entire batch inside of a single transaction with a single protocol store flush. Follow-up jobs are
+     * enqueued together and acks are only sent once the transaction has been committed.
+     *
+     * If anything in the batch throws, the transaction is rolled back and we fall back to [processBatchPerEnvelope] with a
+     * fresh protocol store, since the buffered store may contain session state from envelopes that were never committed.
+     * Jobs enqueued while processing the batch are held until the commit, so a rolled back batch leaves none behind.
+     */
+    private fun processBatchInSingleTransaction(signalWebSocket: SignalWebSocket, batch: List<EnvelopeResponse>) {
+      val bufferedStore = BufferedProtocolStore.create()
+      val deferredQueues: MutableSet<String> = HashSet()
+
+      Log.d(TAG, "Beginning batch database transaction for ${batch.size} envelopes...")
+      val followUpOperations: List<FollowUpOperation> = try {
+        runInBatchTransaction {
+          val followUps: List<FollowUpOperation> = batch.flatMap { response ->
+            processEnvelope(bufferedStore, response.envelope, response.serverDeliveredTimestamp, deferredQueues) ?: emptyList()
+          }
+          bufferedStore.flushToDisk()
+          followUps
+        }
+      } catch (e: Exception) {
+        Log.w(TAG, "Failed to process batch of ${batch.size} envelopes in a single transaction! Falling back to processing them individually.", e)
+        processBatchPerEnvelope(signalWebSocket, batch, BufferedProtocolStore.create())
+        return
+      }
+      Log.d(TAG, "Ended batch database transaction.")
+
+      if (followUpOperations.isNotEmpty()) {
+        Log.d(TAG, "Running ${followUpOperations.size} follow-up operations...")
+        val jobs = followUpOperations.mapNotNull { it.run() }
+        ApplicationDependencies.getJobManager().addAll(jobs)
+      }
+
+      DeliveryReceiptBatcher.flushPending()
+      signalWebSocket.sendAcks(batch)
+    }
+
+    /**
+     * Decrypts envelopes from different senders concurrently using [MessageDecryptionPipeline], then applies the results in server order
+     * inside of a single transaction, along with the flush of every partition's protocol store. Acks are sent after the commit.
+     *
+     * If either phase fails, nothing has been written to the protocol stores, so we can safely fall back to [processBatchPerEnvelope].
+     */
+    private fun processBatchWithDecryptionPipeline(signalWebSocket: SignalWebSocket, batch: List<EnvelopeResponse>) {
+      val followUpOperations: List<FollowUpOperation> = try {
+        val decrypted: MessageDecryptionPipeline.Output = decryptionPipeline.decrypt(batch)
+        val deferredQueues: MutableSet<String> = HashSet()
+
+        Log.d(TAG, "Beginning batch database transaction for ${batch.size} decrypted envelopes...")
+        runInBatchTransaction {
+          val followUps: List<FollowUpOperation> = decrypted.envelopes.flatMap { processDecryptedEnvelope(it, deferredQueues) ?: emptyList() }
+          decrypted.flushToDisk()
+          followUps
+        }
+      } catch (e: Exception) {
+        Log.w(TAG, "Failed to process batch of ${batch.size} envelopes with the decryption pipeline! Falling back to processing them individually.", e)
+        processBatchPerEnvelope(signalWebSocket, batch, BufferedProtocolStore.create())
+        return
+      }
+      Log.d(TAG, "Ended batch database transaction.")
+
+      if (followUpOperations.isNotEmpty()) {
+        Log.d(TAG, "Running ${followUpOperations.size} follow-up operations...")
+        val jobs = followUpOperations.mapNotNull { it.run() }
+        ApplicationDependencies.getJobManager().addAll(jobs)
+      }
+
+      DeliveryReceiptBatcher.flushPending()
+      signalWebSocket.sendAcks(batch)
+    }
+
+    /**
+     * Runs [block] in a transaction while holding any jobs the processors enqueue along the way. The held jobs are only
+     * submitted once the transaction commits. If it rolls back they are dropped, since the fallback path will replay the
+     * envelopes and enqueue them again.
+     */
+    private fun <T> runInBatchTransaction(block: () -> T): T {
+      val jobManager = ApplicationDependencies.getJobManager()
+      var committed = false
+
+      jobManager.holdEnqueues()
+      try {
+        val result: T = SignalDatabase.runInTransaction { block() }
+        committed = true
+        return result
+      } finally {
+        jobManager.releaseHeldEnqueues(committed)
+      }
+    }
+
+        override fun uncaughtException(t: Thread, e: Throwable) {
       Log.w(TAG, "Uncaught exception in message thread!", e)
     }
   }
@@ -0,0 +1,198 @@
+package org.thoughtcrime.securesms.messages
+
+import android.content.Context
+import org.signal.core.util.ThreadUtil
+import org.signal.core.util.concurrent.SignalExecutors
+import org.signal.core.util.logging.Log
+import org.signal.libsignal.metadata.SealedSessionCipher
+import org.thoughtcrime.securesms.crypto.ReentrantSessionLock
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.messages.protocol.BufferedProtocolStore
+import org.thoughtcrime.securesms.util.SignalLocalMetrics
+import org.whispersystems.signalservice.api.SignalSessionLock
+import org.whispersystems.signalservice.api.messages.EnvelopeResponse
+import org.whispersystems.signalservice.api.push.ServiceId
+import org.whispersystems.signalservice.internal.push.Envelope
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+
+/**
+ * Decrypts a batch of envelopes concurrently.
+ *
+ * Envelopes are partitioned by sender (service id + device). Envelopes from different senders only ever touch disjoint session, identity
+ * and sender key records, so each partition is decrypted on its own thread against its own [BufferedProtocolStore]. Envelopes within a
+ * partition are still decrypted in server order.
+ *
+ * For sealed sender envelopes, the sender is found by decrypting only the outer layer, which doesn't touch any session state.
+ *
+ * The decrypt workers don't write to the database. Protocol state stays in each partition's store, and the recipient writes decryption
+ * would normally make are collected in [DecryptedEnvelope.deferredWrites]. Recipient lookups that could insert or merge rows, like the
+ * ones needed to handle a decryption error, are left to the result's follow-up operations, which the caller runs after committing.
+ * The caller is expected to apply the results in order, starting with each envelope's [DecryptedEnvelope.applyDeferredWrites], and
+ * then call [Output.flushToDisk], all inside of the same transaction. That way a batch that fails part way through can be decrypted
+ * again from scratch without anything having been written twice.
+ *
+ * The caller *must* be holding [ReentrantSessionLock] for the entire lifetime of the pipeline. That is what keeps anyone else from touching
+ * sessions, which is what allows each partition to use a lock of its own instead.
+ */
+class MessageDecryptionPipeline(
+  private val context: Context,
+  private val executor: ExecutorService = DEFAULT_EXECUTOR
+) {
+
+  companion object {
+    private val TAG = Log.tag(MessageDecryptionPipeline::class.java)
+
+    private val DEFAULT_EXECUTOR: ExecutorService by lazy {
+      SignalExecutors.newCachedBoundedExecutor("signal-decrypt", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD, 1, Runtime.getRuntime().availableProcessors().coerceAtLeast(2), 30)
+    }
+  }
+
+  /**
+   * Decrypts the batch, returning results in the same order as the input.
+   *
+   * @throws Exception Any unexpected exception thrown while decrypting a partition. In this case none of the results are usable and the
+   *                   batch should be re-processed serially.
+   */
+  fun decrypt(batch: List<EnvelopeResponse>): Output {
+    check(ReentrantSessionLock.INSTANCE.isHeldByCurrentThread) { "Must hold the session lock!" }
+
+    val partitions: Map<String, List<Int>> = partition(batch)
+    val results: Array<DecryptedEnvelope?> = arrayOfNulls(batch.size)
+    val stores: MutableList<BufferedProtocolStore> = mutableListOf()
+
+    val tasks: List<Runnable> = partitions.values.map { indices ->
+      val store = BufferedProtocolStore.create()
+      stores += store
+
+      Runnable {
+        val partitionLock = PartitionSessionLock()
+
+        for (index in indices) {
+          val response = batch[index]
+          val localReceiveMetric = SignalLocalMetrics.MessageReceive.start()
+          val deferredWrites: MutableList<MessageDecryptor.DeferredWrite> = mutableListOf()
+          val result = MessageDecryptor.decrypt(context, store, response.envelope, response.serverDeliveredTimestamp, partitionLock, deferredWrites)
+          localReceiveMetric.onEnvelopeDecrypted()
+
+          results[index] = DecryptedEnvelope(response, result, localReceiveMetric, deferredWrites)
+        }
+      }
+    }
+
+    Log.d(TAG, "Decrypting ${batch.size} envelopes across ${tasks.size} partitions.")
+
+    if (tasks.size == 1) {
+      tasks[0].run()
+    } else {
+      val futures: List<Future<*>> = tasks.map { executor.submit(it) }
+
+      try {
+        futures.forEach { it.get() }
+      } catch (e: ExecutionException) {
+        futures.forEach { it.cancel(false) }
+        throw e.cause as? Exception ?: e
+      }
+    }
+
+    val envelopes: List<DecryptedEnvelope> = batch.mapIndexed { index, response ->
+      results[index] ?: DecryptedEnvelope(response, null, null, emptyList())
+    }
+
+    return Output(envelopes, stores)
+  }
+
+  /**
+   * Groups envelope indices by sender, preserving server order both within and across partitions. Envelopes that don't require
+   * decryption (like server receipts) aren't placed in any partition.
+   */
+  private fun partition(batch: List<EnvelopeResponse>): Map<String, List<Int>> {
+    val partitions: LinkedHashMap<String, MutableList<Int>> = LinkedHashMap()
+    val peekStore: BufferedProtocolStore by lazy { BufferedProtocolStore.create() }
+
+    batch.forEachIndexed { index, response ->
+      val envelope = response.envelope
+
+      val key: String? = when (envelope.type) {
+        Envelope.Type.PREKEY_BUNDLE,
+        Envelope.Type.CIPHERTEXT,
+        Envelope.Type.PLAINTEXT_CONTENT -> {
+          envelope.sourceServiceId?.let { "$it.${envelope.sourceDevice}" } ?: "unknown-$index"
+        }
+
+        Envelope.Type.UNIDENTIFIED_SENDER -> {
+          peekSealedSender(envelope, peekStore) ?: "unknown-$index"
+        }
+
+        else -> null
+      }
+
+      if (key != null) {
+        partitions.getOrPut(key) { mutableListOf() } += index
+      }
+    }
+
+    return partitions
+  }
+
+  /**
+   * Decrypts only the outer layer of a sealed sender envelope in order to determine the sender. This only reads our own identity key,
+   * so it has no side effects. Envelopes that fail here will fail the same way during real decryption, which will happen in a partition
+   * of their own.
+   */
+  private fun peekSealedSender(envelope: Envelope, store: BufferedProtocolStore): String? {
+    val destination: ServiceId = ServiceId.parseOrNull(envelope.destinationServiceId) ?: return null
+    val content = envelope.content ?: return null
+
+    return try {
+      val cipher = SealedSessionCipher(store.get(destination), SignalStore.account().requireAci().rawUuid, SignalStore.account().e164, SignalStore.account().deviceId)
+      val senderCertificate = cipher.decryptToUsmc(content.toByteArray()).senderCertificate
+
+      "${senderCertificate.senderUuid}.${senderCertificate.senderDeviceId}"
+    } catch (e: Exception) {
+      Log.w(TAG, "[${envelope.timestamp}] Unable to determine sealed sender. Decrypting in its own partition.")
+      null
+    }
+  }
+
+  /**
+   * A lock that is only ever used by a single partition. Exclusive access to the underlying sessions is guaranteed by the caller holding
+   * [ReentrantSessionLock] for the duration of the pipeline, and each partition only runs on one thread at a time.
+   */
+  private class PartitionSessionLock : SignalSessionLock {
+    override fun acquire(): SignalSessionLock.Lock {
+      return SignalSessionLock.Lock { }
+    }
+  }
+
+  /**
+   * The result of decrypting a single envelope. [result] is null for envelopes that did not need to be decrypted.
+   */
+  class DecryptedEnvelope(
+    val response: EnvelopeResponse,
+    val result: MessageDecryptor.Result?,
+    val localReceiveMetric: SignalLocalMetrics.MessageReceive?,
+    val deferredWrites: List<MessageDecryptor.DeferredWrite>
+  ) {
+    /**
+     * Makes the recipient writes that decrypting this envelope would have made. Should be called in the same transaction that applies
+     * [result], before it is applied.
+     */
+    fun applyDeferredWrites() {
+      deferredWrites.forEach { it.apply() }
+    }
+  }
+
+  class Output(
+    val envelopes: List<DecryptedEnvelope>,
+    private val stores: List<BufferedProtocolStore>
+  ) {
+    /**
+     * Writes the buffered protocol state of every partition to disk. Should be called in the same transaction that applies [envelopes].
+     */
+    fun flushToDisk() {
+      stores.forEach { it.flushToDisk() }
+    }
+  }
+}
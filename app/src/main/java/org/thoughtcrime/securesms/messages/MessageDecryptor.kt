@@ -50,6 +50,7 @@ import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.util.FeatureFlags
 import org.whispersystems.signalservice.api.InvalidMessageStructureException
+import org.whispersystems.signalservice.api.SignalSessionLock
 import org.whispersystems.signalservice.api.crypto.ContentHint
 import org.whispersystems.signalservice.api.crypto.EnvelopeMetadata
 import org.whispersystems.signalservice.api.crypto.SignalGroupSessionBuilder
@@ -81,12 +82,21 @@ object MessageDecryptor {
    * That means that this operation should be atomic when performed within a transaction.
    * To keep that property, there may be [Result.followUpOperations] you have to perform after your transaction is committed.
    * These can vary from enqueueing jobs to inserting items into the [org.thoughtcrime.securesms.database.PendingRetryReceiptCache].
+   *
+   * By default, cipher operations are guarded by [ReentrantSessionLock]. Callers that have already guaranteed exclusive access to the
+   * sessions involved (like [MessageDecryptionPipeline]) can provide a different [sessionLock].
+   *
+   * Callers that decrypt outside of a transaction (again, like [MessageDecryptionPipeline]) can provide [deferredWrites]. Recipient
+   * writes are then added to it instead of being made, and the caller has to apply them inside the transaction that flushes the
+   * protocol store. If it never does, decrypting again later has the exact same effect.
    */
   fun decrypt(
     context: Context,
     bufferedProtocolStore: BufferedProtocolStore,
     envelope: Envelope,
-    serverDeliveredTimestamp: Long
+    serverDeliveredTimestamp: Long,
+    sessionLock: SignalSessionLock = ReentrantSessionLock.INSTANCE,
+    deferredWrites: MutableList<DeferredWrite>? = null
   ): Result {
     val selfAci: ACI = SignalStore.account().requireAci()
     val selfPni: PNI = SignalStore.account().requirePni()
@@ -109,8 +119,10 @@ object MessageDecryptor {
       val sourceServiceId = ServiceId.parseOrNull(envelope.sourceServiceId)
 
       if (sourceServiceId != null) {
-        val sender = RecipientId.from(sourceServiceId)
-        SignalDatabase.recipients.markNeedsPniSignature(sender)
+        write(deferredWrites) {
+          val sender = RecipientId.from(sourceServiceId)
+          SignalDatabase.recipients.markNeedsPniSignature(sender)
+        }
       } else {
         Log.w(TAG, "${logPrefix(envelope)} Could not mark sender as needing a PNI signature because the sender serviceId was invalid!")
       }
@@ -131,7 +143,7 @@ object MessageDecryptor {
 
     val bufferedStore = bufferedProtocolStore.get(destination)
     val localAddress = SignalServiceAddress(selfAci, SignalStore.account().e164)
-    val cipher = SignalServiceCipher(localAddress, SignalStore.account().deviceId, bufferedStore, ReentrantSessionLock.INSTANCE, UnidentifiedAccessUtil.getCertificateValidator())
+    val cipher = SignalServiceCipher(localAddress, SignalStore.account().deviceId, bufferedStore, sessionLock, UnidentifiedAccessUtil.getCertificateValidator())
 
     return try {
       val startTimeNanos = System.nanoTime()
@@ -169,7 +181,8 @@ object MessageDecryptor {
           cipherResult.metadata.sourceServiceId,
           cipherResult.metadata.sourceDeviceId,
           SenderKeyDistributionMessage(cipherResult.content.senderKeyDistributionMessage!!.toByteArray()),
-          bufferedProtocolStore.getAciStore()
+          bufferedProtocolStore.getAciStore(),
+          sessionLock
         )
       }
 
@@ -181,7 +194,8 @@ object MessageDecryptor {
             cipherResult.metadata.sourceServiceId as ACI,
             cipherResult.metadata.sourceE164,
             cipherResult.metadata.sourceDeviceId,
-            cipherResult.content.pniSignatureMessage!!
+            cipherResult.content.pniSignatureMessage!!,
+            deferredWrites
           )
         } else {
           Log.w(TAG, "${logPrefix(envelope)} Ignoring PNI signature because the sourceServiceId isn't an ACI!")
@@ -192,8 +206,11 @@ object MessageDecryptor {
 
       // TODO We can move this to the "message processing" stage once we give it access to the envelope. But for now it'll stay here.
       if (envelope.reportingToken != null && envelope.reportingToken!!.size > 0) {
-        val sender = RecipientId.from(cipherResult.metadata.sourceServiceId)
-        SignalDatabase.recipients.setReportingToken(sender, envelope.reportingToken!!.toByteArray())
+        val reportingToken = envelope.reportingToken!!.toByteArray()
+        write(deferredWrites) {
+          val sender = RecipientId.from(cipherResult.metadata.sourceServiceId)
+          SignalDatabase.recipients.setReportingToken(sender, reportingToken)
+        }
       }
 
       Result.Success(envelope, serverDeliveredTimestamp, cipherResult.content, cipherResult.metadata, followUpOperations.toUnmodifiableList())
@@ -275,9 +292,11 @@ object MessageDecryptor {
     val contentHint: ContentHint = ContentHint.fromType(protocolException.contentHint)
     val senderDevice: Int = protocolException.senderDevice
     val receivedTimestamp: Long = System.currentTimeMillis()
-    val sender: Recipient = Recipient.external(context, protocolException.sender)
 
-    if (sender.isSelf) {
+    // Looking the sender up can insert or merge recipients, so it's left to the follow-up operations, which run after the transaction
+    val sender: Recipient by lazy { Recipient.external(context, protocolException.sender) }
+
+    if (isSelf(protocolException.sender)) {
       Log.w(TAG, "${logPrefix(envelope)} Decryption error for a sync message! Enqueuing a session reset job.")
 
       followUpOperations += FollowUpOperation {
@@ -324,14 +343,27 @@ object MessageDecryptor {
     }
   }
 
-  private fun handleSenderKeyDistributionMessage(envelope: Envelope, serviceId: ServiceId, deviceId: Int, message: SenderKeyDistributionMessage, senderKeyStore: SenderKeyStore) {
+  /**
+   * Whether a protocol exception's sender identifier is us, without resolving (and possibly inserting) a recipient for it.
+   */
+  private fun isSelf(sender: String): Boolean {
+    val serviceId: ServiceId? = ServiceId.parseOrNull(sender)
+
+    return if (serviceId != null) {
+      serviceId == SignalStore.account().aci || serviceId == SignalStore.account().pni
+    } else {
+      sender == SignalStore.account().e164
+    }
+  }
+
+  private fun handleSenderKeyDistributionMessage(envelope: Envelope, serviceId: ServiceId, deviceId: Int, message: SenderKeyDistributionMessage, senderKeyStore: SenderKeyStore, sessionLock: SignalSessionLock) {
     Log.i(TAG, "${logPrefix(envelope, serviceId)} Processing SenderKeyDistributionMessage for distributionId ${message.distributionId}")
 
     val sender = SignalProtocolAddress(serviceId.toString(), deviceId)
-    SignalGroupSessionBuilder(ReentrantSessionLock.INSTANCE, GroupSessionBuilder(senderKeyStore)).process(sender, message)
+    SignalGroupSessionBuilder(sessionLock, GroupSessionBuilder(senderKeyStore)).process(sender, message)
   }
 
-  private fun handlePniSignatureMessage(envelope: Envelope, protocolStore: BufferedProtocolStore, aci: ACI, e164: String?, deviceId: Int, pniSignatureMessage: PniSignatureMessage) {
+  private fun handlePniSignatureMessage(envelope: Envelope, protocolStore: BufferedProtocolStore, aci: ACI, e164: String?, deviceId: Int, pniSignatureMessage: PniSignatureMessage, deferredWrites: MutableList<DeferredWrite>?) {
     Log.i(TAG, "${logPrefix(envelope, aci)} Processing PniSignatureMessage")
 
     val pni: PNI = PNI.parseOrThrow(pniSignatureMessage.pni!!.toByteArray())
@@ -358,12 +390,22 @@ object MessageDecryptor {
 
     if (pniIdentity.verifyAlternateIdentity(aciIdentity, pniSignatureMessage.signature!!.toByteArray())) {
       Log.i(TAG, "${logPrefix(envelope, aci)}[validatePniSignature] PNI signature is valid. Associating ACI ($aci) with PNI ($pni)")
-      SignalDatabase.recipients.getAndPossiblyMergePnpVerified(aci, pni, e164)
+      write(deferredWrites) {
+        SignalDatabase.recipients.getAndPossiblyMergePnpVerified(aci, pni, e164)
+      }
     } else {
       Log.w(TAG, "${logPrefix(envelope, aci)}[validatePniSignature] Invalid PNI signature! Cannot associate ACI ($aci) with PNI ($pni)")
     }
   }
 
+  private fun write(deferredWrites: MutableList<DeferredWrite>?, write: DeferredWrite) {
+    if (deferredWrites != null) {
+      deferredWrites += write
+    } else {
+      write.apply()
+    }
+  }
+
   private fun postDecryptionErrorNotification(context: Context) {
     val notification: Notification = NotificationCompat.Builder(context, NotificationChannels.getInstance().FAILURES)
       .setSmallIcon(R.drawable.ic_notification)
@@ -537,4 +579,9 @@ object MessageDecryptor {
   fun interface FollowUpOperation {
     fun run(): Job?
   }
+
+  /** A database write made while decrypting that has to happen in the same transaction as the protocol store flush. */
+  fun interface DeferredWrite {
+    fun apply()
+  }
 }
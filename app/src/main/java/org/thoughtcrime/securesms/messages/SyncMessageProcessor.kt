@@ -345,8 +345,7 @@ object SyncMessageProcessor {
     }
 
     if (toRecipient.isSelf) {
-      SignalDatabase.messages.incrementDeliveryReceiptCount(sent.timestamp!!, toRecipient.id, System.currentTimeMillis())
-      SignalDatabase.messages.incrementReadReceiptCount(sent.timestamp!!, toRecipient.id, System.currentTimeMillis())
+      SignalDatabase.messages.incrementDeliveryAndReadReceiptCount(sent.timestamp!!, toRecipient.id, System.currentTimeMillis())
     }
   }
 
@@ -409,8 +408,7 @@ object SyncMessageProcessor {
         ApplicationDependencies.getExpiringMessageManager().scheduleDeletion(messageId, true, targetMessage.expireStarted, targetMessage.expireStarted)
       }
       if (toRecipient.isSelf) {
-        SignalDatabase.messages.incrementDeliveryReceiptCount(sent.timestamp!!, toRecipient.id, System.currentTimeMillis())
-        SignalDatabase.messages.incrementReadReceiptCount(sent.timestamp!!, toRecipient.id, System.currentTimeMillis())
+        SignalDatabase.messages.incrementDeliveryAndReadReceiptCount(sent.timestamp!!, toRecipient.id, System.currentTimeMillis())
       }
       SignalDatabase.messages.setTransactionSuccessful()
     } finally {
@@ -518,8 +516,7 @@ object SyncMessageProcessor {
       attachments = allAttachments.filterNot { it.isSticker }
 
       if (recipient.isSelf) {
-        SignalDatabase.messages.incrementDeliveryReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
-        SignalDatabase.messages.incrementReadReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
+        SignalDatabase.messages.incrementDeliveryAndReadReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
       }
 
       SignalDatabase.messages.setTransactionSuccessful()
@@ -739,8 +736,7 @@ object SyncMessageProcessor {
             .scheduleDeletion(messageId, true, sent.expirationStartTimestamp ?: 0, dataMessage.expireTimerDuration.inWholeMilliseconds)
         }
         if (recipient.isSelf) {
-          SignalDatabase.messages.incrementDeliveryReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
-          SignalDatabase.messages.incrementReadReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
+          SignalDatabase.messages.incrementDeliveryAndReadReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
         }
         SignalDatabase.messages.setTransactionSuccessful()
       } finally {
@@ -814,8 +810,7 @@ object SyncMessageProcessor {
         ApplicationDependencies.getExpiringMessageManager().scheduleDeletion(messageId, true, sent.expirationStartTimestamp ?: 0, dataMessage.expireTimerDuration.inWholeMilliseconds)
       }
       if (recipient.isSelf) {
-        SignalDatabase.messages.incrementDeliveryReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
-        SignalDatabase.messages.incrementReadReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
+        SignalDatabase.messages.incrementDeliveryAndReadReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
       }
       SignalDatabase.messages.setTransactionSuccessful()
     } finally {
@@ -874,8 +869,7 @@ object SyncMessageProcessor {
     }
 
     if (recipient.isSelf) {
-      SignalDatabase.messages.incrementDeliveryReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
-      SignalDatabase.messages.incrementReadReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
+      SignalDatabase.messages.incrementDeliveryAndReadReceiptCount(sent.timestamp!!, recipient.id, System.currentTimeMillis())
     }
 
     return threadId
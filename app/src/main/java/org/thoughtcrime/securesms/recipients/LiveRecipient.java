@@ -156,6 +156,19 @@ public final class LiveRecipient {
     return updated;
   }
 
+  /**
+   * Resolves the recipient using a record that has already been read from disk, such as one from a batched lookup. Does nothing if the
+   * recipient has already been resolved.
+   */
+  @WorkerThread
+  void resolve(@NonNull RecipientRecord record) {
+    if (!recipient.get().isResolving()) {
+      return;
+    }
+
+    set(buildAndCacheRecipient(record));
+  }
+
   @WorkerThread
   public void refresh() {
     refresh(getId());
@@ -190,7 +203,10 @@ public final class LiveRecipient {
   }
 
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
-    RecipientRecord  record  = recipientTable.getRecord(id);
+    return buildAndCacheRecipient(recipientTable.getRecord(id));
+  }
+
+  private @NonNull Recipient buildAndCacheRecipient(@NonNull RecipientRecord record) {
     RecipientDetails details;
     if (record.getGroupId() != null) {
       details = getGroupRecipientDetails(record);
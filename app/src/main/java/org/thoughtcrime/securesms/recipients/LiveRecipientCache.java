@@ -7,6 +7,7 @@ import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
@@ -15,6 +16,7 @@ import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.RecipientTable.MissingRecipientException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadTable;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.signal.core.util.CursorUtil;
@@ -27,23 +29,38 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Caches {@link LiveRecipient}s by id.
+ *
+ * The cache is split into stripes by id, each with its own lock and its own share of the size limit, so lookups for different recipients
+ * rarely contend with each other.
+ *
+ * Cache misses are resolved in batches: each miss is put on a queue, and a single task on the resolve executor drains it, reading the
+ * records for a whole batch of recipients with one query.
+ */
 public final class LiveRecipientCache {
 
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
   private static final int CACHE_MAX              = 1000;
+  private static final int CACHE_STRIPES          = 16;
   private static final int THREAD_CACHE_WARM_MAX  = 500;
   private static final int CONTACT_CACHE_WARM_MAX = 50;
+  private static final int RESOLVE_BATCH_MAX      = 100;
 
-  private final Context                         context;
-  private final RecipientTable                  recipientTable;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        resolveExecutor;
+  private final Context                               context;
+  private final RecipientTable                        recipientTable;
+  private final List<Map<RecipientId, LiveRecipient>> stripes;
+  private final LiveRecipient                         unknown;
+  private final Executor                              resolveExecutor;
+  private final Queue<LiveRecipient>                  pendingResolves;
+  private final AtomicBoolean                         resolveScheduled;
 
   private final AtomicReference<RecipientId> localRecipientId;
   private final AtomicBoolean                warmedUp;
@@ -56,26 +73,33 @@ public final class LiveRecipientCache {
   public LiveRecipientCache(@NonNull Context context, @NonNull Executor executor) {
     this.context        = context.getApplicationContext();
     this.recipientTable = SignalDatabase.recipients();
-    this.recipients     = new LRUCache<>(CACHE_MAX);
+    this.stripes        = new ArrayList<>(CACHE_STRIPES);
     this.warmedUp          = new AtomicBoolean(false);
     this.localRecipientId  = new AtomicReference<>(null);
     this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
     this.resolveExecutor   = executor;
+    this.pendingResolves   = new ConcurrentLinkedQueue<>();
+    this.resolveScheduled  = new AtomicBoolean(false);
+
+    for (int i = 0; i < CACHE_STRIPES; i++) {
+      stripes.add(new LRUCache<>(CACHE_MAX / CACHE_STRIPES));
+    }
   }
 
   @AnyThread
   @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
     if (id.isUnknown()) return unknown;
 
-    LiveRecipient live;
-    boolean       needsResolve;
+    Map<RecipientId, LiveRecipient> stripe = stripeFor(id);
+    LiveRecipient                   live;
+    boolean                         needsResolve;
 
-    synchronized (recipients) {
-      live = recipients.get(id);
+    synchronized (stripe) {
+      live = stripe.get(id);
 
       if (live == null) {
         live = new LiveRecipient(context, new Recipient(id));
-        recipients.put(id, live);
+        stripe.put(id, live);
         needsResolve = true;
       } else {
         needsResolve = false;
@@ -83,7 +107,7 @@ public final class LiveRecipientCache {
     }
 
     if (needsResolve) {
-      resolveExecutor.execute(live::resolve);
+      enqueueResolve(live);
     }
 
     return live;
@@ -93,11 +117,19 @@ public final class LiveRecipientCache {
    * Handles remapping cache entries when recipients are merged.
    */
   public void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
-    synchronized (recipients) {
-      if (recipients.containsKey(newId)) {
-        recipients.put(oldId, recipients.get(newId));
+    Map<RecipientId, LiveRecipient> newStripe = stripeFor(newId);
+    Map<RecipientId, LiveRecipient> oldStripe = stripeFor(oldId);
+    LiveRecipient                   newLive;
+
+    synchronized (newStripe) {
+      newLive = newStripe.get(newId);
+    }
+
+    synchronized (oldStripe) {
+      if (newLive != null) {
+        oldStripe.put(oldId, newLive);
       } else {
-        recipients.remove(oldId);
+        oldStripe.remove(oldId);
       }
     }
   }
@@ -111,15 +143,16 @@ public final class LiveRecipientCache {
   @AnyThread
   public void addToCache(@NonNull Collection<Recipient> newRecipients) {
     newRecipients.stream().filter(this::isValidForCache).forEach(recipient -> {
-      LiveRecipient live;
-      boolean       needsResolve;
+      Map<RecipientId, LiveRecipient> stripe = stripeFor(recipient.getId());
+      LiveRecipient                   live;
+      boolean                         needsResolve;
 
-      synchronized (recipients) {
-        live = recipients.get(recipient.getId());
+      synchronized (stripe) {
+        live = stripe.get(recipient.getId());
 
         if (live == null) {
           live = new LiveRecipient(context, recipient);
-          recipients.put(recipient.getId(), live);
+          stripe.put(recipient.getId(), live);
           needsResolve = recipient.isResolving();
         } else if (live.get().isResolving() || !recipient.isResolving()) {
           live.set(recipient);
@@ -260,8 +293,126 @@ public final class LiveRecipientCache {
 
   @AnyThread
   public void clear() {
-    synchronized (recipients) {
-      recipients.clear();
+    for (Map<RecipientId, LiveRecipient> stripe : stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  private @NonNull Map<RecipientId, LiveRecipient> stripeFor(@NonNull RecipientId id) {
+    return stripes.get((int) Math.floorMod(id.toLong(), (long) CACHE_STRIPES));
+  }
+
+  /**
+   * Queues the recipient to be resolved in the next batch, scheduling a drain of the queue if one isn't already running.
+   * <p>
+   * Callers in a transaction resolve inline instead, the same as {@link #resolveExecutor} does for them. The row may have been inserted in
+   * that transaction, so no other thread can see it yet. Likewise, other callers' misses are never drained inside someone's transaction.
+   */
+  private void enqueueResolve(@NonNull LiveRecipient live) {
+    if (SignalDatabase.inTransaction()) {
+      live.resolve();
+      return;
+    }
+
+    pendingResolves.add(live);
+
+    if (resolveScheduled.compareAndSet(false, true)) {
+      resolveExecutor.execute(this::resolvePending);
+    }
+  }
+
+  @WorkerThread
+  private void resolvePending() {
+    try {
+      while (true) {
+        List<LiveRecipient> batch = new ArrayList<>(RESOLVE_BATCH_MAX);
+        LiveRecipient       next;
+
+        while (batch.size() < RESOLVE_BATCH_MAX && (next = pendingResolves.poll()) != null) {
+          if (next.get().isResolving()) {
+            batch.add(next);
+          }
+        }
+
+        if (batch.isEmpty()) {
+          resolveScheduled.set(false);
+
+          // Something may have been queued between our last poll and clearing the flag, in which case nobody else scheduled a drain.
+          if (pendingResolves.isEmpty() || !resolveScheduled.compareAndSet(false, true)) {
+            return;
+          }
+        } else {
+          try {
+            resolveBatch(batch);
+          } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to resolve a batch of " + batch.size() + " recipients. Resolving them one at a time.", e);
+            resolveIndividually(batch);
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      resolveScheduled.set(false);
+
+      // Surface the failure, but don't leave what's still queued waiting on an unrelated enqueue
+      if (!pendingResolves.isEmpty() && resolveScheduled.compareAndSet(false, true)) {
+        resolveExecutor.execute(this::resolvePending);
+      }
+
+      throw e;
+    }
+  }
+
+  @WorkerThread
+  private void resolveBatch(@NonNull List<LiveRecipient> batch) {
+    if (batch.size() == 1) {
+      resolveIndividually(batch);
+      return;
+    }
+
+    List<RecipientId> ids = new ArrayList<>(batch.size());
+    for (LiveRecipient live : batch) {
+      ids.add(live.getId());
+    }
+
+    Map<RecipientId, RecipientRecord> records = recipientTable.getRecords(ids);
+
+    for (LiveRecipient live : batch) {
+      RecipientRecord record = records.get(live.getId());
+
+      if (record != null) {
+        live.resolve(record);
+      } else {
+        live.resolve();
+      }
+    }
+  }
+
+  /**
+   * Resolves each recipient on its own, so that one that fails to resolve doesn't leave the rest of the batch resolving forever. The first
+   * failure, such as a {@link MissingRecipientException}, is rethrown once the rest of the batch has been resolved.
+   */
+  @WorkerThread
+  private void resolveIndividually(@NonNull List<LiveRecipient> batch) {
+    RuntimeException failure = null;
+
+    for (LiveRecipient live : batch) {
+      if (!live.get().isResolving()) {
+        continue;
+      }
+
+      try {
+        live.resolve();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
     }
   }
 
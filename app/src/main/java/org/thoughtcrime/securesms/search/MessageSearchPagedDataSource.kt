@@ -0,0 +1,87 @@
+package org.thoughtcrime.securesms.search
+
+import android.os.CancellationSignal
+import android.os.OperationCanceledException
+import org.signal.core.util.logging.Log
+import org.signal.paging.PagedDataSource
+import org.thoughtcrime.securesms.database.SearchTable
+import java.util.TreeMap
+
+/**
+ * A paged message search. Only the requested page is ever fetched from the database, and snippets are only computed for the rows in that
+ * page.
+ *
+ * Pages are fetched with keyset pagination: the last hit of every loaded page is remembered, so the next page continues from it instead of
+ * skipping over everything before it.
+ *
+ * A new instance should be created for every query. Calling [cancel] on the previous instance aborts any query it still has in flight,
+ * which keeps stale searches from holding up the latest one while the user is typing.
+ */
+class MessageSearchPagedDataSource(
+  private val query: String,
+  private val order: SearchTable.MessageSearchOrder,
+  private val repository: SearchRepository
+) : PagedDataSource<Long, MessageResult> {
+
+  companion object {
+    private val TAG = Log.tag(MessageSearchPagedDataSource::class.java)
+
+    /** Matches the limit of the unpaged search. */
+    const val MAX_RESULTS = 500
+  }
+
+  private val queryCancellationSignal = CancellationSignal()
+
+  /** The last hit of each loaded page, keyed by the position of the item that follows it. */
+  private val keysetCursors: TreeMap<Int, SearchTable.MessageSearchHit> = TreeMap()
+
+  fun cancel() {
+    queryCancellationSignal.cancel()
+  }
+
+  override fun size(): Int {
+    if (queryCancellationSignal.isCanceled) {
+      return 0
+    }
+
+    return try {
+      repository.countMessagesForPaging(query, MAX_RESULTS, queryCancellationSignal)
+    } catch (e: OperationCanceledException) {
+      Log.d(TAG, "Count canceled.")
+      0
+    }
+  }
+
+  override fun load(start: Int, length: Int, totalSize: Int, cancellationSignal: PagedDataSource.CancellationSignal): List<MessageResult> {
+    if (length <= 0 || cancellationSignal.isCanceled || queryCancellationSignal.isCanceled) {
+      return emptyList()
+    }
+
+    val cursor: Map.Entry<Int, SearchTable.MessageSearchHit>? = synchronized(keysetCursors) { keysetCursors.floorEntry(start) }
+    val after: SearchTable.MessageSearchHit? = cursor?.value
+    val offset: Int = start - (cursor?.key ?: 0)
+
+    return try {
+      val hits = repository.queryMessageHits(query, order, after, offset, length, queryCancellationSignal)
+
+      if (hits.isNotEmpty()) {
+        synchronized(keysetCursors) {
+          keysetCursors[start + hits.size] = hits.last()
+        }
+      }
+
+      if (cancellationSignal.isCanceled) {
+        emptyList()
+      } else {
+        repository.getMessageResults(query, hits, queryCancellationSignal)
+      }
+    } catch (e: OperationCanceledException) {
+      Log.d(TAG, "Load canceled.")
+      emptyList()
+    }
+  }
+
+  override fun load(key: Long?): MessageResult? = error("Not supported")
+
+  override fun getKey(data: MessageResult): Long = data.messageId
+}
@@ -1,3 +1,6 @@
 package org.thoughtcrime.securesms.search
 
-data class MessageSearchResult(val results: List<MessageResult>, val query: String)
+/**
+ * @param isIndexCaughtUp False if deferred search indexing still has message changes to apply, in which case [results] may be incomplete.
+ */
+data class MessageSearchResult(val results: List<MessageResult>, val query: String, val isIndexCaughtUp: Boolean = true)
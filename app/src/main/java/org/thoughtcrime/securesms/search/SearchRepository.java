@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.search;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MergeCursor;
+import android.os.CancellationSignal;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
@@ -35,6 +36,7 @@ import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.database.model.databaseprotos.BodyRangeList;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobs.DeferredMessageSearchIndexJob;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.Util;
@@ -44,6 +46,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -111,15 +114,30 @@ public class SearchRepository {
 
   @WorkerThread
   public @NonNull MessageSearchResult queryMessagesSync(@NonNull String query) {
+    return queryMessagesSync(query, queryMentionMessagesSync(query));
+  }
+
+  /**
+   * Same as {@link #queryMessagesSync(String)}, but with the results of {@link #queryMentionMessagesSync(String)} already looked up.
+   */
+  @WorkerThread
+  public @NonNull MessageSearchResult queryMessagesSync(@NonNull String query, @NonNull List<MessageResult> mentionMessages) {
     long start = System.currentTimeMillis();
 
-    List<MessageResult> messages        = queryMessages(query);
-    List<MessageResult> mentionMessages = queryMentions(convertMentionsQueryToTokens(query));
-    List<MessageResult> combined        = mergeMessagesAndMentions(messages, mentionMessages);
+    List<MessageResult> messages = queryMessages(query);
+    List<MessageResult> combined = mergeMessagesAndMentions(messages, mentionMessages);
 
     Log.d(TAG, "[messages] Search took " + (System.currentTimeMillis() - start) + " ms");
 
-    return new MessageSearchResult(combined, query);
+    return new MessageSearchResult(combined, query, checkIndexCaughtUp());
+  }
+
+  /**
+   * Finds messages that mention someone whose name matches the query.
+   */
+  @WorkerThread
+  public @NonNull List<MessageResult> queryMentionMessagesSync(@NonNull String query) {
+    return queryMentions(convertMentionsQueryToTokens(query));
   }
 
   public void query(@NonNull String query, long threadId, @NonNull Callback<List<MessageResult>> callback) {
@@ -211,6 +229,75 @@ public class SearchRepository {
       results = readToList(cursor, new MessageModelBuilder());
     }
 
+    return applyMentionsAndStyles(results);
+  }
+
+  /**
+   * Counts matching messages for a paged search, up to {@code limit}. Unlike {@link #queryMessagesSync(String)}, mentions are not searched.
+   */
+  @WorkerThread
+  public int countMessagesForPaging(@NonNull String query, int limit, @Nullable CancellationSignal cancellationSignal) {
+    int count = searchDatabase.countMessages(query, limit, cancellationSignal);
+    checkIndexCaughtUp();
+    return count;
+  }
+
+  /**
+   * Finds the next page of matching messages for a paged search. See {@link SearchTable#queryMessageHits}.
+   */
+  @WorkerThread
+  public @NonNull List<SearchTable.MessageSearchHit> queryMessageHits(@NonNull String query,
+                                                                     @NonNull SearchTable.MessageSearchOrder order,
+                                                                     @Nullable SearchTable.MessageSearchHit after,
+                                                                     int offset,
+                                                                     int limit,
+                                                                     @Nullable CancellationSignal cancellationSignal)
+  {
+    return searchDatabase.queryMessageHits(query, order, after, offset, limit, cancellationSignal);
+  }
+
+  /**
+   * Builds full results, including snippets, for a page of hits. Results are returned in the same order as {@code hits}.
+   */
+  @WorkerThread
+  public @NonNull List<MessageResult> getMessageResults(@NonNull String query, @NonNull List<SearchTable.MessageSearchHit> hits, @Nullable CancellationSignal cancellationSignal) {
+    if (hits.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<Long> messageIds = new ArrayList<>(hits.size());
+    for (SearchTable.MessageSearchHit hit : hits) {
+      messageIds.add(hit.getMessageId());
+    }
+
+    Map<Long, MessageResult> resultsById = new HashMap<>(hits.size());
+    try (Cursor cursor = searchDatabase.queryMessagesById(query, messageIds, cancellationSignal)) {
+      for (MessageResult result : readToList(cursor, new MessageModelBuilder())) {
+        resultsById.put(result.getMessageId(), result);
+      }
+    }
+
+    List<MessageResult> ordered = new ArrayList<>(hits.size());
+    for (Long messageId : messageIds) {
+      MessageResult result = resultsById.get(messageId);
+      if (result != null) {
+        ordered.add(result);
+      }
+    }
+
+    return applyMentionsAndStyles(ordered);
+  }
+
+  private boolean checkIndexCaughtUp() {
+    boolean indexCaughtUp = searchDatabase.isIndexCaughtUp();
+    if (!indexCaughtUp) {
+      Log.i(TAG, "[messages] Search index is still catching up. Results may be incomplete.");
+      DeferredMessageSearchIndexJob.enqueue();
+    }
+    return indexCaughtUp;
+  }
+
+  private @NonNull List<MessageResult> applyMentionsAndStyles(@NonNull List<MessageResult> results) {
     List<Long> messageIds = new LinkedList<>();
     for (MessageResult result : results) {
       if (result.isMms()) {
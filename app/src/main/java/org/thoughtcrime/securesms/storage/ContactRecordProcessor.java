@@ -21,9 +21,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
 
@@ -33,7 +35,8 @@ public class ContactRecordProcessor extends DefaultStorageRecordProcessor<Signal
 
   private static final Pattern E164_PATTERN = Pattern.compile("^\\+[1-9]\\d{0,18}$");
 
-  private final RecipientTable recipientTable;
+  private final RecipientTable      recipientTable;
+  private final LocalRecipientIndex localRecipients;
 
   private final ACI    selfAci;
   private final PNI    selfPni;
@@ -47,10 +50,11 @@ public class ContactRecordProcessor extends DefaultStorageRecordProcessor<Signal
   }
 
   ContactRecordProcessor(@Nullable ACI selfAci, @Nullable PNI selfPni, @Nullable String selfE164, @NonNull RecipientTable recipientTable) {
-    this.recipientTable = recipientTable;
-    this.selfAci        = selfAci;
-    this.selfPni        = selfPni;
-    this.selfE164       = selfE164;
+    this.recipientTable  = recipientTable;
+    this.localRecipients = new LocalRecipientIndex(recipientTable);
+    this.selfAci         = selfAci;
+    this.selfPni         = selfPni;
+    this.selfE164        = selfE164;
   }
 
   /**
@@ -65,6 +69,8 @@ public class ContactRecordProcessor extends DefaultStorageRecordProcessor<Signal
    */
   @Override
   public void process(@NonNull Collection<SignalContactRecord> remoteRecords, @NonNull StorageKeyGenerator keyGenerator) throws IOException {
+    localRecipients.clear();
+
     List<SignalContactRecord> unregisteredAciOnly = new ArrayList<>();
     List<SignalContactRecord> pniE164Only         = new ArrayList<>();
 
@@ -104,6 +110,7 @@ public class ContactRecordProcessor extends DefaultStorageRecordProcessor<Signal
         Log.w(TAG, "Found a situation where we need to split our local record in two in order to match the remote state.");
 
         SignalDatabase.recipients().splitForStorageSync(localMatch.get().getId().getRaw());
+        localRecipients.clear();
       }
     }
 
@@ -140,25 +147,41 @@ public class ContactRecordProcessor extends DefaultStorageRecordProcessor<Signal
     }
   }
 
+  @Override
+  void prefetchMatching(@NonNull Collection<SignalContactRecord> remoteRecords) {
+    Set<ACI>    acis  = new HashSet<>();
+    Set<PNI>    pnis  = new HashSet<>();
+    Set<String> e164s = new HashSet<>();
+
+    for (SignalContactRecord remote : remoteRecords) {
+      remote.getAci().ifPresent(acis::add);
+      remote.getPni().ifPresent(pnis::add);
+      remote.getNumber().ifPresent(e164s::add);
+    }
+
+    localRecipients.loadContacts(acis, pnis, e164s);
+  }
+
   @Override
   @NonNull Optional<SignalContactRecord> getMatching(@NonNull SignalContactRecord remote, @NonNull StorageKeyGenerator keyGenerator) {
-    Optional<RecipientId> found = remote.getAci().isPresent() ? recipientTable.getByAci(remote.getAci().get()) : Optional.empty();
+    Optional<RecipientId> found = remote.getAci().isPresent() ? localRecipients.getByAci(remote.getAci().get()) : Optional.empty();
 
     if (found.isEmpty() && remote.getNumber().isPresent()) {
-      found = recipientTable.getByE164(remote.getNumber().get());
+      found = localRecipients.getByE164(remote.getNumber().get());
     }
 
     if (found.isEmpty() && remote.getPni().isPresent()) {
-      found = recipientTable.getByPni(remote.getPni().get());
+      found = localRecipients.getByPni(remote.getPni().get());
     }
 
-    return found.map(recipientTable::getRecordForSync)
+    return found.map(localRecipients::getRecordForSync)
                 .map(settings -> {
                   if (settings.getStorageId() != null) {
                     return StorageSyncModels.localToRemoteRecord(settings);
                   } else {
                     Log.w(TAG, "Newly discovering a registered user via storage service. Saving a storageId for them.");
                     recipientTable.updateStorageId(settings.getId(), keyGenerator.generate());
+                    localRecipients.forgetRecord(settings.getId());
 
                     RecipientRecord updatedSettings = Objects.requireNonNull(recipientTable.getRecordForSync(settings.getId()));
                     return StorageSyncModels.localToRemoteRecord(updatedSettings);
@@ -278,11 +301,21 @@ public class ContactRecordProcessor extends DefaultStorageRecordProcessor<Signal
   @Override
   void insertLocal(@NonNull SignalContactRecord record) {
     recipientTable.applyStorageSyncContactInsert(record);
+    forget(record);
   }
 
   @Override
   void updateLocal(@NonNull StorageRecordUpdate<SignalContactRecord> update) {
     recipientTable.applyStorageSyncContactUpdate(update);
+    forget(update.getOld());
+    forget(update.getNew());
+  }
+
+  /**
+   * Writing a contact can move its identifiers between rows, or merge rows together, but only rows that share an identifier with it.
+   */
+  private void forget(@NonNull SignalContactRecord record) {
+    localRecipients.forgetContact(record.getAci().orElse(null), record.getPni().orElse(null), record.getNumber().orElse(null));
   }
 
   @Override
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.storage;
 
 import androidx.annotation.NonNull;
 
+import org.signal.core.util.Stopwatch;
 import org.signal.core.util.logging.Log;
 import org.whispersystems.signalservice.api.storage.SignalRecord;
 
@@ -41,8 +42,16 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
    */
   @Override
   public void process(@NonNull Collection<E> remoteRecords, @NonNull StorageKeyGenerator keyGenerator) throws IOException {
-    Set<E> matchedRecords = new TreeSet<>(this);
-    int    i              = 0;
+    if (remoteRecords.isEmpty()) {
+      return;
+    }
+
+    Stopwatch stopwatch      = new Stopwatch(getClass().getSimpleName() + " (" + remoteRecords.size() + " records)");
+    Set<E>    matchedRecords = new TreeSet<>(this);
+    int       i              = 0;
+
+    prefetchMatching(remoteRecords);
+    stopwatch.split("prefetch");
 
     for (E remote : remoteRecords) {
       if (isInvalid(remote)) {
@@ -76,6 +85,9 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
 
       i++;
     }
+
+    stopwatch.split("process");
+    stopwatch.stop(TAG);
   }
 
   private void info(int i, E record, String message) {
@@ -91,6 +103,14 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
    */
   abstract boolean isInvalid(@NonNull E remote);
 
+  /**
+   * Called with all of the remote records before any of them are processed, so that implementations can load what they'll need for
+   * {@link #getMatching(SignalRecord, StorageKeyGenerator)} in bulk rather than one record at a time. Records haven't been checked for
+   * validity yet.
+   */
+  void prefetchMatching(@NonNull Collection<E> remoteRecords) {
+  }
+
   /**
    * Only records that pass the validity check (i.e. return false from {@link #isInvalid(SignalRecord)}
    * make it to here, so you can assume all records are valid.
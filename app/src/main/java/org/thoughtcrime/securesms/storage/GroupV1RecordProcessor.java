@@ -16,7 +16,10 @@ import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.whispersystems.signalservice.api.storage.SignalGroupV1Record;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * Handles merging remote storage updates into local group v1 state.
@@ -25,16 +28,18 @@ public final class GroupV1RecordProcessor extends DefaultStorageRecordProcessor<
 
   private static final String TAG = Log.tag(GroupV1RecordProcessor.class);
 
-  private final GroupTable     groupDatabase;
-  private final RecipientTable recipientTable;
+  private final GroupTable          groupDatabase;
+  private final RecipientTable      recipientTable;
+  private final LocalRecipientIndex localRecipients;
 
   public GroupV1RecordProcessor(@NonNull Context context) {
     this(SignalDatabase.groups(), SignalDatabase.recipients());
   }
 
   GroupV1RecordProcessor(@NonNull GroupTable groupDatabase, @NonNull RecipientTable recipientTable) {
-    this.groupDatabase  = groupDatabase;
-    this.recipientTable = recipientTable;
+    this.groupDatabase   = groupDatabase;
+    this.recipientTable  = recipientTable;
+    this.localRecipients = new LocalRecipientIndex(recipientTable);
   }
 
   /**
@@ -62,13 +67,28 @@ public final class GroupV1RecordProcessor extends DefaultStorageRecordProcessor<
     }
   }
 
+  @Override
+  void prefetchMatching(@NonNull Collection<SignalGroupV1Record> remoteRecords) {
+    Set<GroupId.V1> groupIds = new HashSet<>();
+
+    for (SignalGroupV1Record remote : remoteRecords) {
+      try {
+        groupIds.add(GroupId.v1(remote.getGroupId()));
+      } catch (BadGroupIdException e) {
+        // Will be caught as invalid
+      }
+    }
+
+    localRecipients.loadGroups(groupIds);
+  }
+
   @Override
   @NonNull Optional<SignalGroupV1Record> getMatching(@NonNull SignalGroupV1Record record, @NonNull StorageKeyGenerator keyGenerator) {
     GroupId.V1 groupId = GroupId.v1orThrow(record.getGroupId());
 
-    Optional<RecipientId> recipientId = recipientTable.getByGroupId(groupId);
+    Optional<RecipientId> recipientId = localRecipients.getByGroupId(groupId);
 
-    return recipientId.map(recipientTable::getRecordForSync)
+    return recipientId.map(localRecipients::getRecordForSync)
                       .map(StorageSyncModels::localToRemoteRecord)
                       .map(r -> r.getGroupV1().get());
   }
@@ -102,11 +122,13 @@ public final class GroupV1RecordProcessor extends DefaultStorageRecordProcessor<
   @Override
   void insertLocal(@NonNull SignalGroupV1Record record) {
     recipientTable.applyStorageSyncGroupV1Insert(record);
+    localRecipients.forgetGroup(GroupId.v1orThrow(record.getGroupId()));
   }
 
   @Override
   void updateLocal(@NonNull StorageRecordUpdate<SignalGroupV1Record> update) {
     recipientTable.applyStorageSyncGroupV1Update(update);
+    localRecipients.forgetGroup(GroupId.v1orThrow(update.getOld().getGroupId()));
   }
 
   @Override
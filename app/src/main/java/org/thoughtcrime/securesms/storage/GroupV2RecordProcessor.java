@@ -18,16 +18,20 @@ import org.whispersystems.signalservice.internal.storage.protos.GroupV2Record;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public final class GroupV2RecordProcessor extends DefaultStorageRecordProcessor<SignalGroupV2Record> {
 
   private static final String TAG = Log.tag(GroupV2RecordProcessor.class);
 
-  private final Context        context;
-  private final RecipientTable recipientTable;
-  private final GroupTable     groupDatabase;
+  private final Context             context;
+  private final RecipientTable      recipientTable;
+  private final GroupTable          groupDatabase;
+  private final LocalRecipientIndex localRecipients;
   private final Map<GroupId.V2, GroupId.V1> gv1GroupsByExpectedGv2Id;
 
   public GroupV2RecordProcessor(@NonNull Context context) {
@@ -38,6 +42,7 @@ public final class GroupV2RecordProcessor extends DefaultStorageRecordProcessor<
     this.context                  = context;
     this.recipientTable           = recipientTable;
     this.groupDatabase            = groupDatabase;
+    this.localRecipients          = new LocalRecipientIndex(recipientTable);
     this.gv1GroupsByExpectedGv2Id = groupDatabase.getAllExpectedV2Ids();
   }
 
@@ -46,19 +51,33 @@ public final class GroupV2RecordProcessor extends DefaultStorageRecordProcessor<
     return remote.getMasterKeyBytes().length != GroupMasterKey.SIZE;
   }
 
+  @Override
+  void prefetchMatching(@NonNull Collection<SignalGroupV2Record> remoteRecords) {
+    Set<GroupId.V2> groupIds = new HashSet<>();
+
+    for (SignalGroupV2Record remote : remoteRecords) {
+      if (!isInvalid(remote)) {
+        groupIds.add(GroupId.v2(remote.getMasterKeyOrThrow()));
+      }
+    }
+
+    localRecipients.loadGroups(groupIds);
+  }
+
   @Override
   @NonNull Optional<SignalGroupV2Record> getMatching(@NonNull SignalGroupV2Record record, @NonNull StorageKeyGenerator keyGenerator) {
     GroupId.V2 groupId = GroupId.v2(record.getMasterKeyOrThrow());
 
-    Optional<RecipientId> recipientId = recipientTable.getByGroupId(groupId);
+    Optional<RecipientId> recipientId = localRecipients.getByGroupId(groupId);
 
-    return recipientId.map(recipientTable::getRecordForSync)
+    return recipientId.map(localRecipients::getRecordForSync)
                       .map(settings -> {
                         if (settings.getSyncExtras().getGroupMasterKey() != null) {
                           return StorageSyncModels.localToRemoteRecord(settings);
                         } else {
                           Log.w(TAG, "No local master key. Assuming it matches remote since the groupIds match. Enqueuing a fetch to fix the bad state.");
                           groupDatabase.fixMissingMasterKey(record.getMasterKeyOrThrow());
+                          localRecipients.forgetRecord(settings.getId());
                           return StorageSyncModels.localToRemoteRecord(settings, record.getMasterKeyOrThrow());
                         }
                       })
@@ -118,11 +137,14 @@ public final class GroupV2RecordProcessor extends DefaultStorageRecordProcessor<
     } else {
       recipientTable.applyStorageSyncGroupV2Insert(record);
     }
+
+    localRecipients.forgetGroup(actualV2Id);
   }
 
   @Override
   void updateLocal(@NonNull StorageRecordUpdate<SignalGroupV2Record> update) {
     recipientTable.applyStorageSyncGroupV2Update(update);
+    localRecipients.forgetGroup(GroupId.v2(update.getOld().getMasterKeyOrThrow()));
   }
 
   @Override
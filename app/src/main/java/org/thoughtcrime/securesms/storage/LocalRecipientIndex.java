@@ -0,0 +1,164 @@
+package org.thoughtcrime.securesms.storage;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.database.RecipientTable;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
+import org.thoughtcrime.securesms.groups.GroupId;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.whispersystems.signalservice.api.push.ServiceId.ACI;
+import org.whispersystems.signalservice.api.push.ServiceId.PNI;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * An in-memory snapshot of the recipients that a batch of remote storage records could match, so that a processor can find matches with a
+ * few bulk queries up front rather than a handful of point queries per record.
+ * <p>
+ * Identifiers that were loaded but didn't match anything are remembered as misses, so they don't need to go to the database either. Anything
+ * that was never loaded falls through to the database.
+ * <p>
+ * Processing a record can write to the recipient table, including merging rows together, so whenever that happens the processor must
+ * forget the identifiers and rows involved. From then on, lookups for them go to the database again.
+ */
+final class LocalRecipientIndex {
+
+  private final RecipientTable recipientTable;
+
+  private final Map<ACI, Optional<RecipientId>>     byAci     = new HashMap<>();
+  private final Map<PNI, Optional<RecipientId>>     byPni     = new HashMap<>();
+  private final Map<String, Optional<RecipientId>>  byE164    = new HashMap<>();
+  private final Map<GroupId, Optional<RecipientId>> byGroupId = new HashMap<>();
+  private final Map<RecipientId, RecipientRecord>   records   = new HashMap<>();
+
+  LocalRecipientIndex(@NonNull RecipientTable recipientTable) {
+    this.recipientTable = recipientTable;
+  }
+
+  /**
+   * Replaces the contents of the index with the recipients matching any of the provided identifiers.
+   */
+  void loadContacts(@NonNull Collection<ACI> acis, @NonNull Collection<PNI> pnis, @NonNull Collection<String> e164s) {
+    clear();
+
+    load(byAci, acis, recipientTable.getByAcis(acis));
+    load(byPni, pnis, recipientTable.getByPnis(pnis));
+    load(byE164, e164s, recipientTable.getByE164s(e164s));
+
+    loadRecords();
+  }
+
+  /**
+   * Replaces the contents of the index with the recipients for the provided groups.
+   */
+  void loadGroups(@NonNull Collection<? extends GroupId> groupIds) {
+    clear();
+
+    load(byGroupId, groupIds, recipientTable.getByGroupIds(new HashSet<>(groupIds)));
+
+    loadRecords();
+  }
+
+  @NonNull Optional<RecipientId> getByAci(@NonNull ACI aci) {
+    Optional<RecipientId> cached = byAci.get(aci);
+    return cached != null ? cached : recipientTable.getByAci(aci);
+  }
+
+  @NonNull Optional<RecipientId> getByPni(@NonNull PNI pni) {
+    Optional<RecipientId> cached = byPni.get(pni);
+    return cached != null ? cached : recipientTable.getByPni(pni);
+  }
+
+  @NonNull Optional<RecipientId> getByE164(@NonNull String e164) {
+    Optional<RecipientId> cached = byE164.get(e164);
+    return cached != null ? cached : recipientTable.getByE164(e164);
+  }
+
+  @NonNull Optional<RecipientId> getByGroupId(@NonNull GroupId groupId) {
+    Optional<RecipientId> cached = byGroupId.get(groupId);
+    return cached != null ? cached : recipientTable.getByGroupId(groupId);
+  }
+
+  @Nullable RecipientRecord getRecordForSync(@NonNull RecipientId id) {
+    RecipientRecord cached = records.get(id);
+    return cached != null ? cached : recipientTable.getRecordForSync(id);
+  }
+
+  /**
+   * Forgets everything we know about a contact with any of the provided identifiers, along with any rows they were pointing to, including
+   * which other identifiers point to those rows.
+   */
+  void forgetContact(@Nullable ACI aci, @Nullable PNI pni, @Nullable String e164) {
+    if (aci != null)  forget(byAci, aci);
+    if (pni != null)  forget(byPni, pni);
+    if (e164 != null) forget(byE164, e164);
+  }
+
+  /**
+   * Forgets everything we know about a group, along with the row it was pointing to and which other identifiers point to it.
+   */
+  void forgetGroup(@NonNull GroupId groupId) {
+    forget(byGroupId, groupId);
+  }
+
+  /**
+   * Forgets the cached contents of a row, without forgetting which identifiers point to it.
+   */
+  void forgetRecord(@NonNull RecipientId id) {
+    records.remove(id);
+  }
+
+  void clear() {
+    byAci.clear();
+    byPni.clear();
+    byE164.clear();
+    byGroupId.clear();
+    records.clear();
+  }
+
+  private <K> void load(@NonNull Map<K, Optional<RecipientId>> index, @NonNull Collection<? extends K> requested, @NonNull Map<? extends K, RecipientId> found) {
+    for (K key : requested) {
+      index.put(key, Optional.ofNullable(found.get(key)));
+    }
+  }
+
+  private void loadRecords() {
+    Set<RecipientId> ids = new HashSet<>();
+
+    collectIds(byAci, ids);
+    collectIds(byPni, ids);
+    collectIds(byE164, ids);
+    collectIds(byGroupId, ids);
+
+    records.putAll(recipientTable.getRecordsForSync(ids));
+  }
+
+  private static void collectIds(@NonNull Map<?, Optional<RecipientId>> index, @NonNull Set<RecipientId> out) {
+    for (Optional<RecipientId> id : index.values()) {
+      id.ifPresent(out::add);
+    }
+  }
+
+  /**
+   * A row that was written to may have been merged into another, so every identifier that pointed to it is forgotten too. Otherwise a later
+   * lookup by one of them would still find the row that no longer exists.
+   */
+  private <K> void forget(@NonNull Map<K, Optional<RecipientId>> index, @NonNull K key) {
+    Optional<RecipientId> id = index.remove(key);
+
+    if (id != null && id.isPresent()) {
+      records.remove(id.get());
+
+      byAci.values().removeIf(id::equals);
+      byPni.values().removeIf(id::equals);
+      byE164.values().removeIf(id::equals);
+      byGroupId.values().removeIf(id::equals);
+    }
+  }
+}
@@ -120,6 +120,12 @@ public final class FeatureFlags {
   private static final String IDEAL_DONATIONS                   = "android.ideal.donations.2";
   public  static final String IDEAL_ENABLED_REGIONS             = "global.donations.idealEnabledRegions";
   public  static final String SEPA_ENABLED_REGIONS              = "global.donations.sepaEnabledRegions";
+  private static final String MESSAGE_BATCH_COMMIT              = "android.messageBatchCommit";
+  private static final String PARALLEL_MESSAGE_DECRYPTION       = "android.parallelMessageDecryption";
+  private static final String DEFERRED_MESSAGE_SEARCH_INDEXING  = "android.deferredMessageSearchIndexing";
+  private static final String ADAPTIVE_CONVERSATION_PAGING      = "android.adaptiveConversationPaging";
+  public  static final String INCREMENTAL_THREAD_SUMMARIES      = "android.incrementalThreadSummaries";
+  public  static final String MESSAGE_POSITION_INDEX            = "android.messagePositionIndex";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -191,7 +197,13 @@ public final class FeatureFlags {
       SEPA_DEBIT_DONATIONS,
       IDEAL_DONATIONS,
       IDEAL_ENABLED_REGIONS,
-      SEPA_ENABLED_REGIONS
+      SEPA_ENABLED_REGIONS,
+      MESSAGE_BATCH_COMMIT,
+      PARALLEL_MESSAGE_DECRYPTION,
+      DEFERRED_MESSAGE_SEARCH_INDEXING,
+      ADAPTIVE_CONVERSATION_PAGING,
+      INCREMENTAL_THREAD_SUMMARIES,
+      MESSAGE_POSITION_INDEX
   );
 
   @VisibleForTesting
@@ -263,7 +275,13 @@ public final class FeatureFlags {
       PROMPT_BATTERY_SAVER,
       USERNAMES,
       CRASH_PROMPT_CONFIG,
-      BLOCK_SSE
+      BLOCK_SSE,
+      MESSAGE_BATCH_COMMIT,
+      PARALLEL_MESSAGE_DECRYPTION,
+      DEFERRED_MESSAGE_SEARCH_INDEXING,
+      ADAPTIVE_CONVERSATION_PAGING,
+      INCREMENTAL_THREAD_SUMMARIES,
+      MESSAGE_POSITION_INDEX
   );
 
   /**
@@ -697,6 +715,51 @@ public final class FeatureFlags {
     return getString(SEPA_ENABLED_REGIONS, "");
   }
 
+  /**
+   * Whether or not a websocket batch of envelopes should be processed in a single database transaction, with a single protocol
+   * store flush and acks sent after the commit, rather than one transaction per envelope.
+   */
+  public static boolean messageBatchCommit() {
+    return getBoolean(MESSAGE_BATCH_COMMIT, false);
+  }
+
+  /**
+   * Whether or not envelopes from different senders in a websocket batch should be decrypted concurrently. Implies batch commits.
+   */
+  public static boolean parallelMessageDecryption() {
+    return getBoolean(PARALLEL_MESSAGE_DECRYPTION, false);
+  }
+
+  /**
+   * Whether or not message writes should only record which rows changed, leaving the actual search index updates to a background job.
+   */
+  public static boolean deferredMessageSearchIndexing() {
+    return getBoolean(DEFERRED_MESSAGE_SEARCH_INDEXING, false);
+  }
+
+  /**
+   * Whether or not the conversation should prefetch pages ahead of the scroll position based on scroll velocity.
+   */
+  public static boolean adaptiveConversationPaging() {
+    return getBoolean(ADAPTIVE_CONVERSATION_PAGING, false);
+  }
+
+  /**
+   * Whether or not thread summaries (snippet, unread counts, etc.) should be updated from the message that changed rather than recomputed
+   * from the whole thread.
+   */
+  public static boolean incrementalThreadSummaries() {
+    return getBoolean(INCREMENTAL_THREAD_SUMMARIES, false);
+  }
+
+  /**
+   * Whether or not message positions and conversation page offsets should be resolved with the bucketed counts in the message position
+   * table rather than by counting messages.
+   */
+  public static boolean messagePositionIndex() {
+    return getBoolean(MESSAGE_POSITION_INDEX, false);
+  }
+
   /** Only for rendering debug info. */
   public static synchronized @NonNull Map<String, Object> getMemoryValues() {
     return new TreeMap<>(REMOTE_VALUES);
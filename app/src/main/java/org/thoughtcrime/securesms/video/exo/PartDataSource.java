@@ -68,7 +68,13 @@ class PartDataSource implements DataSource {
 
         long skipped = 0;
         while (skipped < dataSpec.position) {
-          skipped += this.inputStream.read();
+          long result = this.inputStream.skip(dataSpec.position - skipped);
+
+          if (result <= 0) {
+            throw new EOFException("Could not skip to " + dataSpec.position);
+          }
+
+          skipped += result;
         }
 
         Log.d(TAG, "Successfully loaded partial attachment file.");
@@ -0,0 +1,139 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+class BackupPipelineTest {
+
+  private val executor: ExecutorService = Executors.newCachedThreadPool()
+
+  @After
+  fun tearDown() {
+    executor.shutdownNow()
+  }
+
+  @Test
+  fun `writes and prefetched streams are written in the order they were queued`() {
+    val random = Random(42)
+    val output = ByteArrayOutputStream()
+    val expected = ByteArrayOutputStream()
+
+    BackupPipeline(executor, 4, 2, 16, 2).use { pipeline ->
+      for (i in 0 until 500) {
+        if (random.nextBoolean()) {
+          val data = ByteArray(random.nextInt(200)).also { random.nextBytes(it) }
+          expected.write(data)
+
+          val stream = pipeline.prefetch { ByteArrayInputStream(data) }
+          pipeline.enqueue {
+            stream.awaitOpen().use { it.copyTo(output, 7) }
+          }
+        } else {
+          expected.write(i)
+          pipeline.enqueue { output.write(i) }
+        }
+      }
+
+      pipeline.finish()
+    }
+
+    assertArrayEquals(expected.toByteArray(), output.toByteArray())
+  }
+
+  @Test
+  fun `failing to open a stream is rethrown from awaitOpen`() {
+    var missing = false
+
+    BackupPipeline(executor, 4, 1, 16, 2).use { pipeline ->
+      for (i in 0 until 5) {
+        val stream = pipeline.prefetch { throw FileNotFoundException() }
+        pipeline.enqueue {
+          try {
+            stream.awaitOpen().use { fail() }
+          } catch (e: FileNotFoundException) {
+            missing = true
+          }
+        }
+      }
+
+      pipeline.finish()
+    }
+
+    assertTrue(missing)
+  }
+
+  @Test
+  fun `a failed write is rethrown to the caller`() {
+    BackupPipeline(executor, 2, 1, 16, 2).use { pipeline ->
+      pipeline.enqueue { throw IOException("boom") }
+
+      try {
+        for (i in 0 until 100) {
+          val stream = pipeline.prefetch { ByteArrayInputStream(ByteArray(1000)) }
+          pipeline.enqueue { stream.awaitOpen().use { it.read() } }
+        }
+        pipeline.finish()
+        fail()
+      } catch (e: IOException) {
+        assertEquals("boom", e.message)
+      }
+    }
+  }
+
+  @Test
+  fun `close abandons queued writes`() {
+    val blocker = CountDownLatch(1)
+    var written = 0
+
+    val pipeline = BackupPipeline(executor, 4, 2, 16, 1)
+    pipeline.enqueue { blocker.await() }
+
+    val stream = pipeline.prefetch { ByteArrayInputStream(ByteArray(1000)) }
+    pipeline.enqueue { stream.awaitOpen().use { it.readBytes() } }
+    pipeline.enqueue { written++ }
+
+    executor.execute {
+      Thread.sleep(100)
+      blocker.countDown()
+    }
+
+    pipeline.close()
+
+    assertEquals(0, written)
+  }
+
+  @Test
+  fun `writeBehind writes everything in order and closes the destination`() {
+    var closed = false
+    val destination = object : ByteArrayOutputStream() {
+      override fun close() {
+        closed = true
+      }
+    }
+
+    BackupPipeline(executor, 2).use { pipeline ->
+      pipeline.writeBehind(destination).use { output ->
+        for (i in 0 until 1000) {
+          output.write(byteArrayOf(i.toByte(), 0), 0, 1)
+        }
+      }
+
+      pipeline.finish()
+    }
+
+    assertArrayEquals(ByteArray(1000) { it.toByte() }, destination.toByteArray())
+    assertTrue(closed)
+  }
+}
@@ -0,0 +1,35 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class BulkInsertWriterTest {
+
+  @Test
+  fun `getSingleRowInsertColumnCount - single row inserts`() {
+    assertEquals(1, BulkInsertWriter.getSingleRowInsertColumnCount("INSERT INTO message VALUES (?)"))
+    assertEquals(3, BulkInsertWriter.getSingleRowInsertColumnCount("INSERT INTO message VALUES (?,?,?)"))
+  }
+
+  @Test
+  fun `getSingleRowInsertColumnCount - anything else`() {
+    assertEquals(-1, BulkInsertWriter.getSingleRowInsertColumnCount("CREATE TABLE message (_id INTEGER PRIMARY KEY)"))
+    assertEquals(-1, BulkInsertWriter.getSingleRowInsertColumnCount("INSERT INTO message VALUES (1,?)"))
+    assertEquals(-1, BulkInsertWriter.getSingleRowInsertColumnCount("INSERT INTO message (_id) VALUES (?)"))
+    assertEquals(-1, BulkInsertWriter.getSingleRowInsertColumnCount("INSERT INTO message VALUES (?,?),(?,?)"))
+    assertEquals(-1, BulkInsertWriter.getSingleRowInsertColumnCount("INSERT INTO message VALUES ()"))
+  }
+
+  @Test
+  fun `buildMultiRowInsert - one row`() {
+    assertEquals("INSERT INTO message VALUES (?,?)", BulkInsertWriter.buildMultiRowInsert("INSERT INTO message VALUES (?,?)", 2, 1))
+  }
+
+  @Test
+  fun `buildMultiRowInsert - several rows`() {
+    assertEquals(
+      "INSERT INTO message VALUES (?,?,?),(?,?,?),(?,?,?)",
+      BulkInsertWriter.buildMultiRowInsert("INSERT INTO message VALUES (?,?,?)", 3, 3)
+    )
+  }
+}
@@ -0,0 +1,61 @@
+package org.thoughtcrime.securesms.blurhash
+
+import org.junit.Ignore
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Compares [BlurHashEncoder] and [BlurHashDecoder] against the implementations they replaced. Not run as part of the build, since it only
+ * prints timings and takes a while.
+ */
+@Ignore("Benchmark, run manually")
+class BlurHashBenchmark {
+
+  companion object {
+    private const val WARMUP_ITERATIONS = 200
+    private const val ITERATIONS = 1000
+  }
+
+  private val random = Random(42)
+
+  @Test
+  fun encode() {
+    // Roughly the size of an image after it has been sampled down for encoding
+    val width = 64
+    val height = 48
+    val pixels = IntArray(width * height) { random.nextInt() }
+
+    compare(
+      "encode",
+      legacy = { LegacyBlurHash.encode(pixels, width, height, 4, 3) },
+      current = { BlurHashEncoder.encode(pixels, width, height, 4, 3) }
+    )
+  }
+
+  @Test
+  fun decode() {
+    val hash = LegacyBlurHash.encode(IntArray(64 * 48) { random.nextInt() }, 64, 48, 4, 3)
+    val pixels = IntArray(20 * 20)
+
+    compare(
+      "decode",
+      legacy = { LegacyBlurHash.decode(hash, 20, 20, 1.0) },
+      current = { BlurHashDecoder.decodeInto(hash, 20, 20, 1.0, pixels) }
+    )
+  }
+
+  private fun compare(name: String, legacy: () -> Any, current: () -> Any) {
+    val legacyNanos = measure(legacy)
+    val currentNanos = measure(current)
+
+    println("$name: legacy ${legacyNanos / 1000.0}us, current ${currentNanos / 1000.0}us (${"%.1f".format(legacyNanos / currentNanos.toDouble())}x)")
+  }
+
+  private fun measure(block: () -> Any): Long {
+    repeat(WARMUP_ITERATIONS) { block() }
+
+    val start = System.nanoTime()
+    repeat(ITERATIONS) { block() }
+    return (System.nanoTime() - start) / ITERATIONS
+  }
+}
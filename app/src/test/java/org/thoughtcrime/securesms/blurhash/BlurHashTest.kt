@@ -0,0 +1,64 @@
+package org.thoughtcrime.securesms.blurhash
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+import java.util.Random
+
+class BlurHashTest {
+
+  private val random = Random(42)
+
+  @Test
+  fun `encode matches the reference implementation`() {
+    repeat(200) {
+      val width = random.nextInt(80) + 1
+      val height = random.nextInt(80) + 1
+      val componentX = random.nextInt(9) + 1
+      val componentY = random.nextInt(9) + 1
+      val pixels = randomImage(width, height)
+
+      assertEquals(
+        LegacyBlurHash.encode(pixels, width, height, componentX, componentY),
+        BlurHashEncoder.encode(pixels, width, height, componentX, componentY)
+      )
+    }
+  }
+
+  @Test
+  fun `decode matches the reference implementation`() {
+    repeat(200) {
+      val hash = LegacyBlurHash.encode(randomImage(16, 16), 16, 16, random.nextInt(9) + 1, random.nextInt(9) + 1)
+      val width = random.nextInt(40) + 1
+      val height = random.nextInt(40) + 1
+      val pixels = IntArray(width * height)
+
+      BlurHashDecoder.decodeInto(hash, width, height, 1.0, pixels)
+
+      assertArrayEquals(LegacyBlurHash.decode(hash, width, height, 1.0), pixels)
+    }
+  }
+
+  @Test
+  fun `decode rejects invalid hashes`() {
+    val pixels = IntArray(16)
+
+    assertFalse(BlurHashDecoder.decodeInto(null, 4, 4, 1.0, pixels))
+    assertFalse(BlurHashDecoder.decodeInto("LEHV6", 4, 4, 1.0, pixels))
+    assertFalse(BlurHashDecoder.decodeInto("LEHV6nWB2yk8pyo0adR*.7kCMdn", 4, 4, 1.0, pixels))
+  }
+
+  private fun randomImage(width: Int, height: Int): IntArray {
+    val first = random.nextInt()
+    val second = random.nextInt()
+
+    return IntArray(width * height) { i ->
+      when {
+        random.nextInt(4) == 0 -> random.nextInt()
+        (i % width + i / width) % 2 == 0 -> first
+        else -> second
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.thoughtcrime.securesms.blurhash;
+
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.max;
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
+
+/**
+ * The straightforward blur hash encoder and decoder that {@link BlurHashEncoder} and {@link BlurHashDecoder} used to be, working on
+ * pixel arrays rather than bitmaps. Used as a reference for correctness and speed.
+ */
+final class LegacyBlurHash {
+
+  private LegacyBlurHash() {}
+
+  static String encode(int[] pixels, int width, int height, int componentX, int componentY) {
+    double[][] factors = new double[componentX * componentY][3];
+    for (int j = 0; j < componentY; j++) {
+      for (int i = 0; i < componentX; i++) {
+        double normalisation = i == 0 && j == 0 ? 1 : 2;
+        applyBasisFunction(pixels, width, height,
+            normalisation, i, j,
+            factors, j * componentX + i);
+      }
+    }
+
+    char[] hash = new char[1 + 1 + 4 + 2 * (factors.length - 1)];
+
+    long sizeFlag = componentX - 1 + (componentY - 1) * 9;
+    Base83.encode(sizeFlag, 1, hash, 0);
+
+    double maximumValue;
+    if (factors.length > 1) {
+      double actualMaximumValue    = max(factors, 1, factors.length);
+      double quantisedMaximumValue = Math.floor(Math.max(0, Math.min(82, Math.floor(actualMaximumValue * 166 - 0.5))));
+      maximumValue = (quantisedMaximumValue + 1) / 166;
+      Base83.encode(Math.round(quantisedMaximumValue), 1, hash, 1);
+    } else {
+      maximumValue = 1;
+      Base83.encode(0, 1, hash, 1);
+    }
+
+    double[] dc = factors[0];
+    Base83.encode(encodeDC(dc), 4, hash, 2);
+
+    for (int i = 1; i < factors.length; i++) {
+      Base83.encode(encodeAC(factors[i], maximumValue), 2, hash, 6 + 2 * (i - 1));
+    }
+    return new String(hash);
+  }
+
+  static int[] decode(String blurHash, int width, int height, double punch) {
+    int numCompEnc = Base83.decode(blurHash, 0, 1);
+    int numCompX   = (numCompEnc % 9) + 1;
+    int numCompY   = (numCompEnc / 9) + 1;
+
+    int        maxAcEnc = Base83.decode(blurHash, 1, 2);
+    double     maxAc    = (maxAcEnc + 1) / 166f;
+    double[][] colors   = new double[numCompX * numCompY][];
+    for (int i = 0; i < colors.length; i++) {
+      if (i == 0) {
+        int colorEnc = Base83.decode(blurHash, 2, 6);
+        colors[i] = decodeDc(colorEnc);
+      } else {
+        int from = 4 + i * 2;
+        int colorEnc = Base83.decode(blurHash, from, from + 2);
+        colors[i] = decodeAc(colorEnc, maxAc * punch);
+      }
+    }
+
+    int[] pixels = new int[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        double r = 0f;
+        double g = 0f;
+        double b = 0f;
+
+        for (int j = 0; j < numCompY; j++) {
+          for (int i = 0; i < numCompX; i++) {
+            double basis = (Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height));
+            double[] color = colors[j * numCompX + i];
+            r += color[0] * basis;
+            g += color[1] * basis;
+            b += color[2] * basis;
+          }
+        }
+        pixels[y * width + x] = 0xff000000 | ((int) linearTosRGB(r) << 16) | ((int) linearTosRGB(g) << 8) | (int) linearTosRGB(b);
+      }
+    }
+
+    return pixels;
+  }
+
+  private static void applyBasisFunction(int[] pixels, int width, int height,
+                                         double normalisation, int i, int j,
+                                         double[][] factors, int index)
+  {
+    double r = 0, g = 0, b = 0;
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        double basis = normalisation
+                     * Math.cos((Math.PI * i * x) / width)
+                     * Math.cos((Math.PI * j * y) / height);
+        int pixel = pixels[y * width + x];
+        r += basis * sRGBToLinear((pixel >> 16) & 0xff);
+        g += basis * sRGBToLinear((pixel >> 8)  & 0xff);
+        b += basis * sRGBToLinear( pixel        & 0xff);
+      }
+    }
+    double scale = 1.0 / (width * height);
+    factors[index][0] = r * scale;
+    factors[index][1] = g * scale;
+    factors[index][2] = b * scale;
+  }
+
+  private static long encodeDC(double[] value) {
+    long r = linearTosRGB(value[0]);
+    long g = linearTosRGB(value[1]);
+    long b = linearTosRGB(value[2]);
+    return (r << 16) + (g << 8) + b;
+  }
+
+  private static long encodeAC(double[] value, double maximumValue) {
+    double quantR = Math.floor(Math.max(0, Math.min(18, Math.floor(signPow(value[0] / maximumValue, 0.5) * 9 + 9.5))));
+    double quantG = Math.floor(Math.max(0, Math.min(18, Math.floor(signPow(value[1] / maximumValue, 0.5) * 9 + 9.5))));
+    double quantB = Math.floor(Math.max(0, Math.min(18, Math.floor(signPow(value[2] / maximumValue, 0.5) * 9 + 9.5))));
+    return Math.round(quantR * 19 * 19 + quantG * 19 + quantB);
+  }
+
+  private static double[] decodeDc(int colorEnc) {
+    int r = colorEnc >> 16;
+    int g = (colorEnc >> 8) & 255;
+    int b = colorEnc & 255;
+    return new double[] { sRGBToLinear(r), sRGBToLinear(g), sRGBToLinear(b) };
+  }
+
+  private static double[] decodeAc(int value, double maxAc) {
+    int r = value / (19 * 19);
+    int g = (value / 19) % 19;
+    int b = value % 19;
+    return new double[] {
+        signPow((r - 9) / 9.0f, 2f) * maxAc,
+        signPow((g - 9) / 9.0f, 2f) * maxAc,
+        signPow((b - 9) / 9.0f, 2f) * maxAc
+    };
+  }
+}
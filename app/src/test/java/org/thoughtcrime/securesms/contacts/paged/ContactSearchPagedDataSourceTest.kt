@@ -8,15 +8,21 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.kotlin.any
 import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.eq
 import org.mockito.kotlin.isNull
 import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.annotation.Config
 import org.thoughtcrime.securesms.MockCursor
+import org.thoughtcrime.securesms.database.SearchTable
 import org.thoughtcrime.securesms.database.model.DistributionListPrivacyMode
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.search.MessageResult
+import org.thoughtcrime.securesms.search.SearchRepository
 import org.thoughtcrime.securesms.util.adapter.mapping.MappingModel
 
 @RunWith(RobolectricTestRunner::class)
@@ -141,6 +147,36 @@ class ContactSearchPagedDataSourceTest {
     Assert.assertEquals(expected.data?.getString("n"), actual.data?.getString("n"))
   }
 
+  @Test
+  fun `Given messages without mentions, when I load past the first page, then I expect pages to continue from the last hit`() {
+    val searchRepository: SearchRepository = mock()
+    val firstPage = (0 until 20).map { SearchTable.MessageSearchHit(messageId = 100L - it, dateReceived = 1000L - it, rank = 0.0) }
+    val secondPage = (20 until 25).map { SearchTable.MessageSearchHit(messageId = 100L - it, dateReceived = 1000L - it, rank = 0.0) }
+
+    whenever(searchRepository.queryMentionMessagesSync("hello")).thenReturn(emptyList())
+    whenever(searchRepository.countMessagesForPaging(eq("hello"), any(), any())).thenReturn(25)
+    whenever(searchRepository.queryMessageHits(eq("hello"), eq(SearchTable.MessageSearchOrder.RECENCY), isNull(), eq(0), eq(20), any())).thenReturn(firstPage)
+    whenever(searchRepository.queryMessageHits(eq("hello"), eq(SearchTable.MessageSearchOrder.RECENCY), eq(firstPage.last()), eq(0), eq(20), any())).thenReturn(secondPage)
+    whenever(searchRepository.getMessageResults(eq("hello"), any(), any())).thenAnswer { invocation ->
+      invocation.getArgument<List<SearchTable.MessageSearchHit>>(1).map { MessageResult(Recipient.UNKNOWN, Recipient.UNKNOWN, "hello", "hello", 1, it.messageId, it.dateReceived, true) }
+    }
+
+    val configuration = ContactSearchConfiguration.build {
+      query = "hello"
+      addSection(ContactSearchConfiguration.Section.Messages())
+    }
+
+    val testSubject = ContactSearchPagedDataSource(configuration, repository, searchRepository = searchRepository)
+
+    Assert.assertEquals(26, testSubject.size())
+
+    val result = testSubject.load(0, 26, 26) { false }
+
+    val expected = listOf(ContactSearchKey.Header(ContactSearchConfiguration.SectionKey.MESSAGES)) + (0 until 25).map { ContactSearchKey.Message(100L - it) }
+    Assert.assertEquals(expected, result.map { it.contactSearchKey })
+    verify(searchRepository, never()).queryMessagesSync(any(), any())
+  }
+
   private fun createArbitrarySubject(): ContactSearchPagedDataSource {
     val configuration = ContactSearchConfiguration.build {
       arbitrary(
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.thoughtcrime.securesms.database.EmojiSearchIndex.Entry
+import java.util.Random
+
+class EmojiSearchIndexTest {
+
+  private val entries = listOf(
+    Entry(label = "smile", emoji = "😄", rank = 1),
+    Entry(label = "smiley", emoji = "😃", rank = 2),
+    Entry(label = "cat", emoji = "🐱", rank = 3),
+    Entry(label = "smiling cat", emoji = "😸", rank = 4),
+    Entry(label = "grin", emoji = "😁", rank = 5),
+    Entry(label = "happy", emoji = "😄", rank = 6),
+    Entry(label = "catcat", emoji = "🐈", rank = Int.MAX_VALUE)
+  )
+
+  @Test
+  fun `build returns null when there are no entries`() {
+    assertNull(EmojiSearchIndex.build(emptyList()))
+  }
+
+  @Test
+  fun `build returns null when there are too many entries`() {
+    val tooMany = (0..EmojiSearchIndex.MAX_ENTRIES).map { Entry(label = "label$it", emoji = "😄", rank = it) }
+    assertNull(EmojiSearchIndex.build(tooMany))
+  }
+
+  @Test
+  fun `query prefers exact matches, then prefixes, then rank`() {
+    val index = EmojiSearchIndex.build(entries)!!
+
+    assertEquals(listOf("😄", "😃", "😸"), index.query("smil", 10))
+    assertEquals(listOf("🐱", "🐈", "😸"), index.query("cat", 10))
+  }
+
+  @Test
+  fun `query matches regardless of case`() {
+    val index = EmojiSearchIndex.build(entries)!!
+
+    assertEquals(index.query("grin", 10), index.query("GRIN", 10))
+    assertEquals(listOf("😁"), index.query("GRIN", 10))
+  }
+
+  @Test
+  fun `query with a single character scans every label`() {
+    val index = EmojiSearchIndex.build(entries)!!
+
+    assertEquals(setOf("🐱", "😸", "🐈"), index.query("c", 10).toSet())
+  }
+
+  @Test
+  fun `query returns nothing when a gram is missing`() {
+    val index = EmojiSearchIndex.build(entries)!!
+
+    assertEquals(emptyList<String>(), index.query("smx", 10))
+    assertEquals(emptyList<String>(), index.query("dog", 10))
+  }
+
+  @Test
+  fun `query does not return duplicate emoji and respects the limit`() {
+    val index = EmojiSearchIndex.build(
+      listOf(
+        Entry(label = "heart", emoji = "❤️", rank = 1),
+        Entry(label = "red heart", emoji = "❤️", rank = 2),
+        Entry(label = "hearts", emoji = "💕", rank = 3)
+      )
+    )!!
+
+    assertEquals(listOf("❤️", "💕"), index.query("heart", 10))
+    assertEquals(listOf("❤️"), index.query("heart", 1))
+  }
+
+  @Test
+  fun `query matches a brute force search`() {
+    val words = listOf("red", "heart", "face", "hand", "thumbs", "up", "down", "star", "fire", "party", "tear", "joy", "sparkle")
+    val random = Random(42)
+    val generated = (0 until 2000).map {
+      Entry(
+        label = "${words[random.nextInt(words.size)]} ${words[random.nextInt(words.size)]}",
+        emoji = "e${random.nextInt(300)}",
+        rank = if (random.nextInt(5) == 0) Int.MAX_VALUE else random.nextInt(1000) + 1
+      )
+    }
+
+    val index = EmojiSearchIndex.build(generated)!!
+
+    for (query in listOf("a", "ar", "art", "heart", "t t", "par", "e s", "zz", "upd")) {
+      assertEquals("query: $query", bruteForce(generated, query, 20), index.query(query, 20))
+    }
+  }
+
+  /**
+   * Mirrors the SQL query used by [EmojiSearchTable] when no in-memory index is available.
+   */
+  private fun bruteForce(entries: List<Entry>, query: String, limit: Int): List<String> {
+    val maxRank = entries.filter { it.rank != Int.MAX_VALUE }.maxOfOrNull { it.rank } ?: 0
+
+    return entries
+      .sortedWith(compareBy<Entry>({ it.rank }, { it.label }, { it.emoji }))
+      .filter { it.label.contains(query, ignoreCase = true) }
+      .take(maxOf(limit, EmojiSearchIndex.CANDIDATE_LIMIT))
+      .sortedBy { EmojiSearchIndex.similarityScore(query, it.label, it.scaledRank(maxRank)) }
+      .distinctBy { it.emoji }
+      .take(limit)
+      .map { it.emoji }
+  }
+}
@@ -0,0 +1,71 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.database.model.LogEntry
+
+class LogBatchCodecTest {
+
+  @Test
+  fun encode_decode_roundTrip() {
+    val entries = listOf(
+      entry(createdAt = 1, tag = "TagA", thread = "main ", message = "first"),
+      entry(createdAt = 2, tag = "TagB", thread = "12   ", message = "second", level = 'W'),
+      entry(createdAt = 3, tag = "TagA", thread = "12   ", message = "", stackTrace = "java.lang.Exception\n\tat Foo.bar(Foo.java:1)\n"),
+      entry(createdAt = 4, tag = "TagA", thread = "main ", message = "unicode 😀 and a very long message ".repeat(100))
+    )
+
+    val decoded = LogBatchCodec.decode(LogBatchCodec.encode(entries), keepLonger = false)
+
+    assertEquals(entries, decoded)
+  }
+
+  @Test
+  fun encode_decode_emptyBatch() {
+    assertEquals(emptyList<LogEntry>(), LogBatchCodec.decode(LogBatchCodec.encode(emptyList()), keepLonger = true))
+  }
+
+  @Test
+  fun encode_repeatedTagsAreOnlyWrittenOnce() {
+    val tag = "AVeryLongTagThatWouldBeExpensiveToRepeat"
+    val single = LogBatchCodec.encode(listOf(entry(tag = tag)))
+    val many = LogBatchCodec.encode(List(100) { entry(tag = tag) })
+
+    assertTrue(many.size < single.size + 99 * tag.length)
+  }
+
+  @Test
+  fun formatLines_stackTraceIsSplitIntoLines() {
+    val entry = entry(tag = "Tag", thread = "main ", message = "Oops", level = 'E', stackTrace = "java.lang.Exception\n\tat Foo.bar(Foo.java:1)\n")
+    val lines = mutableListOf<String>()
+
+    LogBatchCodec.formatLines(entry, "1.0.0", LogBatchCodec.Formatter(), lines)
+
+    assertEquals(entry.lineCount, lines.size)
+    assertTrue(lines.all { it.startsWith("[1.0.0] [main ] ") })
+    assertTrue(lines[0].endsWith(" E Tag: Oops"))
+    assertTrue(lines[1].endsWith(" E Tag: java.lang.Exception"))
+    assertTrue(lines[2].endsWith(" E Tag: \tat Foo.bar(Foo.java:1)"))
+    assertTrue(lines[3].endsWith(" E Tag: "))
+  }
+
+  private fun entry(
+    createdAt: Long = 0,
+    tag: String = "Tag",
+    thread: String = "main ",
+    message: String = "message",
+    level: Char = 'I',
+    stackTrace: String? = null
+  ): LogEntry {
+    return LogEntry(
+      createdAt = createdAt,
+      keepLonger = false,
+      level = level,
+      tag = tag,
+      threadString = thread,
+      message = message,
+      stackTrace = stackTrace
+    )
+  }
+}
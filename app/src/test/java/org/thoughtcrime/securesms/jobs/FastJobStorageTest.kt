@@ -413,6 +413,62 @@ class FastJobStorageTest {
     jobs.size assertIs 0
   }
 
+  @Test
+  fun `getPendingJobsWithNoDependenciesInCreatedOrder - next item in queue becomes eligible after head is deleted`() {
+    val fullSpec1 = FullSpec(jobSpec(id = "1", factoryKey = "f1", queueKey = "q", createTime = 1), emptyList(), emptyList())
+    val fullSpec2 = FullSpec(jobSpec(id = "2", factoryKey = "f2", queueKey = "q", createTime = 2), emptyList(), emptyList())
+
+    val subject = FastJobStorage(fixedDataDatabase(listOf(fullSpec1, fullSpec2)))
+    subject.init()
+    subject.deleteJob("1")
+
+    val jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10)
+    jobs.size assertIs 1
+    jobs[0].id assertIs "2"
+  }
+
+  @Test
+  fun `getPendingJobsWithNoDependenciesInCreatedOrder - dependent job becomes eligible after dependency is deleted`() {
+    val fullSpec1 = FullSpec(jobSpec(id = "1", factoryKey = "f1", isRunning = true), emptyList(), emptyList())
+    val fullSpec2 = FullSpec(jobSpec(id = "2", factoryKey = "f2"), emptyList(), listOf(DependencySpec("2", "1", false)))
+
+    val subject = FastJobStorage(fixedDataDatabase(listOf(fullSpec1, fullSpec2)))
+    subject.init()
+
+    subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size assertIs 0
+
+    subject.deleteJob("1")
+
+    val jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10)
+    jobs.size assertIs 1
+    jobs[0].id assertIs "2"
+  }
+
+  @Test
+  fun `getPendingJobsWithNoDependenciesInCreatedOrder - job becomes eligible once its backoff expires`() {
+    val fullSpec = FullSpec(jobSpec(id = "1", factoryKey = "f1", queueKey = "q", lastRunAttemptTime = 0, nextBackoffInterval = 10), emptyList(), emptyList())
+
+    val subject = FastJobStorage(fixedDataDatabase(listOf(fullSpec)))
+    subject.init()
+
+    subject.getPendingJobsWithNoDependenciesInCreatedOrder(5).size assertIs 0
+    subject.getPendingJobsWithNoDependenciesInCreatedOrder(11).size assertIs 1
+  }
+
+  @Test
+  fun `getJobCountForFactory - updated after factory key change and delete`() {
+    val subject = FastJobStorage(fixedDataDatabase(DataSet1.FULL_SPECS))
+    subject.init()
+
+    subject.updateJobs(listOf(DataSet1.JOB_1.copy(factoryKey = "f2")))
+    subject.getJobCountForFactory("f1") assertIs 0
+    subject.getJobCountForFactory("f2") assertIs 2
+    subject.getJobCountForFactoryAndQueue("f2", "q1") assertIs 1
+
+    subject.deleteJob(DataSet1.JOB_2.id)
+    subject.getJobCountForFactory("f2") assertIs 1
+  }
+
   @Test
   fun `deleteJobs - writes to database`() {
     val database = fixedDataDatabase(DataSet1.FULL_SPECS)
@@ -0,0 +1,126 @@
+package org.thoughtcrime.securesms.jobs
+
+import android.app.Application
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkObject
+import io.mockk.mockkStatic
+import io.mockk.unmockkAll
+import io.mockk.verify
+import okio.ByteString.Companion.toByteString
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.whenever
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.SignalStoreRule
+import org.thoughtcrime.securesms.database.GroupTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.groups.GroupId
+import org.thoughtcrime.securesms.groups.GroupsV1MigratedCache
+import org.thoughtcrime.securesms.messages.MessageContentProcessor
+import org.thoughtcrime.securesms.messages.MessageDecryptor
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.whispersystems.signalservice.api.crypto.EnvelopeMetadata
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.internal.push.Content
+import org.whispersystems.signalservice.internal.push.DataMessage
+import org.whispersystems.signalservice.internal.push.Envelope
+import org.whispersystems.signalservice.internal.push.GroupContextV2
+import java.util.UUID
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class PushProcessMessageJobTest {
+
+  @get:Rule
+  val signalStore: SignalStoreRule = SignalStoreRule()
+
+  private val groupTable: GroupTable = mockk()
+  private val processor: MessageContentProcessor = mockk(relaxed = true)
+
+  @Before
+  fun setUp() {
+    val groupRecipientId = RecipientId.from(GROUP_RECIPIENT_ID)
+
+    mockkObject(SignalDatabase.Companion)
+    every { SignalDatabase.groups } returns groupTable
+    every { groupTable.getGroupV2Revision(any()) } returns LOCAL_REVISION
+
+    mockkObject(GroupsV1MigratedCache)
+    every { GroupsV1MigratedCache.hasV1Group(any()) } returns false
+
+    mockkStatic(RecipientId::class)
+    every { RecipientId.from(any<GroupId>()) } returns groupRecipientId
+
+    whenever(ApplicationDependencies.getJobManager().isQueueEmpty(any())).thenReturn(true)
+  }
+
+  @After
+  fun tearDown() {
+    unmockkAll()
+  }
+
+  @Test
+  fun processOrDefer_processesInlineWhenTheQueueIsEmpty() {
+    val job = PushProcessMessageJob.processOrDefer(processor, groupMessage(revision = LOCAL_REVISION), mockk(relaxed = true), HashSet())
+
+    assertNull(job)
+    verify(exactly = 1) { processor.process(any(), any(), any(), any(), any(), any()) }
+  }
+
+  @Test
+  fun processOrDefer_laterEnvelopeInBatchIsDeferredBehindEarlierOneForTheSameGroup() {
+    val deferredQueues: MutableSet<String> = HashSet()
+
+    // Needs a newer group state, so it has to wait for the network
+    val first = PushProcessMessageJob.processOrDefer(processor, groupMessage(revision = LOCAL_REVISION + 1), mockk(relaxed = true), deferredQueues)
+
+    // Would otherwise be processed inline, since the first job hasn't been added to the job manager yet
+    val second = PushProcessMessageJob.processOrDefer(processor, groupMessage(revision = LOCAL_REVISION), mockk(relaxed = true), deferredQueues)
+
+    assertNotNull(first)
+    assertNotNull(second)
+    assertEquals(first!!.parameters.queue, second!!.parameters.queue)
+    verify(exactly = 0) { processor.process(any(), any(), any(), any(), any(), any()) }
+  }
+
+  private fun groupMessage(revision: Int): MessageDecryptor.Result.Success {
+    val envelope = Envelope.Builder()
+      .type(Envelope.Type.UNIDENTIFIED_SENDER)
+      .sourceServiceId(SENDER.toString())
+      .sourceDevice(1)
+      .timestamp(System.currentTimeMillis())
+      .build()
+
+    val content = Content.Builder()
+      .dataMessage(
+        DataMessage.Builder()
+          .body("Hello")
+          .groupV2(GroupContextV2.Builder().masterKey(MASTER_KEY.toByteString()).revision(revision).build())
+          .build()
+      )
+      .build()
+
+    val metadata = EnvelopeMetadata(SENDER, null, 1, true, null, SELF)
+
+    return MessageDecryptor.Result.Success(envelope, System.currentTimeMillis(), content, metadata, emptyList())
+  }
+
+  companion object {
+    private const val LOCAL_REVISION = 2
+    private const val GROUP_RECIPIENT_ID = 100L
+
+    private val MASTER_KEY = ByteArray(32) { it.toByte() }
+    private val SENDER = ACI.from(UUID.fromString("aaaa0000-5a76-47fa-a98a-7e72c948a82e"))
+    private val SELF = ACI.from(UUID.fromString("77770000-b477-4f35-a824-d92987a63641"))
+  }
+}
@@ -0,0 +1,110 @@
+package org.thoughtcrime.securesms.keyvalue
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class KeyValueStoreTest {
+
+  @Test
+  fun `given a write, when I read, then I expect the new value immediately`() {
+    val store = KeyValueStore(MockKeyValuePersistentStorage.withDataSet(KeyValueDataSet()))
+
+    store.beginWrite().putString("key", "value").apply()
+
+    assertEquals("value", store.getString("key", null))
+  }
+
+  @Test
+  fun `given a reader, when I write, then I expect the reader to be unchanged`() {
+    val store = KeyValueStore(MockKeyValuePersistentStorage.withDataSet(KeyValueDataSet().apply { putInteger("key", 1) }))
+    val reader = store.beginRead()
+
+    store.beginWrite().putInteger("key", 2).apply()
+
+    assertEquals(1, reader.getInteger("key", 0))
+    assertEquals(2, store.getInteger("key", 0))
+  }
+
+  @Test
+  fun `given a burst of writes while a write is in progress, when I flush, then I expect them to be written together`() {
+    val storage = BlockingStorage()
+    val store = KeyValueStore(storage)
+
+    store.beginWrite().putLong("a", 1).apply()
+    assertTrue(storage.writeStarted.await(5, TimeUnit.SECONDS))
+
+    store.beginWrite().putLong("b", 2).apply()
+    store.beginWrite().putLong("c", 3).apply()
+    store.beginWrite().remove("a").apply()
+
+    storage.release.countDown()
+    store.blockUntilAllWritesFinished()
+
+    assertEquals(2, storage.writeCount)
+    assertFalse(storage.dataSet.containsKey("a"))
+    assertEquals(2L, storage.dataSet.getLong("b", 0))
+    assertEquals(3L, storage.dataSet.getLong("c", 0))
+  }
+
+  @Test
+  fun `given a removed key, when I set it again before flushing, then I expect it to be persisted`() {
+    val dataSet = KeyValueDataSet()
+    val store = KeyValueStore(MockKeyValuePersistentStorage.withDataSet(dataSet))
+
+    store.beginWrite().putBoolean("key", true).apply()
+    store.beginWrite().remove("key").apply()
+    store.beginWrite().putBoolean("key", false).apply()
+    store.blockUntilAllWritesFinished()
+
+    assertTrue(dataSet.containsKey("key"))
+    assertFalse(dataSet.getBoolean("key", true))
+  }
+
+  @Test
+  fun `given pending writes, when I reset the cache, then I expect the pending writes to survive`() {
+    val storage = BlockingStorage()
+    val store = KeyValueStore(storage)
+
+    store.beginWrite().putString("a", "1").apply()
+    store.beginWrite().putString("b", "2").apply()
+    storage.release.countDown()
+
+    store.resetCache()
+
+    assertEquals("1", store.getString("a", null))
+    assertEquals("2", store.getString("b", null))
+  }
+
+  /**
+   * Blocks the first write until [release] is counted down.
+   */
+  private class BlockingStorage : KeyValuePersistentStorage {
+    val dataSet = KeyValueDataSet()
+    val writeStarted = CountDownLatch(1)
+    val release = CountDownLatch(1)
+
+    @Volatile
+    var writeCount = 0
+
+    override fun writeDataSet(dataSet: KeyValueDataSet, removes: Collection<String>) {
+      writeStarted.countDown()
+      release.await()
+
+      synchronized(this.dataSet) {
+        this.dataSet.putAll(dataSet)
+        this.dataSet.removeAll(removes)
+      }
+      writeCount++
+    }
+
+    override fun getDataSet(): KeyValueDataSet {
+      return synchronized(dataSet) {
+        KeyValueDataSet().apply { putAll(dataSet) }
+      }
+    }
+  }
+}
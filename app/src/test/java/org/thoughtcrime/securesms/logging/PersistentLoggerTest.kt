@@ -0,0 +1,30 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.database.LogBatchCodec
+
+class PersistentLoggerTest {
+
+  @Test
+  fun requestToEntry_scrubsStackTrace() {
+    val request = PersistentLogger.LogRequest(
+      level = 'W',
+      tag = "Tag",
+      message = "Failed to send to +15555550123",
+      createTime = 0,
+      threadString = "main ",
+      throwable = IllegalStateException("No session for +15555550123"),
+      keepLonger = false
+    )
+
+    val entry = PersistentLogger.requestToEntry(request)
+    val stored = LogBatchCodec.decode(LogBatchCodec.encode(listOf(entry)), keepLonger = false).single()
+    val lines = mutableListOf<String>()
+    LogBatchCodec.formatLines(stored, "1.0.0", LogBatchCodec.Formatter(), lines)
+
+    assertTrue(stored.stackTrace!!.startsWith("java.lang.IllegalStateException: No session for +*********23"))
+    assertFalse(lines.any { it.contains("5555550123") })
+  }
+}
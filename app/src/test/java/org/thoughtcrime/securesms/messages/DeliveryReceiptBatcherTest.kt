@@ -0,0 +1,113 @@
+package org.thoughtcrime.securesms.messages
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.jobs.SendDeliveryReceiptJob
+import org.thoughtcrime.securesms.recipients.RecipientId
+
+class DeliveryReceiptBatcherTest {
+
+  private val alice = RecipientId.from(1)
+  private val bob = RecipientId.from(2)
+
+  private val scheduled: MutableList<Pair<Runnable, Long>> = mutableListOf()
+  private val flushed: MutableList<List<DeliveryReceiptBatcher.Batch>> = mutableListOf()
+
+  private lateinit var batcher: DeliveryReceiptBatcher
+
+  @Before
+  fun setUp() {
+    batcher = DeliveryReceiptBatcher(
+      windowMs = 500,
+      scheduler = { runnable, delay -> scheduled += runnable to delay },
+      sink = { flushed += it }
+    )
+  }
+
+  @Test
+  fun `flush - nothing pending, does nothing`() {
+    batcher.flush()
+
+    assertTrue(flushed.isEmpty())
+  }
+
+  @Test
+  fun `flush - groups receipts by recipient, in order`() {
+    batcher.add(alice, 100, MessageId(1))
+    batcher.add(bob, 200, MessageId(2))
+    batcher.add(alice, 101, MessageId(3))
+
+    batcher.flush()
+
+    assertEquals(
+      listOf(
+        listOf(
+          DeliveryReceiptBatcher.Batch(alice, listOf(100L, 101L), listOf(MessageId(1), MessageId(3))),
+          DeliveryReceiptBatcher.Batch(bob, listOf(200L), listOf(MessageId(2)))
+        )
+      ),
+      flushed
+    )
+  }
+
+  @Test
+  fun `flush - duplicate timestamps are only sent once`() {
+    batcher.add(alice, 100, MessageId(1))
+    batcher.add(alice, 100, MessageId(1))
+
+    batcher.flush()
+
+    assertEquals(listOf(listOf(DeliveryReceiptBatcher.Batch(alice, listOf(100L), listOf(MessageId(1))))), flushed)
+  }
+
+  @Test
+  fun `flush - splits large batches`() {
+    val count = SendDeliveryReceiptJob.MAX_TIMESTAMPS * 2 + 1
+    for (i in 1..count) {
+      batcher.add(alice, i.toLong(), MessageId(i.toLong()))
+    }
+
+    batcher.flush()
+
+    assertEquals(1, flushed.size)
+    assertEquals(listOf(SendDeliveryReceiptJob.MAX_TIMESTAMPS, SendDeliveryReceiptJob.MAX_TIMESTAMPS, 1), flushed[0].map { it.sentTimestamps.size })
+    assertEquals((1..count).map { it.toLong() }, flushed[0].flatMap { it.sentTimestamps })
+  }
+
+  @Test
+  fun `flush - receipts are only flushed once`() {
+    batcher.add(alice, 100, MessageId(1))
+
+    batcher.flush()
+    batcher.flush()
+
+    assertEquals(1, flushed.size)
+  }
+
+  @Test
+  fun `add - schedules a single flush per window`() {
+    batcher.add(alice, 100, MessageId(1))
+    batcher.add(bob, 200, MessageId(2))
+
+    assertEquals(1, scheduled.size)
+    assertEquals(500L, scheduled[0].second)
+
+    scheduled[0].first.run()
+
+    assertEquals(1, flushed.size)
+    assertEquals(2, flushed[0].size)
+  }
+
+  @Test
+  fun `add - schedules another flush after the previous one`() {
+    batcher.add(alice, 100, MessageId(1))
+    scheduled[0].first.run()
+
+    batcher.add(alice, 101, MessageId(2))
+
+    assertEquals(2, scheduled.size)
+  }
+}
@@ -0,0 +1,104 @@
+package org.thoughtcrime.securesms.messages
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkObject
+import io.mockk.mockkStatic
+import io.mockk.unmockkAll
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import org.thoughtcrime.securesms.crypto.ReentrantSessionLock
+import org.thoughtcrime.securesms.messages.protocol.BufferedProtocolStore
+import org.thoughtcrime.securesms.util.SignalLocalMetrics
+import org.whispersystems.signalservice.api.messages.EnvelopeResponse
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.internal.push.Envelope
+import org.whispersystems.signalservice.internal.websocket.WebSocketRequestMessage
+import java.util.UUID
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+class MessageDecryptionPipelineTest {
+
+  private val writesApplied = AtomicInteger()
+  private lateinit var executor: ExecutorService
+
+  @Before
+  fun setUp() {
+    mockkObject(BufferedProtocolStore)
+    every { BufferedProtocolStore.create() } returns mockk(relaxed = true)
+
+    mockkStatic(SignalLocalMetrics.MessageReceive::class)
+    every { SignalLocalMetrics.MessageReceive.start() } returns mockk(relaxed = true)
+
+    mockkObject(MessageDecryptor)
+    every { MessageDecryptor.decrypt(any(), any(), any(), any(), any(), any()) } answers {
+      val envelope: Envelope = arg(2)
+      val deferredWrites: MutableList<MessageDecryptor.DeferredWrite> = arg(5)
+
+      deferredWrites += MessageDecryptor.DeferredWrite { writesApplied.incrementAndGet() }
+
+      if (envelope.sourceServiceId == FAILING_SENDER.toString()) {
+        throw IllegalStateException("Failed to decrypt")
+      }
+
+      MessageDecryptor.Result.Ignore(envelope, arg(3), emptyList())
+    }
+
+    executor = Executors.newFixedThreadPool(2)
+  }
+
+  @After
+  fun tearDown() {
+    executor.shutdown()
+    unmockkAll()
+  }
+
+  @Test
+  fun decrypt_deferredWritesAreOnlyMadeWhenApplied() {
+    val output = ReentrantSessionLock.INSTANCE.acquire().use {
+      MessageDecryptionPipeline(mockk(), executor).decrypt(listOf(envelope(SENDER_A), envelope(SENDER_B), envelope(SENDER_A)))
+    }
+
+    assertEquals(0, writesApplied.get())
+
+    output.envelopes.forEach { it.applyDeferredWrites() }
+
+    assertEquals(3, writesApplied.get())
+  }
+
+  @Test
+  fun decrypt_failedBatchMakesNoWritesSoTheSerialFallbackIsTheOnlyOneThatDoes() {
+    ReentrantSessionLock.INSTANCE.acquire().use {
+      try {
+        MessageDecryptionPipeline(mockk(), executor).decrypt(listOf(envelope(SENDER_A), envelope(FAILING_SENDER), envelope(SENDER_B)))
+        fail("Expected the batch to fail")
+      } catch (e: IllegalStateException) {
+        // Expected, the caller falls back to decrypting each envelope serially
+      }
+    }
+
+    assertEquals(0, writesApplied.get())
+  }
+
+  private fun envelope(sender: ACI): EnvelopeResponse {
+    val envelope = Envelope.Builder()
+      .type(Envelope.Type.CIPHERTEXT)
+      .sourceServiceId(sender.toString())
+      .sourceDevice(1)
+      .timestamp(System.currentTimeMillis())
+      .build()
+
+    return EnvelopeResponse(envelope, System.currentTimeMillis(), WebSocketRequestMessage.Builder().build())
+  }
+
+  companion object {
+    private val SENDER_A = ACI.from(UUID.fromString("aaaa0000-5a76-47fa-a98a-7e72c948a82e"))
+    private val SENDER_B = ACI.from(UUID.fromString("bbbb0000-0b60-4a68-9cd9-ed2f8453f9ed"))
+    private val FAILING_SENDER = ACI.from(UUID.fromString("cccc0000-11d6-4e1c-8a5e-5a1d7b3c2f41"))
+  }
+}
@@ -0,0 +1,161 @@
+package org.thoughtcrime.securesms.storage
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when`
+import org.mockito.kotlin.any
+import org.thoughtcrime.securesms.database.RecipientTable
+import org.thoughtcrime.securesms.database.model.RecipientRecord
+import org.thoughtcrime.securesms.groups.GroupId
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import java.util.Optional
+import java.util.UUID
+
+class LocalRecipientIndexTest {
+
+  private lateinit var recipientTable: RecipientTable
+  private lateinit var record: RecipientRecord
+  private lateinit var subject: LocalRecipientIndex
+
+  @Before
+  fun setUp() {
+    recipientTable = mock(RecipientTable::class.java)
+    record = mock(RecipientRecord::class.java)
+    subject = LocalRecipientIndex(recipientTable)
+  }
+
+  @Test
+  fun `loadContacts - matches are served from memory`() {
+    givenContacts()
+
+    assertEquals(Optional.of(RECIPIENT_A), subject.getByAci(ACI_A))
+    assertEquals(Optional.of(RECIPIENT_A), subject.getByPni(PNI_A))
+    assertSame(record, subject.getRecordForSync(RECIPIENT_A))
+
+    verify(recipientTable, never()).getByAci(any())
+    verify(recipientTable, never()).getByPni(any())
+    verify(recipientTable, never()).getRecordForSync(any())
+  }
+
+  @Test
+  fun `loadContacts - misses are served from memory`() {
+    givenContacts()
+
+    assertEquals(Optional.empty<RecipientId>(), subject.getByE164(E164_A))
+
+    verify(recipientTable, never()).getByE164(any())
+  }
+
+  @Test
+  fun `loadContacts - anything that was not loaded goes to the database`() {
+    givenContacts()
+    `when`(recipientTable.getByAci(ACI_B)).thenReturn(Optional.of(RECIPIENT_B))
+
+    assertEquals(Optional.of(RECIPIENT_B), subject.getByAci(ACI_B))
+  }
+
+  @Test
+  fun `forgetContact - identifiers and the rows they pointed to go to the database`() {
+    givenContacts()
+    `when`(recipientTable.getByAci(ACI_A)).thenReturn(Optional.of(RECIPIENT_B))
+    `when`(recipientTable.getByE164(E164_A)).thenReturn(Optional.of(RECIPIENT_A))
+    `when`(recipientTable.getByPni(PNI_A)).thenReturn(Optional.of(RECIPIENT_A))
+
+    subject.forgetContact(ACI_A, null, E164_A)
+
+    assertEquals(Optional.of(RECIPIENT_B), subject.getByAci(ACI_A))
+    assertEquals(Optional.of(RECIPIENT_A), subject.getByE164(E164_A))
+    assertEquals(Optional.of(RECIPIENT_A), subject.getByPni(PNI_A))
+
+    subject.getRecordForSync(RECIPIENT_A)
+    verify(recipientTable).getRecordForSync(RECIPIENT_A)
+    verify(recipientTable).getByPni(PNI_A)
+  }
+
+  @Test
+  fun `forgetContact - after a merge, other identifiers of the merged row go to the database`() {
+    `when`(recipientTable.getByAcis(setOf(ACI_A))).thenReturn(mapOf(ACI_A to RECIPIENT_A))
+    `when`(recipientTable.getByPnis(setOf(PNI_A))).thenReturn(mapOf(PNI_A to RECIPIENT_B))
+    `when`(recipientTable.getByE164s(setOf(E164_A))).thenReturn(mapOf(E164_A to RECIPIENT_B))
+    `when`(recipientTable.getRecordsForSync(setOf(RECIPIENT_A, RECIPIENT_B))).thenReturn(mapOf(RECIPIENT_A to record, RECIPIENT_B to record))
+
+    subject.loadContacts(setOf(ACI_A), setOf(PNI_A), setOf(E164_A))
+
+    // A record with ACI_A and E164_A merges RECIPIENT_B into RECIPIENT_A
+    subject.forgetContact(ACI_A, null, E164_A)
+
+    `when`(recipientTable.getByPni(PNI_A)).thenReturn(Optional.of(RECIPIENT_A))
+    `when`(recipientTable.getRecordForSync(RECIPIENT_A)).thenReturn(record)
+
+    assertEquals(Optional.of(RECIPIENT_A), subject.getByPni(PNI_A))
+    assertSame(record, subject.getRecordForSync(RECIPIENT_A))
+    verify(recipientTable).getByPni(PNI_A)
+  }
+
+  @Test
+  fun `forgetRecord - identifiers are still served from memory`() {
+    givenContacts()
+
+    subject.forgetRecord(RECIPIENT_A)
+
+    assertEquals(Optional.of(RECIPIENT_A), subject.getByAci(ACI_A))
+    subject.getRecordForSync(RECIPIENT_A)
+
+    verify(recipientTable, never()).getByAci(any())
+    verify(recipientTable).getRecordForSync(RECIPIENT_A)
+  }
+
+  @Test
+  fun `loadGroups - replaces anything previously loaded`() {
+    givenContacts()
+    `when`(recipientTable.getByGroupIds(setOf(GROUP_ID))).thenReturn(mapOf(GROUP_ID to RECIPIENT_B))
+    `when`(recipientTable.getRecordsForSync(setOf(RECIPIENT_B))).thenReturn(mapOf(RECIPIENT_B to record))
+    `when`(recipientTable.getByAci(ACI_A)).thenReturn(Optional.empty())
+
+    subject.loadGroups(listOf(GROUP_ID))
+
+    assertEquals(Optional.of(RECIPIENT_B), subject.getByGroupId(GROUP_ID))
+    assertEquals(Optional.empty<RecipientId>(), subject.getByAci(ACI_A))
+  }
+
+  @Test
+  fun `forgetGroup - goes to the database`() {
+    `when`(recipientTable.getByGroupIds(setOf(GROUP_ID))).thenReturn(mapOf(GROUP_ID to RECIPIENT_B))
+    `when`(recipientTable.getRecordsForSync(setOf(RECIPIENT_B))).thenReturn(mapOf(RECIPIENT_B to record))
+    `when`(recipientTable.getByGroupId(GROUP_ID)).thenReturn(Optional.empty())
+
+    subject.loadGroups(listOf(GROUP_ID))
+    subject.forgetGroup(GROUP_ID)
+
+    assertEquals(Optional.empty<RecipientId>(), subject.getByGroupId(GROUP_ID))
+  }
+
+  private fun givenContacts() {
+    `when`(recipientTable.getByAcis(setOf(ACI_A))).thenReturn(mapOf(ACI_A to RECIPIENT_A))
+    `when`(recipientTable.getByPnis(setOf(PNI_A))).thenReturn(mapOf(PNI_A to RECIPIENT_A))
+    `when`(recipientTable.getByE164s(setOf(E164_A))).thenReturn(emptyMap())
+    `when`(recipientTable.getRecordsForSync(setOf(RECIPIENT_A))).thenReturn(mapOf(RECIPIENT_A to record))
+
+    subject.loadContacts(setOf(ACI_A), setOf(PNI_A), setOf(E164_A))
+  }
+
+  companion object {
+    private val ACI_A = ACI.from(UUID.fromString("aaaa0000-5a76-47fa-a98a-7e72c948a82e"))
+    private val ACI_B = ACI.from(UUID.fromString("bbbb0000-0b60-4a68-9cd9-ed2f8453f9ed"))
+    private val PNI_A = PNI.from(UUID.fromString("aaaa1111-c960-4f6c-8385-671ad2ffb999"))
+
+    private const val E164_A = "+12222222222"
+
+    private val GROUP_ID = GroupId.v1orThrow(byteArrayOf(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15))
+
+    private val RECIPIENT_A = RecipientId.from(1)
+    private val RECIPIENT_B = RecipientId.from(2)
+  }
+}
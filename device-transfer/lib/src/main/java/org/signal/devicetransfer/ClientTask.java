@@ -16,7 +16,7 @@ public interface ClientTask extends Serializable {
 
   /**
    * @param context      Android context, mostly like the foreground transfer service
-   * @param outputStream Output stream associated with socket connected to remote server.
+   * @param outputStream Output stream to the remote server. May be spread across several connections if the server supports it.
    */
   void run(@NonNull Context context, @NonNull OutputStream outputStream) throws IOException;
 
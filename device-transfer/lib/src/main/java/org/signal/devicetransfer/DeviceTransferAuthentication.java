@@ -84,6 +84,19 @@ final class DeviceTransferAuthentication {
     byte[] clientCommitment = new byte[DeviceTransferAuthentication.DIGEST_LENGTH];
     StreamUtil.readFully(inputStream, clientCommitment, clientCommitment.length);
 
+    return generateServerAuthenticationCode(certificate, clientCommitment, inputStream, outputStream);
+  }
+
+  /**
+   * Same as {@link #generateServerAuthenticationCode(byte[], InputStream, OutputStream)}, for when the client's commitment has already
+   * been read off the input stream.
+   */
+  public static int generateServerAuthenticationCode(@NonNull byte[] certificate,
+                                                     @NonNull byte[] clientCommitment,
+                                                     @NonNull InputStream inputStream,
+                                                     @NonNull OutputStream outputStream)
+      throws DeviceTransferAuthenticationException, IOException
+  {
     DeviceTransferAuthentication.Server authentication = new DeviceTransferAuthentication.Server(certificate, clientCommitment);
 
     outputStream.write(authentication.getRandom());
@@ -0,0 +1,253 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of {@link MultiStreamProtocol}. Puts the chunks arriving on every joined connection back in order, and reads them back out
+ * as a single stream.
+ * <p>
+ * Each chunk is acknowledged once it has been read, so the client can never get more than its window ahead of whoever is reading, and
+ * a chunk that was only buffered when a connection dropped is sent again rather than lost. If every connection drops, reads wait up to
+ * {@link #RESUME_TIMEOUT_MS} for the client to rejoin before failing.
+ */
+final class MultiStreamInputStream extends InputStream {
+
+  private static final String TAG = Log.tag(MultiStreamInputStream.class);
+
+  private static final long RESUME_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+
+  private final Object                               lock        = new Object();
+  private final Map<Long, Chunk>                     received    = new HashMap<>();
+  private final List<MultiStreamProtocol.Connection> connections = new ArrayList<>();
+
+  private long    nextSequence;
+  private long    lastConnectionLost;
+  private boolean ended;
+  private boolean closed;
+
+  private byte[] current;
+  private int    currentPosition;
+  private int    currentLength;
+
+  MultiStreamInputStream() {
+    this.lastConnectionLost = System.currentTimeMillis();
+  }
+
+  /**
+   * Starts reading chunks from another connection that has joined the transfer.
+   */
+  void addConnection(@NonNull MultiStreamProtocol.Connection connection) {
+    long ack;
+
+    synchronized (lock) {
+      if (closed) {
+        connection.close();
+        return;
+      }
+
+      connections.add(connection);
+      ack = nextSequence;
+      Log.i(TAG, "Connection joined. Connections: " + connections.size());
+    }
+
+    try {
+      connection.writeAck(ack);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to acknowledge new connection", e);
+    }
+
+    new Thread(() -> readChunks(connection), "device-transfer-receive").start();
+  }
+
+  /**
+   * @return True once the end of the stream has been read.
+   */
+  @VisibleForTesting
+  boolean isComplete() {
+    synchronized (lock) {
+      return ended;
+    }
+  }
+
+  /**
+   * Tells the client that everything it sent has been dealt with, so it can finish up.
+   */
+  void sendDone() {
+    List<MultiStreamProtocol.Connection> live;
+    synchronized (lock) {
+      live = new ArrayList<>(connections);
+    }
+
+    for (MultiStreamProtocol.Connection connection : live) {
+      try {
+        connection.writeDone();
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to send done", e);
+      }
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(@NonNull byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+
+    while (current == null || currentPosition == currentLength) {
+      if (ended) {
+        return -1;
+      }
+      nextChunk();
+    }
+
+    int toCopy = Math.min(length, currentLength - currentPosition);
+    System.arraycopy(current, currentPosition, bytes, offset, toCopy);
+    currentPosition += toCopy;
+
+    return toCopy;
+  }
+
+  @Override
+  public void close() {
+    List<MultiStreamProtocol.Connection> live;
+
+    synchronized (lock) {
+      closed = true;
+      live   = new ArrayList<>(connections);
+      connections.clear();
+      received.clear();
+      lock.notifyAll();
+    }
+
+    for (MultiStreamProtocol.Connection connection : live) {
+      connection.close();
+    }
+  }
+
+  private void nextChunk() throws IOException {
+    Chunk chunk;
+
+    synchronized (lock) {
+      try {
+        while ((chunk = received.remove(nextSequence)) == null) {
+          if (closed) {
+            throw new IOException("Closed");
+          }
+
+          if (connections.isEmpty() && System.currentTimeMillis() - lastConnectionLost > RESUME_TIMEOUT_MS) {
+            throw new IOException("Transfer interrupted and the client didn't come back");
+          }
+
+          lock.wait(TimeUnit.SECONDS.toMillis(1));
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+
+      nextSequence++;
+    }
+
+    current         = chunk.payload;
+    currentLength   = chunk.payload.length;
+    currentPosition = 0;
+    ended           = (chunk.flags & MultiStreamProtocol.FLAG_END) != 0;
+
+    acknowledge(chunk.source);
+  }
+
+  private void acknowledge(@NonNull MultiStreamProtocol.Connection connection) {
+    long ack;
+    synchronized (lock) {
+      ack = nextSequence;
+    }
+
+    try {
+      connection.writeAck(ack);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to acknowledge, relying on a later acknowledgement", e);
+    }
+  }
+
+  private void readChunks(@NonNull MultiStreamProtocol.Connection connection) {
+    DataInputStream input = connection.getInput();
+
+    try {
+      while (true) {
+        int type = input.readUnsignedByte();
+        if (type != MultiStreamProtocol.FRAME_CHUNK) {
+          throw new IOException("Unexpected frame type: " + type);
+        }
+
+        long sequence = input.readLong();
+        int  flags    = input.readUnsignedByte();
+        int  length   = input.readInt();
+
+        if (length < 0 || length > MultiStreamProtocol.CHUNK_SIZE) {
+          throw new IOException("Invalid chunk. Length: " + length);
+        }
+
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+
+        boolean duplicate;
+        synchronized (lock) {
+          duplicate = sequence < nextSequence || received.containsKey(sequence);
+
+          if (!duplicate) {
+            if (sequence >= nextSequence + MultiStreamOutputStream.WINDOW_CHUNKS) {
+              throw new IOException("Chunk " + sequence + " is outside the window starting at " + nextSequence);
+            }
+
+            received.put(sequence, new Chunk(flags, payload, connection));
+            lock.notifyAll();
+          }
+        }
+
+        if (duplicate) {
+          acknowledge(connection);
+        }
+      }
+    } catch (IOException e) {
+      Log.i(TAG, "Connection lost", e);
+    } finally {
+      connection.close();
+
+      synchronized (lock) {
+        if (connections.remove(connection) && connections.isEmpty()) {
+          lastConnectionLost = System.currentTimeMillis();
+        }
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private static final class Chunk {
+    private final int                            flags;
+    private final byte[]                         payload;
+    private final MultiStreamProtocol.Connection source;
+
+    Chunk(int flags, @NonNull byte[] payload, @NonNull MultiStreamProtocol.Connection source) {
+      this.flags   = flags;
+      this.payload = payload;
+      this.source  = source;
+    }
+  }
+}
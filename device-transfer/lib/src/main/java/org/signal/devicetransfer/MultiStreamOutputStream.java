@@ -0,0 +1,456 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side of {@link MultiStreamProtocol}. Everything written is cut into chunks which are sent over several connections at once.
+ * <p>
+ * Chunks are kept until the server acknowledges them, and at most {@link #WINDOW_CHUNKS} can be outstanding before writes block. If a
+ * connection drops, its unacknowledged chunks go back in the queue for any other connection to pick up, and the connection tries to rejoin
+ * for up to {@link #RESUME_TIMEOUT_MS}. The transfer only fails once every connection has given up.
+ * <p>
+ * {@link #close()} blocks until the server has acknowledged everything and reported that its {@link ServerTask} is done.
+ */
+final class MultiStreamOutputStream extends OutputStream {
+
+  private static final String TAG = Log.tag(MultiStreamOutputStream.class);
+
+  static final int WINDOW_CHUNKS = 64;
+
+  private static final long RECONNECT_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+  private static final long RESUME_TIMEOUT_MS  = TimeUnit.SECONDS.toMillis(30);
+  private static final long REPORT_INTERVAL_MS = TimeUnit.SECONDS.toMillis(5);
+
+  private final MultiStreamProtocol.Connector connector;
+  private final List<Stream>                  streams;
+
+  private final Object              lock     = new Object();
+  private final PriorityQueue<Chunk> unsent   = new PriorityQueue<>((a, b) -> Long.compare(a.sequence, b.sequence));
+  private final TreeMap<Long, Chunk> unacked  = new TreeMap<>();
+
+  private byte[]      buffer;
+  private int         position;
+  private long        nextSequence;
+  private long        acknowledged;
+  private int         liveStreams;
+  private boolean     done;
+  private boolean     closed;
+  private boolean     shutDown;
+  private IOException failure;
+
+  MultiStreamOutputStream(@NonNull MultiStreamProtocol.Connection first, @NonNull MultiStreamProtocol.Connector connector, int streamCount) {
+    this.connector   = connector;
+    this.streams     = new ArrayList<>(streamCount);
+    this.buffer      = new byte[MultiStreamProtocol.CHUNK_SIZE];
+    this.liveStreams = streamCount;
+
+    for (int i = 0; i < streamCount; i++) {
+      Stream stream = new Stream(i, i == 0 ? first : null);
+      streams.add(stream);
+      new Thread(stream, "device-transfer-stream-" + i).start();
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    buffer[position++] = (byte) b;
+
+    if (position == buffer.length) {
+      enqueue(0);
+    }
+  }
+
+  @Override
+  public void write(@NonNull byte[] bytes, int offset, int length) throws IOException {
+    while (length > 0) {
+      int toCopy = Math.min(length, buffer.length - position);
+      System.arraycopy(bytes, offset, buffer, position, toCopy);
+
+      position += toCopy;
+      offset   += toCopy;
+      length   -= toCopy;
+
+      if (position == buffer.length) {
+        enqueue(0);
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (position > 0) {
+      enqueue(0);
+    }
+  }
+
+  /**
+   * Sends anything that's left along with the end of the stream, and waits for the server to finish with it.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      flush();
+      enqueue(MultiStreamProtocol.FLAG_END);
+
+      synchronized (lock) {
+        while (!done && failure == null) {
+          lock.wait();
+        }
+      }
+    } catch (InterruptedException e) {
+      fail(new IOException(e));
+    } finally {
+      shutdown();
+    }
+
+    throwIfFailed();
+  }
+
+  /**
+   * Stops the transfer, failing any blocked or future writes.
+   */
+  void abort() {
+    fail(new IOException("Transfer aborted"));
+    shutdown();
+  }
+
+  private void enqueue(int flags) throws IOException {
+    Chunk chunk = new Chunk(nextSequence++, buffer, position, flags);
+
+    buffer   = new byte[MultiStreamProtocol.CHUNK_SIZE];
+    position = 0;
+
+    synchronized (lock) {
+      try {
+        while (unacked.size() >= WINDOW_CHUNKS && failure == null) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+
+      throwIfFailed();
+
+      unacked.put(chunk.sequence, chunk);
+      unsent.add(chunk);
+      chunk.queued = true;
+      lock.notifyAll();
+    }
+  }
+
+  private void throwIfFailed() throws IOException {
+    synchronized (lock) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  private void fail(@NonNull IOException e) {
+    synchronized (lock) {
+      if (failure == null && !done) {
+        failure = e;
+      }
+      lock.notifyAll();
+    }
+  }
+
+  private void shutdown() {
+    synchronized (lock) {
+      if (shutDown) {
+        return;
+      }
+
+      shutDown = true;
+      done     = true;
+      lock.notifyAll();
+    }
+
+    for (Stream stream : streams) {
+      stream.close();
+      stream.report(true);
+    }
+  }
+
+  private void onAck(long nextExpected) {
+    synchronized (lock) {
+      if (nextExpected > acknowledged) {
+        acknowledged = nextExpected;
+        unacked.headMap(nextExpected).clear();
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void onDone() {
+    synchronized (lock) {
+      done = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * One of the connections. Sends whatever chunk is next in line, and listens for acknowledgements on a second thread.
+   */
+  private final class Stream implements Runnable {
+
+    private final int index;
+
+    private volatile MultiStreamProtocol.Connection connection;
+    private          boolean                        broken;
+    private          boolean                        connected;
+
+    private long chunks;
+    private long bytes;
+    private int  reconnects;
+    private long startTime;
+    private long lastReportTime;
+    private long lastReportBytes;
+
+    Stream(int index, @Nullable MultiStreamProtocol.Connection connection) {
+      this.index      = index;
+      this.connection = connection;
+      this.connected  = connection != null;
+    }
+
+    @Override
+    public void run() {
+      startTime      = System.currentTimeMillis();
+      lastReportTime = startTime;
+
+      while (true) {
+        MultiStreamProtocol.Connection current = connection;
+
+        if (current == null) {
+          current = connect();
+
+          if (current == null) {
+            break;
+          }
+          connection = current;
+        }
+
+        startAckReader(current);
+
+        try {
+          Chunk chunk;
+          while ((chunk = takeNext()) != null) {
+            send(current, chunk);
+          }
+          return;
+        } catch (IOException e) {
+          Log.w(TAG, "[stream " + index + "] Connection lost", e);
+          connectionLost(current);
+        }
+      }
+
+      synchronized (lock) {
+        liveStreams--;
+
+        if (done || failure != null) {
+          return;
+        }
+
+        Log.w(TAG, "[stream " + index + "] Giving up. Streams remaining: " + liveStreams);
+
+        if (liveStreams == 0) {
+          fail(new IOException("Lost every connection to the server"));
+        }
+      }
+    }
+
+    private @Nullable MultiStreamProtocol.Connection connect() {
+      long deadline = System.currentTimeMillis() + RESUME_TIMEOUT_MS;
+
+      while (System.currentTimeMillis() < deadline && !isFinished()) {
+        try {
+          MultiStreamProtocol.Connection joined = connector.connect();
+          if (connected) {
+            reconnects++;
+          }
+          connected = true;
+          Log.i(TAG, "[stream " + index + "] Joined the transfer");
+          return joined;
+        } catch (IOException e) {
+          Log.w(TAG, "[stream " + index + "] Unable to join the transfer", e);
+          ThreadUtil.interruptableSleep(RECONNECT_DELAY_MS);
+        }
+      }
+
+      return null;
+    }
+
+    private boolean isFinished() {
+      synchronized (lock) {
+        return done || failure != null;
+      }
+    }
+
+    private void startAckReader(@NonNull MultiStreamProtocol.Connection current) {
+      new Thread(() -> {
+        DataInputStream input = current.getInput();
+
+        try {
+          while (true) {
+            int type = input.readUnsignedByte();
+
+            if (type == MultiStreamProtocol.FRAME_ACK) {
+              onAck(input.readLong());
+            } else if (type == MultiStreamProtocol.FRAME_DONE) {
+              onDone();
+            } else {
+              throw new IOException("Unexpected frame type: " + type);
+            }
+          }
+        } catch (IOException e) {
+          synchronized (lock) {
+            if (connection == current) {
+              broken = true;
+              lock.notifyAll();
+            }
+          }
+        }
+      }, "device-transfer-acks-" + index).start();
+    }
+
+    /**
+     * @return The next chunk to send, or null once the transfer is over.
+     */
+    private @Nullable Chunk takeNext() throws IOException {
+      synchronized (lock) {
+        try {
+          while (true) {
+            if (done || failure != null) {
+              return null;
+            }
+
+            if (broken) {
+              throw new IOException("Connection closed by server");
+            }
+
+            Chunk chunk = unsent.poll();
+
+            if (chunk != null) {
+              chunk.queued = false;
+
+              if (chunk.sequence >= acknowledged) {
+                chunk.stream = this;
+                return chunk;
+              }
+            } else {
+              lock.wait();
+            }
+          }
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+    }
+
+    private void send(@NonNull MultiStreamProtocol.Connection current, @NonNull Chunk chunk) throws IOException {
+      current.writeChunk(chunk.sequence, chunk.flags, chunk.data, chunk.length);
+
+      chunks++;
+      bytes += chunk.length;
+
+      report(false);
+    }
+
+    /**
+     * Hands any chunks that were sent on this connection but never acknowledged back to the queue, and gets ready to reconnect.
+     */
+    private void connectionLost(@NonNull MultiStreamProtocol.Connection current) {
+      current.close();
+
+      synchronized (lock) {
+        int requeued = 0;
+
+        for (Chunk chunk : unacked.values()) {
+          if (chunk.stream == this && !chunk.queued) {
+            chunk.stream = null;
+            chunk.queued = true;
+            unsent.add(chunk);
+            requeued++;
+          }
+        }
+
+        connection = null;
+        broken     = false;
+        lock.notifyAll();
+
+        Log.i(TAG, "[stream " + index + "] Requeued " + requeued + " unacknowledged chunk(s)");
+      }
+    }
+
+    void close() {
+      MultiStreamProtocol.Connection current = connection;
+      if (current != null) {
+        current.close();
+      }
+    }
+
+    void report(boolean summary) {
+      long now = System.currentTimeMillis();
+
+      if (!summary && now - lastReportTime < REPORT_INTERVAL_MS) {
+        return;
+      }
+
+      if (summary) {
+        Log.i(TAG, String.format(Locale.US, "[stream %d] Done. %d chunk(s), %.1f MiB, %.2f MiB/s, %d reconnect(s)",
+                                 index, chunks, mib(bytes), mibPerSecond(bytes, now - startTime), reconnects));
+      } else {
+        Log.i(TAG, String.format(Locale.US, "[stream %d] %.2f MiB/s, %.1f MiB so far",
+                                 index, mibPerSecond(bytes - lastReportBytes, now - lastReportTime), mib(bytes)));
+      }
+
+      lastReportTime  = now;
+      lastReportBytes = bytes;
+    }
+  }
+
+  private static double mib(long bytes) {
+    return bytes / (1024.0 * 1024.0);
+  }
+
+  private static double mibPerSecond(long bytes, long millis) {
+    return millis > 0 ? mib(bytes) / (millis / 1000.0) : 0;
+  }
+
+  private static final class Chunk {
+    private final long   sequence;
+    private final byte[] data;
+    private final int    length;
+    private final int    flags;
+
+    /** Guarded by the stream's lock. */
+    private Stream  stream;
+    private boolean queued;
+
+    Chunk(long sequence, @NonNull byte[] data, int length, int flags) {
+      this.sequence = sequence;
+      this.data     = data;
+      this.length   = length;
+      this.flags    = flags;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Wire format for spreading a single transfer stream across several TLS connections.
+ * <p>
+ * Once the first connection has been verified with the SAS, the server hands the client a random session token. The client can then open
+ * more connections, pinned to the same server certificate, and join them to the session by sending {@link #JOIN_MAGIC} and the token in
+ * place of the SAS commitment. A connection that drops can rejoin the same way.
+ * <p>
+ * The transfer stream is cut into numbered chunks which may be sent on any connection. The server puts them back in
+ * order, and acknowledges each chunk once it's been handed to the {@link ServerTask}. Chunks that were sent on a connection that dropped
+ * before they were acknowledged are sent again, and any the server already has are ignored. When the {@link ServerTask} is done, the
+ * server sends {@link #FRAME_DONE} in place of the single-connection completion byte.
+ * <p>
+ * Both sides advertise support with the byte they send once verification is complete, so either side falls back to a single connection
+ * when talking to an older version.
+ */
+final class MultiStreamProtocol {
+
+  /** Sent after SAS verification by versions that support multiple streams. Older versions send 0x43, and only check that something arrived. */
+  static final int VERIFIED_MULTI_STREAM  = 0x4D;
+  static final int SINGLE_STREAM_COMPLETE = 0x53;
+
+  static final int FRAME_CHUNK = 1;
+  static final int FRAME_ACK   = 2;
+  static final int FRAME_DONE  = 3;
+
+  static final int FLAG_END = 1;
+
+  static final int CHUNK_SIZE   = 64 * 1024;
+  static final int TOKEN_LENGTH = 16;
+
+  /** A join request has the same length as a SAS commitment, so the server can tell the two apart by reading the same number of bytes. */
+  static final byte[] JOIN_MAGIC = { 'S', 'i', 'g', 'n', 'a', 'l', 'T', 'r', 'a', 'n', 's', 'f', 'e', 'r', 'J', 'n' };
+
+  private MultiStreamProtocol() {}
+
+  static @NonNull byte[] generateToken() {
+    byte[] token = new byte[TOKEN_LENGTH];
+    new SecureRandom().nextBytes(token);
+    return token;
+  }
+
+  static @NonNull byte[] buildJoinRequest(@NonNull byte[] token) {
+    byte[] request = new byte[DeviceTransferAuthentication.DIGEST_LENGTH];
+    System.arraycopy(JOIN_MAGIC, 0, request, 0, JOIN_MAGIC.length);
+    System.arraycopy(token, 0, request, JOIN_MAGIC.length, TOKEN_LENGTH);
+    return request;
+  }
+
+  static boolean isJoinRequest(@NonNull byte[] request) {
+    return Arrays.equals(Arrays.copyOfRange(request, 0, JOIN_MAGIC.length), JOIN_MAGIC);
+  }
+
+  static boolean isJoinRequestFor(@NonNull byte[] request, @NonNull byte[] token) {
+    return isJoinRequest(request) && MessageDigest.isEqual(Arrays.copyOfRange(request, JOIN_MAGIC.length, request.length), token);
+  }
+
+  static @NonNull byte[] readToken(@NonNull InputStream inputStream) throws IOException {
+    byte[] token = new byte[TOKEN_LENGTH];
+    StreamUtil.readFully(inputStream, token, token.length);
+    return token;
+  }
+
+  /**
+   * One of the connections making up a transfer, with buffered framing on top of its streams.
+   */
+  static final class Connection implements Closeable {
+
+    private final DataInputStream  input;
+    private final DataOutputStream output;
+    private final Closeable        closeable;
+
+    Connection(@NonNull InputStream inputStream, @NonNull OutputStream outputStream, @NonNull Closeable closeable) {
+      this.input     = new DataInputStream(new BufferedInputStream(inputStream, CHUNK_SIZE));
+      this.output    = new DataOutputStream(new BufferedOutputStream(outputStream, CHUNK_SIZE + 32));
+      this.closeable = closeable;
+    }
+
+    @NonNull DataInputStream getInput() {
+      return input;
+    }
+
+    void writeToken(@NonNull byte[] token) throws IOException {
+      synchronized (output) {
+        output.write(token);
+        output.flush();
+      }
+    }
+
+    void writeChunk(long sequence, int flags, @NonNull byte[] data, int length) throws IOException {
+      synchronized (output) {
+        output.writeByte(FRAME_CHUNK);
+        output.writeLong(sequence);
+        output.writeByte(flags);
+        output.writeInt(length);
+        output.write(data, 0, length);
+        output.flush();
+      }
+    }
+
+    void writeAck(long nextSequence) throws IOException {
+      synchronized (output) {
+        output.writeByte(FRAME_ACK);
+        output.writeLong(nextSequence);
+        output.flush();
+      }
+    }
+
+    void writeDone() throws IOException {
+      synchronized (output) {
+        output.writeByte(FRAME_DONE);
+        output.flush();
+      }
+    }
+
+    @Override
+    public void close() {
+      StreamUtil.close(closeable);
+    }
+  }
+
+  /**
+   * Opens another connection to the server and joins it to the current session.
+   */
+  interface Connector {
+    @NonNull Connection connect() throws IOException;
+  }
+}
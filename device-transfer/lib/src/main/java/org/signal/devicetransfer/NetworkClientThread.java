@@ -14,7 +14,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLHandshakeException;
@@ -34,9 +36,12 @@ final class NetworkClientThread extends Thread {
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1003;
   public static final int NETWORK_CLIENT_STOPPED         = 1004;
 
-  private volatile SSLSocket client;
-  private volatile boolean   isRunning;
-  private volatile Boolean   isVerified;
+  private static final int STREAM_COUNT = 4;
+
+  private volatile SSLSocket               client;
+  private volatile MultiStreamOutputStream multiStream;
+  private volatile boolean                 isRunning;
+  private volatile Boolean                 isVerified;
 
   private final Context    context;
   private final ClientTask clientTask;
@@ -92,10 +97,11 @@ final class NetworkClientThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for server to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(MultiStreamProtocol.VERIFIED_MULTI_STREAM);
           outputStream.flush();
+          int result;
           try {
-            int result = inputStream.read();
+            result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for server to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
@@ -106,15 +112,36 @@ final class NetworkClientThread extends Thread {
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          clientTask.run(context, outputStream);
-          outputStream.flush();
 
-          Log.d(TAG, "Waiting for server to tell us they got everything");
-          try {
-            //noinspection ResultOfMethodCallIgnored
-            inputStream.read();
-          } catch (IOException e) {
-            Log.w(TAG, "Something happened confirming with server, mostly like bad SSL shutdown state, assuming success", e);
+          if (result == MultiStreamProtocol.VERIFIED_MULTI_STREAM) {
+            Log.i(TAG, "Server supports multiple streams, using " + STREAM_COUNT);
+            byte[] token = MultiStreamProtocol.readToken(inputStream);
+
+            multiStream = new MultiStreamOutputStream(new MultiStreamProtocol.Connection(inputStream, outputStream, client),
+                                                      () -> joinTransfer(x509, token),
+                                                      STREAM_COUNT);
+            boolean sent = false;
+            try {
+              clientTask.run(context, multiStream);
+              Log.d(TAG, "Waiting for server to tell us they got everything");
+              multiStream.close();
+              sent = true;
+            } finally {
+              if (!sent) {
+                multiStream.abort();
+              }
+            }
+          } else {
+            clientTask.run(context, outputStream);
+            outputStream.flush();
+
+            Log.d(TAG, "Waiting for server to tell us they got everything");
+            try {
+              //noinspection ResultOfMethodCallIgnored
+              inputStream.read();
+            } catch (IOException e) {
+              Log.w(TAG, "Something happened confirming with server, mostly like bad SSL shutdown state, assuming success", e);
+            }
           }
           success   = true;
           isRunning = false;
@@ -143,6 +170,34 @@ final class NetworkClientThread extends Thread {
     handler.sendEmptyMessage(NETWORK_CLIENT_STOPPED);
   }
 
+  /**
+   * Opens another connection to the server and joins it to the transfer, making sure it's the same server we verified.
+   */
+  private @NonNull MultiStreamProtocol.Connection joinTransfer(@NonNull X509Certificate verified, @NonNull byte[] token) throws IOException {
+    SelfSignedIdentity.ApprovingTrustManager trustManager = new SelfSignedIdentity.ApprovingTrustManager();
+    SSLSocket                                socket       = (SSLSocket) SelfSignedIdentity.getApprovingSocketFactory(trustManager).createSocket();
+
+    try {
+      socket.bind(null);
+      socket.connect(new InetSocketAddress(serverHostAddress, port), 10000);
+      socket.startHandshake();
+
+      X509Certificate x509 = trustManager.getX509Certificate();
+      if (x509 == null || !Arrays.equals(x509.getEncoded(), verified.getEncoded())) {
+        throw new SSLHandshakeException("Server certificate changed");
+      }
+
+      OutputStream outputStream = socket.getOutputStream();
+      outputStream.write(MultiStreamProtocol.buildJoinRequest(token));
+      outputStream.flush();
+
+      return new MultiStreamProtocol.Connection(socket.getInputStream(), outputStream, socket);
+    } catch (IOException | CertificateEncodingException e) {
+      StreamUtil.close(socket);
+      throw e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -169,6 +224,12 @@ final class NetworkClientThread extends Thread {
   @AnyThread
   public void shutdown() {
     isRunning = false;
+
+    MultiStreamOutputStream localMultiStream = multiStream;
+    if (localMultiStream != null) {
+      localMultiStream.abort();
+    }
+
     StreamUtil.close(client);
     interrupt();
   }
@@ -30,10 +30,12 @@ final class NetworkServerThread extends Thread {
   public static final int NETWORK_CLIENT_DISCONNECTED    = 1004;
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1005;
 
-  private volatile ServerSocket serverSocket;
-  private volatile Socket       clientSocket;
-  private volatile boolean      isRunning;
-  private volatile Boolean      isVerified;
+  private volatile ServerSocket           serverSocket;
+  private volatile Socket                 clientSocket;
+  private volatile boolean                isRunning;
+  private volatile Boolean                isVerified;
+  private volatile MultiStreamInputStream multiStream;
+  private volatile byte[]                 multiStreamToken;
 
   private final Context                           context;
   private final ServerTask                        serverTask;
@@ -64,26 +66,52 @@ final class NetworkServerThread extends Thread {
       handler.sendMessage(handler.obtainMessage(NETWORK_SERVER_STARTED, serverSocket.getLocalPort(), 0));
       while (shouldKeepRunning() && !serverSocket.isClosed()) {
         Log.i(TAG, "Waiting for client socket accept...");
+        Socket  socket   = null;
+        boolean handedOff = false;
         try {
-          clientSocket = serverSocket.accept();
+          socket = serverSocket.accept();
 
           if (!isRunning) {
             break;
           }
 
-          InputStream  inputStream        = clientSocket.getInputStream();
-          OutputStream outputStream       = clientSocket.getOutputStream();
-          int          authenticationCode = DeviceTransferAuthentication.generateServerAuthenticationCode(keys.getX509Encoded(), inputStream, outputStream);
+          InputStream  inputStream  = socket.getInputStream();
+          OutputStream outputStream = socket.getOutputStream();
+
+          byte[] firstMessage = new byte[DeviceTransferAuthentication.DIGEST_LENGTH];
+          StreamUtil.readFully(inputStream, firstMessage, firstMessage.length);
+
+          if (MultiStreamProtocol.isJoinRequest(firstMessage)) {
+            MultiStreamInputStream session = multiStream;
+            byte[]                 token   = multiStreamToken;
+
+            if (session != null && token != null && MultiStreamProtocol.isJoinRequestFor(firstMessage, token)) {
+              session.addConnection(new MultiStreamProtocol.Connection(inputStream, outputStream, socket));
+              handedOff = true;
+            } else {
+              Log.w(TAG, "Rejecting request to join a transfer that isn't running");
+            }
+            continue;
+          }
+
+          if (multiStream != null) {
+            Log.w(TAG, "Rejecting new client while a transfer is running");
+            continue;
+          }
+
+          clientSocket = socket;
+          int authenticationCode = DeviceTransferAuthentication.generateServerAuthenticationCode(keys.getX509Encoded(), firstMessage, inputStream, outputStream);
 
           handler.sendMessage(handler.obtainMessage(NETWORK_CLIENT_SSL_ESTABLISHED, authenticationCode));
 
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for client to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(MultiStreamProtocol.VERIFIED_MULTI_STREAM);
           outputStream.flush();
+          int result;
           try {
-            int result = inputStream.read();
+            result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for client to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
@@ -94,10 +122,17 @@ final class NetworkServerThread extends Thread {
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          serverTask.run(context, inputStream);
 
-          outputStream.write(0x53);
-          outputStream.flush();
+          if (result == MultiStreamProtocol.VERIFIED_MULTI_STREAM) {
+            Log.i(TAG, "Client supports multiple streams");
+            startMultiStreamTransfer(new MultiStreamProtocol.Connection(inputStream, outputStream, socket));
+            handedOff = true;
+          } else {
+            serverTask.run(context, inputStream);
+
+            outputStream.write(MultiStreamProtocol.SINGLE_STREAM_COMPLETE);
+            outputStream.flush();
+          }
         } catch (IOException e) {
           if (isRunning) {
             Log.i(TAG, "Error connecting with client or server socket closed.", e);
@@ -105,8 +140,13 @@ final class NetworkServerThread extends Thread {
             Log.i(TAG, "Server shutting down...");
           }
         } finally {
-          StreamUtil.close(clientSocket);
-          handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
+          if (!handedOff) {
+            StreamUtil.close(socket);
+
+            if (socket != null && socket == clientSocket) {
+              handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
+            }
+          }
         }
       }
     } catch (RuntimeException e) {
@@ -115,6 +155,7 @@ final class NetworkServerThread extends Thread {
       Log.w(TAG, e);
     } finally {
       StreamUtil.close(serverSocket);
+      StreamUtil.close(multiStream);
     }
 
     Log.i(TAG, "Server exiting");
@@ -122,6 +163,42 @@ final class NetworkServerThread extends Thread {
     handler.sendEmptyMessage(NETWORK_SERVER_STOPPED);
   }
 
+  /**
+   * Runs the {@link ServerTask} on its own thread, reading from the first connection and any that join it later, so that we can keep
+   * accepting those connections in the meantime.
+   */
+  private void startMultiStreamTransfer(@NonNull MultiStreamProtocol.Connection first) throws IOException {
+    byte[]                 token   = MultiStreamProtocol.generateToken();
+    MultiStreamInputStream session = new MultiStreamInputStream();
+
+    first.writeToken(token);
+
+    multiStreamToken = token;
+    multiStream      = session;
+
+    session.addConnection(first);
+
+    new Thread(() -> {
+      try {
+        serverTask.run(context, session);
+
+        // Tasks can stop reading at the end of their own data, before the end of the stream has been read
+        byte[] buffer = new byte[1024];
+        //noinspection StatementWithEmptyBody
+        while (session.read(buffer) != -1) { }
+
+        session.sendDone();
+      } catch (IOException e) {
+        Log.w(TAG, "Error running server task", e);
+      } finally {
+        multiStreamToken = null;
+        multiStream      = null;
+        session.close();
+        handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
+      }
+    }, "device-transfer-server-task").start();
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -161,6 +238,7 @@ final class NetworkServerThread extends Thread {
   @AnyThread
   public void shutdown() {
     isRunning = false;
+    StreamUtil.close(multiStream);
     StreamUtil.close(clientSocket);
     StreamUtil.close(serverSocket);
     interrupt();
@@ -16,7 +16,7 @@ public interface ServerTask extends Serializable {
 
   /**
    * @param context     Android context, mostly like the foreground transfer service
-   * @param inputStream Input stream associated with socket connected to remote client.
+   * @param inputStream Input stream from the remote client. May be reassembled from several connections if the client supports it.
    */
   void run(@NonNull Context context, @NonNull InputStream inputStream) throws IOException;
 }
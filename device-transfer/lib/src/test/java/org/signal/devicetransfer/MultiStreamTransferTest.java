@@ -0,0 +1,147 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MultiStreamTransferTest {
+
+  private ServerSocket           listener;
+  private MultiStreamInputStream receiver;
+  private List<Socket>           serverSockets;
+
+  @Before
+  public void setUp() throws IOException {
+    listener      = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    receiver      = new MultiStreamInputStream();
+    serverSockets = new ArrayList<>();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    receiver.close();
+    listener.close();
+  }
+
+  @Test
+  public void transfer_deliversEverythingInOrder() throws Exception {
+    byte[] data = testData();
+
+    assertArrayEquals(data, transfer(data, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void transfer_resumesAfterEveryConnectionDrops() throws Exception {
+    byte[] data = testData();
+
+    assertArrayEquals(data, transfer(data, data.length / 3));
+  }
+
+  @Test
+  public void joinRequest_onlyMatchesItsOwnToken() {
+    byte[] token   = MultiStreamProtocol.generateToken();
+    byte[] request = MultiStreamProtocol.buildJoinRequest(token);
+
+    assertTrue(MultiStreamProtocol.isJoinRequestFor(request, token));
+    assertFalse(MultiStreamProtocol.isJoinRequestFor(request, MultiStreamProtocol.generateToken()));
+  }
+
+  @Test
+  public void joinRequest_isNotMistakenForCommitment() {
+    byte[] commitment = new byte[DeviceTransferAuthentication.DIGEST_LENGTH];
+    new Random(1).nextBytes(commitment);
+
+    assertFalse(MultiStreamProtocol.isJoinRequest(commitment));
+  }
+
+  /**
+   * Sends the data over four loopback connections, dropping all of them once the receiver has read {@code dropAfter} bytes.
+   */
+  private @NonNull byte[] transfer(@NonNull byte[] data, long dropAfter) throws Exception {
+    ByteArrayOutputStream        output  = new ByteArrayOutputStream();
+    AtomicReference<Throwable>   error   = new AtomicReference<>();
+
+    Thread reader = new Thread(() -> {
+      try {
+        byte[]  buffer  = new byte[8192];
+        boolean dropped = false;
+        int     read;
+
+        while ((read = receiver.read(buffer)) != -1) {
+          output.write(buffer, 0, read);
+
+          if (!dropped && output.size() > dropAfter) {
+            dropped = true;
+            dropConnections();
+          }
+        }
+
+        receiver.sendDone();
+      } catch (Throwable t) {
+        error.set(t);
+      }
+    });
+    reader.start();
+
+    MultiStreamOutputStream sender = new MultiStreamOutputStream(connect(), this::connect, 4);
+
+    for (int offset = 0; offset < data.length; offset += 10_000) {
+      sender.write(data, offset, Math.min(10_000, data.length - offset));
+    }
+    sender.close();
+
+    reader.join();
+    assertNull(error.get());
+    assertTrue(receiver.isComplete());
+
+    return output.toByteArray();
+  }
+
+  private @NonNull MultiStreamProtocol.Connection connect() throws IOException {
+    Socket client = new Socket(listener.getInetAddress(), listener.getLocalPort());
+    Socket server = listener.accept();
+
+    synchronized (serverSockets) {
+      serverSockets.add(server);
+    }
+
+    receiver.addConnection(new MultiStreamProtocol.Connection(server.getInputStream(), server.getOutputStream(), server));
+
+    return new MultiStreamProtocol.Connection(client.getInputStream(), client.getOutputStream(), client);
+  }
+
+  private void dropConnections() throws IOException {
+    synchronized (serverSockets) {
+      for (Socket socket : serverSockets) {
+        socket.close();
+      }
+      serverSockets.clear();
+    }
+  }
+
+  /**
+   * Random bytes, like the already encrypted backup stream, in a length that doesn't line up with the chunk size.
+   */
+  private static @NonNull byte[] testData() {
+    byte[] data = new byte[2_000_000 + 12_345];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+}
@@ -60,6 +60,10 @@ public final class EditorElement implements Parcelable {
   @NonNull
   private AlphaAnimation alphaAnimation = AlphaAnimation.NULL_1;
 
+  @Nullable
+  private ElementSnapshot snapshot;
+  private int             snapshotRendererVersion;
+
   public EditorElement(@Nullable Renderer renderer) {
     this(renderer, 0);
   }
@@ -80,6 +84,15 @@ public final class EditorElement implements Parcelable {
     in.readTypedList(children, EditorElement.CREATOR);
   }
 
+  EditorElement(@NonNull UUID id, int flags, @NonNull Matrix localMatrix, @Nullable Renderer renderer, int zOrder, @NonNull List<EditorElement> children) {
+    this.id       = id;
+    this.flags    = new EditorFlags(flags);
+    this.renderer = renderer;
+    this.zOrder   = zOrder;
+    this.localMatrix.set(localMatrix);
+    this.children.addAll(children);
+  }
+
   UUID getId() {
     return id;
   }
@@ -374,6 +387,22 @@ public final class EditorElement implements Parcelable {
     animationMatrix.stop();
   }
 
+  /**
+   * @return The last snapshot taken of this element, for {@link ElementSnapshot#of} to reuse if nothing has changed since.
+   */
+  @Nullable ElementSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  int getSnapshotRendererVersion() {
+    return snapshotRendererVersion;
+  }
+
+  void setSnapshot(@NonNull ElementSnapshot snapshot, int rendererVersion) {
+    this.snapshot                = snapshot;
+    this.snapshotRendererVersion = rendererVersion;
+  }
+
   public static final Creator<EditorElement> CREATOR = new Creator<EditorElement>() {
     @Override
     public EditorElement createFromParcel(Parcel in) {
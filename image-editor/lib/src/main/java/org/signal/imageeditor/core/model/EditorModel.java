@@ -50,6 +50,8 @@ public final class EditorModel implements Parcelable, RendererContext.Ready {
 
   private static final int MINIMUM_OUTPUT_WIDTH = 1024;
 
+  private static final long UNDO_HISTORY_BYTES = 4 * 1024 * 1024;
+
   private static final int   MINIMUM_CROP_PIXEL_COUNT = 100;
   private static final Point MINIMUM_RATIO            = new Point(15, 1);
 
@@ -114,8 +116,8 @@ public final class EditorModel implements Parcelable, RendererContext.Ready {
     this.fixedRatio             = fixedRatio;
     this.size                   = new Point(1024, 1024);
     this.editorElementHierarchy = editorElementHierarchy;
-    this.undoRedoStacks         = new UndoRedoStacks(50);
-    this.cropUndoRedoStacks     = new UndoRedoStacks(50);
+    this.undoRedoStacks         = new UndoRedoStacks(UNDO_HISTORY_BYTES);
+    this.cropUndoRedoStacks     = new UndoRedoStacks(UNDO_HISTORY_BYTES);
   }
 
   public static EditorModel create(@ColorInt int blackoutColor) {
@@ -0,0 +1,291 @@
+package org.signal.imageeditor.core.model;
+
+import android.graphics.Matrix;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.imageeditor.core.Renderer;
+import org.signal.imageeditor.core.renderers.InvalidateableRenderer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An immutable copy of the persisted state of an {@link EditorElement} and its children, for the undo and redo stacks.
+ * <p>
+ * Snapshots are shared wherever they can be. Each element remembers the last snapshot taken of it, and if nothing about it or its
+ * children has changed since, taking another snapshot hands back that same instance. So consecutive states in the history share every
+ * unchanged subtree, and a new stroke costs one new snapshot for the stroke plus one for each of its ancestors.
+ * <p>
+ * The renderer is the only part of an element that is expensive to copy, so it is kept marshalled. {@link InvalidateableRenderer}s count
+ * their changes, and while that count is the same as when the last snapshot was taken the renderer is not marshalled again. Other
+ * renderers are marshalled every time, but still share the previous bytes if they come out the same.
+ */
+final class ElementSnapshot {
+
+  /**
+   * Rough cost of a snapshot on the heap before counting its renderer, for sizing the history.
+   */
+  private static final int OVERHEAD_BYTES = 128;
+
+  private static final int UNKNOWN_VERSION = -1;
+
+  private static final ElementSnapshot[] NO_CHILDREN = new ElementSnapshot[0];
+
+  private final UUID              id;
+  private final int               flags;
+  private final float[]           localMatrix;
+  private final int               zOrder;
+  private final byte[]            renderer;
+  private final ElementSnapshot[] children;
+
+  private ElementSnapshot(@NonNull UUID id, int flags, @NonNull float[] localMatrix, int zOrder, @Nullable byte[] renderer, @NonNull ElementSnapshot[] children) {
+    this.id          = id;
+    this.flags       = flags;
+    this.localMatrix = localMatrix;
+    this.zOrder      = zOrder;
+    this.renderer    = renderer;
+    this.children    = children;
+  }
+
+  /**
+   * @return A snapshot of the element's current state, reusing the previous snapshot of the element and its children where unchanged.
+   */
+  static @NonNull ElementSnapshot of(@NonNull EditorElement element) {
+    int               childCount = element.getChildCount();
+    ElementSnapshot[] children   = childCount > 0 ? new ElementSnapshot[childCount] : NO_CHILDREN;
+
+    for (int i = 0; i < childCount; i++) {
+      children[i] = of(element.getChild(i));
+    }
+
+    float[] localMatrix = new float[9];
+    element.getLocalMatrix().getValues(localMatrix);
+
+    ElementSnapshot previous = element.getSnapshot();
+    int             version  = getVersion(element.getRenderer());
+    byte[]          renderer;
+
+    if (previous != null && version != UNKNOWN_VERSION && version == element.getSnapshotRendererVersion()) {
+      renderer = previous.renderer;
+    } else {
+      renderer = element.getRenderer() != null ? marshall(element.getRenderer()) : null;
+
+      if (previous != null && Arrays.equals(renderer, previous.renderer)) {
+        renderer = previous.renderer;
+      }
+    }
+
+    ElementSnapshot snapshot = new ElementSnapshot(element.getId(), element.getFlags().asInt(), localMatrix, element.getZOrder(), renderer, children);
+
+    if (previous != null && previous.sameAs(snapshot)) {
+      snapshot = previous;
+    }
+
+    element.setSnapshot(snapshot, version);
+
+    return snapshot;
+  }
+
+  /**
+   * @return A new element tree in this state. The new elements remember this snapshot, so snapshotting them again is cheap.
+   */
+  @NonNull EditorElement toElement() {
+    List<EditorElement> childElements = new ArrayList<>(children.length);
+    for (ElementSnapshot child : children) {
+      childElements.add(child.toElement());
+    }
+
+    Matrix matrix = new Matrix();
+    matrix.setValues(localMatrix);
+
+    Renderer      rendererInstance = renderer != null ? unmarshall(renderer) : null;
+    EditorElement element          = new EditorElement(id, flags, matrix, rendererInstance, zOrder, childElements);
+
+    element.setSnapshot(this, getVersion(rendererInstance));
+
+    return element;
+  }
+
+  /**
+   * Compares the same state that {@link EditorElement#writeToParcel} writes. Shared subtrees are not walked.
+   */
+  boolean sameAs(@NonNull ElementSnapshot other) {
+    if (this == other) {
+      return true;
+    }
+
+    if (!id.equals(other.id)                           ||
+        flags != other.flags                           ||
+        zOrder != other.zOrder                         ||
+        children.length != other.children.length      ||
+        !Arrays.equals(localMatrix, other.localMatrix) ||
+        (renderer != other.renderer && !Arrays.equals(renderer, other.renderer)))
+    {
+      return false;
+    }
+
+    for (int i = 0; i < children.length; i++) {
+      if (!children[i].sameAs(other.children[i])) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Estimates how much memory keeping this state costs on top of keeping {@code base}, by only counting the parts not shared with it.
+   */
+  long sizeNotSharedWith(@Nullable ElementSnapshot base) {
+    if (this == base) {
+      return 0;
+    }
+
+    long size = OVERHEAD_BYTES + 4L * children.length;
+
+    if (renderer != null && (base == null || renderer != base.renderer)) {
+      size += renderer.length;
+    }
+
+    Map<UUID, ElementSnapshot> baseChildren = null;
+
+    for (int i = 0; i < children.length; i++) {
+      ElementSnapshot child     = children[i];
+      ElementSnapshot baseChild = null;
+
+      if (base != null) {
+        if (i < base.children.length && base.children[i].id.equals(child.id)) {
+          baseChild = base.children[i];
+        } else {
+          if (baseChildren == null) {
+            baseChildren = new HashMap<>();
+            for (ElementSnapshot candidate : base.children) {
+              baseChildren.put(candidate.id, candidate);
+            }
+          }
+          baseChild = baseChildren.get(child.id);
+        }
+      }
+
+      size += child.sizeNotSharedWith(baseChild);
+    }
+
+    return size;
+  }
+
+  /**
+   * Writes each distinct snapshot reachable from the roots once, so that sharing survives being parcelled.
+   */
+  static void writeToParcel(@NonNull Parcel dest, @NonNull List<ElementSnapshot> roots) {
+    Map<ElementSnapshot, Integer> indexes = new IdentityHashMap<>();
+    List<ElementSnapshot>         ordered = new ArrayList<>();
+
+    for (ElementSnapshot root : roots) {
+      root.collect(indexes, ordered);
+    }
+
+    dest.writeInt(ordered.size());
+    for (ElementSnapshot snapshot : ordered) {
+      ParcelUtils.writeUUID(dest, snapshot.id);
+      dest.writeInt(snapshot.flags);
+      dest.writeFloatArray(snapshot.localMatrix);
+      dest.writeInt(snapshot.zOrder);
+      dest.writeByteArray(snapshot.renderer);
+      dest.writeInt(snapshot.children.length);
+      for (ElementSnapshot child : snapshot.children) {
+        dest.writeInt(indexes.get(child));
+      }
+    }
+
+    dest.writeInt(roots.size());
+    for (ElementSnapshot root : roots) {
+      dest.writeInt(indexes.get(root));
+    }
+  }
+
+  static @NonNull List<ElementSnapshot> readFromParcel(@NonNull Parcel in) {
+    int               count     = in.readInt();
+    ElementSnapshot[] snapshots = new ElementSnapshot[count];
+
+    for (int i = 0; i < count; i++) {
+      UUID    id          = ParcelUtils.readUUID(in);
+      int     flags       = in.readInt();
+      float[] localMatrix = new float[9];
+      in.readFloatArray(localMatrix);
+      int     zOrder      = in.readInt();
+      byte[]  renderer    = in.createByteArray();
+
+      int               childCount = in.readInt();
+      ElementSnapshot[] children   = childCount > 0 ? new ElementSnapshot[childCount] : NO_CHILDREN;
+      for (int j = 0; j < childCount; j++) {
+        children[j] = snapshots[in.readInt()];
+      }
+
+      snapshots[i] = new ElementSnapshot(id, flags, localMatrix, zOrder, renderer, children);
+    }
+
+    int                   rootCount = in.readInt();
+    List<ElementSnapshot> roots     = new ArrayList<>(rootCount);
+    for (int i = 0; i < rootCount; i++) {
+      roots.add(snapshots[in.readInt()]);
+    }
+
+    return roots;
+  }
+
+  /**
+   * Children are collected before their parents so that they can be read back in a single pass.
+   */
+  private void collect(@NonNull Map<ElementSnapshot, Integer> indexes, @NonNull List<ElementSnapshot> ordered) {
+    if (indexes.containsKey(this)) {
+      return;
+    }
+
+    for (ElementSnapshot child : children) {
+      child.collect(indexes, ordered);
+    }
+
+    indexes.put(this, ordered.size());
+    ordered.add(this);
+  }
+
+  private static int getVersion(@Nullable Renderer renderer) {
+    if (renderer == null) {
+      return 0;
+    } else if (renderer instanceof InvalidateableRenderer) {
+      return ((InvalidateableRenderer) renderer).getVersion();
+    } else {
+      return UNKNOWN_VERSION;
+    }
+  }
+
+  private static @NonNull byte[] marshall(@NonNull Parcelable parcelable) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeParcelable(parcelable, 0);
+      return parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static @Nullable Renderer unmarshall(@NonNull byte[] bytes) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(bytes, 0, bytes.length);
+      parcel.setDataPosition(0);
+      return parcel.readParcelable(Renderer.class.getClassLoader());
+    } finally {
+      parcel.recycle();
+    }
+  }
+}
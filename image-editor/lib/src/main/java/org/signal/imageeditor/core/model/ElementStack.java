@@ -6,100 +6,99 @@ import android.os.Parcelable;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
 /**
  * Contains a stack of elements for undo and redo stacks.
  * <p>
- * Elements are mutable, so this stack serializes the element and keeps a stack of serialized data.
+ * Elements are mutable, so this stack keeps a stack of {@link ElementSnapshot}s, which share everything that did not change between
+ * states.
  * <p>
- * The stack has a {@link #limit} and if it exceeds that limit during a push the second to earliest item
- * is removed so that it can always go back to the first state. Effectively collapsing the history for
- * the start of the stack.
+ * The stack is limited to roughly {@link #maxBytes} of state that isn't shared with the entry below it, and if it exceeds that limit
+ * during a push, the second to earliest items are removed so that it can always go back to the first state. Effectively collapsing the
+ * history for the start of the stack.
  */
 final class ElementStack implements Parcelable {
 
-  private final int           limit;
-  private final Stack<byte[]> stack = new Stack<>();
+  private final long         maxBytes;
+  private final Stack<Entry> stack = new Stack<>();
 
-  ElementStack(int limit) {
-    this.limit = limit;
+  private long totalBytes;
+
+  ElementStack(long maxBytes) {
+    this.maxBytes = maxBytes;
   }
 
   private ElementStack(@NonNull Parcel in) {
-    this(in.readInt());
-    final int count = in.readInt();
-    for (int i = 0; i < count; i++) {
-      stack.add(i, in.createByteArray());
+    this(in.readLong());
+    for (ElementSnapshot snapshot : ElementSnapshot.readFromParcel(in)) {
+      push(snapshot);
     }
   }
 
   /**
-   * Pushes an element to the stack iff the element's serialized value is different to any found at
-   * the top of the stack.
+   * Pushes an element to the stack iff the element's state is different to that found at the top of the stack.
    * <p>
-   * Removes the second to earliest item if it is overflowing.
+   * Removes the second to earliest items if it is overflowing.
    *
    * @param element new editor element state.
    * @return true iff the pushed item was different to the top item.
    */
   boolean tryPush(@NonNull EditorElement element) {
-    byte[]  bytes = getBytes(element);
-    boolean push  = stack.isEmpty() || !Arrays.equals(bytes, stack.peek());
+    ElementSnapshot snapshot = ElementSnapshot.of(element);
+    boolean         push     = stack.isEmpty() || !snapshot.sameAs(stack.peek().snapshot);
 
     if (push) {
-      stack.push(bytes);
-      if (stack.size() > limit) {
-        stack.remove(1);
-      }
+      push(snapshot);
+      trim();
     }
     return push;
   }
 
-  static byte[] getBytes(@NonNull Parcelable parcelable) {
-    Parcel parcel = Parcel.obtain();
-    byte[] bytes;
-    try {
-      parcel.writeParcelable(parcelable, 0);
-      bytes = parcel.marshall();
-    } finally {
-      parcel.recycle();
-    }
-    return bytes;
-  }
-
   /**
    * Pops the first different state from the supplied element.
    */
   @Nullable EditorElement pop(@NonNull EditorElement element) {
     if (stack.empty()) return null;
 
-    byte[] elementBytes = getBytes(element);
-    byte[] stackData    = null;
+    ElementSnapshot elementSnapshot = ElementSnapshot.of(element);
+    ElementSnapshot stackData       = null;
 
     while (!stack.empty() && stackData == null) {
-      byte[] topData = stack.pop();
+      Entry top = stack.pop();
+      totalBytes -= top.size;
 
-      if (!Arrays.equals(topData, elementBytes)) {
-        stackData = topData;
+      if (!top.snapshot.sameAs(elementSnapshot)) {
+        stackData = top.snapshot;
       }
     }
 
     if (stackData == null) return null;
 
-    Parcel parcel = Parcel.obtain();
-    try {
-      parcel.unmarshall(stackData, 0, stackData.length);
-      parcel.setDataPosition(0);
-      return parcel.readParcelable(EditorElement.class.getClassLoader());
-    } finally {
-      parcel.recycle();
-    }
+    return stackData.toElement();
   }
 
   void clear() {
     stack.clear();
+    totalBytes = 0;
+  }
+
+  private void push(@NonNull ElementSnapshot snapshot) {
+    Entry entry = new Entry(snapshot, stack.isEmpty() ? null : stack.peek().snapshot);
+    stack.push(entry);
+    totalBytes += entry.size;
+  }
+
+  private void trim() {
+    while (totalBytes > maxBytes && stack.size() > 2) {
+      Entry removed = stack.remove(1);
+      Entry next    = new Entry(stack.get(1).snapshot, stack.get(0).snapshot);
+
+      totalBytes += next.size - removed.size - stack.get(1).size;
+      stack.set(1, next);
+    }
   }
 
   public static final Creator<ElementStack> CREATOR = new Creator<ElementStack>() {
@@ -121,25 +120,35 @@ final class ElementStack implements Parcelable {
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
-    dest.writeInt(limit);
-    final int count = stack.size();
-    dest.writeInt(count);
-    for (int i = 0; i < count; i++) {
-      dest.writeByteArray(stack.get(i));
+    dest.writeLong(maxBytes);
+    List<ElementSnapshot> snapshots = new ArrayList<>(stack.size());
+    for (Entry entry : stack) {
+      snapshots.add(entry.snapshot);
     }
+    ElementSnapshot.writeToParcel(dest, snapshots);
   }
 
   boolean stackContainsStateDifferentFrom(@NonNull EditorElement element) {
     if (stack.isEmpty()) return false;
 
-    byte[] currentStateBytes = getBytes(element);
+    ElementSnapshot currentState = ElementSnapshot.of(element);
 
-    for (byte[] item : stack) {
-      if (!Arrays.equals(item, currentStateBytes)) {
+    for (Entry item : stack) {
+      if (!item.snapshot.sameAs(currentState)) {
         return true;
       }
     }
 
     return false;
   }
+
+  private static final class Entry {
+    private final ElementSnapshot snapshot;
+    private final long            size;
+
+    Entry(@NonNull ElementSnapshot snapshot, @Nullable ElementSnapshot below) {
+      this.snapshot = snapshot;
+      this.size     = snapshot.sizeNotSharedWith(below);
+    }
+  }
 }
@@ -6,24 +6,25 @@ import android.os.Parcelable;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 final class UndoRedoStacks implements Parcelable {
 
   private final ElementStack undoStack;
   private final ElementStack redoStack;
 
-  @NonNull
-  private byte[] unchangedState;
+  @Nullable
+  private ElementSnapshot unchangedState;
 
-  UndoRedoStacks(int limit) {
-    this(new ElementStack(limit), new ElementStack(limit), null);
+  UndoRedoStacks(long maxBytes) {
+    this(new ElementStack(maxBytes), new ElementStack(maxBytes), null);
   }
 
-  private UndoRedoStacks(ElementStack undoStack, ElementStack redoStack, @Nullable byte[] unchangedState) {
+  private UndoRedoStacks(ElementStack undoStack, ElementStack redoStack, @Nullable ElementSnapshot unchangedState) {
     this.undoStack = undoStack;
     this.redoStack = redoStack;
-    this.unchangedState = unchangedState != null ? unchangedState : new byte[0];
+    this.unchangedState = unchangedState;
   }
 
   public static final Creator<UndoRedoStacks> CREATOR = new Creator<UndoRedoStacks>() {
@@ -32,7 +33,7 @@ final class UndoRedoStacks implements Parcelable {
       return new UndoRedoStacks(
       in.readParcelable(ElementStack.class.getClassLoader()),
       in.readParcelable(ElementStack.class.getClassLoader()),
-      in.createByteArray()
+      readUnchangedState(in)
       );
     }
 
@@ -46,7 +47,12 @@ final class UndoRedoStacks implements Parcelable {
   public void writeToParcel(Parcel dest, int flags) {
     dest.writeParcelable(undoStack, flags);
     dest.writeParcelable(redoStack, flags);
-    dest.writeByteArray(unchangedState);
+    ElementSnapshot.writeToParcel(dest, unchangedState != null ? Collections.singletonList(unchangedState) : Collections.emptyList());
+  }
+
+  private static @Nullable ElementSnapshot readUnchangedState(@NonNull Parcel in) {
+    List<ElementSnapshot> states = ElementSnapshot.readFromParcel(in);
+    return states.isEmpty() ? null : states.get(0);
   }
 
   @Override
@@ -71,11 +77,14 @@ final class UndoRedoStacks implements Parcelable {
   void clear(@NonNull EditorElement element) {
     undoStack.clear();
     redoStack.clear();
-    unchangedState = ElementStack.getBytes(element);
+    unchangedState = ElementSnapshot.of(element);
   }
 
+  /**
+   * Cheap when little has changed, as snapshots of unchanged elements are reused and compared by reference.
+   */
   boolean isChanged(@NonNull EditorElement element) {
-    return !Arrays.equals(ElementStack.getBytes(element), unchangedState);
+    return unchangedState == null || !ElementSnapshot.of(element).sameAs(unchangedState);
   }
 
   /**
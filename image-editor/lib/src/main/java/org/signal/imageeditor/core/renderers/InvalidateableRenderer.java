@@ -9,11 +9,16 @@ import java.lang.ref.WeakReference;
 
 /**
  * Maintains a weak reference to the an invalidate callback allowing future invalidation without memory leak risk.
+ * <p>
+ * Also counts invalidations, so subclasses must invalidate whenever their persisted state changes. The undo history relies on an
+ * unchanged {@link #getVersion()} to skip marshalling the renderer again.
  */
 public abstract class InvalidateableRenderer implements Renderer {
 
   private WeakReference<RendererContext.Invalidate> invalidate = new WeakReference<>(null);
 
+  private int version;
+
   @Override
   public void render(@NonNull RendererContext rendererContext) {
     setInvalidate(rendererContext.invalidate);
@@ -25,7 +30,13 @@ public abstract class InvalidateableRenderer implements Renderer {
     }
   }
 
+  public final int getVersion() {
+    return version;
+  }
+
   protected void invalidate() {
+    version++;
+
     RendererContext.Invalidate invalidate = this.invalidate.get();
     if (invalidate != null) {
       invalidate.onInvalidate(this);
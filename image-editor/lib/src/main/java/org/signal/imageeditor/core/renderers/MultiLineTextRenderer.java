@@ -115,6 +115,7 @@ public final class MultiLineTextRenderer extends InvalidateableRenderer implemen
     if (!this.text.equals(text)) {
       this.text = text;
       createLinesForText();
+      invalidate();
     }
   }
 
@@ -15,8 +15,11 @@ import org.signal.core.util.Base64;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import io.reactivex.rxjava3.core.Observable;
@@ -36,6 +39,9 @@ public final class SignalWebSocket {
 
   private static final String SERVER_DELIVERED_TIMESTAMP_HEADER = "X-Signal-Timestamp";
 
+  /** How long an enqueued ack is allowed to wait before it's flushed, if nobody flushes it explicitly. */
+  private static final long ACK_FLUSH_DELAY_MS = 250;
+
   private final WebSocketFactory webSocketFactory;
 
   private       WebSocketConnection                       webSocket;
@@ -48,6 +54,16 @@ public final class SignalWebSocket {
 
   private boolean canConnect;
 
+  /**
+   * Acks waiting to be flushed, keyed by the connection their envelopes were read from. An ack is only meaningful on that connection, so
+   * acks are never sent on, or dropped because of, any other one.
+   */
+  private final Map<WebSocketConnection, List<EnvelopeResponse>> pendingAcks = new IdentityHashMap<>();
+  private       Disposable                                       pendingAckFlush;
+
+  /** The connection that the last batch was read from, which is the one its envelopes have to be acked on. */
+  private volatile WebSocketConnection batchConnection;
+
   public SignalWebSocket(WebSocketFactory webSocketFactory) {
     this.webSocketFactory                     = webSocketFactory;
     this.webSocketState                       = BehaviorSubject.createDefault(WebSocketConnectionState.DISCONNECTED);
@@ -110,6 +126,8 @@ public final class SignalWebSocket {
 
   private void disconnectIdentified() {
     if (webSocket != null) {
+      clearPendingAcks(webSocket);
+
       webSocketStateDisposable.dispose();
 
       webSocket.disconnect();
@@ -244,10 +262,13 @@ public final class SignalWebSocket {
   public boolean readMessageBatch(long timeout, int batchSize, MessageReceivedCallback callback)
       throws TimeoutException, WebSocketUnavailableException, IOException
   {
+    WebSocketConnection    connection    = getWebSocket();
     List<EnvelopeResponse> responses     = new ArrayList<>();
     boolean                hitEndOfQueue = false;
 
-    Optional<EnvelopeResponse> firstEnvelope = waitForSingleMessage(timeout);
+    batchConnection = connection;
+
+    Optional<EnvelopeResponse> firstEnvelope = waitForSingleMessage(connection, timeout);
 
     if (firstEnvelope.isPresent()) {
       responses.add(firstEnvelope.get());
@@ -257,7 +278,7 @@ public final class SignalWebSocket {
 
     if (!hitEndOfQueue) {
       for (int i = 1; i < batchSize; i++) {
-        Optional<WebSocketRequestMessage> request = getWebSocket().readRequestIfAvailable();
+        Optional<WebSocketRequestMessage> request = connection.readRequestIfAvailable();
 
         if (request.isPresent()) {
           if (isSignalServiceEnvelope(request.get())) {
@@ -283,12 +304,122 @@ public final class SignalWebSocket {
     getWebSocket().sendResponse(createWebSocketResponse(response.getWebsocketRequest()));
   }
 
-  @SuppressWarnings("DuplicateThrows")
-  private Optional<EnvelopeResponse> waitForSingleMessage(long timeout)
-      throws TimeoutException, WebSocketUnavailableException, IOException
+  /**
+   * Acks all of the provided envelopes from the last {@link #readMessageBatch} while only acquiring the connection lock once. Only call
+   * this after the envelopes have been durably processed.
+   */
+  public void sendAcks(List<EnvelopeResponse> responses) throws IOException {
+    WebSocketConnection connection = batchConnection;
+    sendAcks(connection != null ? connection : getWebSocket(), responses);
+  }
+
+  /**
+   * Queues an ack to be sent with the next call to {@link #flushAcks()}, or after a short delay, whichever comes first.
+   * Acks are coalesced so that they can be written with a single acquisition of the connection lock.
+   *
+   * Like {@link #sendAck(EnvelopeResponse)}, this should only be called after the envelope has been durably processed, and the envelope
+   * must be from the last {@link #readMessageBatch}. Queued acks are dropped if their connection goes away, in which case the server will
+   * simply re-deliver the envelopes.
+   */
+  public void enqueueAck(EnvelopeResponse response) {
+    WebSocketConnection connection = batchConnection;
+
+    if (connection == null) {
+      Log.w(TAG, "No connection to ack on, dropping ack.");
+      return;
+    }
+
+    synchronized (pendingAcks) {
+      List<EnvelopeResponse> acks = pendingAcks.get(connection);
+
+      if (acks == null) {
+        acks = new ArrayList<>();
+        pendingAcks.put(connection, acks);
+      }
+
+      acks.add(response);
+
+      if (pendingAckFlush == null) {
+        pendingAckFlush = Schedulers.io().scheduleDirect(this::flushAcksQuietly, ACK_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Immediately sends any acks queued with {@link #enqueueAck(EnvelopeResponse)}, each on the connection it was queued for.
+   */
+  public void flushAcks() throws IOException {
+    Map<WebSocketConnection, List<EnvelopeResponse>> toSend;
+
+    synchronized (pendingAcks) {
+      toSend = new IdentityHashMap<>(pendingAcks);
+      pendingAcks.clear();
+
+      if (pendingAckFlush != null) {
+        pendingAckFlush.dispose();
+        pendingAckFlush = null;
+      }
+    }
+
+    IOException failure = null;
+
+    for (Map.Entry<WebSocketConnection, List<EnvelopeResponse>> entry : toSend.entrySet()) {
+      try {
+        sendAcks(entry.getKey(), entry.getValue());
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void sendAcks(WebSocketConnection connection, List<EnvelopeResponse> responses) throws IOException {
+    if (responses.isEmpty()) {
+      return;
+    }
+
+    List<WebSocketResponseMessage> messages = new ArrayList<>(responses.size());
+    for (EnvelopeResponse response : responses) {
+      messages.add(createWebSocketResponse(response.getWebsocketRequest()));
+    }
+
+    connection.sendResponses(messages);
+  }
+
+  private void flushAcksQuietly() {
+    try {
+      flushAcks();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to flush acks. They will be re-delivered.", e);
+    }
+  }
+
+  /**
+   * Drops the acks queued for a connection that is going away. Acks for any other connection are left alone.
+   */
+  private void clearPendingAcks(WebSocketConnection connection) {
+    synchronized (pendingAcks) {
+      List<EnvelopeResponse> dropped = pendingAcks.remove(connection);
+
+      if (dropped != null) {
+        Log.w(TAG, "Dropping " + dropped.size() + " pending acks for " + connection.getName() + ".");
+      }
+
+      if (pendingAcks.isEmpty() && pendingAckFlush != null) {
+        pendingAckFlush.dispose();
+        pendingAckFlush = null;
+      }
+    }
+  }
+
+  private Optional<EnvelopeResponse> waitForSingleMessage(WebSocketConnection connection, long timeout)
+      throws TimeoutException, IOException
   {
     while (true) {
-      WebSocketRequestMessage request = getWebSocket().readRequest(timeout);
+      WebSocketRequestMessage request = connection.readRequest(timeout);
 
       if (isSignalServiceEnvelope(request)) {
         return Optional.of(requestToEnvelopeResponse(request));
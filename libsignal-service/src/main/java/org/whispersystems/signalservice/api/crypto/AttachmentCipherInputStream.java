@@ -15,6 +15,7 @@ import org.whispersystems.signalservice.internal.util.ContentLengthInputStream;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilterInputStream;
@@ -24,7 +25,6 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -47,11 +47,20 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
 
-  private Cipher  cipher;
+  /** Must be a multiple of {@link #BLOCK_SIZE}. */
+  private static final int CIPHERTEXT_BUFFER_SIZE = 8192;
+
+  private final Cipher        cipher;
+  private final SecretKeySpec cipherKey;
+  private final long          totalDataSize;
+  private final byte[]        ciphertextBuffer;
+  private final byte[]        plaintextBuffer;
+
   private boolean done;
-  private long    totalDataSize;
   private long    totalRead;
-  private byte[]  overflowBuffer;
+  private long    plaintextPosition;
+  private int     plaintextOffset;
+  private int     plaintextLength;
 
   /**
    * Passing in a null incrementalDigest and/or 0 for the chunk size at the call site disables incremental mac validation.
@@ -136,12 +145,15 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       byte[] iv = new byte[BLOCK_SIZE];
       readFully(iv);
 
-      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+      this.cipherKey = new SecretKeySpec(cipherKey, "AES");
+      this.cipher    = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher.init(Cipher.DECRYPT_MODE, this.cipherKey, new IvParameterSpec(iv));
 
-      this.done          = false;
-      this.totalRead     = 0;
-      this.totalDataSize = totalDataSize;
+      this.ciphertextBuffer = new byte[CIPHERTEXT_BUFFER_SIZE];
+      this.plaintextBuffer  = new byte[CIPHERTEXT_BUFFER_SIZE + BLOCK_SIZE];
+      this.done             = false;
+      this.totalRead        = 0;
+      this.totalDataSize    = totalDataSize;
     } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     }
@@ -149,13 +161,12 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read() throws IOException {
-    byte[] buffer = new byte[1];
-    int    read;
-
-    //noinspection StatementWithEmptyBody
-    while ((read = read(buffer)) == 0) ;
+    if (!fillPlaintextBuffer()) {
+      return -1;
+    }
 
-    return (read == -1) ? -1 : ((int) buffer[0]) & 0xFF;
+    plaintextPosition++;
+    return ((int) plaintextBuffer[plaintextOffset++]) & 0xFF;
   }
 
   @Override
@@ -165,13 +176,30 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if (totalRead != totalDataSize) {
-      return readIncremental(buffer, offset, length);
-    } else if (!done) {
-      return readFinal(buffer, offset, length);
-    } else {
+    if (length == 0) {
+      return 0;
+    }
+
+    // If the caller has room for a whole chunk, there's no need to go through our own buffer
+    if (plaintextOffset == plaintextLength && totalRead < totalDataSize && length >= plaintextBuffer.length) {
+      int read = decryptNextChunk(buffer, offset);
+
+      if (read > 0) {
+        plaintextPosition += read;
+        return read;
+      }
+    }
+
+    if (!fillPlaintextBuffer()) {
       return -1;
     }
+
+    int read = Math.min(length, plaintextLength - plaintextOffset);
+    System.arraycopy(plaintextBuffer, plaintextOffset, buffer, offset, read);
+
+    plaintextOffset   += read;
+    plaintextPosition += read;
+    return read;
   }
 
   @Override
@@ -179,83 +207,128 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     return false;
   }
 
+  /**
+   * Skips ahead without decrypting the skipped data where possible. Since this is CBC, we can start decrypting at any block as long as
+   * we have the ciphertext of the block before it to use as the IV.
+   */
   @Override
   public long skip(long byteCount) throws IOException {
-    long skipped = 0L;
-    while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int) (byteCount - skipped))];
-      int    read = read(buf);
+    if (byteCount <= 0) {
+      return 0;
+    }
 
-      skipped += read;
+    long start   = plaintextPosition;
+    long skipped = Math.min(byteCount, plaintextLength - plaintextOffset);
+
+    plaintextOffset   += (int) skipped;
+    plaintextPosition += skipped;
+
+    if (skipped == byteCount) {
+      return skipped;
+    }
+
+    long target      = start + byteCount;
+    long lastBlock   = (totalDataSize / BLOCK_SIZE) - 1;
+    long targetBlock = Math.min(target / BLOCK_SIZE, lastBlock);
+    long ivPosition  = (targetBlock - 1) * BLOCK_SIZE;
+
+    if (targetBlock > 0 && ivPosition >= totalRead) {
+      seekToBlock(targetBlock, ivPosition);
+      skipped = plaintextPosition - start;
+    }
+
+    while (skipped < byteCount && fillPlaintextBuffer()) {
+      int discard = (int) Math.min(byteCount - skipped, plaintextLength - plaintextOffset);
+
+      plaintextOffset   += discard;
+      plaintextPosition += discard;
+      skipped           += discard;
     }
 
     return skipped;
   }
 
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+  private void seekToBlock(long block, long ivPosition) throws IOException {
+    skipCiphertext(ivPosition - totalRead);
+
+    byte[] iv = new byte[BLOCK_SIZE];
+    readFully(iv);
+
     try {
-      byte[] internal     = new byte[buffer.length];
-      int    actualLength = Math.min(length, cipher.doFinal(internal, 0));
-      System.arraycopy(internal, 0, buffer, offset, actualLength);
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
 
-      done = true;
-      return actualLength;
-    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
-      throw new IOException(e);
+    totalRead         = block * BLOCK_SIZE;
+    plaintextPosition = block * BLOCK_SIZE;
+    plaintextOffset   = 0;
+    plaintextLength   = 0;
+  }
+
+  private void skipCiphertext(long byteCount) throws IOException {
+    while (byteCount > 0) {
+      long skipped = super.skip(byteCount);
+
+      if (skipped <= 0) {
+        int read = super.read(ciphertextBuffer, 0, (int) Math.min(ciphertextBuffer.length, byteCount));
+        if (read == -1) {
+          throw new EOFException("Unexpected end of ciphertext");
+        }
+        skipped = read;
+      }
+
+      byteCount -= skipped;
     }
   }
 
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
+  /**
+   * Decrypts more data into the plaintext buffer if it's empty.
+   *
+   * @return False if there's no more data to read.
+   */
+  private boolean fillPlaintextBuffer() throws IOException {
+    while (plaintextOffset == plaintextLength) {
+      if (done) {
+        return false;
       }
+
+      plaintextOffset = 0;
+      plaintextLength = totalRead < totalDataSize ? decryptNextChunk(plaintextBuffer, 0) : decryptFinal();
     }
 
-    if (length + totalRead > totalDataSize)
-      length = (int) (totalDataSize - totalRead);
+    return true;
+  }
 
-    byte[] internalBuffer = new byte[length];
-    int    read           = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead += read;
+  /**
+   * Decrypts up to {@link #CIPHERTEXT_BUFFER_SIZE} bytes of ciphertext into the output, which must have room for
+   * {@link #CIPHERTEXT_BUFFER_SIZE} + {@link #BLOCK_SIZE} bytes.
+   */
+  private int decryptNextChunk(byte[] output, int offset) throws IOException {
+    int read = super.read(ciphertextBuffer, 0, (int) Math.min(ciphertextBuffer.length, totalDataSize - totalRead));
 
-    try {
-      int outputLen = cipher.getOutputSize(read);
+    if (read == -1) {
+      throw new EOFException("Unexpected end of ciphertext");
+    }
 
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
-      }
+    totalRead += read;
 
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
-      }
-      return readLength;
+    try {
+      return cipher.update(ciphertextBuffer, 0, read, output, offset);
     } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
 
+  private int decryptFinal() throws IOException {
+    try {
+      done = true;
+      return cipher.doFinal(plaintextBuffer, 0);
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      throw new IOException(e);
+    }
+  }
+
   private static void verifyMac(InputStream inputStream, long length, Mac mac, byte[] theirDigest)
       throws InvalidMacException
   {
@@ -298,6 +371,10 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     for (; ; ) {
       int read = super.read(buffer, offset, buffer.length - offset);
 
+      if (read == -1) {
+        throw new EOFException("Unexpected end of ciphertext");
+      }
+
       if (read + offset < buffer.length) {
         offset += read;
       } else {
@@ -38,4 +38,11 @@ public class ContentLengthInputStream extends FilterInputStream {
     return result;
   }
 
+  @Override
+  public long skip(long byteCount) throws IOException {
+    long result = super.skip(Math.min(byteCount, bytesRemaining));
+
+    bytesRemaining -= result;
+    return result;
+  }
 }
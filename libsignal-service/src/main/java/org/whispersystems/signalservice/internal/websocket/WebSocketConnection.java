@@ -19,15 +19,16 @@ import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -56,9 +57,24 @@ public class WebSocketConnection extends WebSocketListener {
   private static final String TAG                         = WebSocketConnection.class.getSimpleName();
   public  static final int    KEEPALIVE_FREQUENCY_SECONDS = 30;
 
-  private final LinkedList<WebSocketRequestMessage> incomingRequests = new LinkedList<>();
-  private final Map<Long, OutgoingRequest>          outgoingRequests = new HashMap<>();
-  private final Set<Long>                           keepAlives       = new HashSet<>();
+  /**
+   * Number of unread requests past which we warn that the consumer is falling behind.
+   * <p>
+   * The queue itself is not bounded. Blocking the OkHttp reader thread would also hold up pings and close frames, and there's no way to
+   * pause reads without blocking it. Backpressure comes from acknowledgements instead: requests are only acknowledged once they've been
+   * read and processed, and the server limits how many unacknowledged messages it sends.
+   */
+  private static final int INCOMING_REQUESTS_WARNING_THRESHOLD = 500;
+
+  /**
+   * Placed on the incoming queue when the connection shuts down, so that a consumer blocked in {@link #readRequest(long)} wakes up
+   * immediately. Compared by identity only.
+   */
+  private static final WebSocketRequestMessage CONNECTION_CLOSED = new WebSocketRequestMessage.Builder().build();
+
+  private final BlockingQueue<WebSocketRequestMessage> incomingRequests = new LinkedBlockingQueue<>();
+  private final Map<Long, OutgoingRequest>             outgoingRequests = new ConcurrentHashMap<>();
+  private final Set<Long>                              keepAlives       = ConcurrentHashMap.newKeySet();
 
   private final String                                    name;
   private final TrustStore                                trustStore;
@@ -74,7 +90,13 @@ public class WebSocketConnection extends WebSocketListener {
   private final String                                    extraPathUri;
   private final SecureRandom                              random;
 
-  private WebSocket client;
+  private volatile WebSocket client;
+
+  /**
+   * Set once the connection has shut down and cleared on the next {@link #connect()}. Readers check this before and after waiting, so that
+   * they see the close even if they miss the {@link #CONNECTION_CLOSED} sentinel.
+   */
+  private volatile boolean connectionClosed;
 
   public WebSocketConnection(String name,
                              SignalServiceConfiguration serviceConfiguration,
@@ -176,12 +198,14 @@ public class WebSocketConnection extends WebSocketListener {
 
       webSocketState.onNext(WebSocketConnectionState.CONNECTING);
 
+      incomingRequests.clear();
+      connectionClosed = false;
       this.client = okHttpClient.newWebSocket(requestBuilder.build(), this);
     }
     return webSocketState;
   }
 
-  public synchronized boolean isDead() {
+  public boolean isDead() {
     return client == null;
   }
 
@@ -194,36 +218,47 @@ public class WebSocketConnection extends WebSocketListener {
       webSocketState.onNext(WebSocketConnectionState.DISCONNECTING);
     }
 
-    notifyAll();
+    signalConnectionClosed();
   }
 
-  public synchronized Optional<WebSocketRequestMessage> readRequestIfAvailable() {
-    if (incomingRequests.size() > 0) {
-      return Optional.of(incomingRequests.removeFirst());
-    } else {
+  public Optional<WebSocketRequestMessage> readRequestIfAvailable() {
+    if (connectionClosed) {
       return Optional.empty();
     }
+
+    WebSocketRequestMessage request = incomingRequests.poll();
+
+    if (request == CONNECTION_CLOSED) {
+      return Optional.empty();
+    }
+
+    return Optional.ofNullable(request);
   }
 
-  public synchronized WebSocketRequestMessage readRequest(long timeoutMillis)
+  public WebSocketRequestMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
-    if (client == null) {
+    if (client == null || connectionClosed) {
       throw new IOException("Connection closed!");
     }
 
-    long startTime = System.currentTimeMillis();
+    WebSocketRequestMessage request;
 
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
+    try {
+      request = incomingRequests.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading!", e);
     }
 
-    if (incomingRequests.isEmpty() && client == null) {
+    if (request == CONNECTION_CLOSED || connectionClosed) {
       throw new IOException("Connection closed!");
-    } else if (incomingRequests.isEmpty()) {
+    } else if (request == null && client == null) {
+      throw new IOException("Connection closed!");
+    } else if (request == null) {
       throw new TimeoutException("Timeout exceeded");
     } else {
-      return incomingRequests.removeFirst();
+      return request;
     }
   }
 
@@ -251,17 +286,26 @@ public class WebSocketConnection extends WebSocketListener {
   }
 
   public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+    sendResponses(Collections.singletonList(response));
+  }
+
+  /**
+   * Sends all of the provided responses while only acquiring the connection lock once.
+   */
+  public synchronized void sendResponses(List<WebSocketResponseMessage> responses) throws IOException {
     if (client == null) {
       throw new IOException("Connection closed!");
     }
 
-    WebSocketMessage message = new WebSocketMessage.Builder()
-                                                   .type(WebSocketMessage.Type.RESPONSE)
-                                                   .response(response)
-                                                   .build();
+    for (WebSocketResponseMessage response : responses) {
+      WebSocketMessage message = new WebSocketMessage.Builder()
+                                                     .type(WebSocketMessage.Type.RESPONSE)
+                                                     .response(response)
+                                                     .build();
 
-    if (!client.send(ByteString.of(message.encode()))) {
-      throw new IOException("Write failed!");
+      if (!client.send(ByteString.of(message.encode()))) {
+        throw new IOException("Write failed!");
+      }
     }
   }
 
@@ -293,13 +337,21 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
+  /**
+   * Not synchronized: requests are handed to the consumer through {@link #incomingRequests} and responses are matched through concurrent
+   * collections, so frame ingestion never waits on a thread that is holding the connection lock to send.
+   */
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     try {
       WebSocketMessage message = WebSocketMessage.ADAPTER.decode(payload.toByteArray());
 
       if (message.type == WebSocketMessage.Type.REQUEST) {
-        incomingRequests.add(message.request);
+        incomingRequests.offer(message.request);
+
+        if (incomingRequests.size() == INCOMING_REQUESTS_WARNING_THRESHOLD) {
+          warn("Incoming requests are backing up, the consumer is falling behind.");
+        }
       } else if (message.type == WebSocketMessage.Type.RESPONSE) {
         OutgoingRequest listener = outgoingRequests.remove(message.response.id);
         if (listener != null) {
@@ -314,8 +366,6 @@ public class WebSocketConnection extends WebSocketListener {
           healthMonitor.onKeepAliveResponse(message.response.id, credentialsProvider.isPresent());
         }
       }
-
-      notifyAll();
     } catch (IOException e) {
       warn(e);
     }
@@ -327,8 +377,6 @@ public class WebSocketConnection extends WebSocketListener {
     webSocketState.onNext(WebSocketConnectionState.DISCONNECTED);
 
     cleanupAfterShutdown();
-
-    notifyAll();
   }
 
   @Override
@@ -342,8 +390,6 @@ public class WebSocketConnection extends WebSocketListener {
     }
 
     cleanupAfterShutdown();
-
-    notifyAll();
   }
 
   private void cleanupAfterShutdown() {
@@ -360,6 +406,17 @@ public class WebSocketConnection extends WebSocketListener {
       client.close(1000, "OK");
       client = null;
     }
+
+    signalConnectionClosed();
+  }
+
+  /**
+   * Drops anything left unread, since it can no longer be acknowledged, and wakes up any consumer blocked in {@link #readRequest(long)}.
+   */
+  private void signalConnectionClosed() {
+    connectionClosed = true;
+    incomingRequests.clear();
+    incomingRequests.offer(CONNECTION_CLOSED);
   }
 
   @Override
@@ -374,10 +431,6 @@ public class WebSocketConnection extends WebSocketListener {
     webSocket.close(1000, "OK");
   }
 
-  private long elapsedTime(long startTime) {
-    return System.currentTimeMillis() - startTime;
-  }
-
   private Pair<SSLSocketFactory, X509TrustManager> createTlsSocketFactory(TrustStore trustStore) {
     try {
       SSLContext     context       = SSLContext.getInstance("TLS");
@@ -22,6 +22,7 @@ import java.util.Arrays;
 import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.whispersystems.signalservice.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
@@ -181,6 +182,33 @@ public final class AttachmentCipherTest {
     }
   }
 
+  @Test
+  public void attachment_skipAndRead() throws IOException, InvalidMessageException {
+    skipAndRead(false);
+  }
+
+  @Test
+  public void attachment_skipAndReadIncremental() throws IOException, InvalidMessageException {
+    skipAndRead(true);
+  }
+
+  @Test
+  public void attachment_readSingleBytes() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(1000);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key, false);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+    InputStream   inputStream    = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, null, 0);
+
+    for (byte expected : plaintextInput) {
+      assertEquals(expected & 0xFF, inputStream.read());
+    }
+
+    assertEquals(-1, inputStream.read());
+
+    cipherFile.delete();
+  }
+
   @Test
   public void attachment_decryptFailOnNullDigest() throws IOException {
     File    cipherFile          = null;
@@ -302,6 +330,42 @@ public final class AttachmentCipherTest {
     assertTrue(hitCorrectException);
   }
 
+  private static void skipAndRead(boolean withIncremental) throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(100_000);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key, withIncremental);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+    Random        random         = new Random(42);
+
+    for (int i = 0; i < 20; i++) {
+      InputStream inputStream = withIncremental ? AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, encryptResult.incrementalDigest, encryptResult.chunkSizeChoice)
+                                                : AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, null, 0);
+      int         position    = 0;
+
+      while (position < plaintextInput.length) {
+        int  skip    = random.nextInt(i < 10 ? 40 : 20_000);
+        long skipped = inputStream.skip(skip);
+
+        assertEquals(Math.min(skip, plaintextInput.length - position), skipped);
+        position += (int) skipped;
+
+        byte[] buffer = new byte[random.nextInt(10_000) + 1];
+        int    read   = inputStream.read(buffer);
+
+        if (position == plaintextInput.length) {
+          assertEquals(-1, read);
+        } else {
+          assertArrayEquals(Arrays.copyOfRange(plaintextInput, position, position + read), Arrays.copyOf(buffer, read));
+          position += read;
+        }
+      }
+
+      inputStream.close();
+    }
+
+    cipherFile.delete();
+  }
+
   private static EncryptResult encryptData(byte[] data, byte[] keyMaterial, boolean withIncremental) throws IOException {
     ByteArrayOutputStream               outputStream         = new ByteArrayOutputStream();
     ByteArrayOutputStream               incrementalDigestOut = new ByteArrayOutputStream();
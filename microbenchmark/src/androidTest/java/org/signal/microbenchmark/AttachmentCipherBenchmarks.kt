@@ -0,0 +1,135 @@
+package org.signal.microbenchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.util.LegacyAttachmentCipherInputStream
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream
+import org.whispersystems.signalservice.internal.util.Util
+import java.io.File
+import java.io.InputStream
+
+/**
+ * Benchmarks for decrypting attachments, comparing [AttachmentCipherInputStream] against the implementation it replaced.
+ *
+ * Each run includes opening the stream, which verifies the MAC over the whole file, so the interesting part is the difference between the
+ * two implementations rather than the absolute numbers.
+ */
+@RunWith(AndroidJUnit4::class)
+class AttachmentCipherBenchmarks {
+
+  companion object {
+    private const val ATTACHMENT_SIZE = 5 * 1024 * 1024
+    private const val READ_SIZE = 4096
+  }
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private lateinit var key: ByteArray
+  private lateinit var digest: ByteArray
+  private lateinit var file: File
+
+  @Before
+  fun setup() {
+    key = Util.getSecretBytes(64)
+    file = File.createTempFile("attachment", ".enc")
+
+    file.outputStream().use { fileOutput ->
+      val cipherOutput = AttachmentCipherOutputStream(key, null, fileOutput)
+      cipherOutput.write(Util.getSecretBytes(ATTACHMENT_SIZE))
+      cipherOutput.flush()
+      cipherOutput.close()
+      digest = cipherOutput.transmittedDigest
+    }
+  }
+
+  @After
+  fun tearDown() {
+    file.delete()
+  }
+
+  @Test
+  fun decrypt_sequential_current() {
+    benchmarkRule.measureRepeated {
+      openCurrent().use { readFully(it) }
+    }
+  }
+
+  @Test
+  fun decrypt_sequential_legacy() {
+    benchmarkRule.measureRepeated {
+      openLegacy().use { readFully(it) }
+    }
+  }
+
+  @Test
+  fun decrypt_singleBytes_current() {
+    benchmarkRule.measureRepeated {
+      openCurrent().use { readSingleBytes(it) }
+    }
+  }
+
+  @Test
+  fun decrypt_singleBytes_legacy() {
+    benchmarkRule.measureRepeated {
+      openLegacy().use { readSingleBytes(it) }
+    }
+  }
+
+  @Test
+  fun decrypt_seek_current() {
+    benchmarkRule.measureRepeated {
+      openCurrent().use { seekAndRead(it) }
+    }
+  }
+
+  @Test
+  fun decrypt_seek_legacy() {
+    benchmarkRule.measureRepeated {
+      openLegacy().use { seekAndRead(it) }
+    }
+  }
+
+  private fun openCurrent(): InputStream {
+    return AttachmentCipherInputStream.createForAttachment(file, ATTACHMENT_SIZE.toLong(), key, digest, null, 0)
+  }
+
+  private fun openLegacy(): InputStream {
+    return LegacyAttachmentCipherInputStream.createForAttachment(file, ATTACHMENT_SIZE.toLong(), key, digest, null, 0)
+  }
+
+  private fun readFully(inputStream: InputStream) {
+    val buffer = ByteArray(READ_SIZE)
+    while (inputStream.read(buffer) != -1) {
+      // Discard
+    }
+  }
+
+  private fun readSingleBytes(inputStream: InputStream) {
+    for (i in 0 until 64 * 1024) {
+      inputStream.read()
+    }
+  }
+
+  /**
+   * Mimics a video player jumping to somewhere near the end of a video.
+   */
+  private fun seekAndRead(inputStream: InputStream) {
+    var remaining = ATTACHMENT_SIZE * 3L / 4
+    while (remaining > 0) {
+      remaining -= inputStream.skip(remaining)
+    }
+
+    val buffer = ByteArray(READ_SIZE)
+    for (i in 0 until 16) {
+      inputStream.read(buffer)
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package org.signal.paging;
+
+/**
+ * Estimates scroll direction and velocity from the stream of requested indices. Lives as long as
+ * the {@link PagedData}, so that the estimate survives invalidations.
+ *
+ * Not thread-safe. It's only ever used from the thread that calls into the controllers.
+ */
+class AccessTracker {
+
+  /** How much weight a new sample has in the running velocity estimate. */
+  private static final float SMOOTHING = 0.5f;
+
+  /** If there's a gap longer than this between requests, the user has stopped scrolling. */
+  private static final long IDLE_RESET_MS = 500;
+
+  private int   lastIndex      = -1;
+  private long  lastAccessTime = 0;
+  private float velocity       = 0;
+  private int   direction      = 1;
+
+  void onAccess(int index, long nowMs) {
+    if (lastIndex >= 0) {
+      long elapsed = nowMs - lastAccessTime;
+
+      if (elapsed > IDLE_RESET_MS) {
+        velocity = 0;
+      } else if (elapsed > 0) {
+        float sample = (index - lastIndex) / (float) elapsed;
+        velocity += SMOOTHING * (sample - velocity);
+      }
+
+      if (index != lastIndex) {
+        direction = index > lastIndex ? 1 : -1;
+      }
+    }
+
+    lastIndex      = index;
+    lastAccessTime = nowMs;
+  }
+
+  /**
+   * @return The estimated number of items scrolled per millisecond, regardless of direction.
+   */
+  float getSpeed() {
+    return Math.abs(velocity);
+  }
+
+  /**
+   * @return 1 if the user is moving towards the end of the list, -1 if moving towards the start.
+   */
+  int getDirection() {
+    return direction;
+  }
+}
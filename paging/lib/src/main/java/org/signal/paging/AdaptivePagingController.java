@@ -0,0 +1,378 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A variant of {@link FixedSizePagingController} that adapts to how the user is scrolling.
+ *
+ * Rather than loading one fixed window around the requested index, it loads page-by-page, nearest
+ * page first, and extends the window in the direction of travel in proportion to the scroll
+ * velocity. Pages that are still queued by the time the user has scrolled past them are dropped
+ * (and can be requested again later), and the data source is told via the cancellation signal if
+ * the load it's working on has become obsolete.
+ *
+ * Like {@link FixedSizePagingController}, it lives for a single invalidation cycle and assumes all
+ * interface methods are called on a single thread.
+ */
+class AdaptivePagingController<Key, Data> implements PagingController<Key> {
+
+  private static final String TAG = Log.tag(AdaptivePagingController.class);
+
+  private static final Executor DEFAULT_FETCH_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("signal-AdaptivePagingController", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD);
+  private static final boolean  DEBUG                  = false;
+
+  /** We try to have enough data loaded to cover this much time at the current scroll velocity. */
+  private static final long PREFETCH_HORIZON_MS = 750;
+
+  private final PagedDataSource<Key, Data> dataSource;
+  private final PagingConfig               config;
+  private final DataStream<Data>           dataStream;
+  private final DataStatus                 loadState;
+  private final Map<Key, Integer>          keyToPosition;
+  private final AccessTracker              accessTracker;
+  private final PagingMetrics              metrics;
+  private final Executor                   fetchExecutor;
+  private final Runnable                   invalidator;
+  private final Object                     dataLock;
+
+  private volatile List<Data> data;
+  private volatile boolean    invalidated;
+  private volatile int        wantedStart;
+  private volatile int        wantedEnd;
+
+  AdaptivePagingController(@NonNull PagedDataSource<Key, Data> dataSource,
+                           @NonNull PagingConfig config,
+                           @NonNull DataStream<Data> dataStream,
+                           @NonNull AccessTracker accessTracker,
+                           @NonNull PagingMetrics metrics,
+                           @NonNull Runnable invalidator,
+                           int size)
+  {
+    this.dataSource    = dataSource;
+    this.config        = config;
+    this.dataStream    = dataStream;
+    this.accessTracker = accessTracker;
+    this.metrics       = metrics;
+    this.loadState     = DataStatus.obtain(size);
+    this.data          = new CompressedList<>(loadState.size());
+    this.keyToPosition = new HashMap<>();
+    this.fetchExecutor = config.fetchExecutor() != null ? config.fetchExecutor() : DEFAULT_FETCH_EXECUTOR;
+    this.invalidator   = invalidator;
+    this.dataLock      = new Object();
+    this.wantedStart   = 0;
+    this.wantedEnd     = size;
+
+    if (DEBUG) Log.d(TAG, "[Constructor] Creating with size " + size);
+  }
+
+  @Override
+  public void onDataNeededAroundIndex(int aroundIndex) {
+    if (invalidated) {
+      Log.w(TAG, buildDataNeededLog(aroundIndex, "Invalidated! At very beginning."));
+      return;
+    }
+
+    accessTracker.onAccess(aroundIndex, System.currentTimeMillis());
+
+    final List<Fetch> fetches = new ArrayList<>();
+    final int         totalSize;
+
+    synchronized (loadState) {
+      if (loadState.size() == 0) {
+        dataStream.next(Collections.emptyList());
+        return;
+      }
+
+      totalSize = loadState.size();
+
+      if (aroundIndex >= 0 && aroundIndex < totalSize) {
+        List<Data> current = data;
+        metrics.onAccess(aroundIndex < current.size() && current.get(aroundIndex) != null);
+      }
+
+      int pageSize      = config.pageSize();
+      int currentPage   = Math.max(0, Math.min(aroundIndex, totalSize - 1)) / pageSize;
+      int prefetchPages = Math.min(config.maxPrefetchPages(), (int) Math.ceil(accessTracker.getSpeed() * PREFETCH_HORIZON_MS / pageSize));
+      int pagesAhead    = config.bufferPages() + prefetchPages;
+      int pagesBehind   = config.bufferPages();
+      int direction     = accessTracker.getDirection();
+
+      int firstPage = direction > 0 ? currentPage - pagesBehind : currentPage - pagesAhead;
+      int lastPage  = direction > 0 ? currentPage + pagesAhead : currentPage + pagesBehind;
+
+      wantedStart = Math.max(0, firstPage * pageSize);
+      wantedEnd   = Math.min(totalSize, (lastPage + 1) * pageSize);
+
+      // Nearest pages first, favoring the direction of travel
+      scheduleFetch(fetches, currentPage, false);
+
+      for (int distance = 1; distance <= pagesAhead; distance++) {
+        scheduleFetch(fetches, currentPage + (distance * direction), distance > config.bufferPages());
+
+        if (distance <= pagesBehind) {
+          scheduleFetch(fetches, currentPage - (distance * direction), false);
+        }
+      }
+
+      if (DEBUG) Log.i(TAG, buildDataNeededLog(aroundIndex, "wanted: [" + wantedStart + ", " + wantedEnd + "), speed: " + accessTracker.getSpeed() + ", fetches: " + fetches.size()));
+    }
+
+    for (Fetch fetch : fetches) {
+      fetchExecutor.execute(() -> load(fetch, totalSize));
+    }
+  }
+
+  /**
+   * Marks the unloaded portion of the page as in-flight and adds it to the list of fetches. Must be
+   * called while holding the {@code loadState} lock.
+   */
+  private void scheduleFetch(@NonNull List<Fetch> fetches, int page, boolean prefetch) {
+    int pageStart = page * config.pageSize();
+    int pageEnd   = Math.min(loadState.size(), pageStart + config.pageSize());
+
+    if (page < 0 || pageStart >= pageEnd) {
+      return;
+    }
+
+    int start = loadState.getEarliestUnmarkedIndexInRange(pageStart, pageEnd);
+    if (start < 0) {
+      return;
+    }
+
+    int end = loadState.getLatestUnmarkedIndexInRange(start, pageEnd) + 1;
+    if (end <= start) {
+      return;
+    }
+
+    loadState.markRange(start, end);
+    fetches.add(new Fetch(start, end, prefetch));
+  }
+
+  private void load(@NonNull Fetch fetch, int totalSize) {
+    if (invalidated) {
+      Log.w(TAG, "Invalidated! At beginning of load task for [" + fetch.start + ", " + fetch.end + ")");
+      return;
+    }
+
+    if (isObsolete(fetch)) {
+      if (DEBUG) Log.d(TAG, "Dropping obsolete fetch for [" + fetch.start + ", " + fetch.end + ")");
+      synchronized (loadState) {
+        loadState.unmarkRange(fetch.start, fetch.end);
+      }
+      metrics.onFetchCanceled();
+      return;
+    }
+
+    List<Data> loaded = dataSource.load(fetch.start, fetch.end - fetch.start, totalSize, () -> invalidated || isObsolete(fetch));
+
+    if (invalidated) {
+      Log.w(TAG, "Invalidated! Just after data was loaded for [" + fetch.start + ", " + fetch.end + ")");
+      return;
+    }
+
+    if (loaded.size() < fetch.end - fetch.start && isObsolete(fetch)) {
+      // The data source stopped early because we canceled it, so make sure the rest can be requested again
+      synchronized (loadState) {
+        loadState.unmarkRange(fetch.start + loaded.size(), fetch.end);
+      }
+      metrics.onFetchCanceled();
+    }
+
+    synchronized (dataLock) {
+      List<Data> updated = new CompressedList<>(data);
+
+      for (int i = 0, len = Math.min(loaded.size(), data.size() - fetch.start); i < len; i++) {
+        int  position = fetch.start + i;
+        Data item     = loaded.get(i);
+
+        updated.set(position, item);
+        keyToPosition.put(dataSource.getKey(item), position);
+      }
+
+      data = updated;
+      dataStream.next(updated);
+    }
+
+    metrics.onPageLoaded(fetch.prefetch);
+  }
+
+  private boolean isObsolete(@NonNull Fetch fetch) {
+    return fetch.end <= wantedStart || fetch.start >= wantedEnd;
+  }
+
+  @Override
+  public void onDataInvalidated() {
+    if (invalidated) {
+      return;
+    }
+
+    invalidated = true;
+    loadState.recycle();
+  }
+
+  @Override
+  public void onDataItemChanged(Key key) {
+    fetchExecutor.execute(() -> {
+      Integer position;
+
+      synchronized (dataLock) {
+        position = keyToPosition.get(key);
+      }
+
+      if (position == null) {
+        Log.w(TAG, "Notified of key " + key + " but it wasn't in the cache!");
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just before individual change was loaded for position " + position);
+        return;
+      }
+
+      synchronized (loadState) {
+        loadState.mark(position);
+      }
+
+      Data item = dataSource.load(key);
+
+      if (item == null) {
+        Log.w(TAG, "Notified of key " + key + " but the loaded item was null!");
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just after individual change was loaded for position " + position);
+        return;
+      }
+
+      synchronized (dataLock) {
+        List<Data> updatedList = new CompressedList<>(data);
+
+        updatedList.set(position, item);
+        data = updatedList;
+        dataStream.next(updatedList);
+      }
+    });
+  }
+
+  @Override
+  public void onDataItemInserted(Key key, int inputPosition) {
+    fetchExecutor.execute(() -> {
+      int position = inputPosition;
+      if (position == POSITION_END) {
+        position = data.size();
+      }
+
+      synchronized (dataLock) {
+        if (keyToPosition.containsKey(key)) {
+          Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the item already exists!");
+          return;
+        }
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just before individual insert was loaded for position " + position);
+        return;
+      }
+
+      synchronized (loadState) {
+        loadState.insertState(position, true);
+      }
+
+      Data item = dataSource.load(key);
+
+      if (item == null) {
+        Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the loaded item was null!");
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just after individual insert was loaded for position " + position);
+        return;
+      }
+
+      synchronized (dataLock) {
+        List<Data> updatedList = new CompressedList<>(data);
+
+        updatedList.add(position, item);
+
+        keyToPosition.clear();
+        for (int i = 0, len = updatedList.size(); i < len; i++) {
+          Data existing = updatedList.get(i);
+          if (existing != null) {
+            keyToPosition.put(dataSource.getKey(existing), i);
+          }
+        }
+
+        data = updatedList;
+        dataStream.next(updatedList);
+      }
+    });
+  }
+
+  @Override
+  public void onDataItemRemoved(Key key) {
+    fetchExecutor.execute(() -> {
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just before individual removal of key " + key);
+        return;
+      }
+
+      synchronized (dataLock) {
+        Integer position = keyToPosition.get(key);
+
+        if (position == null) {
+          Log.w(TAG, "Notified of key " + key + " being removed, but it wasn't in the cache! Invalidating.");
+          invalidator.run();
+          return;
+        }
+
+        synchronized (loadState) {
+          loadState.removeState(position);
+        }
+
+        List<Data> updatedList = new CompressedList<>(data);
+
+        updatedList.remove((int) position);
+
+        keyToPosition.clear();
+        for (int i = 0, len = updatedList.size(); i < len; i++) {
+          Data existing = updatedList.get(i);
+          if (existing != null) {
+            keyToPosition.put(dataSource.getKey(existing), i);
+          }
+        }
+
+        data = updatedList;
+        dataStream.next(updatedList);
+      }
+    });
+  }
+
+  private String buildDataNeededLog(int aroundIndex, String message) {
+    return "[onDataNeededAroundIndex(" + aroundIndex + "), size: " + loadState.size() + "] " + message;
+  }
+
+  private static final class Fetch {
+    private final int     start;
+    private final int     end;
+    private final boolean prefetch;
+
+    private Fetch(int start, int end, boolean prefetch) {
+      this.start    = start;
+      this.end      = end;
+      this.prefetch = prefetch;
+    }
+  }
+}
@@ -24,18 +24,23 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
   private final PagingConfig                config;
   private final DataStream<Data>            dataStream;
   private final Executor                    serializationExecutor;
+  private final AccessTracker               accessTracker;
+  private final PagingMetrics               metrics;
 
   private PagingController<Key> activeController;
   private int                   lastRequestedIndex;
 
   BufferedPagingController(@NonNull PagedDataSource<Key, Data> dataSource,
                            @NonNull PagingConfig config,
-                           @NonNull DataStream<Data> dataStream)
+                           @NonNull DataStream<Data> dataStream,
+                           @NonNull PagingMetrics metrics)
   {
     this.dataSource            = dataSource;
     this.config                = config;
     this.dataStream            = dataStream;
     this.serializationExecutor = Executors.newSingleThreadExecutor();
+    this.accessTracker         = new AccessTracker();
+    this.metrics               = metrics;
 
     this.activeController   = null;
     this.lastRequestedIndex = config.startIndex();
@@ -58,7 +63,12 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
         activeController.onDataInvalidated();
       }
 
-      activeController = new FixedSizePagingController<>(dataSource, config, dataStream, dataSource.size());
+      if (config.adaptivePrefetch()) {
+        activeController = new AdaptivePagingController<>(dataSource, config, dataStream, accessTracker, metrics, this::onDataInvalidated, dataSource.size());
+      } else {
+        activeController = new FixedSizePagingController<>(dataSource, config, dataStream, this::onDataInvalidated, dataSource.size());
+      }
+
       activeController.onDataNeededAroundIndex(lastRequestedIndex);
     });
   }
@@ -80,4 +90,13 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
       }
     });
   }
+
+  @Override
+  public void onDataItemRemoved(Key key) {
+    serializationExecutor.execute(() -> {
+      if (activeController != null) {
+        activeController.onDataItemRemoved(key);
+      }
+    });
+  }
 }
@@ -40,6 +40,10 @@ class DataStatus {
     state.set(startInclusive, endExclusive, true);
   }
 
+  void unmarkRange(int startInclusive, int endExclusive) {
+    state.clear(startInclusive, endExclusive);
+  }
+
   int getEarliestUnmarkedIndexInRange(int startInclusive, int endExclusive) {
     for (int i = startInclusive; i < endExclusive; i++) {
       if (!state.get(i)) {
@@ -76,6 +80,20 @@ class DataStatus {
     this.size = size + 1;
   }
 
+  void removeState(int position) {
+    if (position < 0 || position >= size) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    for (int i = position; i < size - 1; i++) {
+      state.set(i, state.get(i + 1));
+    }
+
+    state.clear(size - 1);
+
+    this.size = size - 1;
+  }
+
   int size() {
     return size;
   }
@@ -32,6 +32,8 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   private final DataStream<Data>            dataStream;
   private final DataStatus                  loadState;
   private final Map<Key, Integer>           keyToPosition;
+  private final Executor                    fetchExecutor;
+  private final Runnable                    invalidator;
 
   private List<Data> data;
 
@@ -40,6 +42,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   FixedSizePagingController(@NonNull PagedDataSource<Key, Data> dataSource,
                             @NonNull PagingConfig config,
                             @NonNull DataStream<Data> dataStream,
+                            @NonNull Runnable invalidator,
                             int size)
   {
     this.dataSource    = dataSource;
@@ -48,6 +51,8 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     this.loadState     = DataStatus.obtain(size);
     this.data          = new CompressedList<>(loadState.size());
     this.keyToPosition = new HashMap<>();
+    this.fetchExecutor = config.fetchExecutor() != null ? config.fetchExecutor() : FETCH_EXECUTOR;
+    this.invalidator   = invalidator;
 
     if (DEBUG) Log.d(TAG, "[Constructor] Creating with size " + size + " (loadState.size() = " + loadState.size() + ")");
   }
@@ -102,7 +107,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
       if (DEBUG) Log.i(TAG, buildDataNeededLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + totalSize));
     }
 
-    FETCH_EXECUTOR.execute(() -> {
+    fetchExecutor.execute(() -> {
       if (invalidated) {
         Log.w(TAG, buildDataNeededLog(aroundIndex, "Invalidated! At beginning of load task."));
         return;
@@ -144,7 +149,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   public void onDataItemChanged(Key key) {
     if (DEBUG) Log.d(TAG, buildItemChangedLog(key, ""));
 
-    FETCH_EXECUTOR.execute(() -> {
+    fetchExecutor.execute(() -> {
       Integer position = keyToPosition.get(key);
 
       if (position == null) {
@@ -187,7 +192,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   public void onDataItemInserted(Key key, int inputPosition) {
     if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, inputPosition, ""));
 
-    FETCH_EXECUTOR.execute(() -> {
+    fetchExecutor.execute(() -> {
       int position = inputPosition;
       if (position == POSITION_END) {
         position = data.size();
@@ -232,6 +237,41 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     });
   }
 
+  @Override
+  public void onDataItemRemoved(Key key) {
+    if (DEBUG) Log.d(TAG, buildItemRemovedLog(key, ""));
+
+    fetchExecutor.execute(() -> {
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just before individual removal of key " + key);
+        return;
+      }
+
+      Integer position = keyToPosition.get(key);
+
+      if (position == null) {
+        Log.w(TAG, "Notified of key " + key + " being removed, but it wasn't in the cache! Invalidating.");
+        invalidator.run();
+        return;
+      }
+
+      synchronized (loadState) {
+        loadState.removeState(position);
+        if (DEBUG) Log.d(TAG, buildItemRemovedLog(key, "Size of loadState updated to " + loadState.size()));
+      }
+
+      List<Data> updatedList = new CompressedList<>(data);
+
+      updatedList.remove((int) position);
+      rebuildKeyToPositionMap(keyToPosition, updatedList, dataSource);
+
+      data = updatedList;
+      dataStream.next(updatedList);
+
+      if (DEBUG) Log.d(TAG, buildItemRemovedLog(key, "Published updated data"));
+    });
+  }
+
   private void rebuildKeyToPositionMap(@NonNull Map<Key, Integer> map, @NonNull List<Data> dataList, @NonNull PagedDataSource<Key, Data> dataSource) {
     map.clear();
 
@@ -251,6 +291,10 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     return "[onDataItemInserted(" + key + ", " + position + "), size: " + loadState.size() + "] " + message;
   }
 
+  private String buildItemRemovedLog(Key key, String message) {
+    return "[onDataItemRemoved(" + key + "), size: " + loadState.size() + "] " + message;
+  }
+
   private String buildItemChangedLog(Key key, String message) {
     return "[onDataItemChanged(" + key + "), size: " + loadState.size() + "] " + message;
   }
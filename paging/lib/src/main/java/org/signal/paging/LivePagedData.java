@@ -13,8 +13,8 @@ public class LivePagedData<Key, Data> extends PagedData<Key> {
 
   private final LiveData<List<Data>>  data;
 
-  LivePagedData(@NonNull LiveData<List<Data>> data, @NonNull PagingController<Key> controller) {
-    super(controller);
+  LivePagedData(@NonNull LiveData<List<Data>> data, @NonNull PagingController<Key> controller, @NonNull PagingMetrics metrics) {
+    super(controller, metrics);
     this.data = data;
   }
 
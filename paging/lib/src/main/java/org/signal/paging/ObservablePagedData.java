@@ -15,8 +15,8 @@ public class ObservablePagedData<Key, Data> extends PagedData<Key> {
 
   private final Observable<List<Data>> data;
 
-  ObservablePagedData(@NonNull Observable<List<Data>> data, @NonNull PagingController<Key> controller) {
-    super(controller);
+  ObservablePagedData(@NonNull Observable<List<Data>> data, @NonNull PagingController<Key> controller, @NonNull PagingMetrics metrics) {
+    super(controller, metrics);
     this.data = data;
   }
 
@@ -15,28 +15,39 @@ import io.reactivex.rxjava3.subjects.Subject;
 public class PagedData<Key> {
 
   private final PagingController<Key> controller;
+  private final PagingMetrics         metrics;
 
-  protected PagedData(PagingController<Key> controller) {
+  protected PagedData(PagingController<Key> controller, PagingMetrics metrics) {
     this.controller = controller;
+    this.metrics    = metrics;
   }
 
   @AnyThread
   public static <Key, Data> LivePagedData<Key, Data> createForLiveData(@NonNull PagedDataSource<Key, Data> dataSource, @NonNull PagingConfig config) {
     MutableLiveData<List<Data>> liveData   = new MutableLiveData<>();
-    PagingController<Key>       controller = new BufferedPagingController<>(dataSource, config, liveData::postValue);
+    PagingMetrics               metrics    = new PagingMetrics();
+    PagingController<Key>       controller = new BufferedPagingController<>(dataSource, config, liveData::postValue, metrics);
 
-    return new LivePagedData<>(liveData, controller);
+    return new LivePagedData<>(liveData, controller, metrics);
   }
 
   @AnyThread
   public static <Key, Data> ObservablePagedData<Key, Data> createForObservable(@NonNull PagedDataSource<Key, Data> dataSource, @NonNull PagingConfig config) {
     Subject<List<Data>>   subject    = BehaviorSubject.create();
-    PagingController<Key> controller = new BufferedPagingController<>(dataSource, config, subject::onNext);
+    PagingMetrics         metrics    = new PagingMetrics();
+    PagingController<Key> controller = new BufferedPagingController<>(dataSource, config, subject::onNext, metrics);
 
-    return new ObservablePagedData<>(subject, controller);
+    return new ObservablePagedData<>(subject, controller, metrics);
   }
 
   public PagingController<Key> getController() {
     return controller;
   }
+
+  /**
+   * @return Hit and miss counts for this data, populated when adaptive prefetching is enabled.
+   */
+  public @NonNull PagingMetrics getMetrics() {
+    return metrics;
+  }
 }
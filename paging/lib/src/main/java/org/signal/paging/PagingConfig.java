@@ -1,6 +1,7 @@
 package org.signal.paging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.util.concurrent.Executor;
 
@@ -9,14 +10,20 @@ import java.util.concurrent.Executor;
  */
 public final class PagingConfig {
 
-  private final int bufferPages;
-  private final int startIndex;
-  private final int pageSize;
+  private final int      bufferPages;
+  private final int      startIndex;
+  private final int      pageSize;
+  private final boolean  adaptivePrefetch;
+  private final int      maxPrefetchPages;
+  private final Executor fetchExecutor;
 
   private PagingConfig(@NonNull Builder builder) {
-    this.bufferPages = builder.bufferPages;
-    this.startIndex  = builder.startIndex;
-    this.pageSize    = builder.pageSize;
+    this.bufferPages      = builder.bufferPages;
+    this.startIndex       = builder.startIndex;
+    this.pageSize         = builder.pageSize;
+    this.adaptivePrefetch = builder.adaptivePrefetch;
+    this.maxPrefetchPages = builder.maxPrefetchPages;
+    this.fetchExecutor    = builder.fetchExecutor;
   }
 
   /**
@@ -42,10 +49,36 @@ public final class PagingConfig {
     return startIndex;
   }
 
+  /**
+   * @return Whether or not to track scroll direction and velocity and prefetch pages ahead of the
+   *         active position accordingly.
+   */
+  boolean adaptivePrefetch() {
+    return adaptivePrefetch;
+  }
+
+  /**
+   * @return The most pages that will be prefetched in the scroll direction, in addition to the
+   *         {@code bufferPages()}. Only used with {@code adaptivePrefetch()}.
+   */
+  int maxPrefetchPages() {
+    return maxPrefetchPages;
+  }
+
+  /**
+   * @return The executor to load pages on, or null to use the shared default.
+   */
+  @Nullable Executor fetchExecutor() {
+    return fetchExecutor;
+  }
+
   public static class Builder {
-    private int bufferPages = 1;
-    private int startIndex  = 0;
-    private int pageSize    = 50;
+    private int      bufferPages      = 1;
+    private int      startIndex       = 0;
+    private int      pageSize         = 50;
+    private boolean  adaptivePrefetch = false;
+    private int      maxPrefetchPages = 4;
+    private Executor fetchExecutor    = null;
 
     public @NonNull Builder setBufferPages(int bufferPages) {
       if (bufferPages < 1) {
@@ -74,6 +107,29 @@ public final class PagingConfig {
       return this;
     }
 
+    public @NonNull Builder setAdaptivePrefetch(boolean adaptivePrefetch) {
+      this.adaptivePrefetch = adaptivePrefetch;
+      return this;
+    }
+
+    public @NonNull Builder setMaxPrefetchPages(int maxPrefetchPages) {
+      if (maxPrefetchPages < 0) {
+        throw new IllegalArgumentException("You can't prefetch a negative number of pages! Requested: " + maxPrefetchPages);
+      }
+
+      this.maxPrefetchPages = maxPrefetchPages;
+      return this;
+    }
+
+    /**
+     * Lets a data source load on its own executor, so that it isn't stuck behind loads from other
+     * data sources. The executor should run tasks one at a time.
+     */
+    public @NonNull Builder setFetchExecutor(@NonNull Executor fetchExecutor) {
+      this.fetchExecutor = fetchExecutor;
+      return this;
+    }
+
     public @NonNull PagingConfig build() {
       return new PagingConfig(this);
     }
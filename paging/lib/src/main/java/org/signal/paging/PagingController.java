@@ -8,4 +8,9 @@ public interface PagingController<Key> {
   void onDataInvalidated();
   void onDataItemChanged(Key key);
   void onDataItemInserted(Key key, int position);
+
+  /**
+   * Removes the item with the given key. If the item isn't loaded, we can't know where it was, so the data set is invalidated instead.
+   */
+  void onDataItemRemoved(Key key);
 }
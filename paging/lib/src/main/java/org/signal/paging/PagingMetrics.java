@@ -0,0 +1,86 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how well paging is keeping up with a single data source. Only populated when
+ * {@link PagingConfig.Builder#setAdaptivePrefetch(boolean)} is enabled.
+ *
+ * A hit is a request for an item that had already been loaded. A miss is a request for an item that
+ * had not, meaning the user may be looking at a placeholder.
+ */
+public final class PagingMetrics {
+
+  private final AtomicLong hits            = new AtomicLong();
+  private final AtomicLong misses          = new AtomicLong();
+  private final AtomicLong pagesLoaded     = new AtomicLong();
+  private final AtomicLong pagesPrefetched = new AtomicLong();
+  private final AtomicLong fetchesCanceled = new AtomicLong();
+
+  void onAccess(boolean hit) {
+    if (hit) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+  }
+
+  void onPageLoaded(boolean prefetch) {
+    pagesLoaded.incrementAndGet();
+
+    if (prefetch) {
+      pagesPrefetched.incrementAndGet();
+    }
+  }
+
+  void onFetchCanceled() {
+    fetchesCanceled.incrementAndGet();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return The fraction of requests that were hits, or 0 if there haven't been any requests.
+   */
+  public float getHitRate() {
+    long hits  = getHits();
+    long total = hits + getMisses();
+
+    return total == 0 ? 0f : hits / (float) total;
+  }
+
+  public long getPagesLoaded() {
+    return pagesLoaded.get();
+  }
+
+  /**
+   * @return How many of the loaded pages were beyond the regular buffer, i.e. only loaded because of
+   *         the scroll velocity.
+   */
+  public long getPagesPrefetched() {
+    return pagesPrefetched.get();
+  }
+
+  /**
+   * @return How many fetches were dropped because the user had scrolled away before they ran.
+   */
+  public long getFetchesCanceled() {
+    return fetchesCanceled.get();
+  }
+
+  @Override
+  public @NonNull String toString() {
+    return String.format(Locale.US,
+                         "hits: %d, misses: %d (%.1f%% hit rate), pages loaded: %d, prefetched: %d, canceled: %d",
+                         getHits(), getMisses(), getHitRate() * 100, getPagesLoaded(), getPagesPrefetched(), getFetchesCanceled());
+  }
+}
@@ -0,0 +1,61 @@
+package org.signal.paging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AccessTrackerTest {
+
+  @Test
+  public void initialState_noSpeedAndForward() {
+    AccessTracker subject = new AccessTracker();
+
+    assertEquals(0f, subject.getSpeed(), 0f);
+    assertEquals(1, subject.getDirection());
+  }
+
+  @Test
+  public void onAccess_scrollingForward_positiveDirectionAndSpeed() {
+    AccessTracker subject = new AccessTracker();
+
+    subject.onAccess(0, 1000);
+    subject.onAccess(10, 1010);
+
+    assertEquals(1, subject.getDirection());
+    assertEquals(0.5f, subject.getSpeed(), 0.001f);
+  }
+
+  @Test
+  public void onAccess_scrollingBackward_negativeDirection() {
+    AccessTracker subject = new AccessTracker();
+
+    subject.onAccess(100, 1000);
+    subject.onAccess(90, 1010);
+
+    assertEquals(-1, subject.getDirection());
+    assertEquals(0.5f, subject.getSpeed(), 0.001f);
+  }
+
+  @Test
+  public void onAccess_afterIdleGap_speedResets() {
+    AccessTracker subject = new AccessTracker();
+
+    subject.onAccess(0, 1000);
+    subject.onAccess(10, 1010);
+    subject.onAccess(20, 5000);
+
+    assertEquals(0f, subject.getSpeed(), 0f);
+    assertEquals(1, subject.getDirection());
+  }
+
+  @Test
+  public void onAccess_sameIndex_keepsDirection() {
+    AccessTracker subject = new AccessTracker();
+
+    subject.onAccess(100, 1000);
+    subject.onAccess(90, 1010);
+    subject.onAccess(90, 1020);
+
+    assertEquals(-1, subject.getDirection());
+  }
+}
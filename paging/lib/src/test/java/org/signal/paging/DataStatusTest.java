@@ -55,4 +55,51 @@ public class DataStatusTest {
     DataStatus subject = DataStatus.obtain(0);
     subject.insertState(2, true);
   }
+
+  @Test
+  public void removeState_someData_RemoveAtOne() {
+    DataStatus subject = DataStatus.obtain(4);
+    subject.mark(0);
+    subject.mark(2);
+
+    subject.removeState(1);
+
+    assertEquals(3, subject.size());
+    assertTrue(subject.get(0));
+    assertTrue(subject.get(1));
+    assertFalse(subject.get(2));
+  }
+
+  @Test
+  public void removeState_removeLast_clearsState() {
+    DataStatus subject = DataStatus.obtain(2);
+    subject.markRange(0, 2);
+
+    subject.removeState(1);
+
+    assertEquals(1, subject.size());
+    assertTrue(subject.get(0));
+    assertFalse(subject.get(1));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void removeState_sizeThrows() {
+    DataStatus subject = DataStatus.obtain(1);
+    subject.removeState(1);
+  }
+
+  @Test
+  public void unmarkRange_onlyClearsRange() {
+    DataStatus subject = DataStatus.obtain(5);
+    subject.markRange(0, 5);
+
+    subject.unmarkRange(1, 3);
+
+    assertTrue(subject.get(0));
+    assertFalse(subject.get(1));
+    assertFalse(subject.get(2));
+    assertTrue(subject.get(3));
+    assertEquals(1, subject.getEarliestUnmarkedIndexInRange(0, 5));
+    assertEquals(2, subject.getLatestUnmarkedIndexInRange(0, 5));
+  }
 }